@@ -0,0 +1,96 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import org.dbunit.database.DatabaseConnection;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.xml.FlatXmlDataSet;
+import org.dbunit.dataset.xml.FlatXmlProducer;
+import org.dbunit.operation.DatabaseOperation;
+import org.xml.sax.InputSource;
+
+import util.db.BatchInserter;
+
+/**
+ * データ投入方法毎の速度比較<br>
+ * 同梱のsqlite/locals.sqlite3のコピーに対し、dbUnit標準のCLEAN_INSERT / バッチINSERT / 複数行VALUES で投入を行う
+ *
+ * <pre>
+ * ./mvnw -Plocal,bench test-compile exec:java@main -Dexec.mainClass=benchmark.InsertEngineBenchmark -Dexec.args="20000"
+ * </pre>
+ */
+public class InsertEngineBenchmark {
+
+    private static final String PRE_DATA = "./src/test/resources/data/usageRule/TestRuleDataBase/pre_data.xml";
+
+    private static final int FIXTURE_ITERATIONS = 200;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        File dbFile = new File(Files.createTempDirectory("insert-bench").toFile(), "locals.sqlite3");
+        Files.copy(new File("sqlite/locals.sqlite3").toPath(), dbFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE bench_insert (id INTEGER, name TEXT, amount DOUBLE, note TEXT)");
+            }
+            IDataSet large = generate(rows);
+            IDataSet fixture = new FlatXmlDataSet(new FlatXmlProducer(new InputSource(new FileInputStream(PRE_DATA))));
+
+            System.out.println(String.format("%-20s %16s %20s", "engine", "large(rows/s)", "pre_data(ms/load)"));
+            run("dbUnit CLEAN_INSERT", conn, large, fixture, null);
+            run("batch", conn, large, fixture, new BatchInserter(conn, BatchInserter.DEFAULT_BATCH_SIZE, false));
+            run("batch+multiRow", conn, large, fixture, new BatchInserter(conn, BatchInserter.DEFAULT_BATCH_SIZE, true));
+        }
+    }
+
+    private static void run(String name, Connection conn, IDataSet large, IDataSet fixture, BatchInserter inserter)
+            throws Exception {
+        DatabaseConnection connection = new DatabaseConnection(conn);
+
+        long start = System.nanoTime();
+        if (inserter == null) {
+            DatabaseOperation.CLEAN_INSERT.execute(connection, large);
+        } else {
+            inserter.cleanInsert(large);
+        }
+        long largeNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < FIXTURE_ITERATIONS; i++) {
+            if (inserter == null) {
+                DatabaseOperation.CLEAN_INSERT.execute(connection, fixture);
+            } else {
+                inserter.cleanInsert(fixture);
+            }
+        }
+        long fixtureNanos = System.nanoTime() - start;
+
+        int rows = large.getTable("bench_insert").getRowCount();
+        System.out.println(String.format("%-20s %16.0f %20.2f", name,
+                rows / (largeNanos / 1e9), fixtureNanos / 1e6 / FIXTURE_ITERATIONS));
+    }
+
+    private static IDataSet generate(int rows) throws Exception {
+        DefaultTable table = new DefaultTable("bench_insert", new Column[] {
+                new Column("id", DataType.UNKNOWN),
+                new Column("name", DataType.UNKNOWN),
+                new Column("amount", DataType.UNKNOWN),
+                new Column("note", DataType.UNKNOWN) });
+        for (int i = 1; i <= rows; i++) {
+            // FlatXml同様、値は文字列で保持する
+            table.addRow(new Object[] { String.valueOf(i), "name" + i, String.valueOf(i * 1.5), "note of row " + i });
+        }
+        return new DefaultDataSet(table);
+    }
+}
@@ -0,0 +1,95 @@
+package benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Random;
+
+import org.dbunit.database.DatabaseConnection;
+
+import util.db.BatchInserter;
+import util.db.StreamingTableBackup;
+import util.db.StreamingTableBackup.Format;
+
+/**
+ * バックアップファイル形式毎の退避・復元速度とファイルサイズの比較<br>
+ * 数値主体のテーブルをSQLiteに生成し、FlatXml / バイナリ / バイナリ＋deflate で退避・復元を行う
+ *
+ * <pre>
+ * ./mvnw -Plocal,bench test-compile exec:java@main -Dexec.mainClass=benchmark.SnapshotFormatBenchmark -Dexec.args="100000"
+ * </pre>
+ *
+ * ※使用しているSQLite JDBCドライバはgetBlob/getBigDecimalに未対応のため、BLOB・DECIMALカラムは含めていない
+ */
+public class SnapshotFormatBenchmark {
+
+    private static final String TABLE = "bench_snapshot";
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        File dir = Files.createTempDirectory("snapshot-bench").toFile();
+        File dbFile = new File(dir, "bench.sqlite3");
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath())) {
+            generate(conn, rows);
+
+            System.out.println(String.format("%-16s %12s %14s %14s", "format", "size(bytes)", "backup(rows/s)",
+                    "restore(rows/s)"));
+            run(conn, rows, new File(dir, "xml.xml"), Format.XML, false);
+            run(conn, rows, new File(dir, "binary.bin"), Format.BINARY, false);
+            run(conn, rows, new File(dir, "deflate.bin"), Format.BINARY, true);
+        }
+    }
+
+    private static void run(Connection conn, int rows, File file, Format format, boolean compress) throws Exception {
+        StreamingTableBackup backup = new StreamingTableBackup(new DatabaseConnection(conn),
+                StreamingTableBackup.DEFAULT_WINDOW, format, compress,
+                new BatchInserter(conn, BatchInserter.DEFAULT_BATCH_SIZE, false));
+        String[] tables = new String[] { TABLE };
+
+        long start = System.nanoTime();
+        backup.backup(tables, file);
+        long backupNanos = System.nanoTime() - start;
+
+        conn.setAutoCommit(false);
+        start = System.nanoTime();
+        backup.restore(tables, file);
+        conn.commit();
+        long restoreNanos = System.nanoTime() - start;
+        conn.setAutoCommit(true);
+
+        System.out.println(String.format("%-16s %12d %14.0f %14.0f",
+                format + (compress ? "+deflate" : ""), file.length(),
+                rows / (backupNanos / 1e9), rows / (restoreNanos / 1e9)));
+    }
+
+    private static void generate(Connection conn, int rows) throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE " + TABLE + " (id INTEGER PRIMARY KEY, amount DOUBLE,"
+                    + " counter BIGINT, created TIMESTAMP, name VARCHAR(32))");
+        }
+
+        Random random = new Random(0);
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO " + TABLE + " VALUES (?, ?, ?, ?, ?)")) {
+            for (int i = 1; i <= rows; i++) {
+                ps.setInt(1, i);
+                ps.setDouble(2, random.nextDouble() * 1000);
+                ps.setLong(3, random.nextLong());
+                ps.setTimestamp(4, new Timestamp(1480000000000L + i * 1000L));
+                ps.setString(5, "name" + i);
+                ps.addBatch();
+                if (i % 1000 == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+}
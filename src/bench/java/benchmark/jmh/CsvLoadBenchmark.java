@@ -0,0 +1,110 @@
+package benchmark.jmh;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.dbunit.dataset.csv.CsvDataSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.db.BatchInserter;
+import util.db.MappedCsvLoader;
+
+/**
+ * CSVのデータリソースの投入方法毎の所要時間とメモリ割り当て量の比較<br>
+ * dbUnitのCsvDataSet＋バッチINSERT と、メモリマップしたファイルからの直接バッチINSERT(MappedCsvLoader)で、
+ * 生成したCSVを一時的なSQLiteへ投入する
+ *
+ * <pre>
+ * ./mvnw -Plocal,bench test-compile exec:exec -Djmh.include="CsvLoadBenchmark"
+ * </pre>
+ *
+ * 結果は target/jmh-result.json にJSON形式で出力される(-prof gc により gc.alloc.rate.norm 等を含む)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class CsvLoadBenchmark {
+
+    private static final String TABLE_NAME = "bench_csv";
+
+    @Param({ "100000" })
+    public int rows;
+
+    /** 文字列カラムの幅 **/
+    @Param({ "32" })
+    public int width;
+
+    private File workDir;
+    private File csvDir;
+    private Connection conn;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        workDir = Files.createTempDirectory("csv-bench").toFile();
+        csvDir = new File(workDir, "csv");
+        csvDir.mkdirs();
+        Files.write(new File(csvDir, MappedCsvLoader.TABLE_ORDERING_FILE).toPath(),
+                (TABLE_NAME + "\n").getBytes(StandardCharsets.UTF_8));
+        try (BufferedWriter writer = Files.newBufferedWriter(
+                new File(csvDir, TABLE_NAME + MappedCsvLoader.CSV_EXTENSION).toPath(), StandardCharsets.UTF_8)) {
+            writer.write("id,name,amount,quantity,note\n");
+            for (int row = 1; row <= rows; row++) {
+                writer.write(row + "," + StringUtils.leftPad("name" + row, width, 'x') + "," + (row * 1.25) + ","
+                        + (row % 1000) + ",\"" + StringUtils.leftPad("note, " + row, width, 'y') + "\"\n");
+            }
+        }
+
+        conn = DriverManager.getConnection("jdbc:sqlite:" + new File(workDir, "bench.sqlite3").getPath());
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE " + TABLE_NAME
+                    + " (id INTEGER PRIMARY KEY, name TEXT, amount DOUBLE, quantity INTEGER, note TEXT)");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        conn.close();
+        FileUtils.deleteQuietly(workDir);
+    }
+
+    /**
+     * CsvDataSetでディレクトリ全体を読み込んでから投入(RuleDataBaseの既定の方法)
+     */
+    @Benchmark
+    public long csvDataSet() throws Exception {
+        BatchInserter inserter = new BatchInserter(conn, BatchInserter.DEFAULT_BATCH_SIZE, false);
+        inserter.cleanInsert(new CsvDataSet(csvDir));
+        return inserter.getRowCount();
+    }
+
+    /**
+     * メモリマップしたファイルから直接投入(dbUnit.csv.mapped=true)
+     */
+    @Benchmark
+    public long mappedCsv() throws Exception {
+        return new MappedCsvLoader(conn, BatchInserter.DEFAULT_BATCH_SIZE).cleanInsert(csvDir, null, "insert");
+    }
+}
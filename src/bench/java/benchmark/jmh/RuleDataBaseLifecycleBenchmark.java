@@ -0,0 +1,296 @@
+package benchmark.jmh;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.dbunit.database.DatabaseConnection;
+import org.dbunit.database.QueryDataSet;
+import org.dbunit.dataset.xml.FlatXmlDataSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.LoggerFactory;
+
+import util.RuleDataBase;
+import util.RuleResource;
+
+/**
+ * RuleDataBaseのライフサイクル(バックアップ・データ投入・照合・リストア)毎の所要時間とメモリ割り当て量の計測<br>
+ * 行数・カラム数・カラム幅を指定したテーブルを一時的なSQLiteに生成し、application.propertiesの設定で各フェーズを実行する
+ *
+ * <pre>
+ * ./mvnw -Plocal,bench test-compile exec:exec
+ * ./mvnw -Plocal,bench test-compile exec:exec -Djmh.include="RuleDataBaseLifecycleBenchmark.backUpTables" -Djmh.result=target/before.json
+ * </pre>
+ *
+ * 結果は target/jmh-result.json にJSON形式で出力される(-prof gc により gc.alloc.rate.norm 等を含む)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class RuleDataBaseLifecycleBenchmark {
+
+    private static final String TABLE_NAME = "bench_lifecycle";
+
+    private static final String FIXTURE = "fixture";
+
+    /**
+     * 生成したテーブルとデータリソース、RuleResource・RuleDataBase<br>
+     * JMHは状態間の依存を別インスタンスで解決することがあるため、フェーズ毎の前後処理はサブクラスで差し替える
+     */
+    @State(Scope.Thread)
+    public abstract static class Fixture {
+
+        @Param({ "1000", "10000" })
+        public int rows;
+
+        /** 主キーを含むカラム数 **/
+        @Param({ "4", "16" })
+        public int columns;
+
+        /** 文字列カラムの幅 **/
+        @Param({ "32" })
+        public int width;
+
+        /** バックアップファイルの形式 **/
+        @Param({ "xml", "binary" })
+        public String format;
+
+        Resource resource;
+        DataBase database;
+        File workDir;
+        File dataDir;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            // DEBUGログの出力を計測に含めない
+            ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+                    .setLevel(ch.qos.logback.classic.Level.WARN);
+            ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger("org.dbunit.dataset"))
+                    .setLevel(ch.qos.logback.classic.Level.ERROR);
+
+            workDir = Files.createTempDirectory("lifecycle-bench").toFile();
+            File dbFile = new File(workDir, "bench.sqlite3");
+            String url = "jdbc:sqlite:" + dbFile.getPath();
+            String testName = "benchmark/RuleDataBaseLifecycle_" + rows + "_" + columns + "_" + width;
+            // 生成したデータリソース・バックアップファイルはソースツリーに置かない
+            dataDir = new File(workDir, "data");
+
+            // テーブル生成と、その内容をデータリソースとして書き出し
+            try (Connection conn = DriverManager.getConnection(url)) {
+                generate(conn);
+                dataDir.mkdirs();
+                try (OutputStream out = new FileOutputStream(new File(dataDir, FIXTURE + ".xml"))) {
+                    QueryDataSet dataSet = new QueryDataSet(new DatabaseConnection(conn));
+                    dataSet.addTable(TABLE_NAME, "SELECT * FROM " + TABLE_NAME + " ORDER BY id");
+                    FlatXmlDataSet.write(dataSet, out);
+                }
+            }
+
+            Properties overrides = new Properties();
+            overrides.setProperty("datasource.driver-class-name", "org.sqlite.JDBC");
+            overrides.setProperty("datasource.url", url);
+            overrides.setProperty("datasource.worker-url", "");
+            overrides.setProperty("dbUnit.isolation", "backup");
+            overrides.setProperty("dbUnit.backup.format", format);
+            resource = new Resource(testName, overrides, dataDir.getPath());
+            database = new DataBase(new String[] { TABLE_NAME });
+            bind();
+            onTrialStart();
+        }
+
+        /**
+         * 設定は実行スレッドに紐付くため、JMHのワーカースレッドが替わっても参照できるよう都度紐付ける
+         */
+        @Setup(Level.Invocation)
+        public void beforeInvocation() {
+            bind();
+            onInvocationStart();
+        }
+
+        @TearDown(Level.Invocation)
+        public void afterInvocation() {
+            onInvocationEnd();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            bind();
+            onTrialEnd();
+            resource.close();
+            FileUtils.deleteQuietly(workDir);
+        }
+
+        protected void onTrialStart() throws Exception {
+        }
+
+        protected void onInvocationStart() {
+        }
+
+        protected void onInvocationEnd() {
+        }
+
+        protected void onTrialEnd() {
+        }
+
+        private void bind() {
+            resource.open();
+        }
+
+        private void generate(Connection conn) throws Exception {
+            StringBuilder ddl = new StringBuilder("CREATE TABLE " + TABLE_NAME + " (id INTEGER PRIMARY KEY");
+            StringBuilder insert = new StringBuilder("INSERT INTO " + TABLE_NAME + " VALUES (?");
+            for (int i = 1; i < columns; i++) {
+                ddl.append(", c").append(i).append(" TEXT");
+                insert.append(", ?");
+            }
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(ddl.append(")").toString());
+            }
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(insert.append(")").toString())) {
+                for (int row = 1; row <= rows; row++) {
+                    ps.setInt(1, row);
+                    for (int i = 1; i < columns; i++) {
+                        ps.setString(i + 1, StringUtils.leftPad(row + "-" + i, width, 'x'));
+                    }
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * 計測の間、テスト開始後の状態(バックアップ済み・データ投入済み)を保つ
+     */
+    @State(Scope.Thread)
+    public static class Started extends Fixture {
+
+        @Override
+        protected void onTrialStart() throws Exception {
+            database.open();
+            database.cleanInsertData(FIXTURE);
+        }
+
+        @Override
+        protected void onTrialEnd() {
+            database.close();
+        }
+    }
+
+    /**
+     * 計測の都度、テスト終了時の処理(リストア)を行う
+     */
+    @State(Scope.Thread)
+    public static class Opening extends Fixture {
+
+        @Override
+        protected void onInvocationEnd() {
+            database.close();
+        }
+    }
+
+    /**
+     * 計測の都度、テスト開始時の処理(バックアップ)を済ませておく
+     */
+    @State(Scope.Thread)
+    public static class Closing extends Fixture {
+
+        @Override
+        protected void onInvocationStart() {
+            database.open();
+        }
+    }
+
+    /**
+     * テスト開始時の処理 DB接続とテーブルのバックアップ(pre_data無し)
+     */
+    @Benchmark
+    public void backUpTables(Opening fixture) {
+        fixture.database.open();
+    }
+
+    /**
+     * データリソースの投入
+     */
+    @Benchmark
+    public void cleanInsertData(Started fixture) throws Exception {
+        fixture.database.cleanInsertData(FIXTURE);
+    }
+
+    /**
+     * データリソースとDBの内容の照合
+     */
+    @Benchmark
+    public void assertDatas(Started fixture) throws Exception {
+        fixture.database.assertDatas(FIXTURE);
+    }
+
+    /**
+     * テスト終了時の処理 テーブルのリストアとDB切断
+     */
+    @Benchmark
+    public void restoreTables(Closing fixture) {
+        fixture.database.close();
+    }
+
+    /**
+     * ExternalResourceの開始・終了処理を呼び出すためのRuleResource
+     */
+    static class Resource extends RuleResource {
+        Resource(String testName, Properties overrides, String dataResourcePath) {
+            super(testName, overrides, dataResourcePath);
+        }
+
+        void open() {
+            before();
+        }
+
+        void close() {
+            after();
+        }
+    }
+
+    /**
+     * ExternalResourceの開始・終了処理を呼び出すためのRuleDataBase
+     */
+    static class DataBase extends RuleDataBase {
+        DataBase(String[] targetTables) {
+            super(targetTables);
+        }
+
+        void open() {
+            before();
+        }
+
+        void close() {
+            after();
+        }
+    }
+}
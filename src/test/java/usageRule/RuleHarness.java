@@ -0,0 +1,93 @@
+package usageRule;
+
+import java.util.Properties;
+
+import util.RuleDataBase;
+import util.RuleResource;
+
+/**
+ * RuleResource・RuleDataBaseを、@ClassRuleを使わずに開始・終了するためのテスト用クラス<br>
+ * 1つのテストメソッドの中で、設定を変えたテストクラスの開始・終了を繰り返す場合に使用する
+ */
+public class RuleHarness {
+
+    private final Resource resource;
+    private final DataBase database;
+
+    /**
+     * @param testName テスト名(データリソースのディレクトリ)
+     * @param overrides 設定の置き換え
+     * @param targetTables バックアップすべきテーブル名の配列
+     */
+    public RuleHarness(String testName, Properties overrides, String[] targetTables) {
+        resource = new Resource(testName, overrides);
+        database = new DataBase(targetTables);
+    }
+
+    /**
+     * 接続先のDBを指定した、dbUnitを有効にする設定を返します
+     *
+     * @param driverClassName JDBCドライバのクラス名
+     * @param url 接続URL
+     * @return 設定の置き換え
+     */
+    public static Properties overrides(String driverClassName, String url) {
+        Properties overrides = new Properties();
+        overrides.setProperty("dbUnit.enable", "true");
+        overrides.setProperty("datasource.driver-class-name", driverClassName);
+        overrides.setProperty("datasource.url", url);
+        overrides.setProperty("datasource.worker-url", "");
+        return overrides;
+    }
+
+    /**
+     * テストクラスの開始時の処理を行います
+     */
+    public void open() {
+        resource.open();
+        database.open();
+    }
+
+    /**
+     * テストクラスの終了時の処理を行います
+     */
+    public void close() {
+        database.close();
+        resource.close();
+    }
+
+    /**
+     * @return RuleDataBase
+     */
+    public RuleDataBase getDatabase() {
+        return database;
+    }
+
+    private static class Resource extends RuleResource {
+        Resource(String testName, Properties overrides) {
+            super(testName, overrides);
+        }
+
+        void open() {
+            before();
+        }
+
+        void close() {
+            after();
+        }
+    }
+
+    private static class DataBase extends RuleDataBase {
+        DataBase(String[] targetTables) {
+            super(targetTables);
+        }
+
+        void open() {
+            before();
+        }
+
+        void close() {
+            after();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 照合時に、検証対象のテーブルのみを主キー順に取得することのテスト<br>
+ * 期待値にはDBに存在しないテーブルを含め、対象のテーブルには主キー順と異なる順序で行を投入する
+ */
+public class TestAssertTargetTables {
+
+    private static final String TEST_NAME = "usageRule/TestAssertTargetTables";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void onlyTargetTablesInPkOrder() throws Exception {
+        String url = createDatabase();
+
+        RuleHarness harness = new RuleHarness(TEST_NAME, RuleHarness.overrides("org.sqlite.JDBC", url),
+                new String[] { "code_t" });
+        harness.open();
+        try {
+            // 期待値のmissing_tは取得しない(取得すればテーブルが無いため失敗する)
+            harness.getDatabase().assertDatas("result", new String[] { "code_t" });
+
+            // 全テーブルが対象であれば、missing_tも取得する
+            try {
+                harness.getDatabase().assertDatas("result");
+                fail();
+            } catch (Exception e) {
+                assertTrue(e.toString(), e.toString().contains("missing_t"));
+            }
+        } finally {
+            harness.close();
+        }
+    }
+
+    @Test
+    public void withoutOrderByPk() throws Exception {
+        String url = createDatabase();
+        Properties overrides = RuleHarness.overrides("org.sqlite.JDBC", url);
+        overrides.setProperty("dbUnit.assert.orderByPk", "false");
+
+        // 主キー順に並べなければ、投入した順のため一致しない
+        RuleHarness harness = new RuleHarness(TEST_NAME, overrides, new String[] { "code_t" });
+        harness.open();
+        try {
+            harness.getDatabase().assertDatas("result", new String[] { "code_t" });
+            fail();
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("code_t"));
+        } finally {
+            harness.close();
+        }
+    }
+
+    /**
+     * 複合主キーのテーブルに、主キー順と異なる順序で行を投入します(SQLiteは投入順に返す)
+     *
+     * @return 接続URL
+     */
+    private String createDatabase() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "assert.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE code_t (code TEXT, seq INTEGER, name TEXT, PRIMARY KEY (code, seq))");
+            stmt.execute("INSERT INTO code_t VALUES ('c', 1, 'cherry'), ('a', 2, 'apricot'), ('b', 1, 'banana'),"
+                    + " ('a', 1, 'apple')");
+        }
+        return url;
+    }
+}
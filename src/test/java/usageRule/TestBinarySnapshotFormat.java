@@ -0,0 +1,123 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+
+import org.dbunit.dataset.CachedDataSet;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.stream.DataSetProducerAdapter;
+import org.junit.Test;
+
+import util.db.BinarySnapshotProducer;
+import util.db.BinarySnapshotWriter;
+
+/**
+ * バイナリスナップショット形式の書き出し・読み込みのテスト<br>
+ * 型どおりの値はその型で、変換できない値は文字列のまま戻ることを確認する
+ */
+public class TestBinarySnapshotFormat {
+
+    private static final Column[] COLUMNS = new Column[] {
+            new Column("flag", DataType.BOOLEAN), new Column("qty", DataType.BIGINT),
+            new Column("price", DataType.DECIMAL), new Column("at", DataType.TIMESTAMP),
+            new Column("data", DataType.VARBINARY), new Column("name", DataType.VARCHAR) };
+
+    @Test
+    public void roundTrip() throws Exception {
+        Timestamp at = Timestamp.valueOf("2020-01-01 12:34:56.789");
+        Object[][] rows = new Object[][] {
+                { Boolean.TRUE, 1L, new BigDecimal("1.50"), at, new byte[] { 0, 1, -1 }, "apple" },
+                { 0, "-2", "10", "2020-01-01 12:34:56.789", "pen", "ペン" },
+                { "1", 3, null, null, null, null },
+                { " FALSE ", null, null, null, null, "" },
+                { "t", "x", "y", "z", null, null },
+                { 2, null, null, null, null, null } };
+
+        for (boolean compress : new boolean[] { false, true }) {
+            ITable table = roundTrip(rows, compress);
+            assertEquals(rows.length, table.getRowCount());
+
+            // 型どおりに変換できる値
+            assertEquals(Boolean.TRUE, table.getValue(0, "flag"));
+            assertEquals(1L, table.getValue(0, "qty"));
+            assertEquals(new BigDecimal("1.50"), table.getValue(0, "price"));
+            assertEquals(at, table.getValue(0, "at"));
+            assertArrayEquals(new byte[] { 0, 1, -1 }, (byte[]) table.getValue(0, "data"));
+            assertEquals("apple", table.getValue(0, "name"));
+            assertEquals(Boolean.FALSE, table.getValue(1, "flag"));
+            assertEquals(-2L, table.getValue(1, "qty"));
+            assertEquals(new BigDecimal("10"), table.getValue(1, "price"));
+            assertEquals(at, table.getValue(1, "at"));
+            assertEquals("ペン", table.getValue(1, "name"));
+            assertEquals(Boolean.TRUE, table.getValue(2, "flag"));
+            assertEquals(Boolean.FALSE, table.getValue(3, "flag"));
+            assertNull(table.getValue(2, "price"));
+            assertEquals("", table.getValue(3, "name"));
+
+            // 変換できない値は文字列のまま戻る
+            assertEquals("t", table.getValue(4, "flag"));
+            assertEquals("x", table.getValue(4, "qty"));
+            assertEquals("y", table.getValue(4, "price"));
+            assertEquals("z", table.getValue(4, "at"));
+            assertEquals("2", table.getValue(5, "flag"));
+        }
+    }
+
+    @Test
+    public void inexactLong() throws Exception {
+        // longで正確に表せない値は、丸めず10進数として戻る
+        Object[][] rows = new Object[][] {
+                { null, new BigInteger("9223372036854775808"), null, null, null, null },
+                { null, new BigDecimal("1.5"), null, null, null, null },
+                { null, 2.5d, null, null, null, null },
+                { null, "-99999999999999999999", null, null, null, null },
+                { null, new BigDecimal("7.00"), null, null, null, null },
+                { null, new BigInteger("-9223372036854775808"), null, null, null, null } };
+
+        for (boolean compress : new boolean[] { false, true }) {
+            ITable table = roundTrip(rows, compress);
+            assertEquals(new BigDecimal("9223372036854775808"), table.getValue(0, "qty"));
+            assertEquals(new BigDecimal("1.5"), table.getValue(1, "qty"));
+            assertEquals(new BigDecimal("2.5"), table.getValue(2, "qty"));
+            assertEquals(new BigDecimal("-99999999999999999999"), table.getValue(3, "qty"));
+            assertEquals(7L, table.getValue(4, "qty"));
+            assertEquals(Long.MIN_VALUE, table.getValue(5, "qty"));
+        }
+    }
+
+    @Test
+    public void binaryValueInOtherColumn() throws Exception {
+        // バイナリの値は文字列にすると失われるため、書き出さずにエラーとする
+        try {
+            roundTrip(new Object[][] { { new byte[] { 1 }, null, null, null, null, null } }, false);
+            fail();
+        } catch (DataSetException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Binary value"));
+        }
+    }
+
+    private static ITable roundTrip(Object[][] rows, boolean compress) throws Exception {
+        DefaultTable table = new DefaultTable("snapshot_t", COLUMNS);
+        for (Object[] row : rows) {
+            table.addRow(row);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataSetProducerAdapter producer = new DataSetProducerAdapter(new DefaultDataSet(table));
+        producer.setConsumer(new BinarySnapshotWriter(out, compress, 4));
+        producer.produce();
+
+        return new CachedDataSet(new BinarySnapshotProducer(new ByteArrayInputStream(out.toByteArray())))
+                .getTable("snapshot_t");
+    }
+}
@@ -0,0 +1,307 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.db.BatchInserter;
+import util.db.BulkInserter;
+import util.db.BulkInserter.Dialect;
+
+/**
+ * DB毎の一括投入が、バッチINSERTと同じ内容を投入することのテスト<br>
+ * MySQL・PostgreSQLの代わりに、組み込みのH2(CSVREAD)とSQLite(1トランザクション＋synchronous=OFF)で検証する<br>
+ * MySQLの警告による失敗は、LOAD DATAの件数と警告のみを返すコネクションで検証する
+ */
+public class TestBulkInserter {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void dialect() {
+        assertEquals(Dialect.MYSQL, Dialect.of("com.mysql.jdbc.Driver"));
+        assertEquals(Dialect.MYSQL, Dialect.of("com.mysql.cj.jdbc.Driver"));
+        assertEquals(Dialect.POSTGRESQL, Dialect.of("org.postgresql.Driver"));
+        assertEquals(Dialect.SQLITE, Dialect.of("org.sqlite.JDBC"));
+        assertEquals(Dialect.H2, Dialect.of("org.h2.Driver"));
+        assertEquals(Dialect.OTHER, Dialect.of("oracle.jdbc.OracleDriver"));
+        assertEquals(Dialect.OTHER, Dialect.of(null));
+    }
+
+    @Test
+    public void streaming() throws Exception {
+        assertEquals(Dialect.MYSQL, Dialect.detect(connection("jdbc:mysql://localhost/test", null)));
+        assertEquals(Dialect.POSTGRESQL, Dialect.detect(connection("jdbc:postgresql://localhost/test", null)));
+        assertEquals(Dialect.OTHER, Dialect.detect(connection("jdbc:oracle:thin:@localhost:1521:test", null)));
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite::memory:")) {
+            assertEquals(Dialect.SQLITE, Dialect.detect(conn));
+            assertEquals(500, Dialect.SQLITE.streamingFetchSize(conn, 500));
+            assertFalse(Dialect.SQLITE.beginStreaming(conn));
+        }
+
+        // MySQLはuseCursorFetch=trueが無ければ1行ずつ返す指定にする
+        assertEquals(Integer.MIN_VALUE, Dialect.MYSQL.streamingFetchSize(
+                connection("jdbc:mysql://localhost/test", null), 500));
+        assertEquals(500, Dialect.MYSQL.streamingFetchSize(
+                connection("jdbc:mysql://localhost/test?useCursorFetch=true", null), 500));
+
+        // PostgreSQLは読み取りの間のみ自動コミットを無効にする
+        StringBuilder calls = new StringBuilder();
+        Connection postgresql = connection("jdbc:postgresql://localhost/test", calls);
+        assertTrue(Dialect.POSTGRESQL.beginStreaming(postgresql));
+        Dialect.POSTGRESQL.endStreaming(postgresql, true);
+        assertEquals("setAutoCommit(false) commit() setAutoCommit(true) ", calls.toString());
+    }
+
+    @Test
+    public void h2() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:bulk;DB_CLOSE_DELAY=-1")) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE parent (id INT PRIMARY KEY)");
+                stmt.execute("CREATE TABLE bulk_t (id INT PRIMARY KEY, name VARCHAR(100), amount DECIMAL(10, 2),"
+                        + " flag BOOLEAN, created TIMESTAMP, parent_id INT REFERENCES parent(id))");
+            }
+            assertSameAsBatchInsert(conn, Dialect.H2);
+
+            // 外部キーで参照されているテーブルはTRUNCATEできないため、DELETEで削除される
+            BulkInserter inserter = new BulkInserter(conn, Dialect.H2, 10, false);
+            inserter.deleteAll(new String[] { "parent", "bulk_t" });
+            assertEquals(0, count(conn, "bulk_t"));
+            assertEquals(0, count(conn, "parent"));
+        }
+    }
+
+    @Test
+    public void sqlite() throws Exception {
+        File dbFile = tmp.newFile("bulk.sqlite3");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath())) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE parent (id INTEGER PRIMARY KEY)");
+                stmt.execute("CREATE TABLE bulk_t (id INTEGER PRIMARY KEY, name TEXT, amount DECIMAL(10, 2),"
+                        + " flag BOOLEAN, created TEXT, parent_id INTEGER)");
+            }
+            String synchronous = pragmaSynchronous(conn);
+            assertSameAsBatchInsert(conn, Dialect.SQLITE);
+
+            // 投入後は元の設定に戻っている
+            assertEquals(synchronous, pragmaSynchronous(conn));
+            assertTrue(conn.getAutoCommit());
+        }
+    }
+
+    @Test
+    public void mysqlWarnings() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:bulk_mysql;DB_CLOSE_DELAY=-1")) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("CREATE TABLE parent (id INT PRIMARY KEY)");
+                stmt.execute("CREATE TABLE bulk_t (id INT PRIMARY KEY, name VARCHAR(100), amount DECIMAL(10, 2),"
+                        + " flag BOOLEAN, created TIMESTAMP, parent_id INT)");
+            }
+            IDataSet dataSet = createDataSet(3);
+
+            // 全行が警告なく投入されれば成功
+            BulkInserter inserter = new BulkInserter(mysql(conn, 0, null), Dialect.MYSQL, 10, false);
+            inserter.insert(dataSet);
+            assertEquals(6, inserter.getRowCount());
+
+            // 警告(型変換で丸められた値)があれば失敗
+            try {
+                new BulkInserter(mysql(conn, 0, "Data truncated for column 'amount' at row 2"), Dialect.MYSQL, 10,
+                        false).insert(dataSet);
+                fail();
+            } catch (DataSetException e) {
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("Data truncated"));
+            }
+
+            // 投入件数が書き出した行数と異なれば失敗(重複キーで読み飛ばされた行)
+            try {
+                new BulkInserter(mysql(conn, 1, "Duplicate entry '1' for key 'PRIMARY'"), Dialect.MYSQL, 10,
+                        false).insert(dataSet);
+                fail();
+            } catch (DataSetException e) {
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("loaded 2 of 3 rows"));
+            }
+        }
+    }
+
+    /**
+     * LOAD DATA LOCAL INFILE を、MySQLと同じく件数と警告を返すだけで実行したことにするコネクションを返します
+     *
+     * @param skipped 読み飛ばしたことにする行数
+     * @param warning 警告 無い場合はnull
+     */
+    private static Connection mysql(final Connection conn, final int skipped, final String warning) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = call(conn, method, args);
+                        if (!"createStatement".equals(method.getName())) {
+                            return result;
+                        }
+                        final Statement stmt = (Statement) result;
+                        return Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                                new Class<?>[] { Statement.class }, new InvocationHandler() {
+                                    private SQLWarning warnings;
+
+                                    @Override
+                                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                                        String sql = args != null && args[0] instanceof String ? (String) args[0] : "";
+                                        if ("executeUpdate".equals(method.getName()) && sql.startsWith("LOAD DATA")) {
+                                            String path = sql.substring(sql.indexOf('\'') + 1, sql.indexOf('\'', sql.indexOf('\'') + 1));
+                                            int rows = Files.readAllLines(new File(path).toPath()).size();
+                                            if (rows > 0) {
+                                                warnings = warning == null ? null : new SQLWarning(warning);
+                                                return rows - skipped;
+                                            }
+                                            return 0;
+                                        }
+                                        if ("getWarnings".equals(method.getName())) {
+                                            return warnings;
+                                        }
+                                        return call(stmt, method, args);
+                                    }
+                                });
+                    }
+                });
+    }
+
+    /**
+     * 接続URLのみを返し、自動コミットの操作を記録するコネクション
+     */
+    private static Connection connection(final String url, final StringBuilder calls) {
+        final DatabaseMetaData metaData = (DatabaseMetaData) Proxy.newProxyInstance(
+                TestBulkInserter.class.getClassLoader(), new Class<?>[] { DatabaseMetaData.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getURL".equals(method.getName()) ? url : null;
+                    }
+                });
+        return (Connection) Proxy.newProxyInstance(TestBulkInserter.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new InvocationHandler() {
+                    private boolean autoCommit = true;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                        case "getMetaData":
+                            return metaData;
+                        case "getAutoCommit":
+                            return autoCommit;
+                        case "setAutoCommit":
+                            autoCommit = (Boolean) args[0];
+                            calls.append("setAutoCommit(" + autoCommit + ") ");
+                            return null;
+                        case "commit":
+                            calls.append("commit() ");
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * バッチINSERTで投入した内容と、一括投入した内容が一致することを確認します
+     */
+    private void assertSameAsBatchInsert(Connection conn, Dialect dialect) throws Exception {
+        IDataSet dataSet = createDataSet(500);
+
+        new BatchInserter(conn, 10, false).cleanInsert(dataSet);
+        String expected = dump(conn);
+
+        BulkInserter inserter = new BulkInserter(conn, dialect, 10, false);
+        inserter.cleanInsert(dataSet);
+        assertEquals(500 + 3, inserter.getRowCount());
+        assertEquals(expected, dump(conn));
+    }
+
+    private static IDataSet createDataSet(int rows) throws Exception {
+        DefaultTable parent = new DefaultTable("parent", new Column[] { new Column("id", DataType.UNKNOWN) });
+        for (int i = 1; i <= 3; i++) {
+            parent.addRow(new Object[] { String.valueOf(i) });
+        }
+
+        DefaultTable table = new DefaultTable("bulk_t", new Column[] {
+                new Column("id", DataType.UNKNOWN),
+                new Column("name", DataType.UNKNOWN),
+                new Column("amount", DataType.UNKNOWN),
+                new Column("flag", DataType.UNKNOWN),
+                new Column("created", DataType.UNKNOWN),
+                new Column("parent_id", DataType.UNKNOWN) });
+        String[] names = { "plain", "tab\tand\nnew line", "quote \" and back\\slash", "", "\\N", null, "日本語" };
+        for (int i = 1; i <= rows; i++) {
+            table.addRow(new Object[] {
+                    String.valueOf(i),
+                    names[i % names.length],
+                    i % 5 == 0 ? null : String.valueOf(i * 1.25),
+                    i % 2 == 0 ? "true" : "false",
+                    "2017-01-" + String.format("%02d", i % 28 + 1) + " 12:34:56.0",
+                    String.valueOf(i % 3 + 1) });
+        }
+        return new DefaultDataSet(new ITable[] { parent, table });
+    }
+
+    private static String dump(Connection conn) throws Exception {
+        StringBuilder dump = new StringBuilder();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT * FROM bulk_t ORDER BY id")) {
+            int columns = rs.getMetaData().getColumnCount();
+            while (rs.next()) {
+                for (int i = 1; i <= columns; i++) {
+                    dump.append(rs.getString(i)).append('|');
+                }
+                dump.append('\n');
+            }
+        }
+        return dump.toString();
+    }
+
+    private static int count(Connection conn, String tableName) throws Exception {
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + tableName)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static String pragmaSynchronous(Connection conn) throws Exception {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA synchronous")) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+}
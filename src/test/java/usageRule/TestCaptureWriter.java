@@ -0,0 +1,103 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.TestMetrics;
+import util.selenium.CaptureWriter;
+import util.selenium.CaptureWriter.Format;
+
+/**
+ * スクリーンキャプチャの書き出しスレッドのテスト<br>
+ * ブラウザの代わりに、生成したPNGを積む
+ */
+public class TestCaptureWriter {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void writeInOrder() throws Exception {
+        CaptureWriter writer = CaptureWriter.getInstance(CaptureWriter.DEFAULT_QUEUE_SIZE);
+        TestMetrics metrics = new TestMetrics();
+
+        // キューの上限を超えて積んでも、全て積んだ順に書き出される
+        List<Future<File>> futures = new ArrayList<Future<File>>();
+        for (int i = 0; i < CaptureWriter.DEFAULT_QUEUE_SIZE * 3; i++) {
+            futures.add(writer.submit(png(i), new File(tmp.getRoot(), "frame_" + i + ".png"), Format.PNG, null,
+                    metrics));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            File file = futures.get(i).get();
+            assertEquals("frame_" + i + ".png", file.getName());
+            assertEquals(i, ImageIO.read(file).getRGB(0, 0) & 0xff);
+        }
+        assertEquals(futures.size(), tmp.getRoot().list().length);
+    }
+
+    @Test
+    public void dedup() throws Exception {
+        CaptureWriter writer = CaptureWriter.getInstance(CaptureWriter.DEFAULT_QUEUE_SIZE);
+        TestMetrics metrics = new TestMetrics();
+        String key = tmp.getRoot().getPath() + "/dedup";
+
+        File first = writer.submit(png(1), new File(tmp.getRoot(), "a.png"), Format.PNG, key, metrics).get();
+        File same = writer.submit(png(1), new File(tmp.getRoot(), "b.png"), Format.PNG, key, metrics).get();
+        File changed = writer.submit(png(2), new File(tmp.getRoot(), "c.png"), Format.PNG, key, metrics).get();
+        File back = writer.submit(png(1), new File(tmp.getRoot(), "d.png"), Format.PNG, key, metrics).get();
+
+        // 直前と同じ内容のみ省略される
+        assertEquals(first, same);
+        assertFalse(new File(tmp.getRoot(), "b.png").exists());
+        assertEquals("c.png", changed.getName());
+        assertEquals("d.png", back.getName());
+        assertEquals(1, metrics.getCount("capture.dedup", key));
+
+        // 忘れた後は、同じ内容でも書き出される
+        writer.forget(key);
+        File afterForget = writer.submit(png(1), new File(tmp.getRoot(), "e.png"), Format.PNG, key, metrics).get();
+        assertEquals("e.png", afterForget.getName());
+    }
+
+    @Test
+    public void jpeg() throws Exception {
+        CaptureWriter writer = CaptureWriter.getInstance(CaptureWriter.DEFAULT_QUEUE_SIZE);
+
+        File file = writer.submit(png(3), new File(tmp.getRoot(), "shot.png"), Format.of("jpeg"), null, null).get();
+        assertEquals("shot.jpg", file.getName());
+        BufferedImage image = ImageIO.read(file);
+        assertEquals(320, image.getWidth());
+        assertEquals(200, image.getHeight());
+    }
+
+    /**
+     * 左上の画素の青成分が seed になるPNGを生成します
+     */
+    private static byte[] png(int seed) throws Exception {
+        BufferedImage image = new BufferedImage(320, 200, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(new Color(0, 0, seed));
+        graphics.fillRect(0, 0, 320, 200);
+        graphics.setColor(Color.ORANGE);
+        graphics.drawString("capture " + seed, 20, 100);
+        graphics.dispose();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytes);
+        return bytes.toByteArray();
+    }
+}
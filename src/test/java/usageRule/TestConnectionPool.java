@@ -0,0 +1,159 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.db.ConnectionPool;
+
+/**
+ * フォーク全体で共有するDBコネクションプールのテスト<br>
+ * 接続先毎にプールが作られるため、テストメソッド毎に一時ファイルのSQLiteを接続先とする
+ */
+public class TestConnectionPool {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void borrowAndReturn() throws Exception {
+        ConnectionPool pool = pool("reuse", 2, 0);
+
+        Connection first = pool.borrow();
+        Connection second = pool.borrow();
+        assertEquals(2, pool.getActiveCount());
+        assertEquals(0, pool.getIdleCount());
+        String physical = first.toString();
+
+        // 返却したコネクションは、残ったトランザクションをロールバックして再利用される
+        try (Statement stmt = first.createStatement()) {
+            stmt.execute("CREATE TABLE pool_t (id INTEGER)");
+        }
+        first.setAutoCommit(false);
+        try (Statement stmt = first.createStatement()) {
+            stmt.execute("INSERT INTO pool_t VALUES (1)");
+        }
+        first.close();
+        first.close();
+        assertTrue(first.isClosed());
+        assertEquals(1, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        try {
+            first.createStatement();
+            fail();
+        } catch (SQLException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("already returned"));
+        }
+
+        Connection again = pool.borrow();
+        assertEquals(physical, again.toString());
+        assertTrue(again.getAutoCommit());
+        try (Statement stmt = again.createStatement()) {
+            stmt.execute("SELECT COUNT(*) FROM pool_t");
+            assertEquals(0, stmt.getResultSet().getInt(1));
+        }
+        again.close();
+        second.close();
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(2, pool.getIdleCount());
+    }
+
+    @Test
+    public void discardInvalidConnection() throws Exception {
+        ConnectionPool pool = pool("invalid", 1, 0);
+
+        // 待機中に使えなくなったコネクションは、貸出時に破棄して新しく接続する
+        Connection conn = pool.borrow();
+        Connection physical = conn.unwrap(Connection.class);
+        conn.close();
+        assertEquals(1, pool.getIdleCount());
+        physical.close();
+
+        conn = pool.borrow();
+        assertNotSame(physical, conn.unwrap(Connection.class));
+        assertTrue(conn.isValid(1));
+        assertEquals(1, pool.getActiveCount());
+        assertEquals(0, pool.getIdleCount());
+        conn.close();
+
+        // 物理コネクションが貸出中に閉じられた場合は、返却時に破棄する
+        conn = pool.borrow();
+        conn.unwrap(Connection.class).close();
+        conn.close();
+        assertEquals(0, pool.getIdleCount());
+        pool.borrow().close();
+    }
+
+    @Test
+    public void blockUntilReturned() throws Exception {
+        final ConnectionPool pool = pool("block", 1, 0);
+        final Connection conn = pool.borrow();
+
+        // 最大数まで貸出中であれば、上限時間まで待って失敗する
+        long start = System.currentTimeMillis();
+        try {
+            pool.borrow(300L);
+            fail();
+        } catch (SQLException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Timeout"));
+        }
+        assertTrue(System.currentTimeMillis() - start >= 300L);
+
+        // 待っている間に返却されれば借りられる
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Connection> waiting = executor.submit(new Callable<Connection>() {
+                @Override
+                public Connection call() throws Exception {
+                    return pool.borrow(10000L);
+                }
+            });
+            Thread.sleep(200L);
+            assertFalse(waiting.isDone());
+
+            conn.close();
+            Connection borrowed = waiting.get(5, TimeUnit.SECONDS);
+            assertEquals(1, pool.getActiveCount());
+            borrowed.close();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void leakDetection() throws Exception {
+        ConnectionPool pool = pool("leak", 2, 200L);
+
+        Connection leaked = pool.borrow();
+        Connection returned = pool.borrow();
+        returned.close();
+
+        // 返却されないまま検出時間を超えたコネクションのみ警告される
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (pool.getLeakedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100L);
+        }
+        assertEquals(1, pool.getLeakedCount());
+
+        leaked.close();
+        assertEquals(0, pool.getLeakedCount());
+        assertEquals(0, pool.getActiveCount());
+    }
+
+    private ConnectionPool pool(String name, int maxSize, long leakDetectionThreshold) throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), name + ".sqlite3").getPath();
+        return ConnectionPool.of("org.sqlite.JDBC", url, null, null, maxSize, leakDetectionThreshold);
+    }
+}
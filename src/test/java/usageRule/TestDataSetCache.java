@@ -0,0 +1,139 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.db.DataSetCache;
+
+/**
+ * 解析済みデータセットのキャッシュのテスト<br>
+ * ヒット数・ミス数、ファイル更新時の破棄、除外カラムがキーに含まれること、件数・容量の上限を確認する
+ */
+public class TestDataSetCache {
+
+    private static final Map<String, String[]> NONE = Collections.emptyMap();
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        DataSetCache.clear();
+        DataSetCache.initialize(10, 1024L);
+    }
+
+    @After
+    public void tearDown() {
+        DataSetCache.clear();
+    }
+
+    @Test
+    public void hitAndMiss() throws Exception {
+        File data = file("pre_data.xml", 10);
+        IDataSet dataSet = new DefaultDataSet();
+
+        assertNull(DataSetCache.get(data, NONE));
+        DataSetCache.put(data, NONE, dataSet);
+        assertSame(dataSet, DataSetCache.get(data, NONE));
+        assertSame(dataSet, DataSetCache.get(data, NONE));
+
+        assertEquals(2, DataSetCache.getHitCount());
+        assertEquals(1, DataSetCache.getMissCount());
+        assertEquals(1, DataSetCache.size());
+        assertEquals(10, DataSetCache.bytes());
+
+        // 初回利用後の設定は無視される
+        assertFalse(DataSetCache.initialize(0, 0L));
+        assertSame(dataSet, DataSetCache.get(data, NONE));
+    }
+
+    @Test
+    public void invalidateOnModified() throws Exception {
+        File data = file("pre_data.xml", 10);
+        DataSetCache.put(data, NONE, new DefaultDataSet());
+        assertNotNull(DataSetCache.get(data, NONE));
+
+        assertTrue(data.setLastModified(data.lastModified() + 2000L));
+        assertNull(DataSetCache.get(data, NONE));
+
+        // CSVのディレクトリは配下のファイルの更新を見る
+        File csv = tmp.newFolder("csv");
+        File table = file("csv/pk_t.csv", 10);
+        DataSetCache.put(csv, NONE, new DefaultDataSet());
+        assertNotNull(DataSetCache.get(csv, NONE));
+
+        assertTrue(table.setLastModified(table.lastModified() + 2000L));
+        assertNull(DataSetCache.get(csv, NONE));
+    }
+
+    @Test
+    public void excludedColumnsInKey() throws Exception {
+        File data = file("pre_data.xml", 10);
+        Map<String, String[]> excluded = new LinkedHashMap<String, String[]>();
+        excluded.put("pk_t", new String[] { "name", "note" });
+        excluded.put("item_t", new String[] { "created" });
+        IDataSet dataSet = new DefaultDataSet();
+        DataSetCache.put(data, excluded, dataSet);
+
+        // 除外カラムが異なれば別のデータセット
+        assertNull(DataSetCache.get(data, NONE));
+        assertNull(DataSetCache.get(data, Collections.singletonMap("pk_t", new String[] { "name" })));
+
+        // テーブル・カラムの順序は問わない
+        Map<String, String[]> reordered = new LinkedHashMap<String, String[]>();
+        reordered.put("item_t", new String[] { "created" });
+        reordered.put("pk_t", new String[] { "note", "name" });
+        assertSame(dataSet, DataSetCache.get(data, reordered));
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        DataSetCache.clear();
+        DataSetCache.initialize(2, 100L);
+
+        // 件数の上限を超えたら、最も長く使われていないものを破棄する
+        File first = file("first.xml", 10);
+        File second = file("second.xml", 10);
+        File third = file("third.xml", 10);
+        DataSetCache.put(first, NONE, new DefaultDataSet());
+        DataSetCache.put(second, NONE, new DefaultDataSet());
+        assertNotNull(DataSetCache.get(first, NONE));
+        DataSetCache.put(third, NONE, new DefaultDataSet());
+        assertEquals(2, DataSetCache.size());
+        assertNotNull(DataSetCache.get(first, NONE));
+        assertNull(DataSetCache.get(second, NONE));
+
+        // 容量の上限を超えたら破棄する
+        File large = file("large.xml", 95);
+        DataSetCache.put(large, NONE, new DefaultDataSet());
+        assertEquals(1, DataSetCache.size());
+        assertEquals(95, DataSetCache.bytes());
+        assertNotNull(DataSetCache.get(large, NONE));
+
+        // 上限より大きいものはキャッシュしない
+        File huge = file("huge.xml", 101);
+        DataSetCache.put(huge, NONE, new DefaultDataSet());
+        assertNull(DataSetCache.get(huge, NONE));
+        assertNotNull(DataSetCache.get(large, NONE));
+    }
+
+    private File file(String name, int bytes) throws Exception {
+        File file = new File(tmp.getRoot(), name);
+        Files.write(file.toPath(), new String(new char[bytes]).replace('\0', 'x').getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
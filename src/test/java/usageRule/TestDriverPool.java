@@ -0,0 +1,129 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.By;
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import util.selenium.DriverPool;
+import util.selenium.LocalStorageJS;
+
+/**
+ * ログイン済みのWebDriverを使い回すプールのテスト<br>
+ * ローカルのHTTPサーバーが返す静的なログイン画面に、HtmlUnitDriverでログインする
+ */
+public class TestDriverPool {
+    protected static final Logger log = LoggerFactory.getLogger(TestDriverPool.class);
+
+    private static final String LOGIN_PAGE = "<html><body>"
+            + "<input id='user_id'><input id='user_pw' type='password'>"
+            + "<a href='#' onclick=\"document.cookie = 'session=' + document.getElementById('user_id').value + '; path=/';"
+            + " window.localStorage.setItem('token', 'token-' + document.getElementById('user_id').value);"
+            + " location.href = '/home'; return false;\">LOGIN</a>"
+            + "</body></html>";
+
+    private static final String HOME_PAGE = "<html><body>Welcome</body></html>";
+
+    private static HttpServer server;
+    private static String baseUrl;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = ("/".equals(exchange.getRequestURI().getPath()) ? LOGIN_PAGE : HOME_PAGE)
+                        .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void test() throws Exception {
+        final AtomicInteger logins = new AtomicInteger();
+        DriverPool pool = DriverPool.of("test|" + baseUrl, new DriverPool.Factory() {
+            @Override
+            public WebDriver create() throws Exception {
+                WebDriver driver = DriverPool.Browser.HTMLUNIT.create();
+                driver.get(baseUrl);
+                driver.findElement(By.id("user_id")).sendKeys("hoge_user");
+                driver.findElement(By.id("user_pw")).sendKeys("hoge_pw");
+                driver.findElement(By.linkText("LOGIN")).click();
+                logins.incrementAndGet();
+                return driver;
+            }
+        }, 1);
+
+        // 1回目 ログイン済みで貸し出され、テストで状態を変更する
+        long start = System.currentTimeMillis();
+        WebDriver driver = pool.borrow();
+        long firstBorrow = System.currentTimeMillis() - start;
+        assertLoggedIn(driver);
+        driver.manage().addCookie(new Cookie("extra", "1", "/"));
+        new LocalStorageJS(driver).setItemInLocalStorage("extra", "1");
+        driver.get(baseUrl + "other");
+        pool.giveBack(driver);
+
+        // 2回目以降 同じWebDriverがログイン直後の状態に戻って貸し出される
+        for (int i = 0; i < 3; i++) {
+            start = System.currentTimeMillis();
+            WebDriver reused = pool.borrow();
+            log.debug("Borrow pooled WebDriver in " + (System.currentTimeMillis() - start) + "ms. (first "
+                    + firstBorrow + "ms)");
+            assertSame(driver, reused);
+            assertLoggedIn(reused);
+            assertNull(reused.manage().getCookieNamed("extra"));
+            assertNull(new LocalStorageJS(reused).getItemFromLocalStorage("extra"));
+            pool.giveBack(reused);
+        }
+        assertEquals(1, logins.get());
+        assertEquals(1, pool.getIdleCount());
+
+        // テスト中にブラウザが終了した場合は、作り直して貸し出される
+        driver = pool.borrow();
+        driver.quit();
+        pool.giveBack(driver);
+        assertEquals(0, pool.getIdleCount());
+
+        WebDriver recreated = pool.borrow();
+        assertNotSame(driver, recreated);
+        assertLoggedIn(recreated);
+        assertEquals(2, logins.get());
+        assertEquals(2, pool.getCreatedCount());
+        pool.giveBack(recreated);
+    }
+
+    private static void assertLoggedIn(WebDriver driver) {
+        assertEquals("hoge_user", driver.manage().getCookieNamed("session").getValue());
+        assertEquals("token-hoge_user", new LocalStorageJS(driver).getItemFromLocalStorage("token"));
+    }
+}
@@ -0,0 +1,163 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.EvidenceStore;
+import util.EvidenceStore.Entry;
+
+/**
+ * エビデンスのストアのテスト<br>
+ * 過去の実行は、索引と内容のファイルを直接作り、更新日時を過去にずらして用意する
+ */
+public class TestEvidenceStore {
+
+    private static final long HOUR = 60L * 60L * 1000L;
+    private static final long DAY = 24L * HOUR;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void putAndFind() throws Exception {
+        File root = tmp.newFolder("evidence");
+        EvidenceStore store = EvidenceStore.of(root, 0, 0);
+
+        File first = store.put(bytes("screen"), "png", "TestA", "method1", "step1");
+        File same = store.put(bytes("screen"), "png", "TestA", "method1", "step2");
+        File other = store.put(bytes("other"), "png", "TestB", "method1", "step1");
+
+        // 同じ内容は1つのファイルに保存され、ハッシュの先頭4文字で振り分けられる
+        assertEquals(first, same);
+        assertNotEquals(first, other);
+        String hash = first.getName().substring(0, first.getName().indexOf('.'));
+        assertEquals(new File(root, EvidenceStore.BLOB_DIR + "/" + hash.substring(0, 2) + "/" + hash.substring(2, 4)
+                + "/" + hash + ".png"), first);
+        assertArrayEquals(bytes("screen"), Files.readAllBytes(first.toPath()));
+
+        // 一覧は索引から取得する
+        List<Entry> entries = store.find("TestA");
+        assertEquals(2, entries.size());
+        assertEquals("step1", entries.get(0).getStep());
+        assertEquals("step2", entries.get(1).getStep());
+        assertEquals(hash, entries.get(1).getHash());
+        assertEquals(1, store.find("TestB").size());
+        assertEquals(3, EvidenceStore.find(root, store.getRunId(), null).size());
+    }
+
+    @Test
+    public void retentionByAge() throws Exception {
+        File root = tmp.newFolder("evidence");
+        File oldBlob = run(root, "old", "old", 3 * DAY);
+        File recentBlob = run(root, "recent", "recent", HOUR);
+
+        // 参照されない内容 古いものだけ削除される
+        File orphan = blob(root, "orphan", 2 * HOUR);
+        File writing = blob(root, "writing", 0);
+
+        EvidenceStore.of(root, 1, 0);
+
+        assertFalse(new File(root, EvidenceStore.RUN_DIR + "/old").exists());
+        assertFalse(oldBlob.exists());
+        assertTrue(new File(root, EvidenceStore.RUN_DIR + "/recent").exists());
+        assertTrue(recentBlob.exists());
+        assertFalse(orphan.exists());
+        assertTrue(writing.exists());
+    }
+
+    @Test
+    public void retentionBySize() throws Exception {
+        File root = tmp.newFolder("evidence");
+        File older = run(root, "r1", "first", 3 * HOUR);
+        File newer = run(root, "r2", "second", 2 * HOUR);
+        File shared = run(root, "r3", "first", HOUR);
+
+        // 上限に収まるまで古い実行から削除する 他の実行からも参照される内容は残る
+        EvidenceStore.of(root, 0, bytes("first").length + bytes("second").length - 1);
+
+        assertFalse(new File(root, EvidenceStore.RUN_DIR + "/r1").exists());
+        assertFalse(new File(root, EvidenceStore.RUN_DIR + "/r2").exists());
+        assertTrue(new File(root, EvidenceStore.RUN_DIR + "/r3").exists());
+        assertEquals(older, shared);
+        assertTrue(shared.exists());
+        assertFalse(newer.exists());
+    }
+
+    @Test
+    public void retentionKeepsRunningRuns() throws Exception {
+        File root = tmp.newFolder("evidence");
+        run(root, "r1", "first", 3 * HOUR);
+        File running = run(root, "r2", "second", 10 * 60L * 1000L);
+
+        // 実行中(最近書き込まれた)の実行は、上限を超えても削除しない
+        EvidenceStore.of(root, 0, 1);
+
+        assertFalse(new File(root, EvidenceStore.RUN_DIR + "/r1").exists());
+        assertTrue(new File(root, EvidenceStore.RUN_DIR + "/r2").exists());
+        assertTrue(running.exists());
+    }
+
+    @Test
+    public void retentionByIndexWritten() throws Exception {
+        File root = tmp.newFolder("evidence");
+        run(root, "r1", "first", 3 * HOUR);
+        File appended = run(root, "r2", "second", 2 * HOUR);
+
+        // 索引への追記はディレクトリの更新日時を変えないため、索引の更新日時で判断する
+        new File(root, EvidenceStore.RUN_DIR + "/r2/index_1.tsv").setLastModified(System.currentTimeMillis());
+        EvidenceStore.of(root, 0, 1);
+
+        assertFalse(new File(root, EvidenceStore.RUN_DIR + "/r1").exists());
+        assertTrue(new File(root, EvidenceStore.RUN_DIR + "/r2").exists());
+        assertTrue(appended.exists());
+    }
+
+    /**
+     * 内容を1つ参照する過去の実行を作ります
+     *
+     * @return 内容のファイル
+     */
+    private static File run(File root, String runId, String content, long age) throws Exception {
+        File blob = blob(root, content, age);
+        String name = blob.getName();
+        String hash = name.substring(0, name.indexOf('.'));
+        File run = new File(root, EvidenceStore.RUN_DIR + "/" + runId);
+        run.mkdirs();
+        long timestamp = System.currentTimeMillis() - age;
+        Files.write(new File(run, "index_1.tsv").toPath(), Arrays.asList(timestamp + "\tTestOld\tmethod\tstep\t"
+                + hash + "\tpng\t" + bytes(content).length), StandardCharsets.UTF_8);
+        new File(run, "index_1.tsv").setLastModified(timestamp);
+        run.setLastModified(timestamp);
+        return blob;
+    }
+
+    /**
+     * 内容のファイルを作ります
+     */
+    private static File blob(File root, String content, long age) throws Exception {
+        // ストアと同じ配置にするため、別の保存先のストアに書かせてから移す
+        File scratch = new File(root.getParentFile(), "scratch");
+        File written = EvidenceStore.of(scratch, 0, 0).put(bytes(content), "png", "scratch", "scratch", "scratch");
+        String relative = scratch.toPath().relativize(written.toPath()).toString();
+        File blob = new File(root, relative);
+        if (!blob.exists()) {
+            blob.getParentFile().mkdirs();
+            Files.copy(written.toPath(), blob.toPath());
+        }
+        blob.setLastModified(System.currentTimeMillis() - age);
+        return blob;
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
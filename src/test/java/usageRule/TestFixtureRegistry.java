@@ -0,0 +1,146 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.db.FixtureRegistry;
+
+/**
+ * テーブルが既にpre_dataと同じ内容の場合に、投入を省略することのテスト<br>
+ * 一時ファイルのSQLiteに対し、テストクラスの開始・終了処理を繰り返し呼び出す
+ */
+public class TestFixtureRegistry {
+
+    private static final String TEST_NAME = "usageRule/TestFixtureRegistry";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String url;
+
+    @Before
+    public void createTable() throws Exception {
+        url = "jdbc:sqlite:" + new File(tmp.getRoot(), "fixture.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE fixture_t (id INTEGER PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO fixture_t VALUES (9, 'base')");
+        }
+        FixtureRegistry.clear();
+    }
+
+    @After
+    public void clear() {
+        FixtureRegistry.clear();
+    }
+
+    @Test
+    public void seedWhenDifferent() throws Exception {
+        // 開始時の内容が異なれば投入し、終了時に元に戻す
+        for (int i = 0; i < 2; i++) {
+            RuleHarness testClass = newTestClass();
+            testClass.open();
+            try {
+                assertEquals("apple,pineapple,pen", names(testClass.getDatabase().getConnection()));
+            } finally {
+                testClass.close();
+            }
+            assertEquals("base", names(url));
+        }
+        assertEquals(0, FixtureRegistry.getSkippedCount());
+    }
+
+    @Test
+    public void skipWhenLoaded() throws Exception {
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM fixture_t");
+            stmt.execute("INSERT INTO fixture_t VALUES (3, 'pen'), (1, 'apple'), (2, 'pineapple')");
+        }
+
+        RuleHarness testClass = newTestClass();
+        testClass.open();
+        try {
+            assertEquals(1, FixtureRegistry.getSkippedCount());
+
+            // テストで書き換えた後は、同じデータリソースでも投入される
+            try (Statement stmt = testClass.getDatabase().getConnection().createStatement()) {
+                stmt.execute("UPDATE fixture_t SET name = 'changed' WHERE id = 2");
+            }
+            testClass.getDatabase().cleanInsertData("pre_data");
+            assertEquals(1, FixtureRegistry.getSkippedCount());
+            assertEquals("apple,pineapple,pen", names(testClass.getDatabase().getConnection()));
+
+            // 書き換えていなければ省略される
+            testClass.getDatabase().cleanInsertData("pre_data");
+            assertEquals(2, FixtureRegistry.getSkippedCount());
+        } finally {
+            testClass.close();
+        }
+
+        // 次のテストクラスも省略される
+        testClass = newTestClass();
+        testClass.open();
+        testClass.close();
+        assertEquals(3, FixtureRegistry.getSkippedCount());
+    }
+
+    @Test
+    public void insertWhenColumnsDiffer() throws Exception {
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE fixture_t ADD COLUMN note TEXT");
+            stmt.execute("DELETE FROM fixture_t");
+            stmt.execute("INSERT INTO fixture_t VALUES (1, 'apple', 'x'), (2, 'pineapple', 'x'), (3, 'pen', 'x')");
+        }
+
+        // データリソースに無いカラムは投入で既定値になるため、記載のカラムが同じ内容でも省略しない
+        RuleHarness testClass = newTestClass();
+        testClass.open();
+        try {
+            assertEquals(0, FixtureRegistry.getSkippedCount());
+            try (Statement stmt = testClass.getDatabase().getConnection().createStatement();
+                    ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM fixture_t WHERE note IS NULL")) {
+                rs.next();
+                assertEquals(3, rs.getInt(1));
+            }
+        } finally {
+            testClass.close();
+        }
+    }
+
+    private static String names(String url) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url)) {
+            return names(conn);
+        }
+    }
+
+    private static String names(Connection conn) throws Exception {
+        StringBuilder names = new StringBuilder();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT name FROM fixture_t ORDER BY id")) {
+            while (rs.next()) {
+                names.append(names.length() == 0 ? "" : ",").append(rs.getString(1));
+            }
+        }
+        return names.toString();
+    }
+
+    /**
+     * 1つのテストクラスのRuleResource・RuleDataBaseを、投入の省略を有効にして生成します
+     */
+    private RuleHarness newTestClass() {
+        Properties overrides = RuleHarness.overrides("org.sqlite.JDBC", url);
+        overrides.setProperty("dbUnit.fixture.dedup", "true");
+        return new RuleHarness(TEST_NAME, overrides, new String[] { "fixture_t" });
+    }
+}
@@ -0,0 +1,246 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.dbunit.dataset.AbstractTable;
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.datatype.DataType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.RuleDataBase.AssertMode;
+import util.db.HashTableComparator;
+
+/**
+ * 行ハッシュによる、並び順に依存しないテーブル比較のテスト<br>
+ * 不足・余剰・変更の件数と報告、カラムの過不足の検出を確認する<br>
+ * 大きなテーブルの比較はヒープを絞った別JVMで実行し、DBの全行をメモリに展開すればOutOfMemoryErrorとなるサイズで検証する
+ */
+public class TestHashTableComparator {
+    protected static final Logger log = LoggerFactory.getLogger(TestHashTableComparator.class);
+
+    private static final String TEST_NAME = "usageRule/TestHashTableComparator";
+
+    private static final int ROWS = 300000;
+
+    private static final int PAYLOAD_LENGTH = 400;
+
+    private static final String MAX_HEAP = "-Xmx96m";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void byKey() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tmp.newFile("key.sqlite3").getPath());
+                Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE pk_t (id INTEGER PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO pk_t VALUES (1, 'n1'), (2, 'n2'), (3, 'n3'), (4, 'n4'), (5, 'n5')");
+
+            // 期待値の文字列表現・行の順序に依存しない
+            HashTableComparator.Result result = new HashTableComparator(conn, 100, 10).compare(table("pk_t",
+                    new String[] { "id", "name" }, new Object[][] {
+                            { "5", "n5" }, { "01", "n1" }, { "3", "xx" }, { "7", "n7" } }));
+            assertEquals(1, result.getMissing());
+            assertEquals(2, result.getExtra());
+            assertEquals(1, result.getChanged());
+            assertEquals(4, result.getExpectedRows());
+            assertEquals(5, result.getActualRows());
+            assertFalse(result.isEmpty());
+            assertEquals("pk_t : expected 4 rows, actual 5 rows, missing 1, extra 2, changed 1\n"
+                    + "  missing {id=7, name=n7}\n"
+                    + "  extra {id=2, name=n2}\n"
+                    + "  extra {id=4, name=n4}\n"
+                    + "  changed {id=3 : name=xx -> n3}", result.toString());
+
+            // 報告する行の数を超えた分は件数のみ
+            result = new HashTableComparator(conn, 100, 1).compare(table("pk_t",
+                    new String[] { "id", "name" }, new Object[][] { { "1", "n1" } }));
+            assertEquals("pk_t : expected 1 rows, actual 5 rows, missing 0, extra 4, changed 0\n"
+                    + "  extra {id=2, name=n2}\n"
+                    + "  ... and 3 more extra rows", result.toString());
+        }
+    }
+
+    @Test
+    public void asMultiset() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tmp.newFile("bag.sqlite3").getPath());
+                Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE ppap (object TEXT)");
+            stmt.execute("INSERT INTO ppap VALUES ('pen'), ('apple'), ('pen'), ('pineapple')");
+
+            // 主キーが無い場合は、重複する行も件数で照合する
+            HashTableComparator comparator = new HashTableComparator(conn, 100, 10);
+            assertTrue(comparator.compare(table("ppap", new String[] { "object" }, new Object[][] {
+                    { "pineapple" }, { "pen" }, { "apple" }, { "pen" } })).isEmpty());
+
+            HashTableComparator.Result result = comparator.compare(table("ppap", new String[] { "object" },
+                    new Object[][] { { "pen" }, { "apple" }, { "pineapple" }, { "banana" } }));
+            assertEquals(1, result.getMissing());
+            assertEquals(1, result.getExtra());
+            assertEquals(0, result.getChanged());
+            assertEquals("ppap : expected 4 rows, actual 4 rows, missing 1, extra 1, changed 0\n"
+                    + "  missing {object=banana}\n"
+                    + "  extra {object=pen}", result.toString());
+        }
+    }
+
+    @Test
+    public void columnDifference() throws Exception {
+        String url = "jdbc:sqlite:" + tmp.newFile("columns.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE pk_t (id INTEGER PRIMARY KEY, name TEXT, note TEXT)");
+            stmt.execute("INSERT INTO pk_t VALUES (1, 'apple', 'x'), (2, 'pen', 'y')");
+        }
+
+        RuleHarness harness = new RuleHarness(TEST_NAME, RuleHarness.overrides("org.sqlite.JDBC", url),
+                new String[] { "pk_t" });
+        harness.open();
+        try {
+            // 期待値に無いカラムがあれば、ORDEREDと同じく不一致とする
+            try {
+                harness.getDatabase().assertDatas("result", null, null, AssertMode.HASH);
+                fail();
+            } catch (AssertionError e) {
+                assertEquals("pk_t : expected columns [ID, NAME], actual columns [ID, NAME, NOTE]", e.getMessage());
+            }
+
+            // 除外したカラムは比較しない
+            harness.getDatabase().assertDatas("result", null,
+                    Collections.singletonMap("pk_t", new String[] { "note" }), AssertMode.HASH);
+        } finally {
+            harness.close();
+        }
+    }
+
+    @Test
+    public void largeTable() throws Exception {
+        File dbFile = tmp.newFile("large.sqlite3");
+        File logFile = new File(tmp.getRoot(), "child.log");
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath())) {
+            generate(conn);
+        }
+
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                MAX_HEAP,
+                "-cp", System.getProperty("java.class.path"),
+                TestHashTableComparator.class.getName(),
+                dbFile.getPath())
+                .redirectErrorStream(true)
+                .redirectOutput(logFile)
+                .start();
+        int exitCode = process.waitFor();
+        String childLog = new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8);
+        log.debug(childLog);
+        assertEquals("compare in " + MAX_HEAP, 0, exitCode);
+
+        // DBの行より小さいヒープで比較でき、違いのみ報告されること
+        assertTrue(ROWS * (long) PAYLOAD_LENGTH > 96L * 1024L * 1024L);
+        assertTrue(childLog, childLog.contains("large_t : expected " + ROWS + " rows, actual " + ROWS
+                + " rows, missing 1, extra 1, changed 1"));
+        assertTrue(childLog, childLog.contains("missing {id=10, payload="));
+        assertTrue(childLog, childLog.contains("extra {id=" + (ROWS + 1) + ", payload=added}"));
+        assertTrue(childLog, childLog.contains("changed {id=20 : payload="));
+    }
+
+    /**
+     * 子JVMでの処理 DBの大きなテーブルと、必要な時に値を生成する期待値を比較する
+     *
+     * @param args [0]:DBファイル
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + args[0])) {
+            HashTableComparator.Result result = new HashTableComparator(conn, 500, 10).compare(new LargeTable());
+            log.debug("large table compare success.\n" + result);
+        }
+    }
+
+    private static void generate(Connection conn) throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE large_t (id INTEGER PRIMARY KEY, payload TEXT)");
+        }
+
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO large_t VALUES (?, ?)")) {
+            for (int i = 1; i <= ROWS; i++) {
+                ps.setInt(1, i);
+                ps.setString(2, payload(i));
+                ps.addBatch();
+                if (i % 1000 == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM large_t WHERE id = 10");
+            stmt.execute("UPDATE large_t SET payload = 'changed' WHERE id = 20");
+            stmt.execute("INSERT INTO large_t VALUES (" + (ROWS + 1) + ", 'added')");
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+
+    private static String payload(int id) {
+        char[] payload = new char[PAYLOAD_LENGTH];
+        Arrays.fill(payload, (char) ('a' + id % 26));
+        return id + new String(payload, 0, PAYLOAD_LENGTH - String.valueOf(id).length());
+    }
+
+    private static ITable table(String tableName, String[] columnNames, Object[][] rows) throws Exception {
+        Column[] columns = new Column[columnNames.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column(columnNames[i], DataType.UNKNOWN);
+        }
+        DefaultTable table = new DefaultTable(tableName, columns);
+        for (Object[] row : rows) {
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    /**
+     * 行を保持せず、参照された時に値を生成する期待値のテーブル
+     */
+    private static class LargeTable extends AbstractTable {
+        private final ITableMetaData metaData = new DefaultTableMetaData("large_t", new Column[] {
+                new Column("id", DataType.UNKNOWN), new Column("payload", DataType.UNKNOWN) });
+
+        @Override
+        public ITableMetaData getTableMetaData() {
+            return metaData;
+        }
+
+        @Override
+        public int getRowCount() {
+            return ROWS;
+        }
+
+        @Override
+        public Object getValue(int row, String column) throws DataSetException {
+            assertValidRowIndex(row);
+            return "id".equalsIgnoreCase(column) ? String.valueOf(row + 1) : payload(row + 1);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 差分リストア(dbUnit.restore=incremental)のテスト<br>
+ * 主キーが整数・DECIMAL・TIMESTAMPのテーブルと主キーの無いテーブルを、行の更新・削除・追加の後に戻す
+ */
+public class TestIncrementalRestore {
+
+    private static final String TEST_NAME = "usageRule/TestIncrementalRestore";
+
+    private static final String[] TABLES = new String[] { "item_t", "price_t", "event_t", "nopk_t" };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void xml() throws Exception {
+        verify("xml");
+    }
+
+    @Test
+    public void binary() throws Exception {
+        verify("binary");
+    }
+
+    private void verify(String format) throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "incremental.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE item_t (id INTEGER PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO item_t VALUES (1, 'apple'), (2, 'pen'), (3, 'pineapple')");
+            stmt.execute("CREATE TABLE price_t (code DECIMAL(10, 2) PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO price_t VALUES (1.5, 'a'), (2.25, 'b'), (10, 'c')");
+            stmt.execute("CREATE TABLE event_t (at TIMESTAMP PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO event_t VALUES (1577836800000, 'new year'), (1577923200000, 'second')");
+            stmt.execute("CREATE TABLE nopk_t (name TEXT, qty INTEGER)");
+            stmt.execute("INSERT INTO nopk_t VALUES ('a', 1), ('a', 1), ('b', 2)");
+        }
+        String before = dump(url);
+
+        Properties overrides = RuleHarness.overrides("org.sqlite.JDBC", url);
+        overrides.setProperty("dbUnit.restore", "incremental");
+        overrides.setProperty("dbUnit.backup.format", format);
+        RuleHarness harness = new RuleHarness(TEST_NAME, overrides, TABLES);
+        harness.open();
+        try (Statement stmt = harness.getDatabase().getConnection().createStatement()) {
+            // 更新・削除・追加
+            stmt.execute("UPDATE item_t SET name = 'apple pen' WHERE id = 1");
+            stmt.execute("DELETE FROM item_t WHERE id = 2");
+            stmt.execute("INSERT INTO item_t VALUES (9, 'added')");
+            stmt.execute("UPDATE price_t SET name = 'changed' WHERE code = 1.5");
+            stmt.execute("DELETE FROM price_t WHERE code = 10");
+            stmt.execute("UPDATE event_t SET name = 'changed' WHERE at = 1577836800000");
+            stmt.execute("DELETE FROM event_t WHERE at = 1577923200000");
+            stmt.execute("DELETE FROM nopk_t WHERE name = 'b'");
+            stmt.execute("INSERT INTO nopk_t VALUES ('a', 1)");
+            assertNotEquals(before, dump(url));
+        } finally {
+            harness.close();
+        }
+
+        assertEquals(before, dump(url));
+    }
+
+    /**
+     * 全テーブルの内容を、順序を揃えた文字列にします
+     */
+    private static String dump(String url) throws Exception {
+        StringBuilder dump = new StringBuilder();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            for (String table : TABLES) {
+                try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " ORDER BY 1, 2")) {
+                    ResultSetMetaData metaData = rs.getMetaData();
+                    while (rs.next()) {
+                        dump.append(table);
+                        for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                            dump.append(',').append(rs.getString(i));
+                        }
+                        dump.append('\n');
+                    }
+                }
+            }
+        }
+        return dump.toString();
+    }
+}
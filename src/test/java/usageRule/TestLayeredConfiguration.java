@@ -0,0 +1,109 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import util.TestConfiguration;
+import util.selenium.CaptureWriter;
+import util.selenium.DriverPool;
+
+/**
+ * 設定の重ね合わせのテスト<br>
+ * 環境変数・システムプロパティは、実際の値の代わりに用意したものを渡す
+ */
+public class TestLayeredConfiguration {
+
+    private static final Map<String, String> NO_ENV = Collections.<String, String> emptyMap();
+
+    @Test
+    public void base() {
+        TestConfiguration configuration = TestConfiguration.load(NO_ENV, new Properties());
+
+        // クラスパスの application.properties (localプロファイル)
+        assertEquals("local", configuration.getEnvironmentName());
+        assertTrue(configuration.isDbUnitEnable());
+        assertEquals("http://localhost:9000/", configuration.getFirstAccessUrl());
+        assertEquals("org.sqlite.JDBC", configuration.getDatasourceDriverClassName());
+
+        // 未設定の項目は既定値
+        assertEquals(DriverPool.Browser.CHROME, configuration.getWebDriverBrowser());
+        assertEquals(CaptureWriter.DEFAULT_QUEUE_SIZE, configuration.getCaptureQueueSize());
+        assertTrue(configuration.isCaptureAsync());
+        assertFalse(configuration.isDatasourcePoolEnable());
+        assertTrue(configuration.getFirstAccessCookies().isEmpty());
+    }
+
+    @Test
+    public void environmentOverlay() {
+        Properties system = new Properties();
+        system.setProperty("environment.name", "stage");
+        TestConfiguration configuration = TestConfiguration.load(NO_ENV, system);
+
+        // 環境毎の設定が優先され、記載の無い項目は元の設定が残る
+        assertEquals("stage", configuration.getEnvironmentName());
+        assertFalse(configuration.isDbUnitEnable());
+        assertEquals("https://stage.hoge.net/", configuration.getFirstAccessUrl());
+        assertEquals("hogehoge", configuration.getFirstAccessUserId());
+        assertEquals("org.sqlite.JDBC", configuration.getDatasourceDriverClassName());
+
+        // 環境変数でも指定できる
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("ENVIRONMENT_NAME", "alpha");
+        assertEquals("https://alpha.hoge.net/", TestConfiguration.load(env, new Properties()).getFirstAccessUrl());
+    }
+
+    @Test
+    public void overrides() {
+        Map<String, String> env = new HashMap<String, String>();
+        env.put("DBUNIT_ENABLE", "false");
+        env.put("METRICS_ENABLE", "false");
+        env.put("CAPTURE_FORMAT", "jpg");
+        Properties system = new Properties();
+        system.setProperty("metrics.enable", "true");
+        system.setProperty("webDriver.pool.size", "3");
+        system.setProperty("firstAccess.cookies", "a=1, b=x=y");
+        system.setProperty("unrelated.key", "1");
+
+        TestConfiguration configuration = TestConfiguration.load(env, system);
+
+        // 環境変数は記載のあるキーのみ、システムプロパティは環境変数より優先
+        assertFalse(configuration.isDbUnitEnable());
+        assertTrue(configuration.isMetricsEnable());
+        assertEquals(CaptureWriter.Format.PNG, configuration.getCaptureFormat());
+
+        // 設定の接頭辞を持つシステムプロパティは記載が無くても取り込む
+        assertEquals(3, configuration.getWebDriverPoolSize());
+        assertNull(configuration.getString("unrelated.key"));
+
+        Map<String, String> cookies = configuration.getFirstAccessCookies();
+        assertEquals("1", cookies.get("a"));
+        assertEquals("x=y", cookies.get("b"));
+    }
+
+    @Test
+    public void immutable() {
+        TestConfiguration configuration = TestConfiguration.get();
+        assertSame(configuration, TestConfiguration.get());
+
+        try {
+            configuration.getProperties().setProperty("dbUnit.enable", "false");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // 変更できない
+        }
+
+        // 置き換えは別のインスタンスになる
+        Properties overrides = new Properties();
+        overrides.setProperty("dbUnit.insert.batchSize", "10");
+        TestConfiguration replaced = configuration.with(overrides);
+        assertEquals(10, replaced.getInt("dbUnit.insert.batchSize", 0));
+        assertEquals(0, configuration.getInt("dbUnit.insert.batchSize", 0));
+        assertEquals(configuration.getDatasourceUrl(), replaced.getDatasourceUrl());
+    }
+}
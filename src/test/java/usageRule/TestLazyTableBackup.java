@@ -0,0 +1,166 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.RuleDataBase.IsolationMode;
+import util.db.LazyTableBackup;
+import util.db.ParallelTableBackup;
+import util.db.StreamingTableBackup;
+
+/**
+ * 書き込まれたテーブルのみの退避・復元(dbUnit.isolation=lazy)のテスト<br>
+ * SQLからの書き込み先の抽出と、書き込まれたテーブルのみが外部キーの順に戻ること、失敗時に全テーブルが元のまま残ることを確認する
+ */
+public class TestLazyTableBackup {
+
+    private static final String TEST_NAME = "usageRule/TestLazyTableBackup";
+
+    private static final String[] TABLES = new String[] { "parent_t", "child_t", "solo_t" };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void writeTargets() {
+        assertTargets("INSERT INTO item_t VALUES (1)", "item_t");
+        assertTargets("insert or replace into `main`.`item_t` (id) values (1)", "item_t");
+        assertTargets("INSERT IGNORE INTO item_t VALUES (1)", "item_t");
+        assertTargets("REPLACE INTO item_t VALUES (1)", "item_t");
+        assertTargets("UPDATE item_t SET name = 'a'", "item_t");
+        assertTargets("update or ignore item_t set name = 'a'", "item_t");
+        assertTargets("DELETE FROM \"item_t\" WHERE id = 1", "item_t");
+        assertTargets("MERGE INTO [dbo].[item_t] USING src_t ON 1 = 1", "item_t");
+        assertTargets("TRUNCATE TABLE item_t", "item_t");
+        assertTargets("TRUNCATE item_t", "item_t");
+
+        // 複数の文・INSERT ... SELECT
+        assertTargets("INSERT INTO a_t SELECT * FROM b_t; DELETE FROM c_t", "a_t", "c_t");
+
+        // 衝突時の更新句は書き込み先ではない
+        assertTargets("INSERT INTO item_t VALUES (1, 'a') ON DUPLICATE KEY UPDATE name = 'b'", "item_t");
+        assertTargets("INSERT INTO item_t VALUES (1, 'a') ON CONFLICT (id) DO UPDATE SET name = 'b'", "item_t");
+
+        // 読み込みのみ・コメントと文字列リテラル内の語は無視する
+        assertTargets("SELECT * FROM item_t WHERE note = 'DELETE FROM other_t'");
+        assertTargets("-- UPDATE other_t\nSELECT 1");
+        assertTargets("/* insert into other_t */ SELECT 1");
+        assertTargets(null);
+    }
+
+    @Test
+    public void restore() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "lazy.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            createTables(stmt);
+        }
+        String before = dump(url);
+
+        Properties overrides = RuleHarness.overrides("org.sqlite.JDBC", url);
+        overrides.setProperty("dbUnit.isolation", "lazy");
+        RuleHarness harness = new RuleHarness(TEST_NAME, overrides, new String[0]);
+        harness.open();
+        try {
+            assertEquals(IsolationMode.LAZY, harness.getDatabase().getIsolationMode());
+            Connection conn = harness.getDatabase().getConnection();
+            try (Statement stmt = conn.createStatement()) {
+                // 参照する側から先に書き込んでも、参照される側から投入される
+                stmt.execute("DELETE FROM child_t WHERE id = 2");
+                stmt.execute("UPDATE parent_t SET name = 'changed'");
+                stmt.execute("INSERT INTO parent_t VALUES (3, 'added')");
+            }
+            try (PreparedStatement ps = conn.prepareStatement("INSERT INTO child_t VALUES (?, ?)")) {
+                ps.setInt(1, 9);
+                ps.setInt(2, 3);
+                ps.executeUpdate();
+            }
+            assertNotEquals(before, dump(url));
+        } finally {
+            harness.close();
+        }
+
+        assertEquals(before, dump(url));
+    }
+
+    @Test
+    public void rollbackOnFailure() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "rollback.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            createTables(stmt);
+            LazyTableBackup lazyBackup = new LazyTableBackup(conn, new ParallelTableBackup.Factory() {
+                @Override
+                public StreamingTableBackup create(Connection connection) throws Exception {
+                    return new StreamingTableBackup(connection, 500);
+                }
+            }, tmp.newFolder("backup"), ".xml");
+
+            try (Statement lazy = lazyBackup.getConnection().createStatement()) {
+                lazy.execute("UPDATE parent_t SET name = 'changed'");
+                lazy.execute("DELETE FROM solo_t");
+            }
+            assertEquals(Arrays.asList("parent_t", "solo_t"), lazyBackup.getBackedUpTables());
+
+            // 退避した行を投入できないテーブルにする
+            stmt.execute("DROP TABLE solo_t");
+            stmt.execute("CREATE TABLE solo_t (id INTEGER PRIMARY KEY, name TEXT CHECK (name <> 'pen'))");
+            stmt.execute("INSERT INTO solo_t VALUES (9, 'changed')");
+            String modified = dump(url);
+
+            // 削除も含めて取り消され、書き込み後の内容が残る
+            try {
+                lazyBackup.restore();
+                fail();
+            } catch (Exception e) {
+                assertTrue(conn.getAutoCommit());
+                assertEquals(modified, dump(url));
+            }
+        }
+    }
+
+    private static void assertTargets(String sql, String... expected) {
+        assertEquals(String.valueOf(sql), Arrays.asList(expected),
+                Arrays.asList(LazyTableBackup.writeTargets(sql).toArray(new String[0])));
+    }
+
+    private static void createTables(Statement stmt) throws Exception {
+        stmt.execute("CREATE TABLE parent_t (id INTEGER PRIMARY KEY, name TEXT)");
+        stmt.execute("INSERT INTO parent_t VALUES (1, 'apple'), (2, 'pen')");
+        stmt.execute("CREATE TABLE child_t (id INTEGER PRIMARY KEY, parent_id INTEGER REFERENCES parent_t(id))");
+        stmt.execute("INSERT INTO child_t VALUES (1, 1), (2, 2)");
+        stmt.execute("CREATE TABLE solo_t (id INTEGER PRIMARY KEY, name TEXT)");
+        stmt.execute("INSERT INTO solo_t VALUES (1, 'pen')");
+    }
+
+    /**
+     * 全テーブルの内容を、主キー順の文字列にします
+     */
+    private static String dump(String url) throws Exception {
+        StringBuilder dump = new StringBuilder();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            for (String table : TABLES) {
+                try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " ORDER BY 1")) {
+                    while (rs.next()) {
+                        dump.append(table);
+                        for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                            dump.append(',').append(rs.getString(i));
+                        }
+                        dump.append('\n');
+                    }
+                }
+            }
+        }
+        return dump.toString();
+    }
+}
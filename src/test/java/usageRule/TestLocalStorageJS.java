@@ -0,0 +1,162 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import util.selenium.LocalStorageJS;
+
+/**
+ * LocalStorageの一括操作のテスト<br>
+ * ローカルのHTTPサーバーが返す空の画面をHtmlUnitDriverで開き、スクリプトの実行回数を数える
+ */
+public class TestLocalStorageJS {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static HttpServer server;
+    private static String baseUrl;
+
+    private HtmlUnitDriver htmlUnitDriver;
+
+    /** スクリプトの実行回数 **/
+    private final AtomicInteger scripts = new AtomicInteger();
+
+    private LocalStorageJS storage;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "<html><body></body></html>".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    @Before
+    public void open() {
+        htmlUnitDriver = new HtmlUnitDriver(true);
+        htmlUnitDriver.get(baseUrl);
+        WebDriver driver = (WebDriver) Proxy.newProxyInstance(WebDriver.class.getClassLoader(),
+                new Class<?>[] { WebDriver.class, JavascriptExecutor.class }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().startsWith("execute")) {
+                            scripts.incrementAndGet();
+                        }
+                        try {
+                            return method.invoke(htmlUnitDriver, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        storage = new LocalStorageJS(driver);
+        storage.clearLocalStorage();
+        scripts.set(0);
+    }
+
+    @After
+    public void quit() {
+        htmlUnitDriver.quit();
+    }
+
+    @Test
+    public void bulk() {
+        Map<String, String> items = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 50; i++) {
+            items.put("key" + i, "value" + i);
+        }
+        items.put("it's", "{\"quote\":\"'\\\\\",\"line\":\"a\\nb\"}");
+
+        storage.setItems(items);
+        assertEquals(1, scripts.get());
+
+        assertEquals(items, storage.getAllItems());
+        assertEquals(2, scripts.get());
+
+        // 個別の操作も引用符を含むキー・値を扱える
+        storage.setItemInLocalStorage("single'quote", "va'lue");
+        assertEquals("va'lue", storage.getItemFromLocalStorage("single'quote"));
+        assertTrue(storage.isItemPresentInLocalStorage("it's"));
+        storage.removeItemFromLocalStorage("single'quote");
+        assertFalse(storage.isItemPresentInLocalStorage("single'quote"));
+        assertEquals(Long.valueOf(items.size()), storage.getLocalStorageLength());
+    }
+
+    @Test
+    public void snapshotAndRestore() {
+        storage.setItemInLocalStorage("token", "abc");
+        Map<String, String> snapshot = storage.snapshot();
+
+        storage.setItemInLocalStorage("token", "changed");
+        storage.setItemInLocalStorage("extra", "1");
+
+        scripts.set(0);
+        storage.restore(snapshot);
+        assertEquals(1, scripts.get());
+        assertEquals(snapshot, storage.getAllItems());
+        assertNull(storage.getItemFromLocalStorage("extra"));
+    }
+
+    @Test
+    public void loadItems() throws Exception {
+        storage.setItemInLocalStorage("kept", "1");
+        File file = tmp.newFile("local_storage.properties");
+        Files.write(file.toPath(), ("user=テスト ユーザー\n"
+                + "settings={\"theme\":\"dark\",\"path\":\"C:\\\\tmp\"}\n"
+                + "quote=it's\n").getBytes(StandardCharsets.UTF_8));
+
+        scripts.set(0);
+        Map<String, String> items = storage.loadItems(file);
+        assertEquals(1, scripts.get());
+        assertEquals(3, items.size());
+
+        assertEquals("テスト ユーザー", storage.getItemFromLocalStorage("user"));
+        assertEquals("{\"theme\":\"dark\",\"path\":\"C:\\tmp\"}", storage.getItemFromLocalStorage("settings"));
+        assertEquals("it's", storage.getItemFromLocalStorage("quote"));
+        assertEquals("1", storage.getItemFromLocalStorage("kept"));
+    }
+}
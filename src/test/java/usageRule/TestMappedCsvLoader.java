@@ -0,0 +1,121 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Map;
+
+import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.csv.CsvDataSet;
+import org.dbunit.dataset.filter.DefaultColumnFilter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.db.BatchInserter;
+import util.db.MappedCsvLoader;
+
+/**
+ * メモリマップしたCSVからの投入(dbUnit.csv.mapped=true)のテスト<br>
+ * 同じディレクトリをCsvDataSet経由とMappedCsvLoaderで投入し、テーブルの内容が一致することを確認する
+ */
+public class TestMappedCsvLoader {
+
+    private static final String[] TABLES = new String[] { "item_t", "note_t" };
+
+    private static final String[] DDL = new String[] {
+            "CREATE TABLE item_t (id INTEGER, qty BIGINT, amount DOUBLE, price DECIMAL(10, 3), name VARCHAR(100),"
+                    + " born DATE, at TIMESTAMP, flag BOOLEAN, secret VARCHAR(20))",
+            "CREATE TABLE note_t (id INTEGER, note VARCHAR(200))" };
+
+    private static final Map<String, String[]> EXCLUDED = Collections.singletonMap("item_t", new String[] { "secret" });
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void h2() throws Exception {
+        File dir = createCsv();
+        String viaDataSet = load("jdbc:h2:mem:csv_dataset", dir, false);
+        String viaMapped = load("jdbc:h2:mem:csv_mapped", dir, true);
+        assertEquals(viaDataSet, viaMapped);
+
+        // 区切り・改行・エスケープを含む値
+        assertTrue(viaMapped, viaMapped.contains("note_t|2|a, \"b\"\nc|"));
+        assertTrue(viaMapped, viaMapped.contains("note_t|3|back\\slash|"));
+        assertTrue(viaMapped, viaMapped.contains("item_t|2|-9000000000|-0.5|-1.250|pen|"));
+        assertTrue(viaMapped, viaMapped.contains("|null|"));
+    }
+
+    @Test
+    public void sqlite() throws Exception {
+        File dir = createCsv();
+        String viaDataSet = load("jdbc:sqlite:" + new File(tmp.getRoot(), "dataset.sqlite3").getPath(), dir, false);
+        String viaMapped = load("jdbc:sqlite:" + new File(tmp.getRoot(), "mapped.sqlite3").getPath(), dir, true);
+        assertEquals(viaDataSet, viaMapped);
+    }
+
+    /**
+     * CsvDataSetと同じ構成のディレクトリを作成します<br>
+     * CsvDataSetはプラットフォームの文字コードで読み込むため、値はASCIIのみとする
+     */
+    private File createCsv() throws Exception {
+        File dir = tmp.newFolder();
+        write(new File(dir, MappedCsvLoader.TABLE_ORDERING_FILE), "item_t\nnote_t\n");
+        write(new File(dir, "item_t.csv"), "id,qty,amount,price,name,born,at,flag,secret\n"
+                + "1,42,1.5,10.125,apple,2020-01-02,2020-01-02 03:04:05.678,true,x\n"
+                + "2, -9000000000,-0.5,-1.25,pen,1999-12-31,1999-12-31 23:59:59.0,false,y\n"
+                + "3,null,null,null,null,null,null,null,null\n"
+                + "4,0,1e3,0.000,  \"pineapple\"  ,2020-02-29,2020-02-29 00:00:00.0,true,z\n");
+        write(new File(dir, "note_t.csv"), "id,note\r\n"
+                + "1,\r\n"
+                + "2,\"a, \\\"b\\\"\nc\"\r\n"
+                + "3,back\\\\slash\r\n");
+        return dir;
+    }
+
+    private static void write(File file, String text) throws Exception {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * テーブルを作成してCSVを投入し、全テーブルの内容を文字列にします
+     */
+    private static String load(String url, File dir, boolean mapped) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            for (String ddl : DDL) {
+                stmt.execute(ddl);
+            }
+            if (mapped) {
+                assertEquals(7, new MappedCsvLoader(conn, 2).cleanInsert(dir, EXCLUDED, "insert"));
+            } else {
+                IDataSet csv = new CsvDataSet(dir);
+                new BatchInserter(conn, 2, false).cleanInsert(new DefaultDataSet(
+                        DefaultColumnFilter.excludedColumnsTable(csv.getTable("item_t"), EXCLUDED.get("item_t")),
+                        csv.getTable("note_t")));
+            }
+
+            StringBuilder dump = new StringBuilder();
+            for (String table : TABLES) {
+                try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " ORDER BY id")) {
+                    while (rs.next()) {
+                        dump.append(table);
+                        for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                            dump.append('|').append(rs.getObject(i));
+                        }
+                        dump.append("|\n");
+                    }
+                }
+            }
+            return dump.toString();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.db.ConnectionPool;
+import util.db.ParallelTableBackup;
+import util.db.StreamingTableBackup;
+
+/**
+ * 並列の退避・復元のテスト<br>
+ * 外部キーによる段の分け方と、段を跨ぐ復元(SQLite)・テーブル毎に並列の復元(H2)で、失敗したテーブルが空にならないことを確認する<br>
+ * 書き込みを並列に行えるDB(H2)では、段を跨ぐ場合も段毎に並列に投入されることを確認する
+ */
+public class TestParallelTableBackup {
+
+    private static final ParallelTableBackup.Factory FACTORY = new ParallelTableBackup.Factory() {
+        @Override
+        public StreamingTableBackup create(Connection conn) throws Exception {
+            return new StreamingTableBackup(conn, 500);
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void waves() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "waves.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            createTables(stmt);
+            stmt.execute("CREATE TABLE cyc_a (id INTEGER PRIMARY KEY, b_id INTEGER REFERENCES cyc_b(id))");
+            stmt.execute("CREATE TABLE cyc_b (id INTEGER PRIMARY KEY, a_id INTEGER REFERENCES cyc_a(id))");
+
+            // 参照される側から順に、同じ段の中は指定順
+            assertEquals("[solo_t, parent_t][child_t][grand_t]", toString(ParallelTableBackup.waves(conn,
+                    new String[] { "grand_t", "child_t", "solo_t", "parent_t" })));
+            // 指定外のテーブルへの参照は無視する
+            assertEquals("[grand_t, solo_t]", toString(ParallelTableBackup.waves(conn,
+                    new String[] { "grand_t", "solo_t" })));
+            // 循環参照は指定順に1テーブルずつ
+            assertEquals("[solo_t][cyc_b][cyc_a]", toString(ParallelTableBackup.waves(conn,
+                    new String[] { "cyc_b", "solo_t", "cyc_a" })));
+        }
+    }
+
+    @Test
+    public void restoreAcrossWaves() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "restore.sqlite3").getPath();
+        String[] tables = new String[] { "grand_t", "child_t", "solo_t", "parent_t" };
+        File dir = tmp.newFolder("sqlite");
+        ParallelTableBackup backup = new ParallelTableBackup(ConnectionPool.of("org.sqlite.JDBC", url, null, null, 4, 0),
+                4, false, FACTORY, ".xml");
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            createTables(stmt);
+            String before = dump(stmt, tables);
+            backup.backup(tables, dir);
+
+            modify(stmt);
+            backup.restore(tables, dir);
+            assertEquals(before, dump(stmt, tables));
+
+            // 1テーブルでも投入に失敗すれば、全テーブルが復元前のまま残る
+            modify(stmt);
+            stmt.execute("DROP TABLE solo_t");
+            stmt.execute("CREATE TABLE solo_t (id INTEGER PRIMARY KEY, name TEXT CHECK (name <> 'pen'))");
+            stmt.execute("INSERT INTO solo_t VALUES (9, 'changed')");
+            String modified = dump(stmt, tables);
+            try {
+                backup.restore(tables, dir);
+                fail();
+            } catch (Exception e) {
+                assertEquals(modified, dump(stmt, tables));
+            }
+        }
+    }
+
+    @Test
+    public void restoreWavesInParallel() throws Exception {
+        String url = "jdbc:h2:mem:parallel_waves;DB_CLOSE_DELAY=-1";
+        String[] tables = new String[] { "grand_t", "child_t", "solo_t", "parent_t" };
+        File dir = tmp.newFolder("h2_waves");
+        ParallelTableBackup backup = new ParallelTableBackup(ConnectionPool.of("org.h2.Driver", url, null, null, 4, 0),
+                4, true, FACTORY, ".xml");
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            createTables(stmt);
+            String before = dump(stmt, tables);
+            backup.backup(tables, dir);
+
+            modify(stmt);
+            backup.restore(tables, dir);
+            assertEquals(before, dump(stmt, tables));
+
+            // 削除は確定させてから投入するため、投入に失敗した段のテーブルと以降の段のテーブルは空になる
+            modify(stmt);
+            stmt.execute("DELETE FROM child_t WHERE id = 2");
+            stmt.execute("ALTER TABLE child_t ADD CONSTRAINT no_second CHECK (id <> 2)");
+            try {
+                backup.restore(tables, dir);
+                fail();
+            } catch (Exception e) {
+                assertEquals("solo_t,1,pen\nparent_t,1,apple\nparent_t,2,pen\n", dump(stmt, tables));
+            }
+            stmt.execute("DROP ALL OBJECTS");
+        }
+    }
+
+    @Test
+    public void restoreEachTable() throws Exception {
+        String url = "jdbc:h2:mem:parallel;DB_CLOSE_DELAY=-1";
+        String[] tables = new String[] { "solo_t", "other_t" };
+        File dir = tmp.newFolder("h2");
+        ParallelTableBackup backup = new ParallelTableBackup(ConnectionPool.of("org.h2.Driver", url, null, null, 4, 0),
+                4, true, FACTORY, ".xml");
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE solo_t (id INTEGER PRIMARY KEY, name VARCHAR(20))");
+            stmt.execute("INSERT INTO solo_t VALUES (1, 'apple'), (2, 'pen')");
+            stmt.execute("CREATE TABLE other_t (id INTEGER PRIMARY KEY, name VARCHAR(20))");
+            stmt.execute("INSERT INTO other_t VALUES (1, 'pineapple')");
+            String before = dump(stmt, tables);
+            backup.backup(tables, dir);
+
+            stmt.execute("UPDATE solo_t SET name = 'changed'");
+            stmt.execute("DELETE FROM other_t");
+            backup.restore(tables, dir);
+            assertEquals(before, dump(stmt, tables));
+
+            // 投入に失敗したテーブルは復元前のまま残り、その他のテーブルは復元される
+            stmt.execute("UPDATE solo_t SET name = 'changed'");
+            stmt.execute("DELETE FROM other_t");
+            stmt.execute("ALTER TABLE solo_t ADD CONSTRAINT no_pen CHECK (name <> 'pen')");
+            try {
+                backup.restore(tables, dir);
+                fail();
+            } catch (Exception e) {
+                assertEquals("solo_t,1,changed\nsolo_t,2,changed\nother_t,1,pineapple\n", dump(stmt, tables));
+            }
+            stmt.execute("DROP TABLE solo_t");
+            stmt.execute("DROP TABLE other_t");
+        }
+    }
+
+    private static void createTables(Statement stmt) throws Exception {
+        stmt.execute("CREATE TABLE parent_t (id INTEGER PRIMARY KEY, name TEXT)");
+        stmt.execute("INSERT INTO parent_t VALUES (1, 'apple'), (2, 'pen')");
+        stmt.execute("CREATE TABLE child_t (id INTEGER PRIMARY KEY, parent_id INTEGER REFERENCES parent_t(id))");
+        stmt.execute("INSERT INTO child_t VALUES (1, 1), (2, 2)");
+        stmt.execute("CREATE TABLE grand_t (id INTEGER PRIMARY KEY, child_id INTEGER REFERENCES child_t(id))");
+        stmt.execute("INSERT INTO grand_t VALUES (1, 2)");
+        stmt.execute("CREATE TABLE solo_t (id INTEGER PRIMARY KEY, name TEXT)");
+        stmt.execute("INSERT INTO solo_t VALUES (1, 'pen')");
+    }
+
+    private static void modify(Statement stmt) throws Exception {
+        stmt.execute("DELETE FROM grand_t");
+        stmt.execute("UPDATE parent_t SET name = 'changed'");
+        stmt.execute("INSERT INTO child_t VALUES (3, 1)");
+        stmt.execute("DELETE FROM solo_t");
+    }
+
+    /**
+     * テーブルの内容を、主キー順の文字列にします
+     */
+    private static String dump(Statement stmt, String[] tableNames) throws Exception {
+        StringBuilder dump = new StringBuilder();
+        for (String tableName : tableNames) {
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName + " ORDER BY 1")) {
+                while (rs.next()) {
+                    dump.append(tableName);
+                    for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                        dump.append(',').append(rs.getString(i));
+                    }
+                    dump.append('\n');
+                }
+            }
+        }
+        return dump.toString();
+    }
+
+    private static String toString(List<String[]> waves) {
+        List<String> text = new ArrayList<String>();
+        for (String[] wave : waves) {
+            text.add(Arrays.toString(wave));
+        }
+        return String.join("", text);
+    }
+}
@@ -0,0 +1,143 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.RuleDataBase.IsolationMode;
+import util.RuleResource;
+
+/**
+ * DBファイル全体のスナップショットによる退避・復元(dbUnit.isolation=snapshot)のテスト<br>
+ * テストクラス内の書き込みが終了時に全て戻ること、一時ファイルが削除されること、SQLite以外はテーブルの退避になることを確認する
+ */
+public class TestSQLiteSnapshot {
+
+    private static final String TEST_NAME = "usageRule/TestSQLiteSnapshot";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void snapshot() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "snapshot.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            createTables(stmt);
+        }
+        String before = dump(url);
+
+        RuleHarness harness = new RuleHarness(TEST_NAME, overrides("org.sqlite.JDBC", url),
+                new String[] { "item_t" });
+        harness.open();
+        String[] snapshots;
+        try {
+            assertEquals(IsolationMode.SNAPSHOT, harness.getDatabase().getIsolationMode());
+            snapshots = snapshotFiles();
+            assertEquals(Arrays.toString(snapshots), 1, snapshots.length);
+
+            // 退避対象に指定していないテーブル・テーブルの作成も戻る
+            try (Statement stmt = harness.getDatabase().getConnection().createStatement()) {
+                stmt.execute("INSERT INTO item_t VALUES (3, 'added')");
+                stmt.execute("DELETE FROM item_t WHERE id = 1");
+                stmt.execute("UPDATE other_t SET name = 'changed'");
+                stmt.execute("CREATE TABLE new_t (id INTEGER)");
+            }
+            assertNotEquals(before, dump(url));
+        } finally {
+            harness.close();
+        }
+
+        assertEquals(before, dump(url));
+        assertFalse(snapshots[0], new File(System.getProperty("java.io.tmpdir"), snapshots[0]).exists());
+    }
+
+    @Test
+    public void fallBackToBackup() throws Exception {
+        String url = "jdbc:h2:mem:snapshot_fallback;DB_CLOSE_DELAY=-1";
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            createTables(stmt);
+            String before = dump(url);
+
+            // SQLite以外は、対象テーブルの退避・復元になる
+            RuleHarness harness = new RuleHarness(TEST_NAME, overrides("org.h2.Driver", url),
+                    new String[] { "item_t" });
+            harness.open();
+            try {
+                assertEquals(IsolationMode.BACKUP, harness.getDatabase().getIsolationMode());
+                assertEquals(0, snapshotFiles().length);
+                try (Statement write = harness.getDatabase().getConnection().createStatement()) {
+                    write.execute("INSERT INTO item_t VALUES (3, 'added')");
+                    write.execute("DELETE FROM item_t WHERE id = 1");
+                }
+                assertNotEquals(before, dump(url));
+            } finally {
+                harness.close();
+            }
+
+            assertEquals(before, dump(url));
+            stmt.execute("DROP TABLE item_t");
+            stmt.execute("DROP TABLE other_t");
+        }
+    }
+
+    private static Properties overrides(String driverClassName, String url) {
+        Properties overrides = RuleHarness.overrides(driverClassName, url);
+        overrides.setProperty("dbUnit.isolation", "snapshot");
+        return overrides;
+    }
+
+    private static void createTables(Statement stmt) throws Exception {
+        stmt.execute("CREATE TABLE item_t (id INTEGER PRIMARY KEY, name VARCHAR(20))");
+        stmt.execute("INSERT INTO item_t VALUES (1, 'apple'), (2, 'pen')");
+        stmt.execute("CREATE TABLE other_t (id INTEGER PRIMARY KEY, name VARCHAR(20))");
+        stmt.execute("INSERT INTO other_t VALUES (1, 'pineapple')");
+    }
+
+    /**
+     * @return このワーカーのスナップショットの一時ファイル名
+     */
+    private static String[] snapshotFiles() {
+        final String prefix = "snapshot_" + RuleResource.getWorkerId() + "_";
+        String[] names = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix) && name.endsWith(".sqlite3");
+            }
+        });
+        return names == null ? new String[0] : names;
+    }
+
+    /**
+     * 全テーブルの内容を、主キー順の文字列にします 存在するテーブルの一覧も含めます
+     */
+    private static String dump(String url) throws Exception {
+        StringBuilder dump = new StringBuilder();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = conn.getMetaData().getTables(null, null, "%", new String[] { "TABLE" })) {
+                while (rs.next()) {
+                    dump.append(rs.getString("TABLE_NAME").toLowerCase()).append('\n');
+                }
+            }
+            for (String table : new String[] { "item_t", "other_t" }) {
+                try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + table + " ORDER BY 1")) {
+                    while (rs.next()) {
+                        dump.append(table).append(',').append(rs.getString(1)).append(',').append(rs.getString(2))
+                                .append('\n');
+                    }
+                }
+            }
+        }
+        return dump.toString();
+    }
+}
@@ -0,0 +1,185 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.db.StreamingTableBackup;
+
+/**
+ * 大きなテーブルを、テーブルより小さいヒープで退避・復元できることのテスト<br>
+ * 退避・復元はヒープを絞った別JVMで実行し、全件をメモリに展開すればOutOfMemoryErrorとなるサイズで検証する<br>
+ * 併せて、空のテーブルを含む復元と、復元に失敗した場合のロールバックを確認する
+ */
+public class TestStreamingTableBackup {
+    protected static final Logger log = LoggerFactory.getLogger(TestStreamingTableBackup.class);
+
+    private static final int ROWS = 50000;
+
+    private static final int PAYLOAD_LENGTH = 1000;
+
+    private static final String MAX_HEAP = "-Xmx32m";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void test() throws Exception {
+        File dbFile = tmp.newFile("large.sqlite3");
+        File backupFile = new File(tmp.getRoot(), "large_backup.xml");
+        File logFile = new File(tmp.getRoot(), "child.log");
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath())) {
+            generate(conn);
+        }
+
+        Process process = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                MAX_HEAP,
+                "-cp", System.getProperty("java.class.path"),
+                TestStreamingTableBackup.class.getName(),
+                dbFile.getPath(), backupFile.getPath())
+                .redirectErrorStream(true)
+                .redirectOutput(logFile)
+                .start();
+        int exitCode = process.waitFor();
+        log.debug(new String(Files.readAllBytes(logFile.toPath()), StandardCharsets.UTF_8));
+        assertEquals("backup/restore in " + MAX_HEAP, 0, exitCode);
+
+        // テーブルより小さいヒープで処理できていること
+        assertTrue(backupFile.length() > ROWS * (long) PAYLOAD_LENGTH);
+
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getPath());
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT COUNT(*), SUM(id) FROM large")) {
+            rs.next();
+            assertEquals(ROWS, rs.getInt(1));
+            assertEquals((long) ROWS * (ROWS + 1) / 2, rs.getLong(2));
+        }
+    }
+
+    @Test
+    public void restoreEmptyTable() throws Exception {
+        File emptyFile = new File(tmp.getRoot(), "empty_t.xml");
+        File fullFile = new File(tmp.getRoot(), "full_t.xml");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tmp.newFile("empty.sqlite3").getPath());
+                Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE empty_t (id INTEGER PRIMARY KEY)");
+            stmt.execute("CREATE TABLE full_t (id INTEGER PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO full_t VALUES (1, 'apple'), (2, 'pen')");
+            StreamingTableBackup tableBackup = new StreamingTableBackup(conn, 500);
+            tableBackup.backup(new String[] { "empty_t" }, emptyFile);
+            tableBackup.backup(new String[] { "full_t" }, fullFile);
+
+            // 空のテーブルのみのファイルを復元しても、続けて復元するテーブルが空にならない
+            for (int i = 0; i < 2; i++) {
+                stmt.execute("INSERT INTO empty_t VALUES (" + (i + 1) + ")");
+                stmt.execute("UPDATE full_t SET name = 'pineapple'");
+                tableBackup.restore(new String[] { "empty_t" }, emptyFile);
+                assertFalse(Thread.currentThread().isInterrupted());
+                tableBackup.restore(new String[] { "full_t" }, fullFile);
+                assertEquals("0/2", counts(stmt));
+            }
+        }
+    }
+
+    @Test
+    public void rollbackOnFailure() throws Exception {
+        File backupFile = new File(tmp.getRoot(), "rollback_backup.xml");
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + tmp.newFile("rollback.sqlite3").getPath());
+                Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE empty_t (id INTEGER PRIMARY KEY)");
+            stmt.execute("CREATE TABLE full_t (id INTEGER PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO full_t VALUES (1, 'apple'), (2, 'pen')");
+            String[] tables = new String[] { "empty_t", "full_t" };
+            new StreamingTableBackup(conn, 500).backup(tables, backupFile);
+
+            // 退避した行を投入できないテーブルにする
+            stmt.execute("DROP TABLE full_t");
+            stmt.execute("CREATE TABLE full_t (id INTEGER PRIMARY KEY, name TEXT CHECK (name <> 'pen'))");
+            stmt.execute("INSERT INTO full_t VALUES (3, 'pineapple')");
+            stmt.execute("INSERT INTO empty_t VALUES (1)");
+
+            try {
+                new StreamingTableBackup(conn, 500).restore(tables, backupFile);
+                fail();
+            } catch (Exception e) {
+                // 削除も含めて取り消され、復元前の状態が残る
+                assertTrue(conn.getAutoCommit());
+                assertEquals("1/1", counts(stmt));
+            }
+        }
+    }
+
+    private static String counts(Statement stmt) throws Exception {
+        StringBuilder counts = new StringBuilder();
+        for (String table : new String[] { "empty_t", "full_t" }) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+                rs.next();
+                counts.append(counts.length() == 0 ? "" : "/").append(rs.getInt(1));
+            }
+        }
+        return counts.toString();
+    }
+
+    /**
+     * 子JVMでの処理 退避 → テーブル書き換え → 復元
+     *
+     * @param args [0]:DBファイル [1]:退避先ファイル
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + args[0])) {
+            String[] tables = new String[] { "large" };
+            File backupFile = new File(args[1]);
+
+            new StreamingTableBackup(conn, 500).backup(tables, backupFile);
+            log.debug("large table backup success. " + backupFile.length() + " bytes");
+
+            try (Statement stmt = conn.createStatement()) {
+                stmt.executeUpdate("DELETE FROM large WHERE id % 2 = 0");
+            }
+
+            new StreamingTableBackup(conn, 500).restore(tables, backupFile);
+            log.debug("large table restore success.");
+        }
+    }
+
+    private void generate(Connection conn) throws Exception {
+        char[] payload = new char[PAYLOAD_LENGTH];
+        Arrays.fill(payload, 'x');
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE large (id INTEGER PRIMARY KEY, payload TEXT)");
+        }
+
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement("INSERT INTO large VALUES (?, ?)")) {
+            for (int i = 1; i <= ROWS; i++) {
+                ps.setInt(1, i);
+                ps.setString(2, new String(payload));
+                ps.addBatch();
+                if (i % 1000 == 0) {
+                    ps.executeBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+}
@@ -0,0 +1,138 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DefaultTable;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.RuleDataBase;
+import util.RuleResource;
+import util.db.BulkInserter;
+import util.db.TableChecksum;
+
+/**
+ * チェックサムによるテーブルの一致確認のテスト<br>
+ * 一時ファイルのSQLite(集計関数)と、メモリ上のH2(SQLの集計)で確認する
+ */
+public class TestTableChecksum {
+
+    private static final String TEST_NAME = "usageRule/TestTableChecksum";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void sqlite() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "checksum.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url)) {
+            verify(conn, BulkInserter.Dialect.SQLITE);
+        }
+    }
+
+    @Test
+    public void h2() throws Exception {
+        try (Connection conn = DriverManager.getConnection("jdbc:h2:mem:checksum")) {
+            verify(conn, BulkInserter.Dialect.H2);
+        }
+    }
+
+    @Test
+    public void assertDatas() throws Exception {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "assert.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE checksum_t (id INTEGER PRIMARY KEY, name TEXT)");
+        }
+
+        Properties overrides = RuleHarness.overrides("org.sqlite.JDBC", url);
+        overrides.setProperty("dbUnit.assert.checksum", "true");
+        overrides.setProperty("metrics.enable", "true");
+        RuleHarness harness = new RuleHarness(TEST_NAME, overrides, new String[] { "checksum_t" });
+        harness.open();
+        try {
+            RuleDataBase database = harness.getDatabase();
+            try (Statement stmt = database.getConnection().createStatement()) {
+                stmt.execute("INSERT INTO checksum_t VALUES (3, 'pen')");
+            }
+
+            // 一致すれば行単位の比較は行わない
+            database.assertDatas("result");
+            assertEquals(0, RuleResource.getMetrics().getCount("assert.checksum.miss", "checksum_t"));
+
+            // 一致しなければ行単位の比較で報告される
+            try {
+                database.assertDatas("result_ng");
+                fail();
+            } catch (AssertionError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("col=name"));
+            }
+            assertEquals(1, RuleResource.getMetrics().getCount("assert.checksum.miss", "checksum_t"));
+        } finally {
+            harness.close();
+        }
+    }
+
+    private static void verify(Connection conn, BulkInserter.Dialect dialect) throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE checksum_t (id INTEGER PRIMARY KEY, name VARCHAR(20), note VARCHAR(20))");
+            stmt.execute("INSERT INTO checksum_t VALUES (1, 'apple', NULL), (2, 'pineapple', 'ペン'), (3, '', 'x')");
+            stmt.execute("CREATE TABLE price_t (id INTEGER, price DECIMAL(10, 2))");
+        }
+        TableChecksum checksum = new TableChecksum(conn, dialect);
+
+        // 行の順序・期待値の文字列表現に依存しない
+        ITable expected = table("checksum_t", new Object[][] {
+                { "3", "", "x" }, { "1", "apple", null }, { "02", "pineapple", "ペン" } });
+        assertEquals(Boolean.TRUE, checksum.matches(expected));
+
+        // 値の違い・null・行の過不足は不一致
+        assertEquals(Boolean.FALSE, checksum.matches(table("checksum_t", new Object[][] {
+                { "1", "apple", null }, { "2", "pineapple", "ペン" }, { "3", "", "y" } })));
+        assertEquals(Boolean.FALSE, checksum.matches(table("checksum_t", new Object[][] {
+                { "1", "apple", null }, { "2", "pineapple", "ペン" }, { "3", null, "x" } })));
+        assertEquals(Boolean.FALSE, checksum.matches(table("checksum_t", new Object[][] {
+                { "1", "apple", null }, { "2", "pineapple", "ペン" } })));
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("INSERT INTO checksum_t VALUES (4, 'apple', NULL)");
+        }
+        assertEquals(Boolean.FALSE, checksum.matches(expected));
+
+        // 期待値のカラムのみ比較する
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DELETE FROM checksum_t WHERE id = 4");
+        }
+        DefaultTable idOnly = new DefaultTable("checksum_t", new Column[] { new Column("id", DataType.UNKNOWN) });
+        for (String id : new String[] { "2", "3", "1" }) {
+            idOnly.addRow(new Object[] { id });
+        }
+        assertEquals(Boolean.TRUE, checksum.matches(idOnly));
+
+        // 対象外の型・対応していないDBは判定しない
+        DefaultTable price = new DefaultTable("price_t", new Column[] {
+                new Column("id", DataType.UNKNOWN), new Column("price", DataType.UNKNOWN) });
+        assertNull(checksum.matches(price));
+        assertNull(new TableChecksum(conn, BulkInserter.Dialect.OTHER).matches(expected));
+
+        // 存在しないテーブルはSQLの失敗として判定しない(例外は投げない)
+        assertNull(checksum.matches(table("missing_t", new Object[][] {})));
+    }
+
+    private static ITable table(String tableName, Object[][] rows) throws Exception {
+        DefaultTable table = new DefaultTable(tableName, new Column[] { new Column("id", DataType.UNKNOWN),
+                new Column("name", DataType.UNKNOWN), new Column("note", DataType.UNKNOWN) });
+        for (Object[] row : rows) {
+            table.addRow(row);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,112 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+
+import util.RuleDataBase;
+import util.RuleDataBase.IsolationMode;
+
+/**
+ * transactionモードの退避と、テストメソッド毎のセーブポイントのテスト<br>
+ * 一時ファイルのSQLiteと、DDLで暗黙コミットされるためフォールバックするH2で確認する
+ */
+public class TestTransactionIsolation {
+
+    private static final String TEST_NAME = "usageRule/TestTransactionIsolation";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void rollback() throws Throwable {
+        String url = "jdbc:sqlite:" + new File(tmp.getRoot(), "transaction.sqlite3").getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE tx_t (id INTEGER PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO tx_t VALUES (1, 'base')");
+        }
+
+        Properties overrides = RuleHarness.overrides("org.sqlite.JDBC", url);
+        overrides.setProperty("dbUnit.isolation", "transaction");
+        RuleHarness harness = new RuleHarness(TEST_NAME, overrides, new String[] { "tx_t" });
+        harness.open();
+        try {
+            final RuleDataBase database = harness.getDatabase();
+            assertEquals(IsolationMode.TRANSACTION, database.getIsolationMode());
+            execute(database.getConnection(), "INSERT INTO tx_t VALUES (2, 'class')");
+
+            // テストメソッド内の変更のみ巻き戻され、同じ行を何度でも追加できる
+            for (int i = 0; i < 3; i++) {
+                database.savepointPerMethod().apply(new org.junit.runners.model.Statement() {
+                    @Override
+                    public void evaluate() throws Throwable {
+                        execute(database.getConnection(), "INSERT INTO tx_t VALUES (3, 'method')");
+                        assertEquals("1,2,3", ids(database.getConnection()));
+                    }
+                }, Description.EMPTY).evaluate();
+                assertEquals("1,2", ids(database.getConnection()));
+            }
+            assertFalse(database.getConnection().getAutoCommit());
+        } finally {
+            harness.close();
+        }
+
+        // テストクラスの終了時に全て巻き戻される
+        try (Connection conn = DriverManager.getConnection(url)) {
+            assertEquals("1", ids(conn));
+        }
+    }
+
+    @Test
+    public void fallback() throws Throwable {
+        Properties overrides = RuleHarness.overrides("org.h2.Driver", "jdbc:h2:mem:transaction;DB_CLOSE_DELAY=-1");
+        overrides.setProperty("dbUnit.isolation", "transaction");
+        RuleHarness harness = new RuleHarness(TEST_NAME, overrides, new String[0]);
+        harness.open();
+        try {
+            final RuleDataBase database = harness.getDatabase();
+            execute(database.getConnection(), "CREATE TABLE tx_t (id INTEGER PRIMARY KEY)");
+
+            // トランザクションを開始せず、ファイルへの退避になる セーブポイントも作らない
+            assertEquals(IsolationMode.BACKUP, database.getIsolationMode());
+            assertTrue(database.getConnection().getAutoCommit());
+            database.savepointPerMethod().apply(new org.junit.runners.model.Statement() {
+                @Override
+                public void evaluate() throws Throwable {
+                    execute(database.getConnection(), "INSERT INTO tx_t VALUES (1)");
+                }
+            }, Description.EMPTY).evaluate();
+            assertEquals("1", ids(database.getConnection()));
+            execute(database.getConnection(), "DROP TABLE tx_t");
+        } finally {
+            harness.close();
+        }
+    }
+
+    private static void execute(Connection conn, String sql) throws Exception {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private static String ids(Connection conn) throws Exception {
+        StringBuilder ids = new StringBuilder();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT id FROM tx_t ORDER BY id")) {
+            while (rs.next()) {
+                ids.append(ids.length() == 0 ? "" : ",").append(rs.getInt(1));
+            }
+        }
+        return ids.toString();
+    }
+}
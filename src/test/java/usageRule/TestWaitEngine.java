@@ -0,0 +1,194 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import util.selenium.WaitEngine;
+
+/**
+ * 画面の変化をイベントで待つ待機処理のテスト<br>
+ * ローカルのHTTPサーバーが返す、少し遅れて要素を追加する画面をHtmlUnitDriverで開く
+ */
+public class TestWaitEngine {
+    protected static final Logger log = LoggerFactory.getLogger(TestWaitEngine.class);
+
+    /** 要素を追加するまでの時間(ミリ秒) **/
+    private static final int DELAY = 300;
+
+    private static final String PAGE = "<html><body><p>Loading</p><script>"
+            + "setTimeout(function() { var p = document.createElement('p'); p.id = 'late';"
+            + " p.appendChild(document.createTextNode('Loaded 42')); document.body.appendChild(p); }, " + DELAY + ");"
+            + "</script></body></html>";
+
+    private static HttpServer server;
+    private static String baseUrl;
+
+    private WebDriver driver;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = PAGE.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.stop(0);
+    }
+
+    @After
+    public void quit() {
+        if (driver != null) {
+            driver.quit();
+        }
+    }
+
+    @Test
+    public void textPresent() throws Exception {
+        driver = new HtmlUnitDriver(true);
+        driver.get(baseUrl);
+
+        // 従来の1秒毎の確認(＋成功後の1秒)より早く、追加された時点で戻る
+        long start = System.currentTimeMillis();
+        new WaitEngine(driver, 5000).untilTextPresent("Loaded \\d+");
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("Text appeared in " + elapsed + "ms.");
+        assertTrue("elapsed " + elapsed + "ms", elapsed < 1000);
+        assertTrue(driver.findElement(By.id("late")).isDisplayed());
+    }
+
+    @Test
+    public void javaPattern() throws Exception {
+        driver = new HtmlUnitDriver(true);
+        driver.get(baseUrl);
+
+        // Javaのフラグ指定はRegExpのフラグ・「.」の置き換えに変換して画面内で確認する
+        new WaitEngine(driver, 5000).untilTextPresent("(?i)LOADED \\d+");
+        new WaitEngine(driver, 5000).untilTextPresent("(?s)Loading.+Loaded");
+        // RegExpに無い構文は、DOMの変化毎にJavaで確認する
+        new WaitEngine(driver, 5000).untilTextPresent("\\ALoading\\s+Loaded \\p{Digit}++");
+
+        // 変換した正規表現は、画面内でもJavaと同じ結果になる
+        String[] texts = new String[] { "Loading\nLoaded 42", "loading", "a]b", "A\r\nB" };
+        for (String regex : new String[] { "(?i)LOADED \\d+", "(?s)Loading.+Loaded", "Loading.+Loaded", "(?m)^Loaded",
+                "(?i)^loading$", "[^a\\]]b", "(?is)a.+b" }) {
+            String[] scriptPattern = WaitEngine.toScriptPattern(regex);
+            for (String text : texts) {
+                assertEquals(regex + " " + text, Pattern.compile(regex).matcher(text).find(),
+                        ((JavascriptExecutor) driver).executeScript(
+                                "return new RegExp(arguments[0], arguments[1]).test(arguments[2]);",
+                                scriptPattern[0], scriptPattern[1], text));
+            }
+        }
+    }
+
+    @Test
+    public void scriptPattern() {
+        assertArrayEquals(new String[] { "Loaded \\d+", "" }, WaitEngine.toScriptPattern("Loaded \\d+"));
+        assertArrayEquals(new String[] { "a(?:b)c", "im" }, WaitEngine.toScriptPattern("(?imu)a(?:b)c"));
+        assertArrayEquals(new String[] { "a[\\s\\S]b[.]", "" }, WaitEngine.toScriptPattern("(?s)a.b[.]"));
+        assertArrayEquals(new String[] { "[^a\\]]+?", "" }, WaitEngine.toScriptPattern("[^a\\]]+?"));
+        assertNull(WaitEngine.toScriptPattern("a(?i)b"));
+        assertNull(WaitEngine.toScriptPattern("(?x)a b"));
+        assertNull(WaitEngine.toScriptPattern("(?<=a)b"));
+        assertNull(WaitEngine.toScriptPattern("(?>a)"));
+        assertNull(WaitEngine.toScriptPattern("\\Aa\\z"));
+        assertNull(WaitEngine.toScriptPattern("\\p{Alpha}"));
+        assertNull(WaitEngine.toScriptPattern("\\Q.\\E"));
+        assertNull(WaitEngine.toScriptPattern("a*+"));
+        assertNull(WaitEngine.toScriptPattern("[a-z&&[^b]]"));
+        assertNull(WaitEngine.toScriptPattern("[]a]"));
+        assertNull(WaitEngine.toScriptPattern("\\x{41}"));
+    }
+
+    @Test
+    public void restoreScriptTimeout() throws Exception {
+        driver = new HtmlUnitDriver(true);
+        driver.get(baseUrl);
+
+        // 待機後は指定したスクリプトの上限時間に戻る
+        new WaitEngine(driver, 5000, 100).untilTextPresent("Loaded \\d+");
+        try {
+            ((JavascriptExecutor) driver).executeAsyncScript(
+                    "var callback = arguments[arguments.length - 1]; setTimeout(function() { callback(1); }, 1000);");
+        } catch (TimeoutException e) {
+            return;
+        }
+        fail("script timeout is not restored");
+    }
+
+    @Test
+    public void elementPresent() throws Exception {
+        driver = new HtmlUnitDriver(true);
+        driver.get(baseUrl);
+
+        long start = System.currentTimeMillis();
+        new WaitEngine(driver, 5000).untilElementPresent(driver.findElement(By.cssSelector("BODY")), By.id("late"));
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("Element appeared in " + elapsed + "ms.");
+        assertTrue("elapsed " + elapsed + "ms", elapsed < 1000);
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        driver = new HtmlUnitDriver(true);
+        driver.get(baseUrl);
+
+        try {
+            new WaitEngine(driver, 500).untilTextPresent("never");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("timeout : text never"));
+            return;
+        }
+        fail("not timeout");
+    }
+
+    @Test
+    public void fallbackWithoutScript() throws Exception {
+        // JavaScriptが無効な場合は、間隔を広げながらの確認になる
+        driver = new HtmlUnitDriver(false);
+        driver.get(baseUrl);
+
+        new WaitEngine(driver, 500).untilTextPresent("Loading");
+        try {
+            new WaitEngine(driver, 500).untilElementPresent(driver.findElement(By.cssSelector("BODY")), By.id("late"));
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("timeout : element"));
+            return;
+        }
+        fail("not timeout");
+    }
+}
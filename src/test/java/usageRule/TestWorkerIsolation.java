@@ -0,0 +1,169 @@
+package usageRule;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import util.RuleResource;
+
+/**
+ * テストクラスを別々のスレッドで並列実行した場合に、互いに干渉しないことのテスト<br>
+ * 2つのテストクラスを同時に開始し、パス・設定の置き換え・ワーカーID・バックアップファイル・
+ * ワーカー毎に複製したSQLiteのDBがそれぞれのものであることを確認する
+ */
+public class TestWorkerIsolation {
+
+    private static final String TEST_NAME = "usageRule/TestWorkerIsolation/";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void twoClassesOnTwoThreads() throws Exception {
+        File source = new File(tmp.getRoot(), "source.sqlite3");
+        final String url = "jdbc:sqlite:" + source.getPath();
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE item_t (id INTEGER PRIMARY KEY, name TEXT)");
+            stmt.execute("INSERT INTO item_t VALUES (1, 'apple')");
+            stmt.execute("CREATE TABLE note_t (worker TEXT)");
+        }
+        final String workerUrl = "jdbc:sqlite:" + new File(tmp.getRoot(), "${worker}/worker.sqlite3").getPath();
+
+        // 両方のテストクラスが開始してから書き込み・終了する
+        final CyclicBarrier opened = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Worker> first = executor.submit(new Callable<Worker>() {
+                @Override
+                public Worker call() throws Exception {
+                    return Worker.run("first", url, workerUrl, opened);
+                }
+            });
+            Future<Worker> second = executor.submit(new Callable<Worker>() {
+                @Override
+                public Worker call() throws Exception {
+                    return Worker.run("second", url, workerUrl, opened);
+                }
+            });
+
+            for (Worker worker : new Worker[] { first.get(30, TimeUnit.SECONDS), second.get(30, TimeUnit.SECONDS) }) {
+                String name = worker.name;
+                assertEquals("./src/test/resources/data/" + TEST_NAME + name + "/", worker.dataResourcePath);
+                assertEquals("./evidence/" + TEST_NAME + name + "/", worker.capturePath);
+                assertEquals(name, worker.marker);
+                assertEquals(workerUrl.replace("${worker}", worker.workerId), worker.url);
+                assertArrayEquals(new String[] { worker.backupPrefix + ".xml" }, worker.backupFiles);
+
+                // 同じワーカーの2つ目のテストクラスでは複製し直さず、前のクラスの書き込みが残る
+                assertEquals(2, worker.notes);
+            }
+            Worker a = first.get();
+            Worker b = second.get();
+            assertNotEquals(a.workerId, b.workerId);
+            assertNotEquals(a.backupPrefix, b.backupPrefix);
+
+            // 書き込みはワーカー毎の複製に対して行われ、複製元は変わらない 退避したテーブルはそれぞれ元に戻る
+            assertEquals("0", query(url, "SELECT COUNT(*) FROM note_t"));
+            for (Worker worker : new Worker[] { a, b }) {
+                assertEquals("2", query(worker.url, "SELECT COUNT(*) FROM note_t"));
+                assertEquals("apple", query(worker.url, "SELECT name FROM item_t"));
+            }
+        } finally {
+            executor.shutdownNow();
+
+            // データリソースのディレクトリに作られたバックアップファイルを削除する
+            for (String name : new String[] { "first", "second" }) {
+                File dir = new File("./src/test/resources/data/" + TEST_NAME + name);
+                File[] files = dir.listFiles();
+                for (File file : files == null ? new File[0] : files) {
+                    file.delete();
+                }
+                dir.delete();
+            }
+            new File("./src/test/resources/data/" + TEST_NAME).delete();
+        }
+    }
+
+    private static String query(String url, String sql) throws Exception {
+        try (Connection conn = DriverManager.getConnection(url); Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.getString(1);
+        }
+    }
+
+    /**
+     * 1つのスレッドで、同じワーカーのテストクラスを2回開始・終了した結果
+     */
+    private static class Worker {
+        private String name;
+        private String dataResourcePath;
+        private String capturePath;
+        private String marker;
+        private String workerId;
+        private String url;
+        private String backupPrefix;
+        private String[] backupFiles;
+        private int notes;
+
+        private static Worker run(String name, String url, String workerUrl, CyclicBarrier opened)
+                throws Exception {
+            Properties overrides = RuleHarness.overrides("org.sqlite.JDBC", url);
+            overrides.setProperty("datasource.worker-url", workerUrl);
+            overrides.setProperty("test.marker", name);
+
+            Worker worker = new Worker();
+            worker.name = name;
+            for (int i = 0; i < 2; i++) {
+                RuleHarness harness = new RuleHarness(TEST_NAME + name, overrides, new String[] { "item_t" });
+                harness.open();
+                try {
+                    if (i == 0) {
+                        opened.await(10, TimeUnit.SECONDS);
+                    }
+                    worker.dataResourcePath = RuleResource.getDataResourcePath();
+                    worker.capturePath = RuleResource.getCapturePath();
+                    worker.marker = RuleResource.getConfiguration().getProperty("test.marker");
+                    worker.workerId = RuleResource.getWorkerId();
+
+                    Connection conn = harness.getDatabase().getConnection();
+                    worker.url = conn.getMetaData().getURL();
+                    worker.backupPrefix = RuleResource.getEnvironmentName() + "_backup_" + worker.workerId;
+                    final String prefix = worker.backupPrefix;
+                    worker.backupFiles = new File(worker.dataResourcePath).list(new FilenameFilter() {
+                        @Override
+                        public boolean accept(File dir, String fileName) {
+                            return fileName.startsWith(prefix);
+                        }
+                    });
+
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute("INSERT INTO note_t VALUES ('" + worker.workerId + "')");
+                        stmt.execute("UPDATE item_t SET name = '" + name + "'");
+                        try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM note_t")) {
+                            worker.notes = rs.getInt(1);
+                        }
+                    }
+                } finally {
+                    harness.close();
+                }
+            }
+            return worker;
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/**
+ *
+ */
+package util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * エビデンス(キャプチャ等)を内容のハッシュで保存するストア<br>
+ * <br>
+ * 内容はSHA-256のハッシュを名前とするファイル(blobs/ab/cd/abcd….png)に1度だけ保存し、
+ * 実行(run)毎の索引(runs/[実行ID]/index_[フォーク番号].tsv)に、日時・テスト名・テストメソッド名・ステップ名・ハッシュを1行ずつ追記します。<br>
+ * テスト毎のエビデンスの一覧は、ディレクトリを辿らずに索引を読んで取得します。<br>
+ * 保存期間(日数)・保存容量を指定した場合は、ストアの初回利用時に古い実行から索引を削除し、
+ * どの索引からも参照されなくなった内容を削除します(他のフォークが書き込み中の実行・内容を消さないよう、1時間以内に書かれた実行・内容は残します)。<br>
+ * 実行IDはMavenのビルド毎に1つ(pom.xmlでsurefireのフォークに evidence.run.id を渡す)とし、全フォークが同じ実行に索引を書き込みます。
+ *
+ * <pre>
+ * evidence/
+ *   blobs/3f/a2/3fa2….png
+ *   runs/20170101-120000/index_1.tsv
+ * </pre>
+ *
+ * @author r.kinoshita
+ *
+ */
+public class EvidenceStore {
+    protected static final Logger log = LoggerFactory.getLogger(EvidenceStore.class);
+
+    /** 内容の保存ディレクトリ **/
+    public static final String BLOB_DIR = "blobs";
+
+    /** 索引の保存ディレクトリ **/
+    public static final String RUN_DIR = "runs";
+
+    /** 索引ファイルの接頭辞・拡張子 **/
+    private static final String INDEX_PREFIX = "index_";
+    private static final String INDEX_EXTENSION = ".tsv";
+
+    /** 削除しない、最近書かれた実行・内容の経過時間(ミリ秒) **/
+    private static final long SWEEP_GRACE = 60L * 60L * 1000L;
+
+    /** 1日(ミリ秒) **/
+    private static final long DAY = 24L * 60L * 60L * 1000L;
+
+    /** 保存先毎のストア **/
+    private static final Map<String, EvidenceStore> STORES = new HashMap<String, EvidenceStore>();
+
+    /**
+     * エビデンスの保存方法
+     */
+    public enum Mode {
+        /** エビデンス保存ディレクトリ/[テスト名]/[テストメソッド名]_[名前].png に上書き保存する **/
+        FLAT,
+        /** 内容のハッシュで保存し、実行毎の索引を残す **/
+        SHARDED;
+
+        /**
+         * 設定値から保存方法を取得します 未設定時はFLAT
+         *
+         * @param value 設定値
+         * @return 保存方法
+         */
+        public static Mode of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return FLAT;
+            }
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * 索引の1行
+     */
+    public static class Entry {
+        private final long timestamp;
+        private final String testName;
+        private final String methodName;
+        private final String step;
+        private final String hash;
+        private final String extension;
+        private final long size;
+
+        private Entry(long timestamp, String testName, String methodName, String step, String hash,
+                String extension, long size) {
+            this.timestamp = timestamp;
+            this.testName = testName;
+            this.methodName = methodName;
+            this.step = step;
+            this.hash = hash;
+            this.extension = extension;
+            this.size = size;
+        }
+
+        private static Entry parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length < 7) {
+                return null;
+            }
+            return new Entry(Long.parseLong(fields[0]), fields[1], fields[2], fields[3], fields[4], fields[5],
+                    Long.parseLong(fields[6]));
+        }
+
+        private String format() {
+            return timestamp + "\t" + clean(testName) + "\t" + clean(methodName) + "\t" + clean(step) + "\t" + hash
+                    + "\t" + extension + "\t" + size;
+        }
+
+        private static String clean(String value) {
+            return value == null ? "" : value.replaceAll("[\\t\\r\\n]", " ");
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getTestName() {
+            return testName;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        public String getStep() {
+            return step;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /** 保存先 **/
+    private final File root;
+
+    /** 実行ID **/
+    private final String runId;
+
+    /** この実行(フォーク)の索引ファイル **/
+    private final File indexFile;
+
+    /** 索引の書き込み **/
+    private BufferedWriter indexWriter;
+
+    private EvidenceStore(File root, String runId) {
+        this.root = root;
+        this.runId = runId;
+        this.indexFile = new File(new File(new File(root, RUN_DIR), runId),
+                INDEX_PREFIX + RuleResource.getForkId() + INDEX_EXTENSION);
+    }
+
+    /**
+     * 保存先に対応するストアを取得します 無ければ生成し、保存期間・保存容量を超えた古い実行を削除します
+     *
+     * @param root 保存先(エビデンス保存ディレクトリ)
+     * @param maxAgeDays 保存期間(日数) 0以下は無期限
+     * @param maxBytes 保存容量(バイト) 0以下は無制限
+     * @return ストア
+     */
+    public static EvidenceStore of(File root, int maxAgeDays, long maxBytes) {
+        String key = root.getAbsolutePath();
+        synchronized (STORES) {
+            EvidenceStore store = STORES.get(key);
+            if (store == null) {
+                store = new EvidenceStore(root, runIdOf());
+                STORES.put(key, store);
+                if (STORES.size() == 1) {
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        @Override
+                        public void run() {
+                            closeAll();
+                        }
+                    });
+                }
+                try {
+                    store.enforceRetention(maxAgeDays, maxBytes);
+                } catch (IOException e) {
+                    log.warn("Evidence retention fail. (" + e + ")");
+                }
+            }
+            return store;
+        }
+    }
+
+    /**
+     * 内容を保存し、索引に追記します 同じ内容が保存済みの場合は書き込みません
+     *
+     * @param data 内容
+     * @param extension 拡張子
+     * @param testName テスト名
+     * @param methodName テストメソッド名
+     * @param step ステップ名(キャプチャ名等)
+     * @return 内容を保存したファイル
+     * @throws IOException
+     */
+    public File put(byte[] data, String extension, String testName, String methodName, String step)
+            throws IOException {
+        String hash = sha256(data);
+        File blob = getBlob(hash, extension);
+        if (!blob.exists()) {
+            blob.getParentFile().mkdirs();
+            // 途中まで書かれたファイルを他から見せないよう、一時ファイルから置き換える
+            File tmp = new File(blob.getParentFile(), blob.getName() + "." + RuleResource.getForkId() + "."
+                    + Thread.currentThread().getId() + ".tmp");
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            // 参照されたことを残し、掃除の対象から外す
+            blob.setLastModified(System.currentTimeMillis());
+        }
+
+        appendIndex(new Entry(System.currentTimeMillis(), testName, methodName, step, hash, extension, data.length));
+        return blob;
+    }
+
+    /**
+     * この実行で保存した、テストのエビデンスの一覧を取得します
+     *
+     * @param testName テスト名
+     * @return 索引の行(保存順)
+     * @throws IOException
+     */
+    public List<Entry> find(String testName) throws IOException {
+        synchronized (this) {
+            if (indexWriter != null) {
+                indexWriter.flush();
+            }
+        }
+        return find(root, runId, testName);
+    }
+
+    /**
+     * 実行の索引から、テストのエビデンスの一覧を取得します
+     *
+     * @param root 保存先
+     * @param runId 実行ID
+     * @param testName テスト名 nullの場合は全て
+     * @return 索引の行(フォーク毎に保存順)
+     * @throws IOException
+     */
+    public static List<Entry> find(File root, String runId, String testName) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (File index : indexFilesOf(new File(new File(root, RUN_DIR), runId))) {
+            for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+                Entry entry = Entry.parse(line);
+                if (entry != null && (testName == null || testName.equals(entry.getTestName()))) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @param hash ハッシュ
+     * @param extension 拡張子
+     * @return 内容を保存するファイル(先頭4文字で2段に振り分け)
+     */
+    public File getBlob(String hash, String extension) {
+        return new File(new File(new File(new File(root, BLOB_DIR), hash.substring(0, 2)), hash.substring(2, 4)),
+                hash + "." + extension);
+    }
+
+    /**
+     * @return 実行ID
+     */
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * 保存期間・保存容量を超えた古い実行の索引と、参照されなくなった内容を削除します<br>
+     * この実行の索引と、SWEEP_GRACE 以内に書き込まれた実行(他のビルドが実行中)の索引は削除しません。
+     *
+     * @param maxAgeDays 保存期間(日数) 0以下は無期限
+     * @param maxBytes 保存容量(バイト) 0以下は無制限
+     * @throws IOException
+     */
+    public void enforceRetention(int maxAgeDays, long maxBytes) throws IOException {
+        if (maxAgeDays <= 0 && maxBytes <= 0) {
+            return;
+        }
+
+        // 古い順の実行
+        File[] runs = new File(root, RUN_DIR).listFiles();
+        if (runs == null) {
+            return;
+        }
+        List<File> kept = new ArrayList<File>();
+        final Map<File, Long> lastWritten = new HashMap<File, Long>();
+        for (File run : runs) {
+            if (run.isDirectory() && !run.getName().equals(runId)) {
+                kept.add(run);
+                lastWritten.put(run, lastWrittenOf(run));
+            }
+        }
+        kept.sort(new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(lastWritten.get(o1), lastWritten.get(o2));
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        List<File> expired = new ArrayList<File>();
+        while (!kept.isEmpty() && maxAgeDays > 0 && lastWritten.get(kept.get(0)) < now - maxAgeDays * DAY) {
+            expired.add(kept.remove(0));
+        }
+
+        // 残す実行から参照される内容の容量が上限に収まるまで、古い実行から削除する
+        List<Set<String>> referencedByRun = new ArrayList<Set<String>>();
+        Map<String, Integer> references = new HashMap<String, Integer>();
+        Map<String, Long> sizes = new HashMap<String, Long>();
+        long total = 0;
+        for (File run : kept) {
+            Set<String> blobs = blobsOf(run, sizes);
+            referencedByRun.add(blobs);
+            for (String blob : blobs) {
+                Integer count = references.get(blob);
+                references.put(blob, count == null ? 1 : count + 1);
+                if (count == null) {
+                    total += sizes.get(blob);
+                }
+            }
+        }
+        Set<String> current = blobsOf(new File(new File(root, RUN_DIR), runId), sizes);
+        for (String blob : current) {
+            if (!references.containsKey(blob)) {
+                total += sizes.get(blob);
+            }
+        }
+        while (!kept.isEmpty() && maxBytes > 0 && total > maxBytes
+                && lastWritten.get(kept.get(0)) < now - SWEEP_GRACE) {
+            expired.add(kept.remove(0));
+            for (String blob : referencedByRun.remove(0)) {
+                int count = references.get(blob) - 1;
+                if (count == 0) {
+                    references.remove(blob);
+                    if (!current.contains(blob)) {
+                        total -= sizes.get(blob);
+                    }
+                } else {
+                    references.put(blob, count);
+                }
+            }
+        }
+
+        for (File run : expired) {
+            FileUtils.deleteDirectory(run);
+            log.debug("Delete expired evidence run : " + run.getName());
+        }
+
+        // どの索引からも参照されない内容を削除する
+        Set<String> referenced = new HashSet<String>(references.keySet());
+        referenced.addAll(current);
+        int swept = sweep(new File(root, BLOB_DIR), referenced, now - SWEEP_GRACE);
+        log.debug("Evidence retention : " + expired.size() + " runs, " + swept + " blobs deleted. (" + total
+                + " bytes kept)");
+    }
+
+    private synchronized void appendIndex(Entry entry) throws IOException {
+        if (indexWriter == null) {
+            indexFile.getParentFile().mkdirs();
+            indexWriter = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        indexWriter.write(entry.format());
+        indexWriter.newLine();
+        indexWriter.flush();
+    }
+
+    private synchronized void close() {
+        if (indexWriter != null) {
+            try {
+                indexWriter.close();
+            } catch (IOException e) {
+                log.debug("Close evidence index fail.", e);
+            }
+            indexWriter = null;
+        }
+    }
+
+    private static void closeAll() {
+        synchronized (STORES) {
+            for (EvidenceStore store : STORES.values()) {
+                store.close();
+            }
+        }
+    }
+
+    /**
+     * 実行の索引が参照する内容(「ハッシュ.拡張子」)を返します
+     */
+    private static Set<String> blobsOf(File run, Map<String, Long> sizes) throws IOException {
+        Set<String> blobs = new HashSet<String>();
+        for (File index : indexFilesOf(run)) {
+            for (String line : Files.readAllLines(index.toPath(), StandardCharsets.UTF_8)) {
+                Entry entry = Entry.parse(line);
+                if (entry != null) {
+                    String blob = entry.getHash() + "." + entry.getExtension();
+                    blobs.add(blob);
+                    sizes.put(blob, entry.getSize());
+                }
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * 実行に最後に書き込まれた日時を返します 索引への追記はディレクトリの更新日時を変えないため、索引の更新日時も見ます
+     */
+    private static long lastWrittenOf(File run) {
+        long lastWritten = run.lastModified();
+        for (File index : indexFilesOf(run)) {
+            lastWritten = Math.max(lastWritten, index.lastModified());
+        }
+        return lastWritten;
+    }
+
+    private static List<File> indexFilesOf(File run) {
+        File[] files = run.listFiles();
+        List<File> indexes = new ArrayList<File>();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.getName().startsWith(INDEX_PREFIX) && file.getName().endsWith(INDEX_EXTENSION)) {
+                    indexes.add(file);
+                }
+            }
+        }
+        return indexes;
+    }
+
+    private static int sweep(File dir, Set<String> referenced, long olderThan) {
+        int swept = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                swept += sweep(file, referenced, olderThan);
+            } else if (!referenced.contains(file.getName()) && file.lastModified() < olderThan) {
+                if (file.delete()) {
+                    swept++;
+                }
+            }
+        }
+        return swept;
+    }
+
+    /**
+     * 実行IDを決定します システムプロパティ evidence.run.id があればその値、無ければJVMの開始日時<br>
+     * Mavenからの実行ではビルドの開始日時(pom.xml)、または -Devidence.run.id で指定した値(CIのビルド番号等)になります
+     */
+    private static String runIdOf() {
+        String runId = System.getProperty("evidence.run.id");
+        if (runId == null || runId.trim().isEmpty()) {
+            runId = new SimpleDateFormat("yyyyMMdd-HHmmss").format(
+                    new Date(ManagementFactory.getRuntimeMXBean().getStartTime()));
+        }
+        return runId.trim().replaceAll("[^\\w.-]", "_");
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -8,35 +8,62 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.dbunit.Assertion;
 import org.dbunit.DatabaseUnitException;
-import org.dbunit.database.DatabaseConnection;
 import org.dbunit.database.IDatabaseConnection;
-import org.dbunit.database.QueryDataSet;
+import org.dbunit.dataset.Column;
 import org.dbunit.dataset.DataSetException;
 import org.dbunit.dataset.DefaultDataSet;
+import org.dbunit.dataset.DefaultTable;
 import org.dbunit.dataset.IDataSet;
 import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.ITableMetaData;
 import org.dbunit.dataset.csv.CsvDataSet;
 import org.dbunit.dataset.filter.DefaultColumnFilter;
+import org.dbunit.dataset.stream.DefaultConsumer;
+import org.dbunit.dataset.stream.IDataSetConsumer;
 import org.dbunit.dataset.xml.FlatXmlDataSet;
 import org.dbunit.dataset.xml.FlatXmlProducer;
-import org.dbunit.operation.DatabaseOperation;
 import org.junit.rules.ExternalResource;
+import org.junit.rules.TestRule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xml.sax.InputSource;
 
+import util.db.BatchInserter;
+import util.db.BulkInserter;
+import util.db.ConnectionPool;
+import util.db.DataSetCache;
+import util.db.FixtureRegistry;
+import util.db.HashTableComparator;
+import util.db.LazyTableBackup;
+import util.db.MappedCsvLoader;
+import util.db.ParallelTableBackup;
+import util.db.SQLiteSnapshot;
+import util.db.StreamingTableBackup;
+import util.db.TableChecksum;
+import util.db.TableFingerprint;
+
 /**
  * dbUnit関連のRuleクラス<br>
  * <br>
@@ -48,6 +75,49 @@ import org.xml.sax.InputSource;
  * datasource.url=jdbc:mysql://localhost:3306/hoge?useUnicode=true&amp;characterEncoding=UTF-8
  * datasource.username=hoge_user
  * datasource.password=hoge_pw
+ * # フォーク全体でのコネクションプール 最大数・返却漏れを警告するまでの時間(ミリ秒)
+ * datasource.pool.enable=false
+ * datasource.pool.max-size=4
+ * datasource.pool.leak-detection-threshold=60000
+ * # 並列実行時にワーカー毎のDBを使う場合の接続URL ${worker}はワーカーIDに置換される
+ * # SQLiteの場合は datasource.url のファイルをワーカー毎に複製して使用する
+ * datasource.worker-url=jdbc:sqlite:target/sqlite/${worker}/locals.sqlite3
+ * # テーブルの退避・復元の並列数(1で並列化しない) プールから別々のコネクションを借りて処理する(datasource.pool.enable=trueが必要)
+ * # 復元は外部キーの依存関係の段毎に並列に行う SQLiteの場合、復元は並列化しない
+ * dbUnit.parallelism=1
+ *
+ * # テーブル退避方式 backup(既定):ファイルへ退避・復元 / transaction:トランザクションのロールバックで復元
+ * #                  snapshot:DBファイル全体をページ単位で退避・復元(SQLiteのみ)
+ * #                  lazy:getConnection()経由で書き込まれたテーブルのみ、初回の書き込み直前に退避・復元(targetTablesは無視)
+ * dbUnit.isolation=backup
+ * # リストア方式 full(既定):全件入れ替え / incremental:テストで変更された行のみ戻す
+ * #   incrementalは対象テーブルの全行の主キーと行ハッシュをテスト中メモリに保持する
+ * dbUnit.restore=full
+ * # バックアップ・リストア時に一度にメモリ上に保持する行数
+ * dbUnit.backup.window=1000
+ * # バックアップファイルの形式 xml(既定) / binary
+ * dbUnit.backup.format=xml
+ * # バックアップファイルをdeflate圧縮するか(binaryのみ)
+ * dbUnit.backup.compress=false
+ * # pre_data投入・リストア時のバッチINSERTの件数と、複数行VALUES形式への書き換え有無
+ * dbUnit.insert.batchSize=1000
+ * dbUnit.insert.multiRowValues=false
+ * # datasource.driver-class-nameから判定したDB毎の一括投入(MySQL:LOAD DATA / PostgreSQL:COPY 等)を使うか
+ * dbUnit.insert.bulk=true
+ * # CSVのデータリソースを、メモリマップしたファイルから直接バッチINSERTするか(投入のみ、照合には使用しない)
+ * dbUnit.csv.mapped=false
+ * # 解析済みデータリソースのキャッシュ件数・容量(MB データファイルのサイズで推定し、超えるファイルはキャッシュしない)
+ * # JVM全体で1つのため、テストクラス毎の置き換えは無視される 0でキャッシュしない
+ * dbUnit.cache.size=100
+ * dbUnit.cache.max-size=64
+ * # 照合時にDBの内容を主キー順で取得するか
+ * dbUnit.assert.orderByPk=true
+ * # 照合方式 ordered(既定):dbUnit標準の行順比較 / hash:主キー・行ハッシュによる順不同の比較
+ * dbUnit.assert.mode=ordered
+ * # 照合の前に行数・チェックサムをDB側で集計し、一致したテーブルは行単位の比較を省略するか(行の順序は比較しない)
+ * dbUnit.assert.checksum=false
+ * # テーブルが既にデータリソースと同じ内容であれば、pre_data等の投入を省略するか
+ * dbUnit.fixture.dedup=false
  * </pre>
  *
  * @author r.kinoshita
@@ -56,9 +126,71 @@ import org.xml.sax.InputSource;
 public class RuleDataBase extends ExternalResource {
     protected static final Logger log = LoggerFactory.getLogger(RuleDataBase.class);
 
+    /**
+     * テーブルの退避方式
+     */
+    public enum IsolationMode {
+        /** テスト前にテーブル内容をファイルへ退避し、終了時に復元する **/
+        BACKUP,
+        /** テスト全体を1トランザクションとし、終了時にロールバックする **/
+        TRANSACTION,
+        /** テスト前にDBファイル全体のスナップショットを取り、終了時に書き戻す(SQLiteのみ) **/
+        SNAPSHOT,
+        /** テスト中に書き込まれたテーブルのみ、初回の書き込み直前に退避し、終了時に復元する **/
+        LAZY;
+
+        /**
+         * 設定値から退避方式を取得します
+         *
+         * @param value 設定値 未指定の場合はBACKUP
+         * @return 退避方式
+         */
+        public static IsolationMode of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return BACKUP;
+            }
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * 照合方式
+     */
+    public enum AssertMode {
+        /** dbUnit標準の比較 期待値とDBの行を同じ順序で1行ずつ比較する **/
+        ORDERED,
+        /** 主キー(無い場合は行ハッシュ)で対応付け、順序に依存せず比較する 不足・余剰・変更の件数で報告する **/
+        HASH;
+
+        /**
+         * 設定値から照合方式を取得します
+         *
+         * @param value 設定値 未指定の場合はORDERED
+         * @return 照合方式
+         */
+        public static AssertMode of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return ORDERED;
+            }
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /** SQLiteの接続URLの接頭辞 **/
+    private static final String SQLITE_URL_PREFIX = "jdbc:sqlite:";
+
+    /** JVM内で複製済みのワーカー毎のDB **/
+    private static final Set<String> WORKER_DATABASES = new HashSet<String>();
+
     /** DBコネクション **/
     protected Connection conn;
 
+    /** DBコネクションの借用元(プール無効時はnull) **/
+    private ConnectionPool pool;
+
+    /** 実際に適用されている退避方式 **/
+    private IsolationMode isolationMode = IsolationMode.BACKUP;
+
     /** バックアップすべきテーブル名の配列 **/
     private String[] targetTables;
 
@@ -72,9 +204,24 @@ public class RuleDataBase extends ExternalResource {
         }
     };
 
-    /** バックアップファイル **/
+    /** バックアップファイル(並列退避時はテーブル毎のファイルを格納するディレクトリ) **/
     private File backupFile;
 
+    /** 並列退避・復元オブジェクト(並列退避時のみ) **/
+    private ParallelTableBackup parallelBackup;
+
+    /** 書き込み時の退避オブジェクト(lazyモード時のみ) **/
+    private LazyTableBackup lazyBackup;
+
+    /** スナップショットファイル(snapshotモード時のみ) **/
+    private File snapshotFile;
+
+    /** バックアップ時に取得した各テーブルの指紋(incrementalリストア時のみ) **/
+    private List<TableFingerprint> fingerprints;
+
+    /** このテストクラスで投入した(投入を省略した)テーブル → データリソースの内容のハッシュ **/
+    private final Map<String, Long> loadedFixtures = new HashMap<String, Long>();
+
     @SuppressWarnings("unused")
     private RuleDataBase() {
     }
@@ -107,7 +254,7 @@ public class RuleDataBase extends ExternalResource {
      *
      * <ul>
      * <li>DBへの接続
-     * <li>指定したテーブルのバックアップ
+     * <li>指定したテーブルのバックアップ(transactionモードの場合はトランザクション開始、snapshotモードの場合はDB全体の退避)
      * <li>pre_dataがあれば、その内容でデータの書き換え
      * </ul>
      */
@@ -117,7 +264,9 @@ public class RuleDataBase extends ExternalResource {
             // DB接続
             try {
                 log.debug("Try to connect db server.");
-                conn = getConnection();
+                long start = TestMetrics.start();
+                conn = connect();
+                TestMetrics.time("connect", null, start);
                 log.debug("Connect db success.");
             } catch (Exception e) {
                 log.debug("Connect db fail.");
@@ -127,7 +276,18 @@ public class RuleDataBase extends ExternalResource {
 
             // テスト対象テーブルのバックアップ
             try {
-                backUpTables();
+                long start = TestMetrics.start();
+                isolationMode = resolveIsolationMode();
+                if (isolationMode == IsolationMode.TRANSACTION) {
+                    beginTransaction();
+                } else if (isolationMode == IsolationMode.SNAPSHOT) {
+                    takeSnapshot();
+                } else if (isolationMode == IsolationMode.LAZY) {
+                    beginLazyBackup();
+                } else {
+                    backUpTables();
+                }
+                TestMetrics.time("isolate", isolationMode.name().toLowerCase(), start);
             } catch (Exception e) {
                 log.debug("table backup fail.");
                 e.printStackTrace();
@@ -137,7 +297,7 @@ public class RuleDataBase extends ExternalResource {
             // テストクラス用データリソース投入
             // Ex. ./src/test/resources/data/[テストクラス名]/pre_data.xml
             try {
-                cleanInsertData("pre_data");
+                cleanInsertData("pre_data", null, true);
             } catch (Exception e) {
                 log.debug("datafile insert fail.");
                 e.printStackTrace();
@@ -150,7 +310,7 @@ public class RuleDataBase extends ExternalResource {
      * テスト終了時の処理
      *
      * <ul>
-     * <li>バックアップされたテーブルデータの復元
+     * <li>バックアップされたテーブルデータの復元(transactionモードの場合はロールバック、snapshotモードの場合はDB全体の復元)
      * <li>DB接続の切断
      * </ul>
      */
@@ -159,11 +319,31 @@ public class RuleDataBase extends ExternalResource {
         if (RuleResource.isDbUnitTest()) {
             // テーブルリストア
             try {
-                restoreTables();
+                long start = TestMetrics.start();
+                if (isolationMode == IsolationMode.TRANSACTION) {
+                    rollbackTransaction();
+                } else if (isolationMode == IsolationMode.SNAPSHOT) {
+                    restoreSnapshot();
+                } else if (isolationMode == IsolationMode.LAZY) {
+                    restoreLazyBackup();
+                } else {
+                    restoreTables();
+                }
+                TestMetrics.time("recover", isolationMode.name().toLowerCase(), start);
             } catch (Exception e) {
                 log.debug("Table restore fail.");
                 e.printStackTrace();
+
+                // 開始時の状態に戻っていないため、投入状況の記録を破棄する
+                if (conn != null) {
+                    try {
+                        FixtureRegistry.forget(FixtureRegistry.keyOf(conn));
+                    } catch (SQLException ignore) {
+                        // 記録を参照する際も必ずDBと照合するため、破棄できなくても問題無い
+                    }
+                }
             }
+            loadedFixtures.clear();
 
             // DB切断
             if (conn != null) {
@@ -178,24 +358,255 @@ public class RuleDataBase extends ExternalResource {
         }
     }
 
+    /**
+     * テスト対象コードと共有するDBコネクションを返します<br>
+     * transactionモードではロールバック対象となるよう、テスト対象コードからのDB操作はこのコネクションで行ってください。<br>
+     * lazyモードでは書き込み先のテーブルを検出するため、テスト対象コードからの書き込みは必ずこのコネクションで行ってください。
+     *
+     * @return DBコネクション dbUnit無効時はnull
+     */
+    public Connection getConnection() {
+        if (lazyBackup != null) {
+            return lazyBackup.getConnection();
+        }
+        return conn;
+    }
+
+    /**
+     * @return 実際に適用されている退避方式
+     */
+    public IsolationMode getIsolationMode() {
+        return isolationMode;
+    }
+
     /**
      * DBへの接続
      *
      * @return
      * @throws Exception
      */
-    private Connection getConnection() throws Exception {
-        Properties configuration = RuleResource.getConfiguration();
+    private Connection connect() throws Exception {
+        TestConfiguration configuration = RuleResource.getTestConfiguration();
 
-        Class.forName(configuration.getProperty("datasource.driver-class-name"));
+        // プールから借りる close()で返却される
+        if (configuration.isDatasourcePoolEnable()) {
+            pool = ConnectionPool.of(
+                    configuration.getDatasourceDriverClassName(),
+                    resolveUrl(configuration),
+                    configuration.getDatasourceUsername(),
+                    configuration.getDatasourcePassword(),
+                    configuration.getDatasourcePoolMaxSize(),
+                    configuration.getDatasourcePoolLeakDetectionThreshold());
+            return pool.borrow();
+        }
+
+        pool = null;
+
+        Class.forName(configuration.getDatasourceDriverClassName());
         Connection connection = DriverManager.getConnection(
-                configuration.getProperty("datasource.url"),
-                configuration.getProperty("datasource.username"),
-                configuration.getProperty("datasource.password"));
+                resolveUrl(configuration),
+                configuration.getDatasourceUsername(),
+                configuration.getDatasourcePassword());
 
         return connection;
     }
 
+    /**
+     * 接続URLを決定します<br>
+     * datasource.worker-urlが設定されている場合は、ワーカー毎のURLを返します。
+     * SQLiteの場合は、datasource.urlのファイルをワーカー毎のファイルへ(JVM内で初回のみ)複製します。
+     *
+     * @param configuration 設定
+     * @return 接続URL
+     * @throws IOException
+     */
+    private static String resolveUrl(TestConfiguration configuration) throws IOException {
+        String url = configuration.getDatasourceUrl();
+        String workerUrl = configuration.getDatasourceWorkerUrl();
+        if (workerUrl == null || workerUrl.trim().isEmpty()) {
+            return url;
+        }
+
+        String resolved = workerUrl.trim().replace("${worker}", RuleResource.getWorkerId());
+        if (url.startsWith(SQLITE_URL_PREFIX) && resolved.startsWith(SQLITE_URL_PREFIX)) {
+            synchronized (WORKER_DATABASES) {
+                if (WORKER_DATABASES.add(resolved)) {
+                    File source = new File(url.substring(SQLITE_URL_PREFIX.length()));
+                    File copy = new File(resolved.substring(SQLITE_URL_PREFIX.length()));
+                    if (copy.getParentFile() != null && !copy.getParentFile().exists()) {
+                        copy.getParentFile().mkdirs();
+                    }
+                    Files.copy(source.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    log.debug("Copy " + source.getPath() + " to " + copy.getPath() + " for worker.");
+                }
+            }
+        }
+
+        return resolved;
+    }
+
+    /**
+     * 設定とドライバの対応状況から、適用する退避方式を決定します<br>
+     * トランザクション非対応、またはDDLで暗黙コミットされるDBの場合はファイルへの退避にフォールバックします<br>
+     * スナップショットはファイルに保存されるSQLiteのみ対応し、その他のDBの場合はファイルへの退避にフォールバックします
+     *
+     * @return 退避方式
+     * @throws SQLException
+     */
+    private IsolationMode resolveIsolationMode() throws SQLException {
+        IsolationMode mode = IsolationMode.of(RuleResource.getTestConfiguration().getString("dbUnit.isolation"));
+        if (mode == IsolationMode.TRANSACTION) {
+            DatabaseMetaData metaData = conn.getMetaData();
+            if (!metaData.supportsTransactions() || metaData.dataDefinitionCausesTransactionCommit()) {
+                log.warn("Transaction isolation is not supported by " + metaData.getDatabaseProductName()
+                        + ". Fall back to table backup.");
+                return IsolationMode.BACKUP;
+            }
+        } else if (mode == IsolationMode.SNAPSHOT && !SQLiteSnapshot.isSupported(conn)) {
+            log.warn("Snapshot isolation is not supported by " + conn.getMetaData().getDatabaseProductName()
+                    + ". Fall back to table backup.");
+            return IsolationMode.BACKUP;
+        }
+
+        return mode;
+    }
+
+    /**
+     * テスト全体を囲むトランザクションを開始します
+     *
+     * @throws SQLException
+     */
+    private void beginTransaction() throws SQLException {
+        conn.setAutoCommit(false);
+        log.debug("Transaction begin.");
+    }
+
+    /**
+     * テスト全体を囲むトランザクションをロールバックし、テスト前の状態に戻します
+     *
+     * @throws SQLException
+     */
+    private void rollbackTransaction() throws SQLException {
+        if (conn != null && !conn.getAutoCommit()) {
+            conn.rollback();
+            conn.setAutoCommit(true);
+            log.debug("Transaction rollback success.");
+        }
+    }
+
+    /**
+     * DBファイル全体のスナップショットを一時ファイルに取得します
+     *
+     * @throws Exception
+     */
+    private void takeSnapshot() throws Exception {
+        snapshotFile = File.createTempFile("snapshot_" + RuleResource.getWorkerId() + "_", ".sqlite3");
+        new SQLiteSnapshot(conn).take(snapshotFile);
+        log.debug("Snapshot success.");
+    }
+
+    /**
+     * スナップショットからDBファイル全体を書き戻し、一時ファイルを削除します
+     *
+     * @throws Exception
+     */
+    private void restoreSnapshot() throws Exception {
+        if (conn != null && snapshotFile != null) {
+            try {
+                new SQLiteSnapshot(conn).restore(snapshotFile);
+                log.debug("Snapshot restore success.");
+            } finally {
+                snapshotFile.delete();
+                snapshotFile = null;
+            }
+        }
+    }
+
+    /**
+     * 書き込みを検出するコネクションを用意します テーブルの退避は初回の書き込み時に行います
+     *
+     * @throws Exception
+     */
+    private void beginLazyBackup() throws Exception {
+        String extension = createTableBackup().getExtension();
+        File dir = new File(RuleResource.getDataResourcePath(),
+                RuleResource.getEnvironmentName() + "_backup_" + RuleResource.getWorkerId());
+        lazyBackup = new LazyTableBackup(conn, new ParallelTableBackup.Factory() {
+            @Override
+            public StreamingTableBackup create(Connection connection) throws Exception {
+                return createTableBackup(connection);
+            }
+        }, dir, extension);
+        log.debug("Lazy backup begin.");
+    }
+
+    /**
+     * テスト中に書き込まれたテーブルのみを復元します<br>
+     * 未確定のトランザクションが残っている場合は、先にロールバックします。
+     *
+     * @throws Exception
+     */
+    private void restoreLazyBackup() throws Exception {
+        if (conn != null && lazyBackup != null) {
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+                lazyBackup.restore();
+                TestMetrics.count("recover.tables", "lazy", lazyBackup.getBackedUpTables().size());
+            } finally {
+                lazyBackup = null;
+            }
+        }
+    }
+
+    /**
+     * テストメソッド毎にセーブポイントまで巻き戻すRuleを返します<br>
+     * transactionモードでのみ有効です。@Ruleを指定して使用してください。
+     *
+     * <pre>
+     * &#64;Rule
+     * public TestRule sp = rd.savepointPerMethod();
+     * </pre>
+     *
+     * @return セーブポイント用Rule
+     */
+    public TestRule savepointPerMethod() {
+        return new ExternalResource() {
+            private Savepoint savepoint;
+
+            @Override
+            protected void before() throws Throwable {
+                savepoint = null;
+                if (conn != null && isolationMode == IsolationMode.TRANSACTION) {
+                    if (conn.getMetaData().supportsSavepoints()) {
+                        savepoint = conn.setSavepoint();
+                    } else {
+                        log.warn("Savepoint is not supported. Test methods are not isolated.");
+                    }
+                }
+            }
+
+            @Override
+            protected void after() {
+                if (savepoint != null) {
+                    try {
+                        // 巻き戻した後も残るため、解放してテストメソッド毎に積み重ならないようにする
+                        conn.rollback(savepoint);
+                        conn.releaseSavepoint(savepoint);
+                        log.debug("Rollback to savepoint success.");
+                    } catch (SQLException e) {
+                        log.debug("Rollback to savepoint fail.");
+                        e.printStackTrace();
+                    } finally {
+                        savepoint = null;
+                    }
+                }
+            }
+        };
+    }
+
     /**
      * テスト対象となるテーブル内容をテスト前にファイルに保存します
      *
@@ -204,19 +615,29 @@ public class RuleDataBase extends ExternalResource {
     private void backUpTables() throws Exception {
         if (conn != null && targetTables != null && targetTables.length != 0) {
             try {
-                QueryDataSet partialDataSet = new QueryDataSet(new DatabaseConnection(conn));
-                for (String tableName : targetTables) {
-                    partialDataSet.addTable(tableName);
-                }
-                backupFile = new File(RuleResource.getDataResourcePath(),
-                        RuleResource.getEnvironmentName() + "_backup.xml");
+                StreamingTableBackup tableBackup = createTableBackup();
+                String backupName = RuleResource.getEnvironmentName() + "_backup_" + RuleResource.getWorkerId();
+                parallelBackup = createParallelBackup(tableBackup.getExtension());
+                if (parallelBackup != null) {
+                    // テーブル毎のファイルへ並列に書き出す
+                    backupFile = new File(RuleResource.getDataResourcePath(), backupName);
+                    parallelBackup.backup(targetTables, backupFile);
+                } else {
+                    backupFile = new File(RuleResource.getDataResourcePath(), backupName + tableBackup.getExtension());
 
-                // ファイル格納フォルダがなければ作成する
-                if (!backupFile.getParentFile().exists()) {
-                    backupFile.getParentFile().mkdirs();
+                    // 1行ずつ読みながらファイルへ書き出す
+                    tableBackup.backup(targetTables, backupFile);
                 }
 
-                FlatXmlDataSet.write(partialDataSet, new FileOutputStream(backupFile));
+                // 差分リストア用に各テーブルの指紋を取得
+                fingerprints = null;
+                if (isIncrementalRestore()) {
+                    fingerprints = new ArrayList<TableFingerprint>(targetTables.length);
+                    for (String tableName : targetTables) {
+                        fingerprints.add(TableFingerprint.capture(conn, tableName,
+                                getIntProperty("dbUnit.backup.window", StreamingTableBackup.DEFAULT_WINDOW)));
+                    }
+                }
 
                 log.debug("table backup success.");
             } catch (Exception e) {
@@ -232,10 +653,13 @@ public class RuleDataBase extends ExternalResource {
      */
     private void restoreTables() throws Exception {
         if (conn != null && targetTables != null && targetTables.length != 0 && backupFile != null) {
+            if (fingerprints != null) {
+                restoreTablesIncremental();
+                return;
+            }
+
             try {
-                FlatXmlProducer xml = new FlatXmlProducer(new InputSource(new FileInputStream(backupFile)));
-                IDataSet dataSet = new FlatXmlDataSet(xml);
-                DatabaseOperation.CLEAN_INSERT.execute((new DatabaseConnection(conn)), dataSet);
+                restoreTablesFull(targetTables);
 
                 log.debug("Table restore success.");
             } catch (Exception e) {
@@ -244,6 +668,228 @@ public class RuleDataBase extends ExternalResource {
         }
     }
 
+    /**
+     * バックアップファイルから指定したテーブルの全件を戻します
+     *
+     * @param tableNames テーブル名の配列
+     * @throws Exception
+     */
+    private void restoreTablesFull(String[] tableNames) throws Exception {
+        if (parallelBackup != null) {
+            parallelBackup.restore(tableNames, backupFile);
+        } else {
+            createTableBackup().restore(tableNames, backupFile);
+        }
+    }
+
+    /**
+     * 設定された行ウィンドウでテーブルの退避・復元を行うオブジェクトを生成します
+     *
+     * @return テーブル退避・復元オブジェクト
+     * @throws Exception
+     */
+    private StreamingTableBackup createTableBackup() throws Exception {
+        return createTableBackup(conn);
+    }
+
+    /**
+     * 設定された行ウィンドウでテーブルの退避・復元を行うオブジェクトを生成します
+     *
+     * @param connection DBコネクション
+     * @return テーブル退避・復元オブジェクト
+     * @throws Exception
+     */
+    private static StreamingTableBackup createTableBackup(Connection connection) throws Exception {
+        TestConfiguration configuration = RuleResource.getTestConfiguration();
+        return new StreamingTableBackup(ConnectionPool.getDatabaseConnection(connection),
+                configuration.getInt("dbUnit.backup.window", StreamingTableBackup.DEFAULT_WINDOW),
+                StreamingTableBackup.Format.of(configuration.getString("dbUnit.backup.format")),
+                configuration.getBoolean("dbUnit.backup.compress", false),
+                createInserter(connection));
+    }
+
+    /**
+     * 設定された並列数でテーブルの退避・復元を行うオブジェクトを生成します<br>
+     * 並列数が1以下の場合、及びコネクションプールが無効な場合は並列化しません。
+     *
+     * @param extension 退避ファイルの拡張子
+     * @return 並列退避・復元オブジェクト 並列化しない場合はnull
+     * @throws SQLException
+     */
+    private ParallelTableBackup createParallelBackup(String extension) throws SQLException {
+        int parallelism = getIntProperty("dbUnit.parallelism", 1);
+        if (parallelism <= 1 || targetTables.length <= 1) {
+            return null;
+        }
+        if (pool == null) {
+            log.warn("Parallel backup requires datasource.pool.enable=true. Fall back to sequential backup.");
+            return null;
+        }
+
+        // SQLiteは書き込みがDB全体でロックされるため、復元は並列化しない
+        String url = conn.getMetaData().getURL();
+        boolean parallelWrite = url == null || !url.startsWith(SQLITE_URL_PREFIX);
+        return new ParallelTableBackup(pool, parallelism, parallelWrite, new ParallelTableBackup.Factory() {
+            @Override
+            public StreamingTableBackup create(Connection connection) throws Exception {
+                return createTableBackup(connection);
+            }
+        }, extension);
+    }
+
+    /**
+     * 設定されたバッチサイズでINSERTを行うオブジェクトを生成します
+     *
+     * @return バッチINSERTオブジェクト
+     */
+    private BatchInserter createInserter() {
+        return createInserter(conn);
+    }
+
+    /**
+     * 設定されたバッチサイズでINSERTを行うオブジェクトを生成します
+     *
+     * @param connection DBコネクション
+     * @return バッチINSERTオブジェクト
+     */
+    private static BatchInserter createInserter(Connection connection) {
+        TestConfiguration configuration = RuleResource.getTestConfiguration();
+        int batchSize = configuration.getInt("dbUnit.insert.batchSize", BatchInserter.DEFAULT_BATCH_SIZE);
+        boolean multiRowValues = configuration.getBoolean("dbUnit.insert.multiRowValues", false);
+
+        // DB毎の一括投入
+        BulkInserter.Dialect dialect = BulkInserter.Dialect.of(configuration.getDatasourceDriverClassName());
+        if (configuration.getBoolean("dbUnit.insert.bulk", true) && dialect != BulkInserter.Dialect.OTHER) {
+            return new BulkInserter(connection, dialect, batchSize, multiRowValues);
+        }
+
+        return new BatchInserter(connection, batchSize, multiRowValues);
+    }
+
+    /**
+     * 数値の設定値を取得します
+     *
+     * @param key 設定キー
+     * @param defaultValue 未設定時の値
+     * @return 設定値
+     */
+    private static int getIntProperty(String key, int defaultValue) {
+        return RuleResource.getTestConfiguration().getInt(key, defaultValue);
+    }
+
+    /**
+     * @return 差分リストアを行うか
+     */
+    private boolean isIncrementalRestore() {
+        return "incremental".equalsIgnoreCase(RuleResource.getTestConfiguration().getString("dbUnit.restore"));
+    }
+
+    /**
+     * バックアップ時の指紋と現在のテーブルを比較し、変更された行のみをテスト前の状態に戻します<br>
+     * 主キーの無いテーブルは、変更があった場合のみテーブル全体をバックアップファイルから戻します。
+     *
+     * @throws Exception
+     */
+    private void restoreTablesIncremental() throws Exception {
+        Map<String, TableFingerprint.Diff> diffs = new LinkedHashMap<String, TableFingerprint.Diff>();
+        List<String> fullRestoreTables = new ArrayList<String>();
+        for (TableFingerprint fingerprint : fingerprints) {
+            TableFingerprint.Diff diff = fingerprint.diff(conn);
+            if (diff.isFullRestore()) {
+                fullRestoreTables.add(fingerprint.getTableName());
+            } else if (!diff.isEmpty()) {
+                diffs.put(fingerprint.getTableName(), diff);
+            }
+        }
+
+        // 変更された行の削除(子テーブルから)
+        for (int i = fingerprints.size() - 1; i >= 0; i--) {
+            TableFingerprint fingerprint = fingerprints.get(i);
+            if (diffs.containsKey(fingerprint.getTableName())) {
+                fingerprint.deleteRows(conn, diffs.get(fingerprint.getTableName()));
+            }
+        }
+
+        // 主キーの無いテーブルは全件入れ替え
+        if (!fullRestoreTables.isEmpty()) {
+            restoreTablesFull(fullRestoreTables.toArray(new String[0]));
+        }
+
+        // 削除・変更された行をバックアップファイルから挿入
+        if (!diffs.isEmpty()) {
+            createInserter().insert(readBackupRows(diffs), "restore");
+        }
+
+        log.debug("Table restore success. (incremental: " + diffs.keySet() + ", full: " + fullRestoreTables + ")");
+    }
+
+    /**
+     * バックアップファイルを逐次読み込みし、差分として挿入が必要な行のみを取り出します
+     *
+     * @param diffs テーブル名-差分
+     * @return 挿入が必要な行のデータセット
+     * @throws Exception
+     */
+    private IDataSet readBackupRows(final Map<String, TableFingerprint.Diff> diffs) throws Exception {
+        final Map<String, TableFingerprint> fingerprintsByName = new HashMap<String, TableFingerprint>();
+        for (TableFingerprint fingerprint : fingerprints) {
+            fingerprintsByName.put(fingerprint.getTableName(), fingerprint);
+        }
+
+        final List<ITable> tables = new ArrayList<ITable>();
+        IDataSetConsumer consumer = new DefaultConsumer() {
+            private DefaultTable table;
+            private TableFingerprint fingerprint;
+            private Set<List<String>> insertKeys;
+            private int[] keyIndexes;
+
+            @Override
+            public void startTable(ITableMetaData metaData) throws DataSetException {
+                TableFingerprint.Diff diff = diffs.get(metaData.getTableName());
+                table = null;
+                if (diff != null && !diff.getInsertKeys().isEmpty()) {
+                    table = new DefaultTable(metaData);
+                    fingerprint = fingerprintsByName.get(metaData.getTableName());
+                    insertKeys = diff.getInsertKeys();
+                    String[] keys = fingerprint.getKeyColumns();
+                    keyIndexes = new int[keys.length];
+                    for (int i = 0; i < keys.length; i++) {
+                        keyIndexes[i] = metaData.getColumnIndex(keys[i]);
+                    }
+                }
+            }
+
+            @Override
+            public void row(Object[] values) throws DataSetException {
+                if (table != null) {
+                    // DBから読んだキーと同じく、カラムのデータ型に変換した表現で照合する
+                    Object[] keyValues = new Object[keyIndexes.length];
+                    for (int i = 0; i < keyIndexes.length; i++) {
+                        keyValues[i] = values[keyIndexes[i]];
+                    }
+                    if (insertKeys.contains(fingerprint.keyOf(keyValues))) {
+                        table.addRow(values);
+                    }
+                }
+            }
+
+            @Override
+            public void endTable() throws DataSetException {
+                if (table != null) {
+                    tables.add(table);
+                    table = null;
+                }
+            }
+        };
+        if (parallelBackup != null) {
+            parallelBackup.produce(diffs.keySet().toArray(new String[0]), backupFile, consumer);
+        } else {
+            createTableBackup().produce(backupFile, consumer);
+        }
+
+        return new DefaultDataSet(tables.toArray(new ITable[0]));
+    }
+
     /**
      * リソースファイルとして対応する拡張子の配列<br>
      * 最後の""はCSVファイル用
@@ -287,7 +933,22 @@ public class RuleDataBase extends ExternalResource {
 
         File dataFile = new File(RuleResource.getDataResourcePath(), resourceName + suffix);
 
-        IDataSet dataSet = null;
+        // 除外カラムフィルター
+        if (excludedColumns == null) {
+            excludedColumns = this.excludedColumns;
+        }
+
+        // 解析済みであればキャッシュから取得
+        IDataSet dataSet = DataSetCache.get(dataFile, excludedColumns);
+        if (dataSet != null) {
+            log.debug("get data from cache " + dataFile.getPath() + " (hit: " + DataSetCache.getHitCount()
+                    + ", miss: " + DataSetCache.getMissCount() + ")");
+            TestMetrics.count("load.cacheHit", resourceName, 1);
+            return dataSet;
+        }
+
+        long start = TestMetrics.start();
+
         try {
             // 拡張子ごとに処理わけ
             switch (suffix) {
@@ -301,11 +962,9 @@ public class RuleDataBase extends ExternalResource {
 
             }
 
-            // 除外カラムフィルター
-            if (excludedColumns == null) {
-                excludedColumns = this.excludedColumns;
-            }
             dataSet = filterDataSet(dataSet, excludedColumns);
+            DataSetCache.put(dataFile, excludedColumns, dataSet);
+            TestMetrics.time("load", resourceName, start);
 
             log.debug("get data from " + dataFile.getPath());
         } catch (FileNotFoundException | DataSetException e) {
@@ -321,6 +980,7 @@ public class RuleDataBase extends ExternalResource {
      * データリソースの内容でDBにデータ投入を行います。<br>
      * その際、データリソースに記載されたテーブルの中身は一旦削除されます。<br>
      * <b>データリソースに記載のテーブルは、テスト開始前のバックアップ対象テーブルに必ず含めてください。</b>
+     * (lazyモードでは、投入前に自動で退避されます)
      *
      * @param resourceName データリソース名
      * @throws Exception
@@ -341,45 +1001,208 @@ public class RuleDataBase extends ExternalResource {
      * @throws Exception
      */
     public void cleanInsertData(String resourceName, Map<String, String[]> excludedColumns) throws Exception {
+        cleanInsertData(resourceName, excludedColumns, false);
+    }
+
+    /**
+     * DBへのデータ投入<br>
+     *
+     * dbUnit.fixture.dedup=trueの場合、テーブルが既にデータリソースと同じ内容であれば投入を省略します。
+     *
+     * @param resourceName データリソース名
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @param classStart テストクラスの開始時(リストアで戻る状態)の投入か
+     * @throws Exception
+     */
+    private void cleanInsertData(String resourceName, Map<String, String[]> excludedColumns, boolean classStart)
+            throws Exception {
         if (conn != null) {
+            if (isMappedCsv(resourceName)) {
+                cleanInsertMappedCsv(resourceName, excludedColumns);
+                return;
+            }
+
             IDataSet dataSet = createDataSetFromFile(resourceName, excludedColumns);
 
             // 実際にデータ投入するトコロ
             if (dataSet != null) {
+                String[] tableNames = dataSet.getTableNames();
+                long[] fixtureHashes = null;
+                if (isFixtureDedup()) {
+                    fixtureHashes = new long[tableNames.length];
+                    for (int i = 0; i < tableNames.length; i++) {
+                        fixtureHashes[i] = FixtureRegistry.contentHash(dataSet.getTable(tableNames[i]));
+                    }
+                    if (isFixtureLoaded(dataSet, fixtureHashes, resourceName, classStart)) {
+                        log.debug("Skip insert data from " + resourceName + " (already loaded)");
+                        FixtureRegistry.skipped();
+                        TestMetrics.count("insert.skipped", resourceName, 1);
+                        return;
+                    }
+                }
+
                 log.debug("Insert data from " + resourceName);
                 try {
-                    DatabaseOperation.CLEAN_INSERT.execute((new DatabaseConnection(conn)), dataSet);
+                    if (lazyBackup != null) {
+                        lazyBackup.beforeWrite(Arrays.asList(tableNames));
+                    }
+                    createInserter().cleanInsert(dataSet, "insert." + resourceName);
                 } catch (DatabaseUnitException | SQLException e) {
                     // ココで失敗した場合、DBを元の状態に戻す
                     after();
                     throw e;
                 }
 
+                for (int i = 0; i < tableNames.length; i++) {
+                    if (fixtureHashes == null) {
+                        loadedFixtures.remove(tableNames[i]);
+                    } else {
+                        loadedFixtures.put(tableNames[i], fixtureHashes[i]);
+                    }
+                }
+
                 log.debug("datafile insert success.");
             }
         }
     }
 
     /**
-     * 現状のDBのデータセットを生成します
+     * @return テーブルが既にデータリソースと同じ内容であれば投入を省略するか
+     */
+    private boolean isFixtureDedup() {
+        return RuleResource.getTestConfiguration().getBoolean("dbUnit.fixture.dedup", false);
+    }
+
+    /**
+     * テーブルが既にデータリソースと同じ内容かを判定します<br>
+     * テストクラスの開始時は、以前のテストクラスの開始時に一致しなかったデータリソースであれば照合せずに投入します。
+     * テストクラスの途中では、このテストクラスで同じデータリソースを投入したテーブルのみ照合します。<br>
+     * データリソースに記載の無いカラムは投入で既定値になるため、テーブルのカラムがデータリソースのカラムと同じ場合のみ照合し、行の順序は問いません。
+     *
+     * @param dataSet データリソース
+     * @param fixtureHashes テーブル毎の内容のハッシュ
+     * @param resourceName データリソース名
+     * @param classStart テストクラスの開始時の投入か
+     * @return 全てのテーブルが同じ内容の場合はtrue
+     * @throws Exception
+     */
+    private boolean isFixtureLoaded(IDataSet dataSet, long[] fixtureHashes, String resourceName,
+            boolean classStart) throws Exception {
+        String dbKey = FixtureRegistry.keyOf(conn);
+        String[] tableNames = dataSet.getTableNames();
+        for (int i = 0; i < tableNames.length; i++) {
+            if (classStart) {
+                if (Boolean.FALSE.equals(FixtureRegistry.matches(dbKey, tableNames[i], fixtureHashes[i]))) {
+                    return false;
+                }
+            } else {
+                Long loaded = loadedFixtures.get(tableNames[i]);
+                if (loaded == null || loaded.longValue() != fixtureHashes[i]) {
+                    return false;
+                }
+            }
+        }
+
+        long start = TestMetrics.start();
+        try {
+            HashTableComparator comparator = new HashTableComparator(conn,
+                    getIntProperty("dbUnit.backup.window", StreamingTableBackup.DEFAULT_WINDOW), 0);
+            for (int i = 0; i < tableNames.length; i++) {
+                ITable fixture = dataSet.getTable(tableNames[i]);
+                boolean matches = hasSameColumns(fixture, Collections.<String, String[]> emptyMap())
+                        && comparator.compare(fixture).isEmpty();
+                if (classStart) {
+                    FixtureRegistry.record(dbKey, tableNames[i], fixtureHashes[i], matches);
+                }
+                if (!matches) {
+                    return false;
+                }
+            }
+        } finally {
+            TestMetrics.time("insert.verify", resourceName, start);
+        }
+
+        for (int i = 0; i < tableNames.length; i++) {
+            loadedFixtures.put(tableNames[i], fixtureHashes[i]);
+        }
+        return true;
+    }
+
+    /**
+     * @param resourceName データリソース名
+     * @return CSVのデータリソースを、メモリマップしたファイルから直接投入するか
+     */
+    private boolean isMappedCsv(String resourceName) {
+        return "".equals(getResourceSuffix(resourceName))
+                && RuleResource.getTestConfiguration().getBoolean("dbUnit.csv.mapped", false);
+    }
+
+    /**
+     * CSVのデータリソースを、IDataSetを経由せずにメモリマップしたファイルから直接投入します
+     *
+     * @param resourceName データリソース名
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @throws Exception
+     */
+    private void cleanInsertMappedCsv(String resourceName, Map<String, String[]> excludedColumns) throws Exception {
+        File dir = new File(RuleResource.getDataResourcePath(), resourceName);
+        log.debug("Insert data from " + resourceName + " (mapped csv)");
+        try {
+            if (lazyBackup != null) {
+                lazyBackup.beforeWrite(Arrays.asList(MappedCsvLoader.getTableNames(dir)));
+            }
+            loadedFixtures.keySet().removeAll(Arrays.asList(MappedCsvLoader.getTableNames(dir)));
+            new MappedCsvLoader(conn, getIntProperty("dbUnit.insert.batchSize", BatchInserter.DEFAULT_BATCH_SIZE))
+                    .cleanInsert(dir, excludedColumns == null ? this.excludedColumns : excludedColumns,
+                            "insert." + resourceName);
+        } catch (DatabaseUnitException | SQLException | IOException e) {
+            // ココで失敗した場合、DBを元の状態に戻す
+            after();
+            throw e;
+        }
+
+        log.debug("datafile insert success.");
+    }
+
+    /**
+     * 現状のDBから、指定したテーブルのみを取得します<br>
+     * スキーマ全体のメタデータは読まず、テーブル毎に1回ずつSELECTを行います。
+     * 既定では主キー順に並べて取得します(dbUnit.assert.orderByPk=falseで無効)。
      *
+     * @param tableNames テーブル名の配列
      * @param excludedColumns 除外するテーブル-カラム情報
-     * @return
+     * @return テーブル名-テーブル
      * @throws SQLException
      * @throws DatabaseUnitException
      */
-    private IDataSet createCurrentDataSet(Map<String, String[]> excludedColumns)
+    private Map<String, ITable> createCurrentTables(String[] tableNames, Map<String, String[]> excludedColumns)
             throws SQLException, DatabaseUnitException {
-        IDatabaseConnection connection = new DatabaseConnection(conn);
-        IDataSet dataSet = connection.createDataSet();
+        IDatabaseConnection connection = ConnectionPool.getDatabaseConnection(conn);
+        boolean orderByPk = RuleResource.getTestConfiguration().getBoolean("dbUnit.assert.orderByPk", true);
 
         // 除外カラムフィルター
         if (excludedColumns == null) {
             excludedColumns = this.excludedColumns;
         }
-        dataSet = filterDataSet(dataSet, excludedColumns);
 
-        return dataSet;
+        Map<String, ITable> tables = new HashMap<String, ITable>();
+        for (String tableName : tableNames) {
+            StringBuilder sql = new StringBuilder("SELECT * FROM ").append(tableName);
+            if (orderByPk) {
+                String[] keys = TableFingerprint.getPrimaryKeys(conn, tableName);
+                for (int i = 0; i < keys.length; i++) {
+                    sql.append(i == 0 ? " ORDER BY " : ", ").append(keys[i]);
+                }
+            }
+
+            ITable table = connection.createQueryTable(tableName, sql.toString());
+            if (excludedColumns != null && excludedColumns.containsKey(tableName)) {
+                table = DefaultColumnFilter.excludedColumnsTable(table, excludedColumns.get(tableName));
+            }
+            tables.put(tableName, table);
+        }
+
+        return tables;
     }
 
     /**
@@ -424,6 +1247,22 @@ public class RuleDataBase extends ExternalResource {
      */
     public void assertDatas(String resourceName, String[] targetTables, Map<String, String[]> excludedColumns)
             throws Exception {
+        assertDatas(resourceName, targetTables, excludedColumns,
+                AssertMode.of(RuleResource.getTestConfiguration().getString("dbUnit.assert.mode")));
+    }
+
+    /**
+     * データリソースの内容とDBの値を、指定した照合方式で比較します<br>
+     * HASHの場合は順序に依存せず、不一致はテーブル毎に不足・余剰・変更の件数と一部の行で報告されます。
+     *
+     * @param resourceName データリソース名
+     * @param targetTables 検証対象テーブル名配列。nullの場合はデータファイルにある全てのテーブルが対象
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @param mode 照合方式
+     * @throws Exception
+     */
+    public void assertDatas(String resourceName, String[] targetTables, Map<String, String[]> excludedColumns,
+            AssertMode mode) throws Exception {
         if (conn != null) {
             IDataSet expectedDataSet = createDataSetFromFile(resourceName, excludedColumns);
 
@@ -431,12 +1270,158 @@ public class RuleDataBase extends ExternalResource {
                 targetTables = expectedDataSet.getTableNames();
             }
 
+            if (RuleResource.getTestConfiguration().getBoolean("dbUnit.assert.checksum", false)) {
+                targetTables = assertTablesByChecksum(expectedDataSet, targetTables, excludedColumns, mode);
+                if (targetTables.length == 0) {
+                    return;
+                }
+            }
+
+            if (mode == AssertMode.HASH) {
+                assertTablesByHash(expectedDataSet, targetTables, excludedColumns);
+                return;
+            }
+
+            long start = TestMetrics.start();
+            Map<String, ITable> actualTables = createCurrentTables(targetTables, excludedColumns);
+            TestMetrics.time("assert.fetch", resourceName, start);
             for (String tableName : targetTables) {
                 ITable expectedTable = expectedDataSet.getTable(tableName);
-                ITable actualTable = createCurrentDataSet(excludedColumns).getTable(tableName);
+                ITable actualTable = actualTables.get(tableName);
 
+                start = TestMetrics.start();
                 Assertion.assertEquals(expectedTable, actualTable);
+                TestMetrics.time("assert", tableName, start);
+                TestMetrics.count("assert.rows", tableName, actualTable.getRowCount());
+            }
+        }
+    }
+
+    /**
+     * 行数とチェックサムをDB側で集計し、期待値と一致するかを確認します<br>
+     * DBのカラム(除外カラムを除く)が期待値のカラムと同じであることも確認します。<br>
+     * 一致しなかった・判定できなかったテーブルは、呼び出し元で行単位の比較を行います。
+     *
+     * @param expectedDataSet 期待値のデータセット(除外カラム適用済み)
+     * @param targetTables 検証対象テーブル名配列
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @param mode 照合方式
+     * @return 行単位の比較が必要なテーブル名配列
+     * @throws Exception
+     */
+    private String[] assertTablesByChecksum(IDataSet expectedDataSet, String[] targetTables,
+            Map<String, String[]> excludedColumns, AssertMode mode) throws Exception {
+        TableChecksum checksum = new TableChecksum(conn,
+                BulkInserter.Dialect.of(RuleResource.getTestConfiguration().getDatasourceDriverClassName()));
+
+        List<String> remaining = new ArrayList<String>();
+        for (String tableName : targetTables) {
+            long start = TestMetrics.start();
+            ITable expectedTable = expectedDataSet.getTable(tableName);
+            boolean matched = hasSameColumns(expectedTable, excludedColumns)
+                    && Boolean.TRUE.equals(checksum.matches(expectedTable));
+            TestMetrics.time("assert.checksum", tableName, start);
+
+            if (matched) {
+                TestMetrics.count("assert.rows", tableName, expectedTable.getRowCount());
+            } else {
+                TestMetrics.count("assert.checksum.miss", tableName, 1);
+                remaining.add(tableName);
+            }
+        }
+
+        log.debug("checksum matched " + (targetTables.length - remaining.size()) + "/" + targetTables.length
+                + " tables.");
+        return remaining.toArray(new String[remaining.size()]);
+    }
+
+    /**
+     * DBのテーブルのカラム(除外カラムを除く)が、期待値のカラムと同じかを確認します<br>
+     * 行は取得しません。
+     *
+     * @param expectedTable 期待値のテーブル
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @return 同じ場合はtrue
+     * @throws Exception
+     */
+    private boolean hasSameColumns(ITable expectedTable, Map<String, String[]> excludedColumns) throws Exception {
+        return columnDifference(expectedTable, excludedColumns) == null;
+    }
+
+    /**
+     * DBのテーブルのカラム(除外カラムを除く)と、期待値のカラムの違いを返します<br>
+     * 行は取得しません。
+     *
+     * @param expectedTable 期待値のテーブル
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @return 違いの報告 同じ場合はnull
+     * @throws Exception
+     */
+    private String columnDifference(ITable expectedTable, Map<String, String[]> excludedColumns) throws Exception {
+        if (excludedColumns == null) {
+            excludedColumns = this.excludedColumns;
+        }
+        String tableName = expectedTable.getTableMetaData().getTableName();
+
+        ITable table = ConnectionPool.getDatabaseConnection(conn).createQueryTable(tableName,
+                "SELECT * FROM " + tableName + " WHERE 1 = 0");
+        if (excludedColumns != null && excludedColumns.containsKey(tableName)) {
+            table = DefaultColumnFilter.excludedColumnsTable(table, excludedColumns.get(tableName));
+        }
+
+        Set<String> actual = new HashSet<String>();
+        for (Column column : table.getTableMetaData().getColumns()) {
+            actual.add(column.getColumnName().toUpperCase());
+        }
+        Set<String> expected = new HashSet<String>();
+        for (Column column : expectedTable.getTableMetaData().getColumns()) {
+            expected.add(column.getColumnName().toUpperCase());
+        }
+        if (actual.equals(expected)) {
+            return null;
+        }
+        return tableName + " : expected columns " + new TreeSet<String>(expected) + ", actual columns "
+                + new TreeSet<String>(actual);
+    }
+
+    /**
+     * 主キー・行ハッシュにより、順序に依存せずに比較します<br>
+     * DBのカラム(除外カラムを除く)が期待値のカラムと異なるテーブルは、行を比較せずに不一致とします。<br>
+     * 全てのテーブルを比較した後、不一致があったテーブルをまとめて報告します。
+     *
+     * @param expectedDataSet 期待値のデータセット(除外カラム適用済み)
+     * @param targetTables 検証対象テーブル名配列
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @throws Exception
+     */
+    private void assertTablesByHash(IDataSet expectedDataSet, String[] targetTables,
+            Map<String, String[]> excludedColumns) throws Exception {
+        HashTableComparator comparator = new HashTableComparator(conn,
+                getIntProperty("dbUnit.backup.window", StreamingTableBackup.DEFAULT_WINDOW),
+                HashTableComparator.DEFAULT_SAMPLE_SIZE);
+
+        StringBuilder report = new StringBuilder();
+        for (String tableName : targetTables) {
+            // ORDEREDと同じく、カラムの過不足は行を比較せずに不一致とする
+            ITable expectedTable = expectedDataSet.getTable(tableName);
+            String columnDifference = columnDifference(expectedTable, excludedColumns);
+            if (columnDifference != null) {
+                report.append(report.length() == 0 ? "" : "\n").append(columnDifference);
+                continue;
             }
+
+            long start = TestMetrics.start();
+            HashTableComparator.Result result = comparator.compare(expectedTable);
+            TestMetrics.time("assert", tableName, start);
+            TestMetrics.count("assert.rows", tableName, result.getActualRows());
+
+            if (!result.isEmpty()) {
+                report.append(report.length() == 0 ? "" : "\n").append(result);
+            }
+        }
+
+        if (report.length() != 0) {
+            fail(report.toString());
         }
     }
 
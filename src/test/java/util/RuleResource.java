@@ -3,10 +3,11 @@
  */
 package util;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.apache.commons.lang3.BooleanUtils;
 import org.junit.rules.ExternalResource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,8 +21,19 @@ import org.slf4j.LoggerFactory;
  * environment.name=local
  * dbUnit.enable=true
  * capture.enable=true
+ * # テストクラス毎の処理時間・件数をエビデンス保存ディレクトリに metrics.json で出力するか(既定false 計測時のみ有効にする)
+ * metrics.enable=false
+ * # キャプチャの保存方法 flat:[テスト名]/[テストメソッド名]_[名前].png に上書き sharded:内容のハッシュで保存し実行毎の索引を残す
+ * evidence.store=sharded
+ * # shardedの場合の保存期間(日数)・保存容量(MB) 超えた分は古い実行から削除する
+ * evidence.retention.days=30
+ * evidence.retention.max-size=2048
  * </pre>
  *
+ * 設定は util.TestConfiguration がJVM内で1度だけ読み込み、全テストクラスで共有します(環境毎の設定・システムプロパティでの上書きはそちらを参照)。<br>
+ * パスはテストクラス毎に保持し、実行中のスレッドに紐付けて参照されるため、
+ * テストクラスを並列実行(surefireのparallel=classes等)しても互いに干渉しません。
+ *
  * @author r.kinoshita
  *
  */
@@ -34,26 +46,47 @@ public class RuleResource extends ExternalResource {
     /** エビデンス保存場所の基本パス **/
     protected static final String EVIDENCE_PATH = "./evidence/";
 
+    /** 実行中のテストクラスのリソース(スレッド毎) **/
+    private static final InheritableThreadLocal<RuleResource> CURRENT = new InheritableThreadLocal<RuleResource>();
+
+    /** テストクラスの開始前に参照された場合の既定値 **/
+    private static final RuleResource DEFAULT = new RuleResource();
+
+    /** ワーカー番号の採番 **/
+    private static final AtomicInteger WORKER_SEQUENCE = new AtomicInteger();
+
+    /** スレッド毎のワーカー番号 **/
+    private static final ThreadLocal<Integer> WORKER_NUMBER = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return WORKER_SEQUENCE.incrementAndGet();
+        }
+    };
+
     /** 各テストのデータリソースディレクトリのパス **/
-    private static String dataResourcePath = "";
+    private String dataResourcePath = "";
 
     /** 各テストのエビデンス保存ディレクトリパス **/
-    private static String capturePath = "";
+    private String capturePath = "";
 
-    /** 設定ファイル内容格納オブジェクト **/
-    private static Properties configuration = new Properties();
+    /** 設定 **/
+    private TestConfiguration configuration = TestConfiguration.EMPTY;
 
-    /** テスト対象環境名 **/
-    private static String environmentName = "local";
+    /** テストクラス毎に置き換える設定 **/
+    private final Properties overrides;
 
-    /** dbUnit有効無効 **/
-    private static boolean dbUnitTest = false;
+    /** テスト名 **/
+    private String testName;
 
-    /** キャプチャ有効無効 **/
-    private static boolean capture = false;
+    /** 処理時間・件数の計測(無効時はnull) **/
+    private TestMetrics metrics;
 
-    @SuppressWarnings("unused")
-    private RuleResource() {}
+    /** エビデンスのストア(evidence.store=flatの場合はnull) **/
+    private EvidenceStore evidenceStore;
+
+    private RuleResource() {
+        this.overrides = null;
+    }
 
     /**
      * コンストラクタ
@@ -61,7 +94,31 @@ public class RuleResource extends ExternalResource {
      * @param testName テスト名
      */
     public RuleResource(String testName) {
-        dataResourcePath = BASE_PATH + testName + "/";
+        this(testName, null);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param testName テスト名
+     * @param overrides このテストクラスでのみ置き換える設定 nullの場合は置き換えない
+     */
+    public RuleResource(String testName, Properties overrides) {
+        this(testName, overrides, BASE_PATH + testName + "/");
+    }
+
+    /**
+     * コンストラクタ<br>
+     * ベンチマーク等で生成したデータリソースを、ソースツリーの外に置く場合に使用します。
+     *
+     * @param testName テスト名
+     * @param overrides このテストクラスでのみ置き換える設定 nullの場合は置き換えない
+     * @param dataResourcePath データリソースディレクトリのパス(バックアップファイルもここに作られます)
+     */
+    public RuleResource(String testName, Properties overrides, String dataResourcePath) {
+        this.testName = testName;
+        this.overrides = overrides;
+        this.dataResourcePath = dataResourcePath.endsWith("/") ? dataResourcePath : dataResourcePath + "/";
         capturePath = EVIDENCE_PATH + testName + "/";
     }
 
@@ -69,64 +126,142 @@ public class RuleResource extends ExternalResource {
      * テストの開始前の処理
      *
      * <ul>
-     * <li>プロパティファイルの読み込みとオブジェクトに保持
-     * <li>テスト対象環境名など、基礎情報の取得
+     * <li>JVM全体で共有する設定(初回のみ読み込み)の参照
+     * <li>実行中のスレッドにこのテストクラスのリソースを紐付け
      * </ul>
      *
      */
     @Override
     protected void before() {
-        try {
-            configuration.load(RuleResource.class.getResourceAsStream("../application.properties"));
-            environmentName = configuration.getProperty("environment.name");
-            dbUnitTest = BooleanUtils.toBoolean(configuration.getProperty("dbUnit.enable"));
-            capture = BooleanUtils.toBoolean(configuration.getProperty("capture.enable"));
-
-            log.debug("application.properties load complete.");
-        } catch (IOException e) {
-            e.printStackTrace();
+        configuration = overrides == null ? TestConfiguration.get() : TestConfiguration.get().with(overrides);
+        metrics = configuration.isMetricsEnable() ? new TestMetrics() : null;
+        if (configuration.getEvidenceStore() == EvidenceStore.Mode.SHARDED) {
+            evidenceStore = EvidenceStore.of(new File(EVIDENCE_PATH), configuration.getEvidenceRetentionDays(),
+                    configuration.getEvidenceRetentionMaxBytes());
+        }
+
+        CURRENT.set(this);
+    }
+
+    /**
+     * テスト終了時の処理
+     *
+     * <ul>
+     * <li>計測結果をエビデンス保存ディレクトリに出力
+     * <li>実行中のスレッドとの紐付けを解除
+     * </ul>
+     */
+    @Override
+    protected void after() {
+        if (metrics != null) {
+            File file = new File(capturePath, "metrics.json");
+            try {
+                metrics.write(file, testName, configuration.getEnvironmentName());
+                log.debug("Metrics : " + file.getPath());
+            } catch (IOException e) {
+                log.warn("Cannot write metrics : " + file.getPath());
+            }
         }
+
+        CURRENT.remove();
+    }
+
+    /**
+     * @return 実行中のスレッドに紐付くテストクラスのリソース
+     */
+    private static RuleResource current() {
+        RuleResource current = CURRENT.get();
+        return current == null ? DEFAULT : current;
     }
 
     /**
      * @return 各テストのデータリソースディレクトリのパス
      */
     public static String getDataResourcePath() {
-        return dataResourcePath;
+        return current().dataResourcePath;
     }
 
     /**
      * @return 各テストのエビデンス保存ディレクトリパス
      */
     public static String getCapturePath() {
-        return capturePath;
+        return current().capturePath;
+    }
+
+    /**
+     * @return テスト名
+     */
+    public static String getTestName() {
+        return current().testName;
+    }
+
+    /**
+     * @return エビデンスのストア evidence.store=flatの場合はnull
+     */
+    public static EvidenceStore getEvidenceStore() {
+        return current().evidenceStore;
     }
 
     /**
-     * @return 設定
+     * @return 設定(変更不可)
      */
     public static Properties getConfiguration() {
-        return configuration;
+        return current().configuration.getProperties();
+    }
+
+    /**
+     * @return 型変換済みの設定
+     */
+    public static TestConfiguration getTestConfiguration() {
+        return current().configuration;
     }
 
     /**
      * @return テスト対象環境名
      */
     public static String getEnvironmentName() {
-        return environmentName;
+        return current().configuration.getEnvironmentName();
     }
 
     /**
      * @return dbUnitの有効無効
      */
     public static boolean isDbUnitTest() {
-        return dbUnitTest;
+        return current().configuration.isDbUnitEnable();
     }
 
     /**
      * @return キャプチャの有効無効
      */
     public static boolean isCapture() {
-        return capture;
+        return current().configuration.isCaptureEnable();
+    }
+
+    /**
+     * @return 処理時間・件数の計測 無効時はnull
+     */
+    public static TestMetrics getMetrics() {
+        return current().metrics;
+    }
+
+    /**
+     * 並列実行時に、フォーク・スレッド毎のファイルやスキーマを分けるためのワーカーIDを返します<br>
+     * 「フォーク番号_スレッド毎の連番」の形式 フォーク番号はsurefireの test.worker.fork で渡されます(未指定時は1)。
+     *
+     * @return ワーカーID
+     */
+    public static String getWorkerId() {
+        return getForkId() + "_" + WORKER_NUMBER.get();
+    }
+
+    /**
+     * @return フォーク番号 surefireの test.worker.fork で渡されます(未指定時は1)
+     */
+    public static String getForkId() {
+        String fork = System.getProperty("test.worker.fork");
+        if (fork == null || fork.isEmpty() || fork.startsWith("$")) {
+            fork = "1";
+        }
+        return fork;
     }
 }
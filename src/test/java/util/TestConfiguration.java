@@ -0,0 +1,584 @@
+/**
+ *
+ */
+package util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.commons.lang3.BooleanUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.db.ConnectionPool;
+import util.db.DataSetCache;
+import util.selenium.CaptureWriter;
+import util.selenium.DriverPool;
+import util.selenium.WaitEngine;
+
+/**
+ * 設定(application.properties)を重ね合わせ、型変換済みで保持するクラス<br>
+ * <br>
+ * 以下の順に重ね、後のものほど優先します。
+ * <ol>
+ * <li>クラスパスの application.properties (Mavenのプロファイルで選ばれた環境のもの)
+ * <li>クラスパスの [環境名]/application.properties (環境名は -Denvironment.name 、環境変数 ENVIRONMENT_NAME 、1.の environment.name の順で決定)
+ * <li>環境変数 (1.2.に記載のあるキーのみ 例:dbUnit.insert.batchSize は DBUNIT_INSERT_BATCHSIZE)
+ * <li>システムプロパティ (1.2.に記載のあるキー、及び environment・dbUnit・capture 等の設定の接頭辞を持つキー)
+ * </ol>
+ * 読み込みはJVM内で初回の get() の1度のみで、以降は全テストクラスで同じインスタンスを共有します。<br>
+ * 生成後は変更できないため、テストクラスを並列実行しても同期は不要です。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class TestConfiguration {
+    protected static final Logger log = LoggerFactory.getLogger(TestConfiguration.class);
+
+    /** 設定ファイル名 **/
+    public static final String FILE_NAME = "application.properties";
+
+    /** システムプロパティから取り込む設定の接頭辞 **/
+    private static final String[] NAMESPACES = { "environment.", "dbUnit.", "capture.", "metrics.", "evidence.",
+            "firstAccess.", "datasource.", "webDriver." };
+
+    /** 設定が無い場合(テストクラスの開始前等) **/
+    public static final TestConfiguration EMPTY = new TestConfiguration(new Properties());
+
+    /** JVM全体で共有する設定 **/
+    private static volatile TestConfiguration instance;
+
+    /** 重ね合わせた設定 **/
+    private final Properties properties;
+
+    /** テスト対象環境名 **/
+    private final String environmentName;
+
+    /** dbUnit有効無効 **/
+    private final boolean dbUnitEnable;
+
+    /** キャプチャ有効無効 **/
+    private final boolean captureEnable;
+
+    /** 処理時間・件数の計測有効無効 **/
+    private final boolean metricsEnable;
+
+    /** エビデンスの保存方法 **/
+    private final EvidenceStore.Mode evidenceStore;
+
+    /** エビデンスの保存期間(日数) **/
+    private final int evidenceRetentionDays;
+
+    /** エビデンスの保存容量(バイト) **/
+    private final long evidenceRetentionMaxBytes;
+
+    /** 最初のアクセス先 **/
+    private final String firstAccessUrl;
+
+    /** ログインユーザー **/
+    private final String firstAccessUserId;
+
+    /** ログインパスワード **/
+    private final String firstAccessUserPw;
+
+    /** 最初のアクセスで追加するクッキー **/
+    private final Map<String, String> firstAccessCookies;
+
+    /** ブラウザ **/
+    private final DriverPool.Browser webDriverBrowser;
+
+    /** WebDriverのプールの上限 **/
+    private final int webDriverPoolSize;
+
+    /** 待機の上限(ミリ秒) **/
+    private final long webDriverWaitTimeout;
+
+    /** キャプチャの形式 **/
+    private final CaptureWriter.Format captureFormat;
+
+    /** 直前と同じキャプチャを省略するか **/
+    private final boolean captureDedup;
+
+    /** キャプチャを書き出しスレッドで書き出すか **/
+    private final boolean captureAsync;
+
+    /** キャプチャの書き出しキューの上限 **/
+    private final int captureQueueSize;
+
+    /** JDBCドライバ **/
+    private final String datasourceDriverClassName;
+
+    /** 接続URL **/
+    private final String datasourceUrl;
+
+    /** ワーカー毎の接続URL **/
+    private final String datasourceWorkerUrl;
+
+    /** 接続ユーザー **/
+    private final String datasourceUsername;
+
+    /** 接続パスワード **/
+    private final String datasourcePassword;
+
+    /** 解析済みデータリソースのキャッシュ件数 **/
+    private final int dbUnitCacheSize;
+
+    /** 解析済みデータリソースのキャッシュ容量(バイト) **/
+    private final long dbUnitCacheMaxBytes;
+
+    /** コネクションプール有効無効 **/
+    private final boolean datasourcePoolEnable;
+
+    /** コネクションプールの上限 **/
+    private final int datasourcePoolMaxSize;
+
+    /** 返却漏れを警告するまでの時間(ミリ秒) **/
+    private final long datasourcePoolLeakDetectionThreshold;
+
+    private TestConfiguration(Properties source) {
+        this.properties = new FrozenProperties(source);
+
+        environmentName = getString("environment.name", "local");
+        dbUnitEnable = getBoolean("dbUnit.enable", false);
+        captureEnable = getBoolean("capture.enable", false);
+        metricsEnable = getBoolean("metrics.enable", false);
+        evidenceStore = EvidenceStore.Mode.of(getString("evidence.store"));
+        evidenceRetentionDays = getInt("evidence.retention.days", 0);
+        evidenceRetentionMaxBytes = getLong("evidence.retention.max-size", 0L) * 1024L * 1024L;
+
+        firstAccessUrl = getString("firstAccess.url");
+        firstAccessUserId = getString("firstAccess.userid");
+        firstAccessUserPw = getString("firstAccess.userpw");
+        firstAccessCookies = parseCookies(getString("firstAccess.cookies"));
+        webDriverBrowser = DriverPool.Browser.of(getString("webDriver.browser"));
+        webDriverPoolSize = getInt("webDriver.pool.size", DriverPool.DEFAULT_MAX_SIZE);
+        webDriverWaitTimeout = getLong("webDriver.wait.timeout", WaitEngine.DEFAULT_TIMEOUT);
+        captureFormat = CaptureWriter.Format.of(getString("capture.format"));
+        captureDedup = getBoolean("capture.dedup", false);
+        captureAsync = getBoolean("capture.async", true);
+        captureQueueSize = getInt("capture.queue.size", CaptureWriter.DEFAULT_QUEUE_SIZE);
+
+        dbUnitCacheSize = getInt("dbUnit.cache.size", DataSetCache.DEFAULT_MAX_SIZE);
+        dbUnitCacheMaxBytes = getLong("dbUnit.cache.max-size", DataSetCache.DEFAULT_MAX_BYTES / 1024L / 1024L)
+                * 1024L * 1024L;
+
+        datasourceDriverClassName = getString("datasource.driver-class-name");
+        datasourceUrl = getString("datasource.url");
+        datasourceWorkerUrl = getString("datasource.worker-url");
+        datasourceUsername = getString("datasource.username");
+        datasourcePassword = getString("datasource.password");
+        datasourcePoolEnable = getBoolean("datasource.pool.enable", false);
+        datasourcePoolMaxSize = getInt("datasource.pool.max-size", ConnectionPool.DEFAULT_MAX_SIZE);
+        datasourcePoolLeakDetectionThreshold = getLong("datasource.pool.leak-detection-threshold",
+                ConnectionPool.DEFAULT_LEAK_DETECTION_THRESHOLD);
+    }
+
+    /**
+     * JVM全体で共有する設定を取得します 初回のみ読み込みます
+     *
+     * @return 設定
+     */
+    public static TestConfiguration get() {
+        TestConfiguration configuration = instance;
+        if (configuration == null) {
+            synchronized (TestConfiguration.class) {
+                if (instance == null) {
+                    instance = load();
+                }
+                configuration = instance;
+            }
+        }
+        return configuration;
+    }
+
+    /**
+     * 設定の一部を置き換えた設定を生成します(このインスタンスは変更しません)
+     *
+     * @param overrides 置き換える設定
+     * @return 設定
+     */
+    public TestConfiguration with(Properties overrides) {
+        Properties merged = new Properties();
+        merged.putAll(properties);
+        merged.putAll(overrides);
+        return new TestConfiguration(merged);
+    }
+
+    /**
+     * 設定ファイル・環境変数・システムプロパティを重ね合わせて読み込みます
+     *
+     * @return 設定
+     */
+    private static TestConfiguration load() {
+        return load(System.getenv(), System.getProperties());
+    }
+
+    /**
+     * 設定ファイル・環境変数・システムプロパティを重ね合わせて読み込みます<br>
+     * get()と異なり、呼び出す度に読み込みます。
+     *
+     * @param env 環境変数
+     * @param system システムプロパティ
+     * @return 設定
+     */
+    public static TestConfiguration load(Map<String, String> env, Properties system) {
+        Properties merged = new Properties();
+        if (!loadResource(merged, "/" + FILE_NAME)) {
+            throw new IllegalStateException(FILE_NAME + " is not found in classpath.");
+        }
+
+        // 環境毎の設定
+        String environment = system.getProperty("environment.name");
+        if (environment == null || environment.trim().isEmpty()) {
+            environment = env.get("ENVIRONMENT_NAME");
+        }
+        if (environment == null || environment.trim().isEmpty()) {
+            environment = merged.getProperty("environment.name");
+        }
+        if (environment != null && !environment.trim().isEmpty()) {
+            environment = environment.trim();
+            if (loadResource(merged, "/" + environment + "/" + FILE_NAME)) {
+                merged.setProperty("environment.name", environment);
+            } else {
+                log.warn(environment + "/" + FILE_NAME + " is not found in classpath.");
+            }
+        }
+
+        // 環境変数は記載のあるキーのみ
+        for (String key : merged.stringPropertyNames()) {
+            String value = env.get(key.toUpperCase().replaceAll("[^A-Z0-9]", "_"));
+            if (value != null) {
+                merged.setProperty(key, value);
+            }
+        }
+
+        // システムプロパティ
+        for (String key : system.stringPropertyNames()) {
+            if (merged.containsKey(key) || isNamespaced(key)) {
+                merged.setProperty(key, system.getProperty(key));
+            }
+        }
+
+        TestConfiguration configuration = new TestConfiguration(merged);
+        log.debug(FILE_NAME + " load complete. (" + configuration.environmentName + ")");
+        return configuration;
+    }
+
+    private static boolean loadResource(Properties properties, String name) {
+        try (InputStream in = TestConfiguration.class.getResourceAsStream(name)) {
+            if (in == null) {
+                return false;
+            }
+            properties.load(in);
+            return true;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + name, e);
+        }
+    }
+
+    private static boolean isNamespaced(String key) {
+        for (String namespace : NAMESPACES) {
+            if (key.startsWith(namespace)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 設定ファイルのfirstAccess.cookies("項目=値"で複数の場合","区切り)を分解します
+     */
+    private static Map<String, String> parseCookies(String value) {
+        Map<String, String> cookies = new LinkedHashMap<String, String>();
+        if (value != null && !value.isEmpty()) {
+            for (String cookie : value.split(", *")) {
+                int separator = cookie.indexOf("=");
+                if (separator < 0) {
+                    throw new IllegalStateException("Invalid cookie for firstAccess.cookies : " + cookie);
+                }
+                cookies.put(cookie.substring(0, separator), cookie.substring(separator + 1));
+            }
+        }
+        return Collections.unmodifiableMap(cookies);
+    }
+
+    /**
+     * @param key キー
+     * @return 設定値 未設定時はnull
+     */
+    public String getString(String key) {
+        return properties.getProperty(key);
+    }
+
+    /**
+     * @param key キー
+     * @param defaultValue 未設定時の値
+     * @return 設定値
+     */
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * @param key キー
+     * @param defaultValue 未設定(空)時の値
+     * @return 設定値 true・on・yes 等を真とします
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : BooleanUtils.toBoolean(value.trim());
+    }
+
+    /**
+     * @param key キー
+     * @param defaultValue 未設定(空)時の値
+     * @return 設定値
+     */
+    public int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    /**
+     * @param key キー
+     * @param defaultValue 未設定(空)時の値
+     * @return 設定値
+     */
+    public long getLong(String key, long defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid number for " + key + " : " + value, e);
+        }
+    }
+
+    /**
+     * @return 重ね合わせた設定(変更不可)
+     */
+    public Properties getProperties() {
+        return properties;
+    }
+
+    public String getEnvironmentName() {
+        return environmentName;
+    }
+
+    public boolean isDbUnitEnable() {
+        return dbUnitEnable;
+    }
+
+    public boolean isCaptureEnable() {
+        return captureEnable;
+    }
+
+    public boolean isMetricsEnable() {
+        return metricsEnable;
+    }
+
+    public EvidenceStore.Mode getEvidenceStore() {
+        return evidenceStore;
+    }
+
+    public int getEvidenceRetentionDays() {
+        return evidenceRetentionDays;
+    }
+
+    public long getEvidenceRetentionMaxBytes() {
+        return evidenceRetentionMaxBytes;
+    }
+
+    public String getFirstAccessUrl() {
+        return firstAccessUrl;
+    }
+
+    public String getFirstAccessUserId() {
+        return firstAccessUserId;
+    }
+
+    public String getFirstAccessUserPw() {
+        return firstAccessUserPw;
+    }
+
+    /**
+     * @return 最初のアクセスで追加するクッキー(名前 → 値、変更不可)
+     */
+    public Map<String, String> getFirstAccessCookies() {
+        return firstAccessCookies;
+    }
+
+    public DriverPool.Browser getWebDriverBrowser() {
+        return webDriverBrowser;
+    }
+
+    public int getWebDriverPoolSize() {
+        return webDriverPoolSize;
+    }
+
+    public long getWebDriverWaitTimeout() {
+        return webDriverWaitTimeout;
+    }
+
+    public CaptureWriter.Format getCaptureFormat() {
+        return captureFormat;
+    }
+
+    public boolean isCaptureDedup() {
+        return captureDedup;
+    }
+
+    public boolean isCaptureAsync() {
+        return captureAsync;
+    }
+
+    public int getCaptureQueueSize() {
+        return captureQueueSize;
+    }
+
+    public int getDbUnitCacheSize() {
+        return dbUnitCacheSize;
+    }
+
+    public long getDbUnitCacheMaxBytes() {
+        return dbUnitCacheMaxBytes;
+    }
+
+    public String getDatasourceDriverClassName() {
+        return datasourceDriverClassName;
+    }
+
+    public String getDatasourceUrl() {
+        return datasourceUrl;
+    }
+
+    public String getDatasourceWorkerUrl() {
+        return datasourceWorkerUrl;
+    }
+
+    public String getDatasourceUsername() {
+        return datasourceUsername;
+    }
+
+    public String getDatasourcePassword() {
+        return datasourcePassword;
+    }
+
+    public boolean isDatasourcePoolEnable() {
+        return datasourcePoolEnable;
+    }
+
+    public int getDatasourcePoolMaxSize() {
+        return datasourcePoolMaxSize;
+    }
+
+    public long getDatasourcePoolLeakDetectionThreshold() {
+        return datasourcePoolLeakDetectionThreshold;
+    }
+
+    /**
+     * 変更できないProperties 変更しようとするとUnsupportedOperationException
+     */
+    private static class FrozenProperties extends Properties {
+        private static final long serialVersionUID = 1L;
+
+        FrozenProperties(Properties source) {
+            for (String key : source.stringPropertyNames()) {
+                super.put(key, source.getProperty(key));
+            }
+        }
+
+        @Override
+        public synchronized Object put(Object key, Object value) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized void putAll(Map<?, ?> t) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized Object remove(Object key) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized boolean remove(Object key, Object value) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized void clear() {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized Object putIfAbsent(Object key, Object value) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized Object replace(Object key, Object value) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized void replaceAll(BiFunction<? super Object, ? super Object, ?> function) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized Object compute(Object key,
+                BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized Object computeIfAbsent(Object key, Function<? super Object, ?> mappingFunction) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized Object computeIfPresent(Object key,
+                BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public synchronized Object merge(Object key, Object value,
+                BiFunction<? super Object, ? super Object, ?> remappingFunction) {
+            throw new UnsupportedOperationException("Configuration is read only.");
+        }
+
+        @Override
+        public Set<Object> keySet() {
+            return Collections.unmodifiableSet(super.keySet());
+        }
+
+        @Override
+        public Set<Map.Entry<Object, Object>> entrySet() {
+            return Collections.unmodifiableSet(super.entrySet());
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return Collections.unmodifiableCollection(super.values());
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * テストクラス毎の処理時間・件数の計測<br>
+ * <br>
+ * フェーズ(connect, backup, insert, assert, restore, wait, capture 等)と対象(テーブル名・テストメソッド名等)毎に、
+ * 処理時間(回数・合計・最大)と件数を集計します。<br>
+ * 計測値はRuleResourceが保持するテストクラス単位の集計に加算され、テストクラスの終了時に
+ * エビデンス保存ディレクトリへJSON(metrics.json)で出力されます。<br>
+ * 設定ファイルの metrics.enable が無効な場合、及びRuleResourceの外から呼ばれた場合は何もしません。
+ *
+ * <pre>
+ * long start = TestMetrics.start();
+ * // 計測する処理
+ * TestMetrics.time("backup", "hoge_table", start);
+ * TestMetrics.count("backup.rows", "hoge_table", rows);
+ * </pre>
+ *
+ * @author r.kinoshita
+ *
+ */
+public class TestMetrics {
+
+    /** 処理時間の集計(キーは「フェーズ\t対象」) **/
+    private final ConcurrentHashMap<String, long[]> timers = new ConcurrentHashMap<String, long[]>();
+
+    /** 件数の集計(キーは「名前\t対象」) **/
+    private final ConcurrentHashMap<String, long[]> counters = new ConcurrentHashMap<String, long[]>();
+
+    /** 計測開始日時 **/
+    private final long startedAt = System.currentTimeMillis();
+
+    /** 計測開始時刻(ナノ秒) **/
+    private final long startedNanos = System.nanoTime();
+
+    /**
+     * 計測の開始時刻を返します
+     *
+     * @return 開始時刻(ナノ秒)
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 開始時刻からの経過時間を加算します
+     *
+     * @param phase フェーズ
+     * @param target 対象 無い場合はnull
+     * @param startNanos start()で取得した開始時刻
+     */
+    public static void time(String phase, String target, long startNanos) {
+        TestMetrics metrics = RuleResource.getMetrics();
+        if (metrics != null) {
+            metrics.addTime(phase, target, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * 件数を加算します
+     *
+     * @param name 名前
+     * @param target 対象 無い場合はnull
+     * @param delta 加算する件数
+     */
+    public static void count(String name, String target, long delta) {
+        TestMetrics metrics = RuleResource.getMetrics();
+        if (metrics != null) {
+            metrics.addCount(name, target, delta);
+        }
+    }
+
+    /**
+     * 処理時間を加算します
+     *
+     * @param phase フェーズ
+     * @param target 対象
+     * @param nanos 処理時間(ナノ秒)
+     */
+    public void addTime(String phase, String target, long nanos) {
+        long[] stat = statOf(timers, phase, target, 3);
+        synchronized (stat) {
+            stat[0]++;
+            stat[1] += nanos;
+            stat[2] = Math.max(stat[2], nanos);
+        }
+    }
+
+    /**
+     * 件数を加算します
+     *
+     * @param name 名前
+     * @param target 対象
+     * @param delta 加算する件数
+     */
+    public void addCount(String name, String target, long delta) {
+        long[] stat = statOf(counters, name, target, 1);
+        synchronized (stat) {
+            stat[0] += delta;
+        }
+    }
+
+    /**
+     * @param phase フェーズ
+     * @param target 対象
+     * @return 処理時間の合計(ナノ秒) 未計測の場合は0
+     */
+    public long getTotalNanos(String phase, String target) {
+        long[] stat = timers.get(keyOf(phase, target));
+        return stat == null ? 0 : stat[1];
+    }
+
+    /**
+     * @param name 名前
+     * @param target 対象
+     * @return 件数 未計測の場合は0
+     */
+    public long getCount(String name, String target) {
+        long[] stat = counters.get(keyOf(name, target));
+        return stat == null ? 0 : stat[0];
+    }
+
+    /**
+     * 集計結果をJSONで出力します
+     *
+     * @param file 出力先ファイル
+     * @param testName テスト名
+     * @param environmentName テスト対象環境名
+     * @throws IOException
+     */
+    public void write(File file, String testName, String environmentName) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"test\": ").append(quote(testName)).append(",\n");
+        json.append("  \"environment\": ").append(quote(environmentName)).append(",\n");
+        json.append("  \"worker\": ").append(quote(RuleResource.getWorkerId())).append(",\n");
+        json.append("  \"startedAt\": ")
+                .append(quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").format(new Date(startedAt))))
+                .append(",\n");
+        json.append("  \"elapsedMs\": ").append(toMillis(System.nanoTime() - startedNanos)).append(",\n");
+
+        json.append("  \"timers\": [");
+        String separator = "\n";
+        for (String key : sortedKeys(timers)) {
+            long[] stat = timers.get(key);
+            synchronized (stat) {
+                json.append(separator).append("    {").append(keyToJson(key, "phase"))
+                        .append(", \"count\": ").append(stat[0])
+                        .append(", \"totalMs\": ").append(toMillis(stat[1]))
+                        .append(", \"maxMs\": ").append(toMillis(stat[2])).append("}");
+            }
+            separator = ",\n";
+        }
+        json.append("\n  ],\n");
+
+        json.append("  \"counters\": [");
+        separator = "\n";
+        for (String key : sortedKeys(counters)) {
+            long[] stat = counters.get(key);
+            synchronized (stat) {
+                json.append(separator).append("    {").append(keyToJson(key, "name"))
+                        .append(", \"value\": ").append(stat[0]).append("}");
+            }
+            separator = ",\n";
+        }
+        json.append("\n  ]\n}\n");
+
+        if (file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        Files.write(file.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long[] statOf(ConcurrentHashMap<String, long[]> stats, String name, String target, int size) {
+        String key = keyOf(name, target);
+        long[] stat = stats.get(key);
+        if (stat == null) {
+            long[] created = new long[size];
+            stat = stats.putIfAbsent(key, created);
+            if (stat == null) {
+                stat = created;
+            }
+        }
+        return stat;
+    }
+
+    private static String keyOf(String name, String target) {
+        return target == null ? name : name + "\t" + target;
+    }
+
+    private static List<String> sortedKeys(ConcurrentHashMap<String, long[]> stats) {
+        List<String> keys = new ArrayList<String>();
+        for (Entry<String, long[]> entry : stats.entrySet()) {
+            keys.add(entry.getKey());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static String keyToJson(String key, String nameField) {
+        int tab = key.indexOf('\t');
+        if (tab < 0) {
+            return "\"" + nameField + "\": " + quote(key);
+        }
+        return "\"" + nameField + "\": " + quote(key.substring(0, tab))
+                + ", \"target\": " + quote(key.substring(tab + 1));
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ *
+ */
+package util.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.DataTypeException;
+import org.dbunit.dataset.datatype.TypeCastException;
+import org.dbunit.dataset.stream.DataSetProducerAdapter;
+import org.dbunit.dataset.stream.IDataSetConsumer;
+
+import util.TestMetrics;
+
+/**
+ * JDBCのバッチ機能でまとめてINSERTを行うクラス<br>
+ * <br>
+ * データセットの行を batchSize 件ずつ addBatch/executeBatch でまとめて投入します。<br>
+ * multiRowValues を指定した場合は「INSERT ... VALUES (...),(...)」の複数行形式に書き換え、1文で複数行を投入します。<br>
+ * 自動コミットが有効なコネクションでは、バッチ毎に自動コミットを無効にしてコミットします。
+ * 呼び出し側でトランザクションを開始している場合はコミットしません。<br>
+ * IDataSetConsumerとして、逐次読み込みのProducerから直接行を受け取ることもできます。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class BatchInserter implements IDataSetConsumer {
+
+    /** 既定のバッチサイズ **/
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** 1文あたりのバインド変数の上限(SQLiteの既定値) **/
+    public static final int MAX_PARAMETERS = 999;
+
+    /** DBコネクション **/
+    protected final Connection conn;
+
+    /** バッチサイズ **/
+    private final int batchSize;
+
+    /** 複数行VALUESへの書き換え有無 **/
+    private final boolean multiRowValues;
+
+    /** 投入件数 **/
+    protected long rowCount;
+
+    // テーブル毎の状態
+    private String tableName;
+    private String[] columnNames;
+    private DataType[] dataTypes;
+    private int rowsPerStatement;
+    private PreparedStatement statement;
+    private final List<Object[]> pending = new ArrayList<Object[]>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn DBコネクション
+     * @param batchSize バッチサイズ
+     * @param multiRowValues 複数行VALUESに書き換えるか
+     */
+    public BatchInserter(Connection conn, int batchSize, boolean multiRowValues) {
+        this.conn = conn;
+        this.batchSize = Math.max(1, batchSize);
+        this.multiRowValues = multiRowValues;
+    }
+
+    /**
+     * データセットに含まれるテーブルの全件削除後、データセットの内容を投入します
+     *
+     * @param dataSet データセット
+     * @throws SQLException
+     * @throws DataSetException
+     */
+    public void cleanInsert(IDataSet dataSet) throws SQLException, DataSetException {
+        cleanInsert(dataSet, "insert");
+    }
+
+    /**
+     * データセットに含まれるテーブルの全件削除後、データセットの内容を投入します
+     *
+     * @param dataSet データセット
+     * @param phase テーブル毎の処理時間・行数を記録する際のフェーズ名
+     * @throws SQLException
+     * @throws DataSetException
+     */
+    public void cleanInsert(IDataSet dataSet, String phase) throws SQLException, DataSetException {
+        long start = TestMetrics.start();
+        deleteAll(dataSet.getTableNames());
+        TestMetrics.time(phase + ".delete", null, start);
+        insert(dataSet, phase);
+    }
+
+    /**
+     * データセットの内容を投入します
+     *
+     * @param dataSet データセット
+     * @throws DataSetException
+     */
+    public void insert(IDataSet dataSet) throws DataSetException {
+        insert(dataSet, "insert");
+    }
+
+    /**
+     * データセットの内容を投入します
+     *
+     * @param dataSet データセット
+     * @param phase テーブル毎の処理時間・行数を記録する際のフェーズ名
+     * @throws DataSetException
+     */
+    public void insert(IDataSet dataSet, String phase) throws DataSetException {
+        DataSetProducerAdapter producer = new DataSetProducerAdapter(dataSet);
+        producer.setConsumer(new MeteredConsumer(phase, this));
+        producer.produce();
+    }
+
+    /**
+     * 指定したテーブルを、外部キーを考慮して配列の後ろから全件削除します
+     *
+     * @param tableNames テーブル名の配列
+     * @throws SQLException
+     */
+    public void deleteAll(String[] tableNames) throws SQLException {
+        boolean ownTransaction = begin();
+        try (Statement stmt = conn.createStatement()) {
+            for (int i = tableNames.length - 1; i >= 0; i--) {
+                stmt.executeUpdate("DELETE FROM " + tableNames[i]);
+            }
+            commit(ownTransaction);
+        } catch (SQLException e) {
+            rollback(ownTransaction);
+            throw e;
+        } finally {
+            end(ownTransaction);
+        }
+    }
+
+    /**
+     * @return これまでに投入した件数
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public void startDataSet() throws DataSetException {
+    }
+
+    @Override
+    public void endDataSet() throws DataSetException {
+    }
+
+    @Override
+    public void startTable(ITableMetaData metaData) throws DataSetException {
+        try {
+            tableName = metaData.getTableName();
+            Column[] columns = metaData.getColumns();
+            columnNames = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                columnNames[i] = columns[i].getColumnName();
+            }
+            dataTypes = getDataTypes(tableName, columnNames);
+
+            rowsPerStatement = multiRowValues && columns.length > 0
+                    ? Math.max(1, Math.min(batchSize, MAX_PARAMETERS / columns.length))
+                    : 1;
+            statement = conn.prepareStatement(insertSql(rowsPerStatement));
+        } catch (SQLException e) {
+            throw new DataSetException(e);
+        }
+    }
+
+    @Override
+    public void row(Object[] values) throws DataSetException {
+        pending.add(values);
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    @Override
+    public void endTable() throws DataSetException {
+        try {
+            flush();
+        } finally {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                throw new DataSetException(e);
+            }
+            statement = null;
+        }
+    }
+
+    /**
+     * 溜まった行をまとめて投入します
+     *
+     * @throws DataSetException
+     */
+    private void flush() throws DataSetException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        boolean ownTransaction = false;
+        try {
+            ownTransaction = begin();
+
+            int full = pending.size() / rowsPerStatement * rowsPerStatement;
+            for (int row = 0; row < full; row += rowsPerStatement) {
+                bind(statement, row, rowsPerStatement);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+
+            // 複数行VALUESで端数となった行
+            if (full < pending.size()) {
+                try (PreparedStatement rest = conn.prepareStatement(insertSql(pending.size() - full))) {
+                    bind(rest, full, pending.size() - full);
+                    rest.executeUpdate();
+                }
+            }
+
+            commit(ownTransaction);
+            rowCount += pending.size();
+        } catch (SQLException | TypeCastException e) {
+            rollback(ownTransaction);
+            throw new DataSetException("Insert into " + tableName + " fail.", e);
+        } finally {
+            pending.clear();
+            end(ownTransaction);
+        }
+    }
+
+    private void bind(PreparedStatement ps, int fromRow, int rows) throws SQLException, TypeCastException {
+        int index = 1;
+        for (int row = fromRow; row < fromRow + rows; row++) {
+            Object[] values = pending.get(row);
+            for (int column = 0; column < columnNames.length; column++) {
+                Object value = dataTypes[column].typeCast(values[column]);
+                if (value == null) {
+                    ps.setNull(index++, dataTypes[column].getSqlType());
+                } else {
+                    dataTypes[column].setSqlValue(value, index++, ps);
+                }
+            }
+        }
+    }
+
+    private String insertSql(int rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        StringBuilder placeholders = new StringBuilder("(");
+        for (int i = 0; i < columnNames.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columnNames[i]);
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        placeholders.append(")");
+
+        sql.append(") VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ", ").append(placeholders);
+        }
+        return sql.toString();
+    }
+
+    /**
+     * DB上のカラム定義から、値の変換に使用するデータ型を取得します
+     *
+     * @param tableName テーブル名
+     * @param columnNames カラム名の配列
+     * @return データ型の配列
+     * @throws SQLException
+     */
+    protected DataType[] getDataTypes(String tableName, String[] columnNames) throws SQLException {
+        Map<String, Integer> sqlTypes = new HashMap<String, Integer>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName + " WHERE 1 = 0")) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                sqlTypes.put(metaData.getColumnName(i).toUpperCase(), metaData.getColumnType(i));
+            }
+        }
+
+        DataType[] dataTypes = new DataType[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            Integer sqlType = sqlTypes.get(columnNames[i].toUpperCase());
+            if (sqlType == null) {
+                throw new SQLException("Column " + columnNames[i] + " is not found in " + tableName);
+            }
+            try {
+                dataTypes[i] = DataType.forSqlType(sqlType);
+            } catch (DataTypeException e) {
+                dataTypes[i] = DataType.UNKNOWN;
+            }
+        }
+        return dataTypes;
+    }
+
+    /**
+     * 自動コミットが有効なら無効にし、このクラスでトランザクションを管理します
+     *
+     * @return このクラスでトランザクションを開始したか
+     * @throws SQLException
+     */
+    private boolean begin() throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        if (autoCommit) {
+            conn.setAutoCommit(false);
+        }
+        return autoCommit;
+    }
+
+    private void commit(boolean ownTransaction) throws SQLException {
+        if (ownTransaction) {
+            conn.commit();
+        }
+    }
+
+    private void rollback(boolean ownTransaction) {
+        if (ownTransaction) {
+            try {
+                conn.rollback();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void end(boolean ownTransaction) {
+        if (ownTransaction) {
+            try {
+                conn.setAutoCommit(true);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * バイナリスナップショット形式の定義<br>
+ * <br>
+ * ファイル構成
+ * <pre>
+ * MAGIC(int) VERSION(byte) COMPRESSION(byte)
+ * 以降はCOMPRESSIONに応じて圧縮される
+ *   TABLE(byte) テーブル名(UTF) カラム数(varint) [カラム名(UTF) SQL型(varint) エンコード(byte)]...
+ *     BLOCK(byte) 行数(varint) [カラム毎に 値種別(byte×行数) + null以外の値]...
+ *     ...
+ *   END_TABLE(byte)
+ *   ...
+ * END(byte)
+ * </pre>
+ * カラム情報はテーブル毎に一度だけ書き出し、値はブロック単位でカラム毎にまとめて型に応じたエンコードで保持します。<br>
+ * 型どおりに変換できない値(SQLiteの型親和性による混在など)は、値種別を文字列として保持します。<br>
+ * 整数のカラムの値のうちlongで正確に表せない値(範囲外の整数・小数部のある数値)は、値種別を10進数として保持します。<br>
+ * 圧縮はdeflate(java.util.zip)のみ実装しています。LZ4は外部ライブラリへの依存が必要なため採用していません。
+ *
+ * @author r.kinoshita
+ *
+ */
+final class BinarySnapshotFormat {
+
+    static final int MAGIC = 0x44425331; // "DBS1"
+    static final byte VERSION = 2;
+
+    static final byte COMPRESSION_NONE = 0;
+    static final byte COMPRESSION_DEFLATE = 1;
+
+    static final byte END = 0;
+    static final byte TABLE = 1;
+    static final byte BLOCK = 2;
+    static final byte END_TABLE = 3;
+
+    static final byte VALUE_NULL = 0;
+    static final byte VALUE_NATIVE = 1;
+    static final byte VALUE_STRING = 2;
+    static final byte VALUE_DECIMAL = 3;
+
+    static final byte ENCODING_STRING = 0;
+    static final byte ENCODING_LONG = 1;
+    static final byte ENCODING_DOUBLE = 2;
+    static final byte ENCODING_DECIMAL = 3;
+    static final byte ENCODING_BYTES = 4;
+    static final byte ENCODING_BOOLEAN = 5;
+    static final byte ENCODING_DATE = 6;
+    static final byte ENCODING_TIME = 7;
+    static final byte ENCODING_TIMESTAMP = 8;
+
+    private BinarySnapshotFormat() {
+    }
+
+    /**
+     * SQL型から値のエンコードを決定します
+     *
+     * @param sqlType java.sql.Typesの値
+     * @return エンコード
+     */
+    static byte encodingOf(int sqlType) {
+        switch (sqlType) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+            return ENCODING_LONG;
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            return ENCODING_DOUBLE;
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+            return ENCODING_DECIMAL;
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+        case Types.BLOB:
+            return ENCODING_BYTES;
+        case Types.BIT:
+        case Types.BOOLEAN:
+            return ENCODING_BOOLEAN;
+        case Types.DATE:
+            return ENCODING_DATE;
+        case Types.TIME:
+            return ENCODING_TIME;
+        case Types.TIMESTAMP:
+            return ENCODING_TIMESTAMP;
+        default:
+            return ENCODING_STRING;
+        }
+    }
+
+    /**
+     * 値をエンコードして書き出します
+     *
+     * @param out 出力先
+     * @param encoding エンコード
+     * @param value null以外の値
+     * @return 値種別 整数のエンコードでlongに正確に変換できない値は、10進数として書き出しVALUE_DECIMALを返します
+     * @throws IOException バイナリの値をバイナリ以外のエンコードで書き出そうとした場合
+     * @throws IllegalArgumentException 値をエンコードどおりに変換できない場合
+     */
+    static byte writeValue(DataOutputStream out, byte encoding, Object value) throws IOException {
+        if (value instanceof byte[] && encoding != ENCODING_BYTES) {
+            // 文字列として保持すると内容が失われるため、書き出さずにエラーとする
+            throw new IOException("Binary value can not be stored as encoding " + encoding + ".");
+        }
+        switch (encoding) {
+        case ENCODING_LONG:
+            if (value instanceof Long || value instanceof Integer || value instanceof Short
+                    || value instanceof Byte) {
+                writeVarLong(out, zigZag(((Number) value).longValue()));
+                break;
+            }
+            BigDecimal exact = toDecimal(value);
+            try {
+                writeVarLong(out, zigZag(exact.longValueExact()));
+            } catch (ArithmeticException e) {
+                // 丸め・桁あふれで値が変わらないよう、10進数として保持する
+                writeValue(out, ENCODING_DECIMAL, exact);
+                return VALUE_DECIMAL;
+            }
+            break;
+        case ENCODING_DOUBLE:
+            out.writeDouble(value instanceof Number ? ((Number) value).doubleValue()
+                    : Double.parseDouble(value.toString().trim()));
+            break;
+        case ENCODING_DECIMAL:
+            BigDecimal decimal = toDecimal(value);
+            writeVarLong(out, zigZag(decimal.scale()));
+            writeBytes(out, decimal.unscaledValue().toByteArray());
+            break;
+        case ENCODING_BYTES:
+            writeBytes(out, value instanceof byte[] ? (byte[]) value
+                    : value.toString().getBytes(StandardCharsets.UTF_8));
+            break;
+        case ENCODING_BOOLEAN:
+            out.writeBoolean(toBoolean(value));
+            break;
+        case ENCODING_DATE:
+        case ENCODING_TIME:
+            writeVarLong(out, zigZag(value instanceof java.util.Date ? ((java.util.Date) value).getTime()
+                    : Timestamp.valueOf(value.toString().trim()).getTime()));
+            break;
+        case ENCODING_TIMESTAMP:
+            Timestamp timestamp = value instanceof Timestamp ? (Timestamp) value
+                    : value instanceof java.util.Date ? new Timestamp(((java.util.Date) value).getTime())
+                            : Timestamp.valueOf(value.toString().trim());
+            writeVarLong(out, zigZag(timestamp.getTime()));
+            writeVarLong(out, timestamp.getNanos());
+            break;
+        default:
+            writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+            break;
+        }
+        return VALUE_NATIVE;
+    }
+
+    /**
+     * 値を丸めずにBigDecimalに変換します
+     *
+     * @param value null以外の値
+     * @return 10進数
+     * @throws NumberFormatException 数値に変換できない場合(NaN・無限大を含む)
+     */
+    private static BigDecimal toDecimal(Object value) {
+        if (value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            return new BigDecimal(value.toString());
+        }
+        return new BigDecimal(value.toString().trim());
+    }
+
+    /**
+     * エンコードされた値を読み込みます
+     *
+     * @param in 入力元
+     * @param encoding エンコード
+     * @return 値
+     * @throws IOException
+     */
+    static Object readValue(DataInputStream in, byte encoding) throws IOException {
+        switch (encoding) {
+        case ENCODING_LONG:
+            return unZigZag(readVarLong(in));
+        case ENCODING_DOUBLE:
+            return in.readDouble();
+        case ENCODING_DECIMAL:
+            int scale = (int) unZigZag(readVarLong(in));
+            return new BigDecimal(new BigInteger(readBytes(in)), scale);
+        case ENCODING_BYTES:
+            return readBytes(in);
+        case ENCODING_BOOLEAN:
+            return in.readBoolean();
+        case ENCODING_DATE:
+            return new java.sql.Date(unZigZag(readVarLong(in)));
+        case ENCODING_TIME:
+            return new Time(unZigZag(readVarLong(in)));
+        case ENCODING_TIMESTAMP:
+            Timestamp timestamp = new Timestamp(unZigZag(readVarLong(in)));
+            timestamp.setNanos((int) readVarLong(in));
+            return timestamp;
+        default:
+            return new String(readBytes(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 真偽値に変換します<br>
+     * Boolean、0・1の数値、"true"・"false"(大文字小文字を区別しない)・"1"・"0"の文字列のみ変換し、
+     * その他の値は文字列として保持させるため変換しません。
+     *
+     * @param value null以外の値
+     * @return 真偽値
+     * @throws IllegalArgumentException 真偽値に変換できない場合
+     */
+    static boolean toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        String text = value.toString().trim();
+        if (value instanceof Number) {
+            BigDecimal number = new BigDecimal(text);
+            if (number.compareTo(BigDecimal.ZERO) == 0) {
+                return false;
+            }
+            if (number.compareTo(BigDecimal.ONE) == 0) {
+                return true;
+            }
+        } else if ("true".equalsIgnoreCase(text) || "1".equals(text)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(text) || "0".equals(text)) {
+            return false;
+        }
+        throw new IllegalArgumentException("Not a boolean value: " + text);
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
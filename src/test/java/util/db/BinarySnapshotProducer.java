@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.DefaultTableMetaData;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.DataTypeException;
+import org.dbunit.dataset.stream.DefaultConsumer;
+import org.dbunit.dataset.stream.IDataSetConsumer;
+import org.dbunit.dataset.stream.IDataSetProducer;
+
+/**
+ * バイナリスナップショット形式のファイルを逐次読み込むProducer<br>
+ * <br>
+ * 投入先のIDataSetConsumerを設定して読み込むことで、メモリに展開せずにデータ投入できます。
+ * 入力ストリームのクローズは呼び出し側で行ってください。
+ *
+ * @author r.kinoshita
+ *
+ * @see BinarySnapshotFormat
+ */
+public class BinarySnapshotProducer implements IDataSetProducer {
+
+    /** 入力元 **/
+    private final InputStream source;
+
+    /** 読み込み先 **/
+    private IDataSetConsumer consumer = new DefaultConsumer();
+
+    /**
+     * コンストラクタ
+     *
+     * @param in 入力元
+     */
+    public BinarySnapshotProducer(InputStream in) {
+        this.source = in;
+    }
+
+    @Override
+    public void setConsumer(IDataSetConsumer consumer) throws DataSetException {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void produce() throws DataSetException {
+        try {
+            DataInputStream header = new DataInputStream(source);
+            if (header.readInt() != BinarySnapshotFormat.MAGIC) {
+                throw new DataSetException("Not a binary snapshot.");
+            }
+            byte version = header.readByte();
+            // 1は値種別VALUE_DECIMALが無いのみのため、そのまま読み込める
+            if (version < 1 || version > BinarySnapshotFormat.VERSION) {
+                throw new DataSetException("Unsupported binary snapshot version : " + version);
+            }
+            DataInputStream in = header.readByte() == BinarySnapshotFormat.COMPRESSION_DEFLATE
+                    ? new DataInputStream(new InflaterInputStream(source, new Inflater(), 64 * 1024))
+                    : header;
+
+            consumer.startDataSet();
+            for (byte marker = in.readByte(); marker != BinarySnapshotFormat.END; marker = in.readByte()) {
+                if (marker != BinarySnapshotFormat.TABLE) {
+                    throw new DataSetException("Broken binary snapshot. unexpected marker : " + marker);
+                }
+                produceTable(in);
+            }
+            consumer.endDataSet();
+        } catch (IOException e) {
+            throw new DataSetException(e);
+        }
+    }
+
+    /**
+     * テーブル1つ分を読み込みます
+     *
+     * @param in 入力元
+     * @throws IOException
+     * @throws DataSetException
+     */
+    private void produceTable(DataInputStream in) throws IOException, DataSetException {
+        String tableName = in.readUTF();
+        Column[] columns = new Column[(int) BinarySnapshotFormat.readVarLong(in)];
+        byte[] encodings = new byte[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            String columnName = in.readUTF();
+            int sqlType = (int) BinarySnapshotFormat.readVarLong(in);
+            encodings[i] = in.readByte();
+            columns[i] = new Column(columnName, dataTypeOf(sqlType));
+        }
+        consumer.startTable(new DefaultTableMetaData(tableName, columns));
+
+        for (byte marker = in.readByte(); marker != BinarySnapshotFormat.END_TABLE; marker = in.readByte()) {
+            if (marker != BinarySnapshotFormat.BLOCK) {
+                throw new DataSetException("Broken binary snapshot. unexpected marker : " + marker);
+            }
+
+            // カラム毎に格納された値を行に組み直す
+            Object[][] rows = new Object[(int) BinarySnapshotFormat.readVarLong(in)][columns.length];
+            byte[] kinds = new byte[rows.length];
+            for (int column = 0; column < columns.length; column++) {
+                in.readFully(kinds);
+                for (int row = 0; row < rows.length; row++) {
+                    switch (kinds[row]) {
+                    case BinarySnapshotFormat.VALUE_NULL:
+                        break;
+                    case BinarySnapshotFormat.VALUE_NATIVE:
+                        rows[row][column] = BinarySnapshotFormat.readValue(in, encodings[column]);
+                        break;
+                    case BinarySnapshotFormat.VALUE_DECIMAL:
+                        rows[row][column] = BinarySnapshotFormat.readValue(in, BinarySnapshotFormat.ENCODING_DECIMAL);
+                        break;
+                    default:
+                        rows[row][column] = new String(BinarySnapshotFormat.readBytes(in), StandardCharsets.UTF_8);
+                        break;
+                    }
+                }
+            }
+
+            for (Object[] row : rows) {
+                consumer.row(row);
+            }
+        }
+        consumer.endTable();
+    }
+
+    private static DataType dataTypeOf(int sqlType) {
+        try {
+            return DataType.forSqlType(sqlType);
+        } catch (DataTypeException e) {
+            return DataType.UNKNOWN;
+        }
+    }
+}
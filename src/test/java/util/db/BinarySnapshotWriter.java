@@ -0,0 +1,174 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.stream.IDataSetConsumer;
+
+/**
+ * バイナリスナップショット形式でデータセットを書き出すConsumer<br>
+ * <br>
+ * 行は blockRows 件ずつバッファし、カラム毎にまとめて書き出します。
+ * 出力ストリームのクローズは呼び出し側で行ってください。
+ *
+ * @author r.kinoshita
+ *
+ * @see BinarySnapshotFormat
+ */
+public class BinarySnapshotWriter implements IDataSetConsumer {
+
+    /** 出力先 **/
+    private final OutputStream target;
+
+    /** 圧縮有無 **/
+    private final boolean compress;
+
+    /** 1ブロックの行数 **/
+    private final int blockRows;
+
+    private DeflaterOutputStream deflater;
+    private DataOutputStream out;
+    private byte[] encodings;
+    private final List<Object[]> block = new ArrayList<Object[]>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param out 出力先
+     * @param compress deflate圧縮するか
+     * @param blockRows 1ブロックの行数
+     */
+    public BinarySnapshotWriter(OutputStream out, boolean compress, int blockRows) {
+        this.target = out;
+        this.compress = compress;
+        this.blockRows = blockRows;
+    }
+
+    @Override
+    public void startDataSet() throws DataSetException {
+        try {
+            DataOutputStream header = new DataOutputStream(target);
+            header.writeInt(BinarySnapshotFormat.MAGIC);
+            header.writeByte(BinarySnapshotFormat.VERSION);
+            header.writeByte(compress ? BinarySnapshotFormat.COMPRESSION_DEFLATE : BinarySnapshotFormat.COMPRESSION_NONE);
+
+            if (compress) {
+                deflater = new DeflaterOutputStream(target, new Deflater(Deflater.BEST_SPEED), 64 * 1024);
+                out = new DataOutputStream(deflater);
+            } else {
+                out = header;
+            }
+        } catch (IOException e) {
+            throw new DataSetException(e);
+        }
+    }
+
+    @Override
+    public void endDataSet() throws DataSetException {
+        try {
+            out.writeByte(BinarySnapshotFormat.END);
+            if (deflater != null) {
+                deflater.finish();
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new DataSetException(e);
+        }
+    }
+
+    @Override
+    public void startTable(ITableMetaData metaData) throws DataSetException {
+        try {
+            Column[] columns = metaData.getColumns();
+            encodings = new byte[columns.length];
+
+            out.writeByte(BinarySnapshotFormat.TABLE);
+            out.writeUTF(metaData.getTableName());
+            BinarySnapshotFormat.writeVarLong(out, columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                int sqlType = columns[i].getDataType().getSqlType();
+                encodings[i] = BinarySnapshotFormat.encodingOf(sqlType);
+
+                out.writeUTF(columns[i].getColumnName());
+                BinarySnapshotFormat.writeVarLong(out, sqlType & 0xffffffffL);
+                out.writeByte(encodings[i]);
+            }
+        } catch (IOException e) {
+            throw new DataSetException(e);
+        }
+    }
+
+    @Override
+    public void endTable() throws DataSetException {
+        try {
+            flushBlock();
+            out.writeByte(BinarySnapshotFormat.END_TABLE);
+        } catch (IOException e) {
+            throw new DataSetException(e);
+        }
+    }
+
+    @Override
+    public void row(Object[] values) throws DataSetException {
+        block.add(values);
+        if (block.size() >= blockRows) {
+            try {
+                flushBlock();
+            } catch (IOException e) {
+                throw new DataSetException(e);
+            }
+        }
+    }
+
+    /**
+     * バッファした行をカラム毎にまとめて書き出します
+     *
+     * @throws IOException
+     */
+    private void flushBlock() throws IOException {
+        if (block.isEmpty()) {
+            return;
+        }
+
+        out.writeByte(BinarySnapshotFormat.BLOCK);
+        BinarySnapshotFormat.writeVarLong(out, block.size());
+
+        byte[] kinds = new byte[block.size()];
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream values = new DataOutputStream(buffer);
+        for (int column = 0; column < encodings.length; column++) {
+            buffer.reset();
+            for (int row = 0; row < kinds.length; row++) {
+                Object value = block.get(row)[column];
+                if (value == null) {
+                    kinds[row] = BinarySnapshotFormat.VALUE_NULL;
+                    continue;
+                }
+                try {
+                    kinds[row] = BinarySnapshotFormat.writeValue(values, encodings[column], value);
+                } catch (IllegalArgumentException e) {
+                    // 型どおりに変換できない値は文字列として保持する
+                    BinarySnapshotFormat.writeBytes(values, value.toString().getBytes(StandardCharsets.UTF_8));
+                    kinds[row] = BinarySnapshotFormat.VALUE_STRING;
+                }
+            }
+            out.write(kinds);
+            buffer.writeTo(out);
+        }
+
+        block.clear();
+    }
+}
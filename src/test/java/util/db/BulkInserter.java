@@ -0,0 +1,549 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.sql.Types;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.IDataSet;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.TypeCastException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.TestMetrics;
+
+/**
+ * DB毎の一括投入機能でINSERTを行うクラス<br>
+ * <br>
+ * JDBCドライバのクラス名からDBの種類を判定し、一括投入の手段がある場合はそちらを使用します。
+ * <ul>
+ * <li>MySQL : 行を一時ファイルに書き出し、LOAD DATA LOCAL INFILE で投入(サーバーの local_infile と、接続URLの allowLoadLocalInfile=true が必要)<br>
+ * 重複キー・型変換のエラーは警告となるため、警告がある場合・投入件数が行数と異なる場合は失敗とします
+ * <li>PostgreSQL : 行を一時ファイルに書き出し、CopyManager(COPY FROM STDIN)で投入
+ * <li>H2 : 行を一時ファイルに書き出し、INSERT ... SELECT FROM CSVREAD で投入
+ * <li>SQLite : 一括投入の構文が無いため、全テーブルを1トランザクションとし、synchronous=OFF・複数行VALUESでバッチINSERT
+ * </ul>
+ * 全件削除は、自動コミットが有効な場合に限り TRUNCATE で行います(失敗した場合はDELETE)。<br>
+ * 一括投入できない場合(ドライバ・サーバーの設定が無い、バイナリのカラムを含むテーブル)は、{@link BatchInserter}のバッチINSERTで投入します。<br>
+ * ドライバのクラスはリフレクションで参照するため、使用しないDBのドライバは不要です。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class BulkInserter extends BatchInserter {
+    protected static final Logger log = LoggerFactory.getLogger(BulkInserter.class);
+
+    /**
+     * DBの種類
+     */
+    public enum Dialect {
+        MYSQL, POSTGRESQL, SQLITE, H2,
+        /** 一括投入に対応していないDB **/
+        OTHER;
+
+        /**
+         * JDBCドライバのクラス名からDBの種類を判定します
+         *
+         * @param driverClassName JDBCドライバのクラス名
+         * @return DBの種類
+         */
+        public static Dialect of(String driverClassName) {
+            if (driverClassName == null) {
+                return OTHER;
+            }
+            String name = driverClassName.toLowerCase();
+            if (name.contains("mysql") || name.contains("mariadb")) {
+                return MYSQL;
+            } else if (name.contains("postgresql")) {
+                return POSTGRESQL;
+            } else if (name.contains("sqlite")) {
+                return SQLITE;
+            } else if (name.contains(".h2.")) {
+                return H2;
+            }
+            return OTHER;
+        }
+
+        /**
+         * 接続URLからDBの種類を判定します
+         *
+         * @param conn DBコネクション
+         * @return DBの種類
+         * @throws SQLException
+         */
+        public static Dialect detect(Connection conn) throws SQLException {
+            String url = conn.getMetaData().getURL();
+            if (url == null) {
+                return OTHER;
+            }
+            url = url.toLowerCase();
+            if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:")) {
+                return MYSQL;
+            } else if (url.startsWith("jdbc:postgresql:")) {
+                return POSTGRESQL;
+            } else if (url.startsWith("jdbc:sqlite:")) {
+                return SQLITE;
+            } else if (url.startsWith("jdbc:h2:")) {
+                return H2;
+            }
+            return OTHER;
+        }
+
+        /**
+         * 結果セットを全件メモリに展開せず、少しずつ取得するためのフェッチサイズを返します<br>
+         * MySQLは接続URLにuseCursorFetch=trueが無い場合、Integer.MIN_VALUE(1行ずつ返す)のみ有効なため、そちらを返します。
+         * この場合、結果セットを閉じるまで同じコネクションで他のSQLは実行できません。
+         *
+         * @param conn DBコネクション
+         * @param fetchSize 一度に取得する行数
+         * @return フェッチサイズ
+         * @throws SQLException
+         */
+        public int streamingFetchSize(Connection conn, int fetchSize) throws SQLException {
+            if (this == MYSQL && !conn.getMetaData().getURL().toLowerCase().contains("usecursorfetch=true")) {
+                return Integer.MIN_VALUE;
+            }
+            return fetchSize;
+        }
+
+        /**
+         * 結果セットを少しずつ取得する前の準備をします<br>
+         * PostgreSQLは自動コミットが有効な場合フェッチサイズを無視して全件を取得するため、読み取りの間のみ自動コミットを無効にします。
+         *
+         * @param conn DBコネクション
+         * @return 自動コミットを無効にした場合はtrue({@link #endStreaming(Connection, boolean)}に渡す)
+         * @throws SQLException
+         */
+        public boolean beginStreaming(Connection conn) throws SQLException {
+            if (this == POSTGRESQL && conn.getAutoCommit()) {
+                conn.setAutoCommit(false);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * {@link #beginStreaming(Connection)}で無効にした自動コミットを元に戻します
+         *
+         * @param conn DBコネクション
+         * @param begun beginStreamingの戻り値
+         * @throws SQLException
+         */
+        public void endStreaming(Connection conn, boolean begun) throws SQLException {
+            if (begun) {
+                conn.commit();
+                conn.setAutoCommit(true);
+            }
+        }
+
+        /**
+         * @return 行を一時ファイルに書き出して一括投入するDBか
+         */
+        private boolean isFileLoad() {
+            return this == MYSQL || this == POSTGRESQL || this == H2;
+        }
+    }
+
+    /** 一括投入の失敗時に報告する警告の最大数 **/
+    private static final int MAX_WARNINGS = 10;
+
+    /** DBの種類 **/
+    private final Dialect dialect;
+
+    /** 一括投入が使えるか(最初のテーブルで判定) **/
+    private Boolean available;
+
+    // テーブル毎の状態(一括投入時)
+    private boolean bulk;
+    private String tableName;
+    private String[] columnNames;
+    private DataType[] dataTypes;
+    private File dataFile;
+    private Writer writer;
+    private long rows;
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn DBコネクション
+     * @param dialect DBの種類
+     * @param batchSize 一括投入できない場合のバッチサイズ
+     * @param multiRowValues 一括投入できない場合に複数行VALUESに書き換えるか(SQLiteは常に書き換え)
+     */
+    public BulkInserter(Connection conn, Dialect dialect, int batchSize, boolean multiRowValues) {
+        super(conn, batchSize, multiRowValues || dialect == Dialect.SQLITE);
+        this.dialect = dialect;
+    }
+
+    /**
+     * @return DBの種類
+     */
+    public Dialect getDialect() {
+        return dialect;
+    }
+
+    /**
+     * 指定したテーブルを配列の後ろから全件削除します<br>
+     * 自動コミットが有効な場合はTRUNCATEを使用します(外部キーで参照されている等で失敗した場合はDELETE)。
+     * TRUNCATEが暗黙にコミットされるDBがあるため、呼び出し側でトランザクションを開始している場合はDELETEで削除します。
+     *
+     * @param tableNames テーブル名の配列
+     * @throws SQLException
+     */
+    @Override
+    public void deleteAll(String[] tableNames) throws SQLException {
+        if (!dialect.isFileLoad() || !conn.getAutoCommit()) {
+            super.deleteAll(tableNames);
+            return;
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            for (int i = tableNames.length - 1; i >= 0; i--) {
+                try {
+                    stmt.executeUpdate("TRUNCATE TABLE " + tableNames[i]);
+                } catch (SQLException e) {
+                    log.debug("Truncate " + tableNames[i] + " fail. Delete instead. (" + e.getMessage() + ")");
+                    stmt.executeUpdate("DELETE FROM " + tableNames[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * データセットの内容を投入します<br>
+     * SQLiteの場合、自動コミットが有効なら全テーブルを1トランザクションとし、投入中は synchronous=OFF とします。
+     *
+     * @param dataSet データセット
+     * @param phase テーブル毎の処理時間・行数を記録する際のフェーズ名
+     * @throws DataSetException
+     */
+    @Override
+    public void insert(IDataSet dataSet, String phase) throws DataSetException {
+        if (dialect != Dialect.SQLITE) {
+            super.insert(dataSet, phase);
+            return;
+        }
+
+        try {
+            if (!conn.getAutoCommit()) {
+                super.insert(dataSet, phase);
+                return;
+            }
+
+            String synchronous = pragma("synchronous");
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("PRAGMA synchronous = OFF");
+            }
+            conn.setAutoCommit(false);
+            try {
+                super.insert(dataSet, phase);
+                conn.commit();
+            } catch (DataSetException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("PRAGMA synchronous = " + synchronous);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DataSetException(e);
+        }
+    }
+
+    @Override
+    public void startTable(ITableMetaData metaData) throws DataSetException {
+        bulk = false;
+        if (dialect.isFileLoad()) {
+            try {
+                tableName = metaData.getTableName();
+                Column[] columns = metaData.getColumns();
+                columnNames = new String[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    columnNames[i] = columns[i].getColumnName();
+                }
+                dataTypes = getDataTypes(tableName, columnNames);
+                bulk = !hasBinaryColumn() && isAvailable();
+            } catch (SQLException e) {
+                throw new DataSetException(e);
+            }
+        }
+        if (!bulk) {
+            super.startTable(metaData);
+            return;
+        }
+
+        try {
+            dataFile = File.createTempFile("bulk_" + tableName + "_", ".txt");
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dataFile), StandardCharsets.UTF_8));
+            rows = 0;
+            if (dialect == Dialect.H2) {
+                writeRow(columnNames);
+            }
+        } catch (IOException e) {
+            throw new DataSetException("Create bulk load file of " + tableName + " fail.", e);
+        }
+    }
+
+    @Override
+    public void row(Object[] values) throws DataSetException {
+        if (!bulk) {
+            super.row(values);
+            return;
+        }
+
+        try {
+            Object[] texts = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+                texts[i] = toText(dataTypes[i].typeCast(values[i]));
+            }
+            writeRow(texts);
+            rows++;
+        } catch (TypeCastException | IOException e) {
+            throw new DataSetException("Write bulk load file of " + tableName + " fail.", e);
+        }
+    }
+
+    @Override
+    public void endTable() throws DataSetException {
+        if (!bulk) {
+            super.endTable();
+            return;
+        }
+
+        try {
+            writer.close();
+            long start = TestMetrics.start();
+            load();
+            TestMetrics.time("bulk.load", tableName, start);
+            rowCount += rows;
+            log.debug("Bulk load " + rows + " rows into " + tableName + ".");
+        } catch (IOException | SQLException e) {
+            throw new DataSetException("Bulk load into " + tableName + " fail.", e);
+        } finally {
+            dataFile.delete();
+            writer = null;
+            dataFile = null;
+        }
+    }
+
+    /**
+     * 一時ファイルをDBの一括投入機能で投入します
+     */
+    private void load() throws SQLException, IOException {
+        StringBuilder columns = new StringBuilder();
+        for (int i = 0; i < columnNames.length; i++) {
+            columns.append(i == 0 ? "" : ", ").append(columnNames[i]);
+        }
+
+        switch (dialect) {
+        case MYSQL:
+            try (Statement stmt = conn.createStatement()) {
+                int loaded = stmt.executeUpdate(loadDataSql(dataFile) + " (" + columns + ")");
+                verifyLoaded(loaded, stmt.getWarnings());
+            }
+            break;
+        case POSTGRESQL:
+            try (Reader reader = new InputStreamReader(new FileInputStream(dataFile), StandardCharsets.UTF_8)) {
+                Object copyManager = copyManager();
+                Object loaded = copyManager.getClass().getMethod("copyIn", String.class, Reader.class)
+                        .invoke(copyManager, "COPY " + tableName + " (" + columns + ") FROM STDIN", reader);
+                verifyLoaded(((Number) loaded).longValue(), null);
+            } catch (InvocationTargetException e) {
+                throw e.getCause() instanceof SQLException ? (SQLException) e.getCause()
+                        : new SQLException(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new SQLException(e);
+            }
+            break;
+        case H2:
+            try (Statement stmt = conn.createStatement()) {
+                verifyLoaded(stmt.executeUpdate("INSERT INTO " + tableName + " (" + columns + ") SELECT * FROM CSVREAD("
+                        + quote(dataFile.getAbsolutePath()) + ", NULL, 'charset=UTF-8 fieldSeparator=' || CHAR(9))"),
+                        null);
+            }
+            break;
+        default:
+            throw new SQLException(dialect + " does not support bulk load.");
+        }
+    }
+
+    /**
+     * 投入された件数と警告を確認します<br>
+     * MySQLの LOAD DATA LOCAL INFILE は重複キー・型変換のエラーを警告とし、行を読み飛ばす・値を丸めて投入を続けるため、
+     * 警告がある場合、及び投入件数が書き出した行数と異なる場合は失敗とします。
+     *
+     * @param loaded 投入された件数
+     * @param warnings 投入時の警告 無い場合はnull
+     * @throws SQLException
+     */
+    private void verifyLoaded(long loaded, SQLWarning warnings) throws SQLException {
+        if (loaded == rows && warnings == null) {
+            return;
+        }
+
+        StringBuilder message = new StringBuilder(tableName).append(" loaded ").append(loaded).append(" of ")
+                .append(rows).append(" rows.");
+        int count = 0;
+        for (SQLWarning warning = warnings; warning != null; warning = warning.getNextWarning()) {
+            if (++count > MAX_WARNINGS) {
+                message.append(" ...");
+                break;
+            }
+            message.append(' ').append(warning.getMessage());
+        }
+        throw new SQLException(message.toString(), warnings);
+    }
+
+    /**
+     * 一括投入が使えるかを、最初のテーブルで1度だけ判定します<br>
+     * MySQLは空のファイルを LOAD DATA LOCAL INFILE し、サーバー・ドライバの両方で許可されているか確認します。
+     */
+    private boolean isAvailable() {
+        if (available != null) {
+            return available;
+        }
+
+        available = true;
+        try {
+            if (dialect == Dialect.MYSQL) {
+                File empty = File.createTempFile("bulk_probe_", ".txt");
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.executeUpdate(loadDataSql(empty));
+                } finally {
+                    empty.delete();
+                }
+            } else if (dialect == Dialect.POSTGRESQL) {
+                copyManager();
+            }
+        } catch (Exception e) {
+            log.warn("Bulk load is not available for " + dialect + ". Fall back to batch insert. (" + e + ")");
+            available = false;
+        }
+        return available;
+    }
+
+    private String loadDataSql(File file) {
+        return "LOAD DATA LOCAL INFILE " + quote(file.getAbsolutePath().replace('\\', '/'))
+                + " INTO TABLE " + tableName + " CHARACTER SET utf8mb4";
+    }
+
+    private Object copyManager() throws SQLException, ReflectiveOperationException {
+        Class<?> pgConnection = Class.forName("org.postgresql.PGConnection");
+        return pgConnection.getMethod("getCopyAPI").invoke(conn.unwrap(pgConnection));
+    }
+
+    private boolean hasBinaryColumn() {
+        for (DataType dataType : dataTypes) {
+            switch (dataType.getSqlType()) {
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return true;
+            default:
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 値を一時ファイルに書き出す文字列にします
+     *
+     * @param value 型変換済みの値
+     * @return 文字列 nullの場合はnull
+     */
+    private String toText(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Boolean) {
+            if (dialect == Dialect.MYSQL) {
+                return (Boolean) value ? "1" : "0";
+            }
+            return value.toString();
+        }
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).toPlainString();
+        }
+        return value.toString();
+    }
+
+    /**
+     * 1行を書き出します<br>
+     * MySQL・PostgreSQLはタブ区切りのテキスト形式(NULLは\N、\・タブ・改行は\でエスケープ)、
+     * H2はタブ区切りのCSV形式(NULLは空、値は"で囲む)とします。
+     */
+    private void writeRow(Object[] values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                writer.write('\t');
+            }
+            String value = (String) values[i];
+            if (dialect == Dialect.H2) {
+                if (value != null) {
+                    writer.write('"');
+                    writer.write(value.replace("\"", "\"\""));
+                    writer.write('"');
+                }
+            } else if (value == null) {
+                writer.write("\\N");
+            } else {
+                for (int c = 0; c < value.length(); c++) {
+                    char ch = value.charAt(c);
+                    switch (ch) {
+                    case '\\':
+                        writer.write("\\\\");
+                        break;
+                    case '\t':
+                        writer.write("\\t");
+                        break;
+                    case '\n':
+                        writer.write("\\n");
+                        break;
+                    case '\r':
+                        writer.write("\\r");
+                        break;
+                    default:
+                        writer.write(ch);
+                        break;
+                    }
+                }
+            }
+        }
+        writer.write('\n');
+    }
+
+    private String pragma(String name) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery("PRAGMA " + name)) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+}
@@ -0,0 +1,430 @@
+/**
+ *
+ */
+package util.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.dbunit.DatabaseUnitException;
+import org.dbunit.database.DatabaseConnection;
+import org.dbunit.database.IDatabaseConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * フォーク(JVM)全体で共有するDBコネクションプール<br>
+ * <br>
+ * 接続先(URL・ユーザー)毎にプールを持ち、テストクラスをまたいで物理コネクションを再利用します。<br>
+ * 貸し出したコネクションはclose()でプールに返却されます。<br>
+ * 物理コネクション毎にdbUnitのIDatabaseConnectionをキャッシュし、メタデータの再読み込みを避けます。<br>
+ * 返却されないまま leakDetectionThreshold を超えたコネクションは、貸出元のスタックトレースと共に警告を出力します。<br>
+ * 物理コネクションの生成と、待機中のコネクションの確認(isValid)はロックの外で行います。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class ConnectionPool {
+    protected static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+
+    /** 既定の最大コネクション数 **/
+    public static final int DEFAULT_MAX_SIZE = 4;
+
+    /** 既定のリーク検出時間(ミリ秒) **/
+    public static final long DEFAULT_LEAK_DETECTION_THRESHOLD = 60000L;
+
+    /** 貸出待ちの上限時間(ミリ秒) **/
+    private static final long BORROW_TIMEOUT = 30000L;
+
+    /** 待機中のコネクションの確認の上限時間(秒) **/
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    /** リーク検出の間隔(ミリ秒) **/
+    private static final long LEAK_DETECTION_INTERVAL = 1000L;
+
+    /** 接続先毎のプール **/
+    private static final Map<String, ConnectionPool> POOLS = new HashMap<String, ConnectionPool>();
+
+    /** リーク検出用スレッド **/
+    private static ScheduledExecutorService leakDetector;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxSize;
+    private final long leakDetectionThreshold;
+
+    /** 待機中の物理コネクション **/
+    private final Deque<Connection> idle = new ArrayDeque<Connection>();
+
+    /** 貸出中のコネクション **/
+    private final List<Lease> leased = new ArrayList<Lease>();
+
+    /** 物理コネクション毎のdbUnitコネクション **/
+    private final Map<Connection, IDatabaseConnection> databaseConnections = new IdentityHashMap<Connection, IDatabaseConnection>();
+
+    /** 生成済みの物理コネクション数 **/
+    private int size;
+
+    private ConnectionPool(String url, String username, String password, int maxSize, long leakDetectionThreshold) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = Math.max(1, maxSize);
+        this.leakDetectionThreshold = leakDetectionThreshold;
+    }
+
+    /**
+     * 接続先に対応するプールを取得します 無ければ生成します
+     *
+     * @param driverClassName JDBCドライバクラス名
+     * @param url 接続URL
+     * @param username ユーザー
+     * @param password パスワード
+     * @param maxSize 最大コネクション数
+     * @param leakDetectionThreshold リーク検出時間(ミリ秒) 0以下で検出しない
+     * @return プール
+     * @throws ClassNotFoundException
+     */
+    public static ConnectionPool of(String driverClassName, String url, String username, String password,
+            int maxSize, long leakDetectionThreshold) throws ClassNotFoundException {
+        String key = url + "|" + username;
+        synchronized (POOLS) {
+            ConnectionPool pool = POOLS.get(key);
+            if (pool == null) {
+                Class.forName(driverClassName);
+                pool = new ConnectionPool(url, username, password, maxSize, leakDetectionThreshold);
+                POOLS.put(key, pool);
+                if (POOLS.size() == 1) {
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        @Override
+                        public void run() {
+                            shutdownAll();
+                        }
+                    });
+                }
+                if (leakDetectionThreshold > 0) {
+                    startLeakDetector();
+                }
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * コネクションを借ります 返却はclose()で行ってください
+     *
+     * @return コネクション
+     * @throws SQLException
+     */
+    public Connection borrow() throws SQLException {
+        return borrow(BORROW_TIMEOUT);
+    }
+
+    /**
+     * コネクションを借ります 返却はclose()で行ってください<br>
+     * 待機中のコネクションは貸し出す前にisValid()で確認し、使えないものは破棄します。
+     *
+     * @param timeout 全てのコネクションが貸出中の場合に返却を待つ上限時間(ミリ秒)
+     * @return コネクション
+     * @throws SQLException 上限時間内に借りられなかった場合
+     */
+    public Connection borrow(long timeout) throws SQLException {
+        long deadline = System.currentTimeMillis() + timeout;
+        Connection physical = null;
+        while (physical == null) {
+            synchronized (this) {
+                while (idle.isEmpty() && size >= maxSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SQLException(
+                                "Timeout to borrow connection. All " + maxSize + " connections are in use.");
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException(e);
+                    }
+                }
+                physical = idle.pollFirst();
+                if (physical == null) {
+                    // 枠のみ確保し、接続はロックの外で行う
+                    size++;
+                }
+            }
+
+            if (physical == null) {
+                physical = connect();
+            } else if (!isValid(physical)) {
+                close(physical);
+                synchronized (this) {
+                    discard(physical);
+                    notifyAll();
+                }
+                physical = null;
+            }
+        }
+
+        Lease lease = new Lease(physical);
+        synchronized (this) {
+            leased.add(lease);
+        }
+        return lease.proxy;
+    }
+
+    /**
+     * 確保した枠で物理コネクションを生成します 失敗した場合は枠を戻します
+     *
+     * @return 物理コネクション
+     * @throws SQLException
+     */
+    private Connection connect() throws SQLException {
+        try {
+            Connection physical = DriverManager.getConnection(url, username, password);
+            log.debug("Create pooled connection. (" + size + "/" + maxSize + ")");
+            return physical;
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 待機中のコネクションが使えるかを確認します
+     */
+    private static boolean isValid(Connection physical) {
+        try {
+            return physical.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            log.debug("Validate pooled connection fail.", e);
+            return false;
+        }
+    }
+
+    /**
+     * 借りたコネクションに対応するdbUnitコネクションを取得します<br>
+     * 物理コネクション毎に生成済みのものを再利用します。
+     *
+     * @param conn borrow()で借りたコネクション プール外のコネクションの場合は都度生成します
+     * @return dbUnitコネクション
+     * @throws DatabaseUnitException
+     */
+    public static IDatabaseConnection getDatabaseConnection(Connection conn) throws DatabaseUnitException {
+        if (conn != null && Proxy.isProxyClass(conn.getClass())
+                && Proxy.getInvocationHandler(conn) instanceof Lease) {
+            Lease lease = (Lease) Proxy.getInvocationHandler(conn);
+            return lease.pool().databaseConnectionOf(lease.physical);
+        }
+        return new DatabaseConnection(conn);
+    }
+
+    /**
+     * @return 貸出中のコネクション数
+     */
+    public synchronized int getActiveCount() {
+        return leased.size();
+    }
+
+    /**
+     * @return 待機中のコネクション数
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return 返却されないままリーク検出時間を超え、警告した貸出中のコネクション数
+     */
+    public synchronized int getLeakedCount() {
+        int count = 0;
+        for (Lease lease : leased) {
+            if (lease.reported) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private synchronized IDatabaseConnection databaseConnectionOf(Connection physical) throws DatabaseUnitException {
+        IDatabaseConnection connection = databaseConnections.get(physical);
+        if (connection == null) {
+            connection = new DatabaseConnection(physical);
+            databaseConnections.put(physical, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * コネクションを返却します トランザクションが残っていればロールバックします
+     *
+     * @param lease 貸出情報
+     */
+    private synchronized void giveBack(Lease lease) {
+        leased.remove(lease);
+        if (lease.reported) {
+            log.info("Leaked connection was returned after " + (System.currentTimeMillis() - lease.borrowedAt) + "ms.");
+        }
+
+        try {
+            if (!lease.physical.isClosed()) {
+                if (!lease.physical.getAutoCommit()) {
+                    lease.physical.rollback();
+                    lease.physical.setAutoCommit(true);
+                }
+                idle.addFirst(lease.physical);
+            } else {
+                discard(lease.physical);
+            }
+        } catch (SQLException e) {
+            log.warn("Discard broken pooled connection.", e);
+            close(lease.physical);
+            discard(lease.physical);
+        }
+        notifyAll();
+    }
+
+    private void discard(Connection physical) {
+        databaseConnections.remove(physical);
+        size--;
+    }
+
+    /**
+     * 返却されていないコネクションを警告します
+     */
+    private synchronized void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (Lease lease : leased) {
+            if (!lease.reported && now - lease.borrowedAt > leakDetectionThreshold) {
+                lease.reported = true;
+                log.warn("Connection leak detected. It has not been returned for " + (now - lease.borrowedAt)
+                        + "ms. Borrowed at :", lease.borrowedBy);
+            }
+        }
+    }
+
+    private synchronized void shutdown() {
+        for (Lease lease : leased) {
+            log.warn("Connection was not returned until shutdown. Borrowed at :", lease.borrowedBy);
+        }
+        for (Connection physical : idle) {
+            close(physical);
+        }
+        idle.clear();
+    }
+
+    private static void shutdownAll() {
+        synchronized (POOLS) {
+            for (ConnectionPool pool : POOLS.values()) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static synchronized void startLeakDetector() {
+        if (leakDetector != null) {
+            return;
+        }
+        leakDetector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "connection-leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // 検出時間はプール毎に異なるため、一定の間隔で全プールを確認する
+        leakDetector.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (POOLS) {
+                    for (ConnectionPool pool : POOLS.values()) {
+                        pool.detectLeaks();
+                    }
+                }
+            }
+        }, LEAK_DETECTION_INTERVAL, LEAK_DETECTION_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    private static void close(Connection physical) {
+        try {
+            physical.close();
+        } catch (SQLException e) {
+            log.debug("Close pooled connection fail.", e);
+        }
+    }
+
+    /**
+     * 貸出情報 兼 貸し出すコネクションのProxy
+     */
+    private class Lease implements InvocationHandler {
+        private final Connection physical;
+        private final Connection proxy;
+        private final long borrowedAt = System.currentTimeMillis();
+        private final Throwable borrowedBy = new Throwable("borrowed here");
+        private boolean closed;
+        private boolean reported;
+
+        private Lease(Connection physical) {
+            this.physical = physical;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, this);
+        }
+
+        private ConnectionPool pool() {
+            return ConnectionPool.this;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("close".equals(name)) {
+                if (!closed) {
+                    closed = true;
+                    giveBack(this);
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) {
+                return closed || physical.isClosed();
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+            if ("toString".equals(name)) {
+                return "Pooled" + physical;
+            }
+            if (closed) {
+                throw new SQLException("Connection is already returned to the pool.");
+            }
+
+            try {
+                return method.invoke(physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dbunit.dataset.IDataSet;
+
+import util.TestConfiguration;
+
+/**
+ * 読み込み済みデータセットのJVM全体でのキャッシュ<br>
+ * <br>
+ * データファイルのパス・更新日時・除外カラム情報をキーとして、カラム除外済みのIDataSetを保持します。<br>
+ * 同一フォーク内の複数テストクラスで共有するpre_data等の解析を1回で済ませるために使用します。<br>
+ * 保持件数・推定容量(データファイルのサイズ)の上限を超えた場合は、最も長く使われていないものから破棄します。
+ * 推定容量が上限を超えるデータファイルはキャッシュしません。<br>
+ * 上限はJVM全体で1つのため、初回利用時にTestConfiguration.get()(テストクラス毎の置き換えを含まない)から設定します。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class DataSetCache {
+
+    /** 既定の最大保持件数 **/
+    public static final int DEFAULT_MAX_SIZE = 100;
+
+    /** 既定の最大推定容量(バイト) **/
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024L * 1024L;
+
+    /** 最大保持件数 **/
+    private static int maxSize = DEFAULT_MAX_SIZE;
+
+    /** 最大推定容量(バイト) **/
+    private static long maxBytes = DEFAULT_MAX_BYTES;
+
+    /** 上限を設定済みか **/
+    private static boolean initialized;
+
+    /** 保持しているデータセットの推定容量の合計(バイト) **/
+    private static long totalBytes;
+
+    /** キャッシュ本体(アクセス順) **/
+    private static final LinkedHashMap<String, Cached> CACHE = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+
+    /** ヒット数 **/
+    private static final AtomicLong HIT = new AtomicLong();
+
+    /** ミス数 **/
+    private static final AtomicLong MISS = new AtomicLong();
+
+    /**
+     * 保持しているデータセットと推定容量
+     */
+    private static class Cached {
+        private final IDataSet dataSet;
+        private final long bytes;
+
+        private Cached(IDataSet dataSet, long bytes) {
+            this.dataSet = dataSet;
+            this.bytes = bytes;
+        }
+    }
+
+    private DataSetCache() {
+    }
+
+    /**
+     * 上限を設定します 初回利用前(またはclear()後)のみ設定し、以降の呼び出しは無視します
+     *
+     * @param size 最大保持件数 0の場合はキャッシュしません
+     * @param bytes 最大推定容量(バイト) 0の場合はキャッシュしません
+     * @return 設定した場合はtrue
+     */
+    public static boolean initialize(int size, long bytes) {
+        synchronized (CACHE) {
+            if (initialized) {
+                return false;
+            }
+            maxSize = size;
+            maxBytes = bytes;
+            initialized = true;
+            evict();
+            return true;
+        }
+    }
+
+    /**
+     * キャッシュからデータセットを取得します
+     *
+     * @param dataFile データファイル(CSVの場合はディレクトリ)
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @return データセット キャッシュに無い、またはファイルが更新されている場合はnull
+     */
+    public static IDataSet get(File dataFile, Map<String, String[]> excludedColumns) {
+        Cached cached;
+        synchronized (CACHE) {
+            initialize();
+            cached = CACHE.get(keyOf(dataFile, excludedColumns));
+        }
+
+        (cached == null ? MISS : HIT).incrementAndGet();
+        return cached == null ? null : cached.dataSet;
+    }
+
+    /**
+     * データセットをキャッシュに格納します 推定容量が上限を超える場合は格納しません
+     *
+     * @param dataFile データファイル(CSVの場合はディレクトリ)
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @param dataSet カラム除外済みのデータセット
+     */
+    public static void put(File dataFile, Map<String, String[]> excludedColumns, IDataSet dataSet) {
+        long bytes = sizeOf(dataFile);
+        synchronized (CACHE) {
+            initialize();
+            if (maxSize <= 0 || bytes > maxBytes) {
+                return;
+            }
+            Cached previous = CACHE.put(keyOf(dataFile, excludedColumns), new Cached(dataSet, bytes));
+            totalBytes += bytes - (previous == null ? 0 : previous.bytes);
+            evict();
+        }
+    }
+
+    /**
+     * キャッシュを破棄し、ヒット数・ミス数・上限の設定をリセットします
+     */
+    public static void clear() {
+        synchronized (CACHE) {
+            CACHE.clear();
+            totalBytes = 0;
+            maxSize = DEFAULT_MAX_SIZE;
+            maxBytes = DEFAULT_MAX_BYTES;
+            initialized = false;
+        }
+        HIT.set(0);
+        MISS.set(0);
+    }
+
+    /**
+     * @return ヒット数
+     */
+    public static long getHitCount() {
+        return HIT.get();
+    }
+
+    /**
+     * @return ミス数
+     */
+    public static long getMissCount() {
+        return MISS.get();
+    }
+
+    /**
+     * @return 現在の保持件数
+     */
+    public static int size() {
+        synchronized (CACHE) {
+            return CACHE.size();
+        }
+    }
+
+    /**
+     * @return 現在の推定容量の合計(バイト)
+     */
+    public static long bytes() {
+        synchronized (CACHE) {
+            return totalBytes;
+        }
+    }
+
+    /**
+     * 未設定であれば、設定ファイルの上限を設定します
+     */
+    private static void initialize() {
+        if (!initialized) {
+            TestConfiguration configuration = TestConfiguration.get();
+            initialize(configuration.getDbUnitCacheSize(), configuration.getDbUnitCacheMaxBytes());
+        }
+    }
+
+    /**
+     * 上限に収まるまで、最も長く使われていないものから破棄します
+     */
+    private static void evict() {
+        Iterator<Cached> eldest = CACHE.values().iterator();
+        while (eldest.hasNext() && (CACHE.size() > maxSize || totalBytes > maxBytes)) {
+            totalBytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * データセットの推定容量として、データファイル(ディレクトリの場合は配下のファイル)のサイズを返します
+     */
+    private static long sizeOf(File dataFile) {
+        File[] children = dataFile.listFiles();
+        if (children == null) {
+            return dataFile.length();
+        }
+        long bytes = 0;
+        for (File child : children) {
+            bytes += child.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * キャッシュのキーを生成します<br>
+     * 更新日時は、ディレクトリ(CSV)の場合は配下のファイルの最新の更新日時とします
+     *
+     * @param dataFile データファイル
+     * @param excludedColumns 除外するテーブル-カラム情報
+     * @return キー
+     */
+    private static String keyOf(File dataFile, Map<String, String[]> excludedColumns) {
+        long lastModified = dataFile.lastModified();
+        File[] children = dataFile.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                lastModified = Math.max(lastModified, child.lastModified());
+            }
+        }
+
+        StringBuilder key = new StringBuilder(dataFile.getAbsoluteFile().toURI().normalize().getPath())
+                .append('@').append(lastModified);
+        if (excludedColumns != null) {
+            for (Entry<String, String[]> entry : new TreeMap<String, String[]>(excludedColumns).entrySet()) {
+                String[] columns = entry.getValue().clone();
+                Arrays.sort(columns);
+                key.append('|').append(entry.getKey()).append('=').append(Arrays.toString(columns));
+            }
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+package util.db;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.ITable;
+
+/**
+ * データリソース(pre_data等)の投入状況のJVM全体での記録<br>
+ * <br>
+ * DB・テーブル毎に、テストクラスの開始時(リストアで戻る状態)のテーブルの内容が、
+ * 内容のハッシュで識別したデータリソースと一致していたかを記録します。<br>
+ * 一致しなかったことを記録済みのデータリソースは、DBとの照合を行わずにそのまま投入し、
+ * それ以外は照合して一致すれば投入を省略するために使用します。<br>
+ * 記録は照合を省くかの判断にのみ使い、投入を省略する場合は必ずDBと照合するため、記録が古くても誤った省略は起きません。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class FixtureRegistry {
+
+    /** DB・テーブル → 開始時の状態とデータリソースの比較結果 **/
+    private static final Map<String, Baseline> BASELINES = new HashMap<String, Baseline>();
+
+    /** 投入を省略した数 **/
+    private static final AtomicLong SKIPPED = new AtomicLong();
+
+    /**
+     * 開始時の状態とデータリソースの比較結果
+     */
+    private static final class Baseline {
+        private final long fixtureHash;
+        private final boolean matches;
+
+        private Baseline(long fixtureHash, boolean matches) {
+            this.fixtureHash = fixtureHash;
+            this.matches = matches;
+        }
+    }
+
+    private FixtureRegistry() {
+    }
+
+    /**
+     * テストクラスの開始時の状態が、データリソースと一致していたかを取得します
+     *
+     * @param dbKey DBの識別子(keyOf()で取得)
+     * @param tableName テーブル名
+     * @param fixtureHash データリソースのテーブルの内容のハッシュ
+     * @return 一致していた場合はtrue 一致しなかった場合はfalse 未照合、または別のデータリソースと照合済みの場合はnull
+     */
+    public static Boolean matches(String dbKey, String tableName, long fixtureHash) {
+        Baseline baseline;
+        synchronized (BASELINES) {
+            baseline = BASELINES.get(keyOf(dbKey, tableName));
+        }
+        return baseline == null || baseline.fixtureHash != fixtureHash ? null : baseline.matches;
+    }
+
+    /**
+     * テストクラスの開始時の状態とデータリソースの照合結果を記録します
+     *
+     * @param dbKey DBの識別子(keyOf()で取得)
+     * @param tableName テーブル名
+     * @param fixtureHash データリソースのテーブルの内容のハッシュ
+     * @param matches 一致したか
+     */
+    public static void record(String dbKey, String tableName, long fixtureHash, boolean matches) {
+        synchronized (BASELINES) {
+            BASELINES.put(keyOf(dbKey, tableName), new Baseline(fixtureHash, matches));
+        }
+    }
+
+    /**
+     * DBの記録を破棄します(リストアに失敗し、開始時の状態が分からなくなった場合等)
+     *
+     * @param dbKey DBの識別子(keyOf()で取得)
+     */
+    public static void forget(String dbKey) {
+        synchronized (BASELINES) {
+            for (Iterator<String> keys = BASELINES.keySet().iterator(); keys.hasNext();) {
+                if (keys.next().startsWith(dbKey + "|")) {
+                    keys.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * 全ての記録を破棄し、省略した数をリセットします
+     */
+    public static void clear() {
+        synchronized (BASELINES) {
+            BASELINES.clear();
+        }
+        SKIPPED.set(0);
+    }
+
+    /**
+     * 投入を省略したことを数えます
+     */
+    public static void skipped() {
+        SKIPPED.incrementAndGet();
+    }
+
+    /**
+     * @return 投入を省略した数
+     */
+    public static long getSkippedCount() {
+        return SKIPPED.get();
+    }
+
+    /**
+     * @param conn DBコネクション
+     * @return DBの識別子(接続URL・ユーザー)
+     * @throws SQLException
+     */
+    public static String keyOf(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        return metaData.getURL() + "@" + metaData.getUserName();
+    }
+
+    /**
+     * データリソースのテーブルの内容から、行の順序に依存しないハッシュ値を求めます
+     *
+     * @param table データリソースのテーブル(除外カラム適用済み)
+     * @return ハッシュ値
+     * @throws DataSetException
+     */
+    public static long contentHash(ITable table) throws DataSetException {
+        Column[] columns = table.getTableMetaData().getColumns();
+        long columnsHash = 0xcbf29ce484222325L;
+        for (Column column : columns) {
+            columnsHash = TableFingerprint.hash(columnsHash, column.getColumnName().toUpperCase()
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+
+        long hash = columnsHash;
+        for (int row = 0; row < table.getRowCount(); row++) {
+            long rowHash = columnsHash;
+            for (Column column : columns) {
+                Object value = table.getValue(row, column.getColumnName());
+                rowHash = TableFingerprint.hash(rowHash,
+                        value == null ? null : value.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            hash += rowHash;
+        }
+        return hash;
+    }
+
+    private static String keyOf(String dbKey, String tableName) {
+        return dbKey + "|" + tableName.toUpperCase();
+    }
+}
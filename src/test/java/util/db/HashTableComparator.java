@@ -0,0 +1,407 @@
+/**
+ *
+ */
+package util.db;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.DataTypeException;
+import org.dbunit.dataset.datatype.TypeCastException;
+
+/**
+ * 行ハッシュによる、並び順に依存しないテーブル比較<br>
+ * <br>
+ * 期待値の各行を主キー(主キーが無い、または期待値に主キーのカラムが無い場合は行ハッシュ)で索引化し、
+ * DBの行を前方専用カーソルで1行ずつ読みながら多重集合として照合します。<br>
+ * DB側の行はメモリに保持しないため、ソートは不要で、メモリ使用量は期待値の行数と報告する行の数に抑えられます。
+ * DBの種類毎の、結果セットを少しずつ取得するための設定は{@link BulkInserter.Dialect}で行います。<br>
+ * 主キーで対応付けた行・行ハッシュが一致した行は、期待値の行と値を比較して確認します(ハッシュの衝突で一致と見なさない)。<br>
+ * 値はDB上のカラム定義のデータ型に変換してから比較するため、FlatXml等の文字列の期待値とも比較できます。<br>
+ * 結果は不足(期待値にのみある)・余剰(DBにのみある)・変更(主キーが同じで値が異なる)の件数と、その一部の行で報告します。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class HashTableComparator {
+
+    /** 既定の報告する行の数(種別毎) **/
+    public static final int DEFAULT_SAMPLE_SIZE = 10;
+
+    /** DBコネクション **/
+    private final Connection conn;
+
+    /** フェッチサイズ **/
+    private final int fetchSize;
+
+    /** 報告する行の数(種別毎) **/
+    private final int sampleSize;
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn DBコネクション
+     * @param fetchSize DBから一度に取得する行数
+     * @param sampleSize 不一致を報告する行の数(種別毎)
+     */
+    public HashTableComparator(Connection conn, int fetchSize, int sampleSize) {
+        this.conn = conn;
+        this.fetchSize = fetchSize;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * 期待値のテーブルと、DB上の同名テーブルを比較します<br>
+     * DB側は期待値にあるカラムのみを比較します。
+     *
+     * @param expected 期待値のテーブル
+     * @return 比較結果
+     * @throws SQLException
+     * @throws DataSetException
+     */
+    public Result compare(ITable expected) throws SQLException, DataSetException {
+        String tableName = expected.getTableMetaData().getTableName();
+        Column[] columns = expected.getTableMetaData().getColumns();
+        String[] columnNames = new String[columns.length];
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.length; i++) {
+            columnNames[i] = columns[i].getColumnName();
+            sql.append(i == 0 ? "" : ", ").append(columnNames[i]);
+        }
+        sql.append(" FROM ").append(tableName);
+
+        Result result = new Result(tableName, columnNames, expected.getRowCount(), sampleSize);
+        // ストリーミング中は同じコネクションで他のSQLを実行できないDBがあるため、主キーは先に取得する
+        int[] keyIndexes = keyIndexes(columnNames, TableFingerprint.getPrimaryKeys(conn, tableName));
+        BulkInserter.Dialect dialect = BulkInserter.Dialect.detect(conn);
+        boolean streaming = dialect.beginStreaming(conn);
+        try (Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(dialect.streamingFetchSize(conn, fetchSize));
+            try (ResultSet rs = stmt.executeQuery(sql.toString())) {
+                DataType[] dataTypes = getDataTypes(rs.getMetaData());
+                if (keyIndexes.length == 0) {
+                    compareAsMultiset(expected, rs, dataTypes, result);
+                } else {
+                    compareByKey(expected, rs, dataTypes, keyIndexes, result);
+                }
+            }
+        } catch (TypeCastException e) {
+            throw new DataSetException("Compare " + tableName + " fail.", e);
+        } finally {
+            dialect.endStreaming(conn, streaming);
+        }
+
+        return result;
+    }
+
+    /**
+     * 主キーで対応付けて比較します
+     */
+    private void compareByKey(ITable expected, ResultSet rs, DataType[] dataTypes, int[] keyIndexes, Result result)
+            throws SQLException, DataSetException, TypeCastException {
+        int expectedRows = expected.getRowCount();
+        Map<List<String>, Integer> index = new HashMap<List<String>, Integer>(expectedRows * 4 / 3 + 1);
+        for (int row = 0; row < expectedRows; row++) {
+            index.put(keyOf(expectedValues(expected, row, result.columnNames, dataTypes), keyIndexes), row);
+        }
+
+        result.keyIndexes = keyIndexes;
+        BitSet matched = new BitSet(expectedRows);
+        while (rs.next()) {
+            String[] values = actualValues(rs, dataTypes);
+            result.actualRows++;
+
+            Integer row = index.get(keyOf(values, keyIndexes));
+            if (row == null || matched.get(row)) {
+                result.extra++;
+                result.sample(result.extraRows, values, null);
+            } else {
+                matched.set(row);
+                String[] expectedValues = expectedValues(expected, row, result.columnNames, dataTypes);
+                if (!Arrays.equals(expectedValues, values)) {
+                    result.changed++;
+                    result.sample(result.changedRows, values, expectedValues);
+                }
+            }
+        }
+
+        for (int row = matched.nextClearBit(0); row < expectedRows; row = matched.nextClearBit(row + 1)) {
+            result.missing++;
+            result.sample(result.missingRows, expectedValues(expected, row, result.columnNames, dataTypes), null);
+        }
+    }
+
+    /**
+     * 行ハッシュの多重集合として比較します
+     */
+    private void compareAsMultiset(ITable expected, ResultSet rs, DataType[] dataTypes, Result result)
+            throws SQLException, DataSetException, TypeCastException {
+        // 行ハッシュ → 同じ値の行毎の{残り件数, 最初の行} (ハッシュが衝突した場合のみ複数)
+        Map<Long, List<int[]>> remaining = new HashMap<Long, List<int[]>>();
+        for (int row = 0; row < expected.getRowCount(); row++) {
+            String[] values = expectedValues(expected, row, result.columnNames, dataTypes);
+            long hash = hash(values);
+            List<int[]> entries = remaining.get(hash);
+            if (entries == null) {
+                entries = new ArrayList<int[]>(1);
+                remaining.put(hash, entries);
+            }
+            int[] entry = find(entries, expected, values, result.columnNames, dataTypes, false);
+            if (entry == null) {
+                entries.add(new int[] { 1, row });
+            } else {
+                entry[0]++;
+            }
+        }
+
+        while (rs.next()) {
+            String[] values = actualValues(rs, dataTypes);
+            result.actualRows++;
+
+            List<int[]> entries = remaining.get(hash(values));
+            int[] entry = entries == null ? null : find(entries, expected, values, result.columnNames, dataTypes, true);
+            if (entry == null) {
+                result.extra++;
+                result.sample(result.extraRows, values, null);
+            } else {
+                entry[0]--;
+            }
+        }
+
+        for (List<int[]> entries : remaining.values()) {
+            for (int[] entry : entries) {
+                if (entry[0] > 0) {
+                    result.missing += entry[0];
+                    result.sample(result.missingRows,
+                            expectedValues(expected, entry[1], result.columnNames, dataTypes), null);
+                }
+            }
+        }
+    }
+
+    /**
+     * 行ハッシュが同じ期待値の行から、値が同じ行を探します
+     *
+     * @param remainingOnly 残り件数のある行のみ探すか
+     * @return {残り件数, 最初の行} 無い場合はnull
+     */
+    private static int[] find(List<int[]> entries, ITable expected, String[] values, String[] columnNames,
+            DataType[] dataTypes, boolean remainingOnly) throws DataSetException, TypeCastException {
+        for (int[] entry : entries) {
+            if ((!remainingOnly || entry[0] > 0)
+                    && Arrays.equals(expectedValues(expected, entry[1], columnNames, dataTypes), values)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private static String[] expectedValues(ITable table, int row, String[] columnNames, DataType[] dataTypes)
+            throws DataSetException, TypeCastException {
+        String[] values = new String[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++) {
+            values[i] = TableFingerprint.canonical(dataTypes[i], table.getValue(row, columnNames[i]));
+        }
+        return values;
+    }
+
+    private static String[] actualValues(ResultSet rs, DataType[] dataTypes) throws SQLException, TypeCastException {
+        String[] values = new String[dataTypes.length];
+        for (int i = 0; i < dataTypes.length; i++) {
+            values[i] = TableFingerprint.canonical(dataTypes[i], rs.getObject(i + 1));
+        }
+        return values;
+    }
+
+    private static long hash(String[] values) {
+        long hash = 0xcbf29ce484222325L;
+        for (String value : values) {
+            hash = TableFingerprint.hash(hash, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+        return hash;
+    }
+
+    private static List<String> keyOf(String[] values, int[] keyIndexes) {
+        List<String> key = new ArrayList<String>(keyIndexes.length);
+        for (int index : keyIndexes) {
+            key.add(values[index]);
+        }
+        return key;
+    }
+
+    /**
+     * 主キーのカラムの位置を求めます
+     *
+     * @return 主キーのカラムの位置 主キーが無い、または比較対象のカラムに主キーが含まれない場合は空配列
+     */
+    private static int[] keyIndexes(String[] columnNames, String[] keyColumns) {
+        int[] indexes = new int[keyColumns.length];
+        for (int k = 0; k < keyColumns.length; k++) {
+            indexes[k] = -1;
+            for (int i = 0; i < columnNames.length; i++) {
+                if (columnNames[i].equalsIgnoreCase(keyColumns[k])) {
+                    indexes[k] = i;
+                }
+            }
+            if (indexes[k] < 0) {
+                return new int[0];
+            }
+        }
+        return indexes;
+    }
+
+    private static DataType[] getDataTypes(ResultSetMetaData metaData) throws SQLException {
+        DataType[] dataTypes = new DataType[metaData.getColumnCount()];
+        for (int i = 0; i < dataTypes.length; i++) {
+            try {
+                dataTypes[i] = DataType.forSqlType(metaData.getColumnType(i + 1));
+            } catch (DataTypeException e) {
+                dataTypes[i] = DataType.UNKNOWN;
+            }
+        }
+        return dataTypes;
+    }
+
+    /**
+     * 比較結果
+     */
+    public static class Result {
+        private final String tableName;
+        private final String[] columnNames;
+        private final int expectedRows;
+        private final int sampleSize;
+        private int[] keyIndexes = new int[0];
+        private long actualRows;
+        private long missing;
+        private long extra;
+        private long changed;
+        private final List<String> missingRows = new ArrayList<String>();
+        private final List<String> extraRows = new ArrayList<String>();
+        private final List<String> changedRows = new ArrayList<String>();
+
+        private Result(String tableName, String[] columnNames, int expectedRows, int sampleSize) {
+            this.tableName = tableName;
+            this.columnNames = columnNames;
+            this.expectedRows = expectedRows;
+            this.sampleSize = sampleSize;
+        }
+
+        /**
+         * 報告用に行を記録します 変更の場合は主キーと、値が異なるカラムのみ記録します
+         */
+        private void sample(List<String> rows, String[] values, String[] expectedValues) {
+            if (rows.size() >= sampleSize) {
+                return;
+            }
+            StringBuilder row = new StringBuilder("{");
+            if (expectedValues == null) {
+                for (int i = 0; i < columnNames.length; i++) {
+                    row.append(i == 0 ? "" : ", ").append(columnNames[i]).append("=").append(values[i]);
+                }
+            } else {
+                for (int i = 0; i < keyIndexes.length; i++) {
+                    row.append(i == 0 ? "" : ", ").append(columnNames[keyIndexes[i]]).append("=")
+                            .append(values[keyIndexes[i]]);
+                }
+                row.append(" :");
+                for (int i = 0; i < columnNames.length; i++) {
+                    if (!equals(expectedValues[i], values[i])) {
+                        row.append(" ").append(columnNames[i]).append("=")
+                                .append(expectedValues[i]).append(" -> ").append(values[i]);
+                    }
+                }
+            }
+            rows.add(row.append("}").toString());
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        /**
+         * @return 一致しているか
+         */
+        public boolean isEmpty() {
+            return missing == 0 && extra == 0 && changed == 0;
+        }
+
+        /**
+         * @return テーブル名
+         */
+        public String getTableName() {
+            return tableName;
+        }
+
+        /**
+         * @return 期待値の行数
+         */
+        public int getExpectedRows() {
+            return expectedRows;
+        }
+
+        /**
+         * @return DBの行数
+         */
+        public long getActualRows() {
+            return actualRows;
+        }
+
+        /**
+         * @return 期待値にのみある行の数
+         */
+        public long getMissing() {
+            return missing;
+        }
+
+        /**
+         * @return DBにのみある行の数
+         */
+        public long getExtra() {
+            return extra;
+        }
+
+        /**
+         * @return 主キーが同じで値が異なる行の数
+         */
+        public long getChanged() {
+            return changed;
+        }
+
+        /**
+         * @return 不一致の報告
+         */
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder(tableName).append(" : expected ").append(expectedRows)
+                    .append(" rows, actual ").append(actualRows).append(" rows, missing ").append(missing)
+                    .append(", extra ").append(extra).append(", changed ").append(changed);
+            append(report, "missing", missingRows, missing);
+            append(report, "extra", extraRows, extra);
+            append(report, "changed", changedRows, changed);
+            return report.toString();
+        }
+
+        private static void append(StringBuilder report, String kind, List<String> rows, long count) {
+            for (String row : rows) {
+                report.append("\n  ").append(kind).append(" ").append(row);
+            }
+            if (count > rows.size()) {
+                report.append("\n  ... and ").append(count - rows.size()).append(" more ").append(kind).append(" rows");
+            }
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.TestMetrics;
+
+/**
+ * テスト中に書き込まれたテーブルのみを、初回の書き込み直前に退避・復元するクラス<br>
+ * <br>
+ * テスト対象コードに渡すコネクションをProxyで包み、実行されるSQL(INSERT・UPDATE・DELETE・REPLACE・MERGE・TRUNCATE)から
+ * 書き込み先のテーブルを取り出します。<br>
+ * 初めて書き込まれるテーブルは、SQLを実行する前にテーブル毎のファイルへ退避し、復元時は退避したテーブルのみを戻します。<br>
+ * 退避の要否はテーブルの存在をメタデータで確認してから判定するため、SQLの解析で誤って拾った語は無視されます。<br>
+ * Proxyを経由しない書き込み(別のコネクション・ストアドプロシージャ内の更新等)は検出できません。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class LazyTableBackup {
+    protected static final Logger log = LoggerFactory.getLogger(LazyTableBackup.class);
+
+    /** 書き込み先のテーブル名を取り出すパターン **/
+    private static final Pattern WRITE_TARGET = Pattern.compile(
+            "\\b(?:INSERT(?:\\s+OR\\s+\\w+)?(?:\\s+IGNORE)?\\s+INTO|REPLACE\\s+INTO"
+                    + "|(?<!KEY\\s)(?<!DO\\s)UPDATE(?:\\s+OR\\s+\\w+)?(?:\\s+IGNORE)?"
+                    + "|DELETE\\s+FROM|MERGE\\s+INTO|TRUNCATE(?:\\s+TABLE)?)"
+                    + "\\s+((?:[`\"\\[]?\\w+[`\"\\]]?\\s*\\.\\s*)?[`\"\\[]?\\w+[`\"\\]]?)",
+            Pattern.CASE_INSENSITIVE);
+
+    /** SQLのコメント・文字列リテラル **/
+    private static final Pattern COMMENT_OR_LITERAL = Pattern.compile("--[^\\n]*|/\\*.*?\\*/|'(?:[^']|'')*'",
+            Pattern.DOTALL);
+
+    /** 退避に使うDBコネクション(Proxyで包む前のもの) **/
+    private final Connection conn;
+
+    /** 退避・復元オブジェクトのファクトリ **/
+    private final ParallelTableBackup.Factory factory;
+
+    /** 退避先ディレクトリ **/
+    private final File dir;
+
+    /** 退避ファイルの拡張子 **/
+    private final String extension;
+
+    /** テスト対象コードに渡すコネクション **/
+    private final Connection proxy;
+
+    /** 退避済みのテーブル(大文字のテーブル名 → テーブル名) **/
+    private final Map<String, String> backedUp = new LinkedHashMap<String, String>();
+
+    /** 判定済みの名前(大文字) → DB上のテーブル名 存在しない場合はnull **/
+    private final Map<String, String> resolved = new HashMap<String, String>();
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn DBコネクション
+     * @param factory 退避・復元オブジェクトのファクトリ
+     * @param dir 退避先ディレクトリ
+     * @param extension 退避ファイルの拡張子
+     */
+    public LazyTableBackup(Connection conn, ParallelTableBackup.Factory factory, File dir, String extension) {
+        this.conn = conn;
+        this.factory = factory;
+        this.dir = dir;
+        this.extension = extension;
+        this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] { Connection.class }, new ConnectionHandler());
+    }
+
+    /**
+     * SQLから書き込み先のテーブル名を取り出します<br>
+     * コメントと文字列リテラルは除いてから解析します。
+     *
+     * @param sql SQL
+     * @return テーブル名(引用符・スキーマ名は除く)
+     */
+    public static Set<String> writeTargets(String sql) {
+        Set<String> targets = new LinkedHashSet<String>();
+        if (sql == null) {
+            return targets;
+        }
+
+        Matcher matcher = WRITE_TARGET.matcher(COMMENT_OR_LITERAL.matcher(sql).replaceAll(" "));
+        while (matcher.find()) {
+            String name = matcher.group(1).replaceAll("[`\"\\[\\]\\s]", "");
+            targets.add(name.substring(name.lastIndexOf('.') + 1));
+        }
+        return targets;
+    }
+
+    /**
+     * @return 書き込みを検出するコネクション テスト対象コードにはこちらを渡してください
+     */
+    public Connection getConnection() {
+        return proxy;
+    }
+
+    /**
+     * これから書き込むテーブルを通知します 未退避のテーブルがあれば退避します
+     *
+     * @param tableNames テーブル名
+     * @throws SQLException
+     */
+    public synchronized void beforeWrite(Collection<String> tableNames) throws SQLException {
+        for (String tableName : tableNames) {
+            String key = tableName.toUpperCase();
+            if (backedUp.containsKey(key)) {
+                continue;
+            }
+
+            String actual = resolve(tableName);
+            if (actual == null) {
+                continue;
+            }
+
+            try {
+                factory.create(conn).backup(new String[] { actual }, fileOf(actual));
+            } catch (SQLException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new SQLException("Lazy backup of " + actual + " fail.", e);
+            }
+            backedUp.put(key, actual);
+            TestMetrics.count("backup.lazy", actual, 1);
+            log.debug("Lazy backup " + actual + " before first write.");
+        }
+    }
+
+    /**
+     * 退避したテーブルのみを、外部キーの依存関係の順に復元します<br>
+     * 参照する側のテーブルから削除し、参照される側のテーブルから投入します。
+     * 削除と投入は1トランザクションで行い、失敗した場合は全テーブルが復元前のまま残ります。
+     *
+     * @throws Exception
+     */
+    public synchronized void restore() throws Exception {
+        if (backedUp.isEmpty()) {
+            log.debug("No table was written. Nothing to restore.");
+            return;
+        }
+
+        List<String> ordered = new ArrayList<String>();
+        for (String[] wave : ParallelTableBackup.waves(conn, backedUp.values().toArray(new String[0]))) {
+            ordered.addAll(Arrays.asList(wave));
+        }
+
+        File[] files = new File[ordered.size()];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = fileOf(ordered.get(i));
+        }
+        factory.create(conn).restore(ordered.toArray(new String[0]), files);
+        log.debug("Lazy restore success. " + ordered);
+    }
+
+    /**
+     * @return 退避したテーブル名
+     */
+    public synchronized List<String> getBackedUpTables() {
+        return new ArrayList<String>(backedUp.values());
+    }
+
+    private File fileOf(String tableName) {
+        return new File(dir, tableName + extension);
+    }
+
+    /**
+     * 名前に対応するテーブルがDBに存在すれば、DB上のテーブル名を返します
+     */
+    private String resolve(String name) throws SQLException {
+        String key = name.toUpperCase();
+        if (resolved.containsKey(key)) {
+            return resolved.get(key);
+        }
+
+        String actual = null;
+        DatabaseMetaData metaData = conn.getMetaData();
+        for (String candidate : new String[] { name, key, name.toLowerCase() }) {
+            try (ResultSet rs = metaData.getTables(null, null, candidate, new String[] { "TABLE" })) {
+                if (rs.next()) {
+                    actual = rs.getString("TABLE_NAME");
+                    break;
+                }
+            }
+        }
+        if (actual == null) {
+            log.debug("Ignore write target " + name + ". It is not a table.");
+        }
+        resolved.put(key, actual);
+        return actual;
+    }
+
+    /**
+     * コネクションのProxy 生成したStatementをProxyで包みます
+     */
+    private class ConnectionHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+
+            Object result = invokeTarget(conn, method, args);
+            if (result instanceof CallableStatement) {
+                return wrap(CallableStatement.class, (Statement) result, writeTargets((String) args[0]));
+            }
+            if (result instanceof PreparedStatement) {
+                return wrap(PreparedStatement.class, (Statement) result, writeTargets((String) args[0]));
+            }
+            if (result instanceof Statement) {
+                return wrap(Statement.class, (Statement) result, null);
+            }
+            return result;
+        }
+
+        private Object wrap(Class<?> type, Statement statement, Set<String> preparedTargets) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                    new StatementHandler(statement, preparedTargets));
+        }
+    }
+
+    /**
+     * StatementのProxy SQLの実行前に書き込み先を退避します
+     */
+    private class StatementHandler implements InvocationHandler {
+        private final Statement statement;
+
+        /** PreparedStatementの書き込み先 Statementの場合はnull **/
+        private final Set<String> preparedTargets;
+
+        private StatementHandler(Statement statement, Set<String> preparedTargets) {
+            this.statement = statement;
+            this.preparedTargets = preparedTargets;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getConnection".equals(name)) {
+                return LazyTableBackup.this.proxy;
+            }
+            if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            }
+
+            if (name.startsWith("execute") || "addBatch".equals(name)) {
+                if (args != null && args.length > 0 && args[0] instanceof String) {
+                    beforeWrite(writeTargets((String) args[0]));
+                } else if (preparedTargets != null && !"addBatch".equals(name)) {
+                    beforeWrite(preparedTargets);
+                }
+            }
+            return invokeTarget(statement, method, args);
+        }
+    }
+
+    private static Object invokeTarget(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
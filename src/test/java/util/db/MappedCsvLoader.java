@@ -0,0 +1,529 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.DataTypeException;
+import org.dbunit.dataset.datatype.TypeCastException;
+import org.dbunit.dataset.filter.DefaultColumnFilter;
+
+import util.TestMetrics;
+
+/**
+ * CSVのデータリソースを、メモリマップしたファイルから直接バッチINSERTするクラス<br>
+ * <br>
+ * {@link org.dbunit.dataset.csv.CsvDataSet}と同じディレクトリ構成(table-ordering.txt と テーブル名.csv)を読み込みます。<br>
+ * ファイルはNIOでメモリマップし、その場で字句解析しながら、DB上のカラム定義の型でPreparedStatementへ直接バインドします。<br>
+ * 数値のカラムはバイト列から直接変換するため、セル毎のStringを生成しません。
+ * 文字列のカラムも、バインドする値そのもの以外の中間オブジェクトを生成しません。<br>
+ * テーブル全体をメモリに展開しないため、数百MBのCSVでもヒープ使用量はバッチサイズ分の行に抑えられます。<br>
+ * <br>
+ * 字句解析はdbUnitのCSVパーサーに合わせています。
+ * <ul>
+ * <li>「,」で区切り、「"」で囲まれた範囲では区切り・改行を値として扱う
+ * <li>「\」は次の1文字をそのまま値とする
+ * <li>値の前の空白・タブ、及び「"」で囲んだ範囲の直後の空白・タブは無視する
+ * <li>値が null の場合はNULLとする
+ * </ul>
+ * 文字コードはUTF-8(BOM可)とします。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class MappedCsvLoader {
+
+    /** テーブルの並びを記載するファイル名 **/
+    public static final String TABLE_ORDERING_FILE = "table-ordering.txt";
+
+    /** CSVファイルの拡張子 **/
+    public static final String CSV_EXTENSION = ".csv";
+
+    /** NULLを表す値 **/
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    /** 10の累乗(double で正確に表せる範囲) **/
+    private static final double[] POWERS_OF_TEN = new double[16];
+    static {
+        POWERS_OF_TEN[0] = 1d;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10d;
+        }
+    }
+
+    /** 一度にDBへ送る行数 **/
+    private final int batchSize;
+
+    /** DBコネクション **/
+    private final Connection conn;
+
+    // 解析中の状態
+    private MappedByteBuffer buffer;
+    private int position;
+    private int limit;
+
+    /** 解析した値(エスケープ除去後)を格納する作業領域 **/
+    private byte[] value = new byte[256];
+    private int valueLength;
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn DBコネクション
+     * @param batchSize 一度にDBへ送る行数
+     */
+    public MappedCsvLoader(Connection conn, int batchSize) {
+        this.conn = conn;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * table-ordering.txt に記載されたテーブル名を返します
+     *
+     * @param dir CSVのデータリソースのディレクトリ
+     * @return テーブル名の配列
+     * @throws IOException
+     */
+    public static String[] getTableNames(File dir) throws IOException {
+        List<String> tableNames = new ArrayList<String>();
+        for (String line : Files.readAllLines(new File(dir, TABLE_ORDERING_FILE).toPath(), StandardCharsets.UTF_8)) {
+            if (!line.trim().isEmpty()) {
+                tableNames.add(line.trim());
+            }
+        }
+        return tableNames.toArray(new String[0]);
+    }
+
+    /**
+     * ディレクトリ内の全テーブルを全件削除した後、CSVの内容を投入します
+     *
+     * @param dir CSVのデータリソースのディレクトリ
+     * @param excludedColumns 除外するテーブル-カラム情報 無い場合はnull
+     * @param phase 計測のフェーズ名
+     * @return 投入した件数
+     * @throws IOException
+     * @throws SQLException
+     * @throws DataSetException
+     */
+    public long cleanInsert(File dir, Map<String, String[]> excludedColumns, String phase)
+            throws IOException, SQLException, DataSetException {
+        String[] tableNames = getTableNames(dir);
+
+        long start = TestMetrics.start();
+        new BatchInserter(conn, batchSize, false).deleteAll(tableNames);
+        TestMetrics.time(phase + ".delete", null, start);
+
+        long rows = 0;
+        for (String tableName : tableNames) {
+            String[] excluded = excludedColumns == null ? null : excludedColumns.get(tableName);
+            rows += load(tableName, new File(dir, tableName + CSV_EXTENSION), excluded, phase);
+        }
+        return rows;
+    }
+
+    /**
+     * 1テーブル分のCSVを投入します 削除は行いません
+     *
+     * @param tableName テーブル名
+     * @param file CSVファイル
+     * @param excludedColumns 除外するカラム(パターン可) 無い場合はnull
+     * @param phase 計測のフェーズ名
+     * @return 投入した件数
+     * @throws IOException
+     * @throws SQLException
+     * @throws DataSetException
+     */
+    public long load(String tableName, File file, String[] excludedColumns, String phase)
+            throws IOException, SQLException, DataSetException {
+        long start = TestMetrics.start();
+        long rows = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file.getPath() + " is too large to map. (" + channel.size() + " bytes)");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            position = 0;
+            limit = (int) channel.size();
+            skipBom();
+
+            // ヘッダー行と、投入するカラム
+            List<String> header = new ArrayList<String>();
+            boolean more = true;
+            while (more) {
+                more = nextValue();
+                header.add(new String(value, 0, valueLength, StandardCharsets.UTF_8));
+            }
+            Map<String, Integer> sqlTypes = getSqlTypes(tableName);
+            DefaultColumnFilter filter = new DefaultColumnFilter();
+            if (excludedColumns != null) {
+                for (String excludedColumn : excludedColumns) {
+                    filter.excludeColumn(excludedColumn);
+                }
+            }
+            int[] bindIndexes = new int[header.size()];
+            int[] types = new int[header.size()];
+            DataType[] dataTypes = new DataType[header.size()];
+            List<String> bindColumns = new ArrayList<String>();
+            for (int i = 0; i < header.size(); i++) {
+                String columnName = header.get(i);
+                if (!filter.accept(tableName, new Column(columnName, DataType.UNKNOWN))) {
+                    continue;
+                }
+                Integer sqlType = sqlTypes.get(columnName.toUpperCase());
+                if (sqlType == null) {
+                    throw new SQLException("Column " + columnName + " is not found in " + tableName);
+                }
+                bindColumns.add(columnName);
+                bindIndexes[i] = bindColumns.size();
+                types[i] = sqlType;
+                dataTypes[i] = dataTypeOf(sqlType);
+            }
+
+            rows = insert(tableName, bindColumns, bindIndexes, types, dataTypes);
+        } finally {
+            buffer = null;
+        }
+
+        TestMetrics.time(phase, tableName, start);
+        TestMetrics.count(phase + ".rows", tableName, rows);
+        return rows;
+    }
+
+    /**
+     * 残りの行を読みながらバッチINSERTを行います
+     */
+    private long insert(String tableName, List<String> bindColumns, int[] bindIndexes, int[] types,
+            DataType[] dataTypes) throws SQLException, DataSetException {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < bindColumns.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append(bindColumns.get(i));
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(") VALUES (").append(placeholders).append(")");
+
+        long rows = 0;
+        int pending = 0;
+        boolean autoCommit = conn.getAutoCommit();
+        if (autoCommit) {
+            conn.setAutoCommit(false);
+        }
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            while (skipBlankLines()) {
+                int column = 0;
+                boolean more = true;
+                while (more) {
+                    more = nextValue();
+                    if (column < bindIndexes.length && bindIndexes[column] > 0) {
+                        bind(ps, bindIndexes[column], types[column], dataTypes[column]);
+                    }
+                    column++;
+                }
+                if (column != bindIndexes.length) {
+                    throw new DataSetException(tableName + " row " + (rows + 1) + " has " + column
+                            + " values. (expected " + bindIndexes.length + ")");
+                }
+
+                ps.addBatch();
+                rows++;
+                if (++pending >= batchSize) {
+                    ps.executeBatch();
+                    if (autoCommit) {
+                        conn.commit();
+                    }
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                ps.executeBatch();
+            }
+            if (autoCommit) {
+                conn.commit();
+            }
+        } catch (SQLException | DataSetException e) {
+            if (autoCommit) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            if (autoCommit) {
+                conn.setAutoCommit(true);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * 作業領域の値を、カラムの型でバインドします
+     */
+    private void bind(PreparedStatement ps, int index, int sqlType, DataType dataType)
+            throws SQLException, DataSetException {
+        if (isNull()) {
+            ps.setNull(index, sqlType);
+            return;
+        }
+
+        switch (sqlType) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+            if (valueLength > 0 && valueLength <= 18 && isInteger()) {
+                ps.setLong(index, parseLong());
+                return;
+            }
+            break;
+        case Types.REAL:
+        case Types.FLOAT:
+        case Types.DOUBLE:
+            if (valueLength > 0 && valueLength <= 16 && isDecimal()) {
+                ps.setDouble(index, parseDouble());
+                return;
+            }
+            break;
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            if (valueLength > 0 && isDecimal()) {
+                ps.setBigDecimal(index, new BigDecimal(new String(value, 0, valueLength, StandardCharsets.US_ASCII)));
+                return;
+            }
+            break;
+        case Types.CHAR:
+        case Types.VARCHAR:
+        case Types.LONGVARCHAR:
+        case Types.NCHAR:
+        case Types.NVARCHAR:
+        case Types.LONGNVARCHAR:
+        case Types.CLOB:
+        case Types.NCLOB:
+            ps.setString(index, new String(value, 0, valueLength, StandardCharsets.UTF_8));
+            return;
+        default:
+            break;
+        }
+
+        // 日付等、その他の型はdbUnitの型変換に任せる
+        String text = new String(value, 0, valueLength, StandardCharsets.UTF_8);
+        try {
+            Object casted = dataType.typeCast(text);
+            if (casted == null) {
+                ps.setNull(index, sqlType);
+            } else {
+                dataType.setSqlValue(casted, index, ps);
+            }
+        } catch (TypeCastException e) {
+            throw new DataSetException("Cannot convert " + text + " to " + dataType, e);
+        }
+    }
+
+    /**
+     * 次の値を作業領域に読み込みます
+     *
+     * @return 同じ行に続く値がある場合はtrue
+     * @throws DataSetException
+     */
+    private boolean nextValue() throws DataSetException {
+        valueLength = 0;
+        skipSpaces();
+        boolean quoted = false;
+        while (position < limit) {
+            byte b = buffer.get(position++);
+            if (b == '\\') {
+                if (position >= limit) {
+                    throw new DataSetException("Unexpected end of file after escape.");
+                }
+                append(buffer.get(position++));
+            } else if (b == '"') {
+                quoted = !quoted;
+                if (!quoted) {
+                    skipSpaces();
+                }
+            } else if (quoted) {
+                append(b);
+            } else if (b == ',') {
+                return true;
+            } else if (b == '\n') {
+                return false;
+            } else if (b == '\r') {
+                if (position < limit && buffer.get(position) == '\n') {
+                    position++;
+                }
+                return false;
+            } else {
+                append(b);
+            }
+        }
+        if (quoted) {
+            throw new DataSetException("Unexpected end of file in quoted value.");
+        }
+        return false;
+    }
+
+    /**
+     * 空行を読み飛ばします
+     *
+     * @return 読み込む行が残っている場合はtrue
+     */
+    private boolean skipBlankLines() {
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b != '\n' && b != '\r') {
+                return true;
+            }
+            position++;
+        }
+        return false;
+    }
+
+    private void skipSpaces() {
+        while (position < limit) {
+            byte b = buffer.get(position);
+            if (b != ' ' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private void skipBom() {
+        if (limit >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB
+                && buffer.get(2) == (byte) 0xBF) {
+            position = 3;
+        }
+    }
+
+    private void append(byte b) {
+        if (valueLength == value.length) {
+            byte[] grown = new byte[value.length * 2];
+            System.arraycopy(value, 0, grown, 0, valueLength);
+            value = grown;
+        }
+        value[valueLength++] = b;
+    }
+
+    private boolean isNull() {
+        if (valueLength != NULL.length) {
+            return false;
+        }
+        for (int i = 0; i < NULL.length; i++) {
+            if (value[i] != NULL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 作業領域の値が符号付きの整数か
+     */
+    private boolean isInteger() {
+        int i = value[0] == '-' || value[0] == '+' ? 1 : 0;
+        if (i == valueLength) {
+            return false;
+        }
+        for (; i < valueLength; i++) {
+            if (value[i] < '0' || value[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return 作業領域の値が符号付きの小数(指数表記を除く)か
+     */
+    private boolean isDecimal() {
+        int i = value[0] == '-' || value[0] == '+' ? 1 : 0;
+        boolean digit = false;
+        boolean point = false;
+        for (; i < valueLength; i++) {
+            if (value[i] >= '0' && value[i] <= '9') {
+                digit = true;
+            } else if (value[i] == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        return digit;
+    }
+
+    private long parseLong() {
+        int i = value[0] == '-' || value[0] == '+' ? 1 : 0;
+        long result = 0;
+        for (; i < valueLength; i++) {
+            result = result * 10 + (value[i] - '0');
+        }
+        return value[0] == '-' ? -result : result;
+    }
+
+    /**
+     * 有効桁数15桁以下(16バイト以下)の小数を変換します 仮数部と10の累乗の除算のため、結果は正しく丸められます
+     */
+    private double parseDouble() {
+        int i = value[0] == '-' || value[0] == '+' ? 1 : 0;
+        long mantissa = 0;
+        int scale = -1;
+        for (; i < valueLength; i++) {
+            if (value[i] == '.') {
+                scale = 0;
+            } else {
+                mantissa = mantissa * 10 + (value[i] - '0');
+                if (scale >= 0) {
+                    scale++;
+                }
+            }
+        }
+        double result = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa;
+        return value[0] == '-' ? -result : result;
+    }
+
+    /**
+     * DB上のカラム定義の型を取得します
+     *
+     * @param tableName テーブル名
+     * @return 大文字のカラム名-型(java.sql.Types)
+     * @throws SQLException
+     */
+    private Map<String, Integer> getSqlTypes(String tableName) throws SQLException {
+        Map<String, Integer> sqlTypes = new HashMap<String, Integer>();
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName + " WHERE 1 = 0")) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                sqlTypes.put(metaData.getColumnName(i).toUpperCase(), metaData.getColumnType(i));
+            }
+        }
+        return sqlTypes;
+    }
+
+    private static DataType dataTypeOf(int sqlType) {
+        try {
+            return DataType.forSqlType(sqlType);
+        } catch (DataTypeException e) {
+            return DataType.UNKNOWN;
+        }
+    }
+}
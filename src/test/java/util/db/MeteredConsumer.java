@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package util.db;
+
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.stream.IDataSetConsumer;
+
+import util.TestMetrics;
+
+/**
+ * テーブル毎の処理時間と行数を{@link TestMetrics}に記録するIDataSetConsumer<br>
+ * <br>
+ * 処理自体は委譲先に任せ、startTableからendTableまでの時間と行数を「フェーズ」「フェーズ.rows」として記録します。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class MeteredConsumer implements IDataSetConsumer {
+
+    /** 委譲先 **/
+    private final IDataSetConsumer delegate;
+
+    /** フェーズ **/
+    private final String phase;
+
+    // テーブル毎の状態
+    private String tableName;
+    private long startNanos;
+    private long rows;
+
+    /**
+     * コンストラクタ
+     *
+     * @param phase フェーズ(backup, restore 等)
+     * @param delegate 委譲先
+     */
+    public MeteredConsumer(String phase, IDataSetConsumer delegate) {
+        this.phase = phase;
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void startDataSet() throws DataSetException {
+        delegate.startDataSet();
+    }
+
+    @Override
+    public void endDataSet() throws DataSetException {
+        delegate.endDataSet();
+    }
+
+    @Override
+    public void startTable(ITableMetaData metaData) throws DataSetException {
+        tableName = metaData.getTableName();
+        startNanos = TestMetrics.start();
+        rows = 0;
+        delegate.startTable(metaData);
+    }
+
+    @Override
+    public void row(Object[] values) throws DataSetException {
+        delegate.row(values);
+        rows++;
+    }
+
+    @Override
+    public void endTable() throws DataSetException {
+        delegate.endTable();
+        TestMetrics.time(phase, tableName, startNanos);
+        TestMetrics.count(phase + ".rows", tableName, rows);
+    }
+}
@@ -0,0 +1,353 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dbunit.dataset.stream.IDataSetConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.TestMetrics;
+
+/**
+ * 複数テーブルを、プールから借りた別々のコネクションで並列に退避・復元するクラス<br>
+ * <br>
+ * テーブル毎に1ファイルとして、指定したディレクトリに退避します。<br>
+ * 退避は読み込みのみのため、全テーブルを並列に行います。<br>
+ * 復元は外部キーのメタデータから依存関係を求め、参照される側から順に「段」に分けます。
+ * 全テーブルが1つの段に収まる(外部キーの依存が無い)場合は、テーブル毎に削除と投入を1トランザクションで並列に行います。
+ * 依存がある場合は、参照する側の段から全テーブルの削除を確定させた後、参照される側の段から順に、段の中のテーブルを並列に投入します。
+ * この場合、投入に失敗したテーブルとそれ以降の段のテーブルは空のまま残ります。<br>
+ * 書き込みの同時実行ができないDB(SQLite等)の場合は、1つのコネクションで参照する側の段から削除、
+ * 参照される側の段から投入し、全テーブルを1トランザクションで復元します。<br>
+ * ワーカースレッドは処理の都度生成するため、呼び出し元のテスト設定・計測をそのまま引き継ぎます。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class ParallelTableBackup {
+    protected static final Logger log = LoggerFactory.getLogger(ParallelTableBackup.class);
+
+    /**
+     * コネクション毎のテーブル退避・復元オブジェクトを生成するファクトリ
+     */
+    public interface Factory {
+        /**
+         * @param conn ワーカーが借りたコネクション
+         * @return テーブル退避・復元オブジェクト
+         * @throws Exception
+         */
+        StreamingTableBackup create(Connection conn) throws Exception;
+    }
+
+    /** コネクションの借用元 **/
+    private final ConnectionPool pool;
+
+    /** 並列数 **/
+    private final int parallelism;
+
+    /** 復元(書き込み)を並列に行うか **/
+    private final boolean parallelWrite;
+
+    /** 退避・復元オブジェクトのファクトリ **/
+    private final Factory factory;
+
+    /** 退避ファイルの拡張子 **/
+    private final String extension;
+
+    /**
+     * コンストラクタ
+     *
+     * @param pool コネクションの借用元
+     * @param parallelism 並列数 プールの最大コネクション数を超える分は返却待ちになります
+     * @param parallelWrite 復元を並列に行うか falseの場合は1つのコネクションで段の順に復元します
+     * @param factory 退避・復元オブジェクトのファクトリ
+     * @param extension 退避ファイルの拡張子
+     */
+    public ParallelTableBackup(ConnectionPool pool, int parallelism, boolean parallelWrite, Factory factory,
+            String extension) {
+        this.pool = pool;
+        this.parallelism = Math.max(1, parallelism);
+        this.parallelWrite = parallelWrite;
+        this.factory = factory;
+        this.extension = extension;
+    }
+
+    /**
+     * 外部キーの依存関係から、テーブルを参照される側から順の段に分けます<br>
+     * 指定外のテーブルへの参照と自己参照は無視します。
+     * 循環参照がある場合、残りのテーブルは指定順に1テーブルずつの段とします。
+     *
+     * @param conn DBコネクション
+     * @param tableNames テーブル名の配列
+     * @return 段毎のテーブル名の配列
+     * @throws SQLException
+     */
+    public static List<String[]> waves(Connection conn, String[] tableNames) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        Map<String, String> names = new LinkedHashMap<String, String>();
+        for (String tableName : tableNames) {
+            names.put(tableName.toUpperCase(), tableName);
+        }
+
+        // テーブル → 参照しているテーブル
+        Map<String, Set<String>> parents = new LinkedHashMap<String, Set<String>>();
+        for (String key : names.keySet()) {
+            Set<String> referenced = new HashSet<String>();
+            try (ResultSet rs = metaData.getImportedKeys(null, null, storedName(metaData, names.get(key)))) {
+                while (rs.next()) {
+                    String parent = rs.getString("PKTABLE_NAME").toUpperCase();
+                    if (names.containsKey(parent) && !parent.equals(key)) {
+                        referenced.add(parent);
+                    }
+                }
+            }
+            parents.put(key, referenced);
+        }
+
+        List<String[]> waves = new ArrayList<String[]>();
+        Set<String> done = new HashSet<String>();
+        while (!parents.isEmpty()) {
+            List<String> wave = new ArrayList<String>();
+            for (Map.Entry<String, Set<String>> entry : parents.entrySet()) {
+                if (done.containsAll(entry.getValue())) {
+                    wave.add(entry.getKey());
+                }
+            }
+
+            if (wave.isEmpty()) {
+                log.warn("Foreign keys of " + parents.keySet() + " are circular. They are processed in given order.");
+                for (String key : parents.keySet()) {
+                    waves.add(new String[] { names.get(key) });
+                }
+                break;
+            }
+
+            String[] waveNames = new String[wave.size()];
+            for (int i = 0; i < wave.size(); i++) {
+                waveNames[i] = names.get(wave.get(i));
+                parents.remove(wave.get(i));
+            }
+            done.addAll(wave);
+            waves.add(waveNames);
+        }
+
+        return waves;
+    }
+
+    /**
+     * メタデータの検索に使う、DBに格納されている大文字・小文字のテーブル名を返します(H2は大文字で格納する)
+     */
+    private static String storedName(DatabaseMetaData metaData, String tableName) throws SQLException {
+        if (metaData.storesUpperCaseIdentifiers()) {
+            return tableName.toUpperCase();
+        } else if (metaData.storesLowerCaseIdentifiers()) {
+            return tableName.toLowerCase();
+        }
+        return tableName;
+    }
+
+    /**
+     * テーブル内容を、テーブル毎のファイルへ並列に退避します
+     *
+     * @param tableNames 退避するテーブル名の配列
+     * @param dir 退避先ディレクトリ
+     * @throws Exception
+     */
+    public void backup(final String[] tableNames, final File dir) throws Exception {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String tableName : tableNames) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try (Connection conn = pool.borrow()) {
+                        factory.create(conn).backup(new String[] { tableName }, fileOf(dir, tableName));
+                    }
+                    return null;
+                }
+            });
+        }
+
+        long start = TestMetrics.start();
+        run(tasks, parallelism);
+        TestMetrics.time("backup.parallel", null, start);
+    }
+
+    /**
+     * テーブル毎のファイルからテーブル内容を復元します<br>
+     * 書き込みを並列に行える場合、外部キーの依存が無ければテーブル毎に削除と投入を1トランザクションで並列に行い、
+     * 失敗したテーブルは復元前の内容のまま残します。
+     * 依存があれば全テーブルの削除を確定させた後、段毎にテーブルを並列に投入します(失敗したテーブル以降は空のまま残ります)。<br>
+     * 並列に行えない場合は、1つのコネクションで参照する側から削除・参照される側から投入し、全テーブルを1トランザクションで復元します。
+     *
+     * @param tableNames 復元するテーブル名の配列
+     * @param dir 退避したディレクトリ
+     * @throws Exception
+     */
+    public void restore(String[] tableNames, final File dir) throws Exception {
+        List<String[]> waves;
+        try (Connection conn = pool.borrow()) {
+            waves = waves(conn, tableNames);
+        }
+        log.debug("Restore waves : " + toString(waves));
+
+        List<String> ordered = new ArrayList<String>();
+        for (String[] wave : waves) {
+            ordered.addAll(Arrays.asList(wave));
+        }
+
+        long start = TestMetrics.start();
+        if (parallelWrite && waves.size() == 1) {
+            run(tasks(waves.get(0), dir, true), parallelism);
+        } else if (parallelWrite) {
+            // 参照される側の削除には参照する側の削除の確定が必要なため、先に全テーブルを参照する側から削除して確定させる
+            try (Connection conn = pool.borrow()) {
+                factory.create(conn).delete(ordered.toArray(new String[0]));
+            }
+            // 参照される側の投入が確定してから、次の段を投入する
+            for (String[] wave : waves) {
+                run(tasks(wave, dir, false), parallelism);
+            }
+        } else {
+            // 書き込みを並列に行えない場合は、段を跨いで1つのトランザクションで行う
+            File[] files = new File[ordered.size()];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = fileOf(dir, ordered.get(i));
+            }
+            try (Connection conn = pool.borrow()) {
+                factory.create(conn).restore(ordered.toArray(new String[0]), files);
+            }
+        }
+        TestMetrics.time("restore.parallel", null, start);
+    }
+
+    /**
+     * テーブル毎に、借りたコネクションで復元するタスクを生成します
+     *
+     * @param tableNames テーブル名の配列
+     * @param dir 退避したディレクトリ
+     * @param delete 投入の前に削除するか(削除と投入は1トランザクション)
+     * @return タスク
+     */
+    private List<Callable<Void>> tasks(String[] tableNames, final File dir, final boolean delete) {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String tableName : tableNames) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    try (Connection conn = pool.borrow()) {
+                        StreamingTableBackup tableBackup = factory.create(conn);
+                        if (delete) {
+                            tableBackup.restore(new String[] { tableName }, fileOf(dir, tableName));
+                        } else {
+                            tableBackup.insert(new String[] { tableName }, fileOf(dir, tableName));
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        return tasks;
+    }
+
+    /**
+     * テーブル毎のファイルを指定順に逐次読み込みし、consumerへ渡します
+     *
+     * @param tableNames 読み込むテーブル名の配列
+     * @param dir 退避したディレクトリ
+     * @param consumer 読み込み先
+     * @throws Exception
+     */
+    public void produce(String[] tableNames, File dir, IDataSetConsumer consumer) throws Exception {
+        try (Connection conn = pool.borrow()) {
+            StreamingTableBackup tableBackup = factory.create(conn);
+            for (String tableName : tableNames) {
+                tableBackup.produce(fileOf(dir, tableName), consumer);
+            }
+        }
+    }
+
+    /**
+     * @param dir 退避先ディレクトリ
+     * @param tableName テーブル名
+     * @return テーブルの退避ファイル
+     */
+    public File fileOf(File dir, String tableName) {
+        return new File(dir, tableName + extension);
+    }
+
+    /**
+     * タスクを並列に実行し、全ての完了を待ちます<br>
+     * いずれかが失敗した場合は、最初の失敗の原因をスローします。
+     */
+    private static void run(List<Callable<Void>> tasks, int threads) throws Exception {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        if (threads <= 1 || tasks.size() == 1) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "table-backup-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        try {
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String toString(List<String[]> waves) {
+        StringBuilder text = new StringBuilder();
+        for (String[] wave : waves) {
+            text.append(Arrays.toString(wave));
+        }
+        return text.toString();
+    }
+}
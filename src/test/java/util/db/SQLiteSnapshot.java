@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQLiteのデータベースファイル全体をページ単位で退避・復元するクラス<br>
+ * <br>
+ * sqlite-jdbcの拡張コマンド「backup to」「restore from」(SQLiteのオンラインバックアップAPI)を使用します。<br>
+ * 行を読み書きしないため、所要時間は行数やテーブル構成に依存せず、ファイルサイズにのみ比例します。<br>
+ * 接続中のファイルを直接コピーすると、他のコネクションが保持するページキャッシュやジャーナルと不整合になるため、
+ * ファイルコピーではなくバックアップAPIを使用しています。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class SQLiteSnapshot {
+
+    /** SQLiteの接続URLの接頭辞 **/
+    private static final String URL_PREFIX = "jdbc:sqlite:";
+
+    /** DBコネクション **/
+    private final Connection conn;
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn SQLiteのDBコネクション
+     */
+    public SQLiteSnapshot(Connection conn) {
+        this.conn = conn;
+    }
+
+    /**
+     * スナップショットに対応したコネクションか判定します<br>
+     * ファイルに保存されるSQLiteのデータベースのみ対応します(インメモリは対象外)。
+     *
+     * @param conn DBコネクション
+     * @return 対応している場合はtrue
+     * @throws SQLException
+     */
+    public static boolean isSupported(Connection conn) throws SQLException {
+        String url = conn.getMetaData().getURL();
+        if (url == null || !url.startsWith(URL_PREFIX)) {
+            return false;
+        }
+        String path = url.substring(URL_PREFIX.length());
+        return !path.isEmpty() && !path.startsWith(":memory:") && !path.contains("mode=memory");
+    }
+
+    /**
+     * データベース全体をファイルへ退避します
+     *
+     * @param file 退避先ファイル 既に存在する場合は上書きします
+     * @throws SQLException
+     */
+    public void take(File file) throws SQLException {
+        if (file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        execute("backup to " + quote(file));
+    }
+
+    /**
+     * 退避したファイルからデータベース全体を復元します
+     *
+     * @param file 退避したファイル
+     * @throws SQLException
+     */
+    public void restore(File file) throws SQLException {
+        execute("restore from " + quote(file));
+    }
+
+    private void execute(String command) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate(command);
+        }
+    }
+
+    private static String quote(File file) {
+        return "\"" + file.getAbsolutePath() + "\"";
+    }
+}
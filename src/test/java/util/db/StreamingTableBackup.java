@@ -0,0 +1,353 @@
+/**
+ *
+ */
+package util.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.dbunit.database.DatabaseConfig;
+import org.dbunit.database.DatabaseConnection;
+import org.dbunit.database.ForwardOnlyResultSetTableFactory;
+import org.dbunit.database.IDatabaseConnection;
+import org.dbunit.database.QueryDataSet;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.ITableMetaData;
+import org.dbunit.dataset.stream.DataSetProducerAdapter;
+import org.dbunit.dataset.stream.IDataSetConsumer;
+import org.dbunit.dataset.stream.IDataSetProducer;
+import org.dbunit.dataset.xml.FlatXmlProducer;
+import org.dbunit.dataset.xml.FlatXmlWriter;
+import org.xml.sax.InputSource;
+
+import util.TestMetrics;
+
+/**
+ * テーブル内容をメモリに展開せずに退避・復元するクラス<br>
+ * <br>
+ * 退避時は前方専用カーソルで1行ずつ読みながらファイルへ書き出し、
+ * 復元時はファイルを逐次読み込みしながら{@link BatchInserter}でバッチINSERTを行います。<br>
+ * メモリ上に保持される行数は、テーブルの件数に関わらず window(フェッチサイズ・バッチサイズ)程度に抑えられます。
+ * MySQL・PostgreSQLでフェッチサイズを有効にするための設定は{@link BulkInserter.Dialect}で行います
+ * (MySQLはuseCursorFetch=trueが無ければ1行ずつ、PostgreSQLは退避中のみ自動コミットを無効にします)。<br>
+ * ファイル形式は FlatXml と、バイナリスナップショット形式(任意でdeflate圧縮)から選択できます。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class StreamingTableBackup {
+
+    /**
+     * 退避ファイルの形式
+     */
+    public enum Format {
+        /** FlatXml形式 **/
+        XML(".xml"),
+        /** バイナリスナップショット形式 **/
+        BINARY(".bin");
+
+        private final String extension;
+
+        private Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * @return ファイルの拡張子
+         */
+        public String getExtension() {
+            return extension;
+        }
+
+        /**
+         * 設定値からファイル形式を取得します
+         *
+         * @param value 設定値 未指定の場合はXML
+         * @return ファイル形式
+         */
+        public static Format of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return XML;
+            }
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /** 既定の行ウィンドウ **/
+    public static final int DEFAULT_WINDOW = 1000;
+
+    /** dbUnitコネクション **/
+    private final IDatabaseConnection connection;
+
+    /** 一度にメモリ上に保持する行数 **/
+    private final int window;
+
+    /** 退避ファイルの形式 **/
+    private final Format format;
+
+    /** 圧縮有無(バイナリ形式のみ) **/
+    private final boolean compress;
+
+    /** 復元時のINSERT **/
+    private final BatchInserter inserter;
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn DBコネクション
+     * @param window 一度にメモリ上に保持する行数(フェッチサイズ・バッチサイズ)
+     * @throws Exception
+     */
+    public StreamingTableBackup(Connection conn, int window) throws Exception {
+        this(new DatabaseConnection(conn), window, Format.XML, false, new BatchInserter(conn, window, false));
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param connection dbUnitコネクション 退避中のみストリーミング用の設定に切り替えます
+     * @param window 一度にメモリ上に保持する行数(フェッチサイズ・バッチサイズ)
+     * @param format 退避ファイルの形式
+     * @param compress 圧縮するか(バイナリ形式のみ)
+     * @param inserter 復元時のINSERTを行うオブジェクト
+     */
+    public StreamingTableBackup(IDatabaseConnection connection, int window, Format format, boolean compress,
+            BatchInserter inserter) {
+        this.connection = connection;
+        this.window = window;
+        this.format = format;
+        this.compress = compress;
+        this.inserter = inserter;
+    }
+
+    /**
+     * テーブル内容をファイルへ退避します
+     *
+     * @param tableNames 退避するテーブル名の配列
+     * @param file 退避先ファイル
+     * @throws Exception
+     */
+    public void backup(String[] tableNames, File file) throws Exception {
+        QueryDataSet dataSet = new QueryDataSet(connection);
+        for (String tableName : tableNames) {
+            dataSet.addTable(tableName);
+        }
+
+        // ファイル格納フォルダがなければ作成する
+        if (file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+
+        // 退避中のみ前方専用カーソルに切り替える(共有されているdbUnitコネクションの設定は元に戻す)
+        DatabaseConfig config = connection.getConfig();
+        Object tableFactory = config.getProperty(DatabaseConfig.PROPERTY_RESULTSET_TABLE_FACTORY);
+        Object fetchSize = config.getProperty(DatabaseConfig.PROPERTY_FETCH_SIZE);
+        config.setProperty(DatabaseConfig.PROPERTY_RESULTSET_TABLE_FACTORY, new ForwardOnlyResultSetTableFactory());
+        Connection conn = connection.getConnection();
+        BulkInserter.Dialect dialect = BulkInserter.Dialect.detect(conn);
+        config.setProperty(DatabaseConfig.PROPERTY_FETCH_SIZE, dialect.streamingFetchSize(conn, window));
+        boolean streaming = dialect.beginStreaming(conn);
+
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            IDataSetConsumer writer = format == Format.BINARY
+                    ? new BinarySnapshotWriter(out, compress, window)
+                    : new FlatXmlWriter(out);
+            DataSetProducerAdapter producer = new DataSetProducerAdapter(dataSet);
+            producer.setConsumer(new MeteredConsumer("backup", writer));
+            producer.produce();
+        } finally {
+            config.setProperty(DatabaseConfig.PROPERTY_RESULTSET_TABLE_FACTORY, tableFactory);
+            config.setProperty(DatabaseConfig.PROPERTY_FETCH_SIZE, fetchSize);
+            dialect.endStreaming(conn, streaming);
+        }
+        TestMetrics.count("backup.bytes", file.getName(), file.length());
+    }
+
+    /**
+     * 退避したファイルからテーブル内容を復元します<br>
+     * 指定したテーブルは全件削除された後、ファイルの内容が投入されます。<br>
+     * 自動コミットが有効なコネクションでは削除と投入を1トランザクションで行い、失敗した場合は削除も取り消します。
+     *
+     * @param tableNames 復元するテーブル名の配列 ファイル内のその他のテーブルは読み飛ばします
+     * @param file 退避したファイル
+     * @throws Exception
+     */
+    public void restore(String[] tableNames, File file) throws Exception {
+        restore(tableNames, new String[][] { tableNames }, new File[] { file });
+    }
+
+    /**
+     * テーブル毎に退避したファイルからテーブル内容を復元します<br>
+     * 指定したテーブルは後ろから全件削除された後、前から順にファイルの内容が投入されます。<br>
+     * 自動コミットが有効なコネクションでは全テーブルの削除と投入を1トランザクションで行い、失敗した場合は削除も取り消します。
+     *
+     * @param tableNames 復元するテーブル名の配列 外部キーで参照される側のテーブルを先に指定します
+     * @param files テーブル毎の退避したファイル(tableNamesと同じ順)
+     * @throws Exception
+     */
+    public void restore(String[] tableNames, File[] files) throws Exception {
+        String[][] fileTables = new String[tableNames.length][];
+        for (int i = 0; i < tableNames.length; i++) {
+            fileTables[i] = new String[] { tableNames[i] };
+        }
+        restore(tableNames, fileTables, files);
+    }
+
+    /**
+     * 削除と、ファイル毎の投入を1トランザクションで行います
+     *
+     * @param tableNames 削除するテーブル名の配列
+     * @param fileTables ファイル毎の投入するテーブル名の配列
+     * @param files 退避したファイル
+     * @throws Exception
+     */
+    private void restore(String[] tableNames, String[][] fileTables, File[] files) throws Exception {
+        Connection conn = connection.getConnection();
+        boolean ownTransaction = conn.getAutoCommit();
+        if (ownTransaction) {
+            conn.setAutoCommit(false);
+        }
+        try {
+            delete(tableNames);
+            for (int i = 0; i < files.length; i++) {
+                insert(fileTables[i], files[i]);
+            }
+            if (ownTransaction) {
+                conn.commit();
+            }
+        } catch (Exception e) {
+            if (ownTransaction) {
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+            }
+            throw e;
+        } finally {
+            if (ownTransaction) {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * 復元に先立ち、テーブルを全件削除します<br>
+     * 外部キーで参照される側のテーブルが先に指定されている前提で、後ろのテーブルから削除します。
+     *
+     * @param tableNames 削除するテーブル名の配列
+     * @throws Exception
+     */
+    public void delete(String[] tableNames) throws Exception {
+        long start = TestMetrics.start();
+        inserter.deleteAll(tableNames);
+        TestMetrics.time("restore.delete", null, start);
+    }
+
+    /**
+     * 退避したファイルの内容をテーブルへ投入します 削除は行いません
+     *
+     * @param tableNames 投入するテーブル名の配列 ファイル内のその他のテーブルは読み飛ばします
+     * @param file 退避したファイル
+     * @throws Exception
+     */
+    public void insert(String[] tableNames, File file) throws Exception {
+        // StreamingDataSetは読み込みを別スレッドで行い、空のテーブルで呼び出し元スレッドへ割り込みを残すため、
+        // ファイルを読み込むProducerから直接投入する
+        produce(file, new TableFilterConsumer(tableNames, new MeteredConsumer("restore", inserter)));
+    }
+
+    /**
+     * 退避したファイルを逐次読み込みし、consumerへ渡します
+     *
+     * @param file 退避したファイル
+     * @param consumer 読み込み先
+     * @throws Exception
+     */
+    public void produce(File file, IDataSetConsumer consumer) throws Exception {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            IDataSetProducer producer = createProducer(in);
+            producer.setConsumer(consumer);
+            producer.produce();
+        }
+    }
+
+    /**
+     * @return 退避ファイルの拡張子
+     */
+    public String getExtension() {
+        return format.getExtension();
+    }
+
+    private IDataSetProducer createProducer(InputStream in) {
+        if (format == Format.BINARY) {
+            return new BinarySnapshotProducer(in);
+        }
+        return new FlatXmlProducer(new InputSource(in));
+    }
+
+    /**
+     * 指定したテーブルのみ委譲先へ渡すIDataSetConsumer
+     */
+    private static class TableFilterConsumer implements IDataSetConsumer {
+
+        /** 対象のテーブル名 **/
+        private final String[] tableNames;
+
+        /** 委譲先 **/
+        private final IDataSetConsumer delegate;
+
+        /** 処理中のテーブルが対象か **/
+        private boolean included;
+
+        TableFilterConsumer(String[] tableNames, IDataSetConsumer delegate) {
+            this.tableNames = tableNames;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void startDataSet() throws DataSetException {
+            delegate.startDataSet();
+        }
+
+        @Override
+        public void endDataSet() throws DataSetException {
+            delegate.endDataSet();
+        }
+
+        @Override
+        public void startTable(ITableMetaData metaData) throws DataSetException {
+            included = false;
+            for (String tableName : tableNames) {
+                if (tableName.equalsIgnoreCase(metaData.getTableName())) {
+                    included = true;
+                    break;
+                }
+            }
+            if (included) {
+                delegate.startTable(metaData);
+            }
+        }
+
+        @Override
+        public void row(Object[] values) throws DataSetException {
+            if (included) {
+                delegate.row(values);
+            }
+        }
+
+        @Override
+        public void endTable() throws DataSetException {
+            if (included) {
+                delegate.endTable();
+            }
+        }
+    }
+}
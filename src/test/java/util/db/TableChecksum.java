@@ -0,0 +1,307 @@
+/**
+ *
+ */
+package util.db;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import org.dbunit.dataset.Column;
+import org.dbunit.dataset.DataSetException;
+import org.dbunit.dataset.ITable;
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.DataTypeException;
+import org.dbunit.dataset.datatype.TypeCastException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConnection;
+
+/**
+ * 行の順序に依存しないチェックサムによる、テーブルの一致確認<br>
+ * <br>
+ * 期待値の各行の値を文字列にしてMD5の先頭64bitを求め、その合計(2^64を法とする)と行数を、
+ * DB側で同じ方法で集計した値と比べます。DBからは集計結果の1行のみを取得します。<br>
+ * 行の文字列は、カラム毎に「文字数:値;」(nullは「N;」)を連結したものです。
+ * <ul>
+ * <li>MySQL・PostgreSQL・H2 : SQLのMD5関数とSUMで集計
+ * <li>SQLite : MD5関数が無いため、集計関数を接続に登録し、DB内で集計
+ * </ul>
+ * DBと同じ文字列表現になる整数・可変長文字列のカラムのみ対象とし、それ以外の型のカラムを含むテーブルや、
+ * 対応していないDBでは判定しません(null)。<br>
+ * 一致しない場合も差分の内容は分からないため、呼び出し側で行単位の比較を行ってください。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class TableChecksum {
+    protected static final Logger log = LoggerFactory.getLogger(TableChecksum.class);
+
+    /** SQLiteに登録する集計関数名 **/
+    private static final String SQLITE_FUNCTION = "table_checksum";
+
+    /** DBコネクション **/
+    private final Connection conn;
+
+    /** DBの種類 **/
+    private final BulkInserter.Dialect dialect;
+
+    /** 集計関数を登録したか(SQLite) **/
+    private boolean registered;
+
+    /**
+     * コンストラクタ
+     *
+     * @param conn DBコネクション
+     * @param dialect DBの種類
+     */
+    public TableChecksum(Connection conn, BulkInserter.Dialect dialect) {
+        this.conn = conn;
+        this.dialect = dialect;
+    }
+
+    /**
+     * 期待値のテーブルと、DB上の同名テーブルのチェックサムを比較します<br>
+     * DB側は期待値にあるカラムのみを対象とします。
+     *
+     * @param expected 期待値のテーブル
+     * @return 一致した場合はtrue 一致しない場合はfalse 判定できない場合(対応していないDB・カラムの型、SQLの失敗)はnull
+     * @throws DataSetException
+     */
+    public Boolean matches(ITable expected) throws DataSetException {
+        if (dialect == BulkInserter.Dialect.OTHER) {
+            return null;
+        }
+        String tableName = expected.getTableMetaData().getTableName();
+        Column[] columns = expected.getTableMetaData().getColumns();
+        if (columns.length == 0) {
+            return null;
+        }
+
+        String[] columnNames = new String[columns.length];
+        StringBuilder select = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.length; i++) {
+            columnNames[i] = columns[i].getColumnName();
+            select.append(i == 0 ? "" : ", ").append(columnNames[i]);
+        }
+        select.append(" FROM ").append(tableName);
+
+        try {
+            DataType[] dataTypes = getDataTypes(select + " WHERE 1 = 0");
+            if (dataTypes == null) {
+                log.debug("Checksum skipped. unsupported column type : " + tableName);
+                return null;
+            }
+
+            long expectedSum = 0;
+            for (int row = 0; row < expected.getRowCount(); row++) {
+                String[] values = new String[columnNames.length];
+                for (int i = 0; i < columnNames.length; i++) {
+                    Object typed = dataTypes[i].typeCast(expected.getValue(row, columnNames[i]));
+                    values[i] = typed == null ? null : typed.toString();
+                }
+                expectedSum += rowHash(values);
+            }
+
+            long[] actual = queryChecksum(tableName, columnNames);
+            log.debug("Checksum " + tableName + " : expected " + expected.getRowCount() + " rows / " + expectedSum
+                    + ", actual " + actual[0] + " rows / " + actual[1]);
+            return actual[0] == expected.getRowCount() && actual[1] == expectedSum;
+        } catch (SQLException | TypeCastException e) {
+            // 判定できないだけで、行単位の比較で確認されるためスタックトレースは出さない
+            log.debug("Checksum " + tableName + " fail. (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    /**
+     * DB上で行数とチェックサムを集計します
+     *
+     * @return {行数, チェックサム}
+     */
+    private long[] queryChecksum(String tableName, String[] columnNames) throws SQLException {
+        String sql;
+        if (dialect == BulkInserter.Dialect.SQLITE) {
+            registerSqliteFunction();
+            StringBuilder args = new StringBuilder();
+            for (int i = 0; i < columnNames.length; i++) {
+                args.append(i == 0 ? "" : ", ").append(columnNames[i]);
+            }
+            sql = "SELECT COUNT(*), " + SQLITE_FUNCTION + "(" + args + ") FROM " + tableName;
+        } else {
+            sql = "SELECT COUNT(*), SUM(" + rowHashSql(columnNames) + ") FROM " + tableName;
+        }
+
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            rs.next();
+            long count = rs.getLong(1);
+            // SUMは桁あふれしないよう多倍長で返るため、下位64bit(2^64を法とする値)を取り出す
+            BigDecimal sum = rs.getBigDecimal(2);
+            return new long[] { count, sum == null ? 0 : sum.toBigInteger().longValue() };
+        }
+    }
+
+    /**
+     * 行のハッシュ値を求めるSQLの式を組み立てます(SQLite以外)
+     */
+    private String rowHashSql(String[] columnNames) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < columnNames.length; i++) {
+            String value;
+            String length;
+            if (dialect == BulkInserter.Dialect.MYSQL) {
+                value = "CAST(" + columnNames[i] + " AS CHAR)";
+                length = "CHAR_LENGTH(" + value + ")";
+            } else if (dialect == BulkInserter.Dialect.POSTGRESQL) {
+                value = "CAST(" + columnNames[i] + " AS TEXT)";
+                length = "CAST(CHAR_LENGTH(" + value + ") AS TEXT)";
+            } else {
+                value = "CAST(" + columnNames[i] + " AS VARCHAR)";
+                length = "CAST(CHAR_LENGTH(" + value + ") AS VARCHAR)";
+            }
+
+            String element = dialect == BulkInserter.Dialect.MYSQL
+                    ? "CONCAT(" + length + ", ':', " + value + ", ';')"
+                    : length + " || ':' || " + value + " || ';'";
+            text.append(dialect == BulkInserter.Dialect.MYSQL ? (i == 0 ? "CONCAT(" : ", ") : (i == 0 ? "" : " || "))
+                    .append("CASE WHEN ").append(columnNames[i]).append(" IS NULL THEN 'N;' ELSE ")
+                    .append(element).append(" END");
+        }
+        if (dialect == BulkInserter.Dialect.MYSQL) {
+            text.append(")");
+        }
+
+        // MD5の先頭64bit
+        switch (dialect) {
+        case MYSQL:
+            return "CAST(CONV(SUBSTRING(MD5(" + text + "), 1, 16), 16, 10) AS UNSIGNED)";
+        case POSTGRESQL:
+            return "CAST(CAST('x' || SUBSTR(MD5(" + text + "), 1, 16) AS BIT(64)) AS BIGINT)";
+        default:
+            return "CAST(SUBSTRING(HASH('MD5', " + text + ") FROM 1 FOR 8) AS BIGINT)";
+        }
+    }
+
+    /**
+     * SQLiteの接続に集計関数を登録します(接続毎に1回)
+     */
+    private void registerSqliteFunction() throws SQLException {
+        if (!registered) {
+            SqliteChecksum.register(conn);
+            registered = true;
+        }
+    }
+
+    /**
+     * 対象のカラムのデータ型を取得します
+     *
+     * @param sql 対象のカラムを0行取得するSQL
+     * @return データ型 対象外の型のカラムがある場合はnull
+     */
+    private DataType[] getDataTypes(String sql) throws SQLException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            ResultSetMetaData metaData = rs.getMetaData();
+            DataType[] dataTypes = new DataType[metaData.getColumnCount()];
+            for (int i = 0; i < dataTypes.length; i++) {
+                int sqlType = metaData.getColumnType(i + 1);
+                if (!isSupported(sqlType)) {
+                    return null;
+                }
+                try {
+                    dataTypes[i] = DataType.forSqlType(sqlType);
+                } catch (DataTypeException e) {
+                    return null;
+                }
+            }
+            return dataTypes;
+        }
+    }
+
+    /**
+     * @param sqlType カラムの型
+     * @return DBの文字列表現と、期待値の文字列表現が同じになる型か
+     */
+    private static boolean isSupported(int sqlType) {
+        switch (sqlType) {
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+        case Types.BIGINT:
+        case Types.VARCHAR:
+        case Types.LONGVARCHAR:
+        case Types.NVARCHAR:
+        case Types.LONGNVARCHAR:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 行のハッシュ値(行の文字列のMD5の先頭64bit)を求めます
+     *
+     * @param values 値の文字列表現 nullはnull
+     * @return ハッシュ値
+     */
+    static long rowHash(String[] values) {
+        StringBuilder text = new StringBuilder();
+        for (String value : values) {
+            if (value == null) {
+                text.append("N;");
+            } else {
+                text.append(value.codePointCount(0, value.length())).append(':').append(value).append(';');
+            }
+        }
+
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(text.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * SQLiteの集計関数 引数の値から行のハッシュ値を求めて合計する
+     */
+    private static class SqliteChecksum extends org.sqlite.Function.Aggregate {
+        private long sum;
+
+        /**
+         * 接続に集計関数を登録します
+         *
+         * @param conn DBコネクション(プールのProxyも可)
+         * @throws SQLException
+         */
+        private static void register(Connection conn) throws SQLException {
+            org.sqlite.Function.create(conn.unwrap(SQLiteConnection.class), SQLITE_FUNCTION, new SqliteChecksum());
+        }
+
+        @Override
+        protected void xStep() throws SQLException {
+            String[] values = new String[args()];
+            for (int i = 0; i < values.length; i++) {
+                // SQLITE_NULL
+                values[i] = value_type(i) == 5 ? null : value_text(i);
+            }
+            sum += rowHash(values);
+        }
+
+        @Override
+        protected void xFinal() throws SQLException {
+            result(sum);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ *
+ */
+package util.db;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.dbunit.dataset.datatype.DataType;
+import org.dbunit.dataset.datatype.DataTypeException;
+import org.dbunit.dataset.datatype.TypeCastException;
+
+/**
+ * テーブルの行単位の指紋(主キー＋行ハッシュ)<br>
+ * <br>
+ * バックアップ時に取得しておき、リストア時に現在のテーブルと比較することで、
+ * テストで変更された行だけを元に戻すために使用します。<br>
+ * 主キーの無いテーブルは行ハッシュの多重集合として保持し、変更の有無だけを判定します。<br>
+ * 主キーの値は、カラムのデータ型に変換した文字列表現({@link #canonical(DataType, Object)})で保持するため、
+ * DBから読んだ値とバックアップファイルから読んだ値(XMLの文字列・バイナリ形式の型付きの値)を同じキーとして照合できます。<br>
+ * 指紋は全行分の「主キー → 行ハッシュ」をヒープに保持します(1行あたりキーの文字列とMapのエントリ分)。
+ * 行数の多いテーブルを差分リストアの対象にする場合は、そのメモリを見込んでください。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class TableFingerprint {
+
+    /** テーブル名 **/
+    private final String tableName;
+
+    /** 主キーのカラム名(主キーが無い場合は空) **/
+    private final String[] keyColumns;
+
+    /** 主キーのカラムのデータ型 **/
+    private final DataType[] keyTypes;
+
+    /** 主キー → 行ハッシュ (主キーが無い場合は行ハッシュ → 件数) **/
+    private final Map<List<String>, Long> rows;
+
+    /** 順序に依存しないテーブル全体のハッシュ **/
+    private final long tableHash;
+
+    private TableFingerprint(String tableName, String[] keyColumns, DataType[] keyTypes,
+            Map<List<String>, Long> rows, long tableHash) {
+        this.tableName = tableName;
+        this.keyColumns = keyColumns;
+        this.keyTypes = keyTypes;
+        this.rows = rows;
+        this.tableHash = tableHash;
+    }
+
+    /**
+     * テーブルの現在の内容から指紋を取得します<br>
+     * 全行分の主キーと行ハッシュをメモリに保持します。
+     *
+     * @param conn DBコネクション
+     * @param tableName テーブル名
+     * @param fetchSize DBから一度に取得する行数
+     * @return 指紋
+     * @throws SQLException
+     */
+    public static TableFingerprint capture(Connection conn, String tableName, int fetchSize) throws SQLException {
+        String[] keyColumns = getPrimaryKeys(conn, tableName);
+        Map<List<String>, Long> rows = new HashMap<List<String>, Long>();
+        long tableHash = 0L;
+        DataType[] keyTypes;
+
+        BulkInserter.Dialect dialect = BulkInserter.Dialect.detect(conn);
+        boolean streaming = dialect.beginStreaming(conn);
+        try (Statement stmt = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(dialect.streamingFetchSize(conn, fetchSize));
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName)) {
+                int[] keyIndexes = keyIndexes(rs.getMetaData(), keyColumns);
+                keyTypes = keyTypes(rs.getMetaData(), keyIndexes);
+                while (rs.next()) {
+                    long rowHash = rowHash(rs);
+                    tableHash += rowHash;
+                    if (keyIndexes.length == 0) {
+                        List<String> hashKey = Arrays.asList(Long.toString(rowHash));
+                        Long count = rows.get(hashKey);
+                        rows.put(hashKey, count == null ? 1L : count + 1L);
+                    } else {
+                        rows.put(keyOf(rs, keyIndexes, keyTypes), rowHash);
+                    }
+                }
+            }
+        } finally {
+            dialect.endStreaming(conn, streaming);
+        }
+
+        return new TableFingerprint(tableName, keyColumns, keyTypes, rows, tableHash);
+    }
+
+    /**
+     * 現在のテーブル内容と比較し、指紋取得時の状態に戻すために必要な差分を求めます<br>
+     * 削除が必要な行は、この時点でDBから削除用のキー値を取得しておきます。
+     *
+     * @param conn DBコネクション
+     * @return 差分
+     * @throws SQLException
+     */
+    public Diff diff(Connection conn) throws SQLException {
+        Diff diff = new Diff();
+
+        try (Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT * FROM " + tableName)) {
+            if (!hasPrimaryKey()) {
+                Map<List<String>, Long> current = new HashMap<List<String>, Long>();
+                while (rs.next()) {
+                    List<String> hashKey = Arrays.asList(Long.toString(rowHash(rs)));
+                    Long count = current.get(hashKey);
+                    current.put(hashKey, count == null ? 1L : count + 1L);
+                }
+                diff.fullRestore = !current.equals(rows);
+                return diff;
+            }
+
+            int[] keyIndexes = keyIndexes(rs.getMetaData(), keyColumns);
+            Set<List<String>> seen = new HashSet<List<String>>();
+            while (rs.next()) {
+                List<String> key = keyOf(rs, keyIndexes, keyTypes);
+                seen.add(key);
+                Long expected = rows.get(key);
+                if (expected == null || expected.longValue() != rowHash(rs)) {
+                    Object[] keyValues = new Object[keyIndexes.length];
+                    for (int i = 0; i < keyIndexes.length; i++) {
+                        keyValues[i] = rs.getObject(keyIndexes[i]);
+                    }
+                    diff.deleteKeys.add(keyValues);
+                    if (expected != null) {
+                        diff.insertKeys.add(key);
+                    }
+                }
+            }
+
+            for (List<String> key : rows.keySet()) {
+                if (!seen.contains(key)) {
+                    diff.insertKeys.add(key);
+                }
+            }
+        }
+
+        return diff;
+    }
+
+    /**
+     * 差分のうち、削除が必要な行を削除します
+     *
+     * @param conn DBコネクション
+     * @param diff 差分
+     * @throws SQLException
+     */
+    public void deleteRows(Connection conn, Diff diff) throws SQLException {
+        if (diff.deleteKeys.isEmpty()) {
+            return;
+        }
+
+        StringBuilder sql = new StringBuilder("DELETE FROM ").append(tableName).append(" WHERE ");
+        for (int i = 0; i < keyColumns.length; i++) {
+            sql.append(i == 0 ? "" : " AND ").append(keyColumns[i]).append(" = ?");
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            for (Object[] keyValues : diff.deleteKeys) {
+                for (int i = 0; i < keyValues.length; i++) {
+                    ps.setObject(i + 1, keyValues[i]);
+                }
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * バックアップファイル等から読んだ主キーの値を、差分のキー({@link Diff#getInsertKeys()})と同じ表現にします
+     *
+     * @param keyValues 主キーのカラムの値(getKeyColumns()の順)
+     * @return キー
+     * @throws TypeCastException
+     */
+    public List<String> keyOf(Object[] keyValues) throws TypeCastException {
+        List<String> key = new ArrayList<String>(keyValues.length);
+        for (int i = 0; i < keyValues.length; i++) {
+            key.add(canonical(keyTypes[i], keyValues[i]));
+        }
+        return key;
+    }
+
+    /**
+     * @return テーブル名
+     */
+    public String getTableName() {
+        return tableName;
+    }
+
+    /**
+     * @return 主キーのカラム名
+     */
+    public String[] getKeyColumns() {
+        return keyColumns;
+    }
+
+    /**
+     * @return 主キーの有無
+     */
+    public boolean hasPrimaryKey() {
+        return keyColumns.length != 0;
+    }
+
+    /**
+     * @return 順序に依存しないテーブル全体のハッシュ
+     */
+    public long getTableHash() {
+        return tableHash;
+    }
+
+    /**
+     * 主キーのカラム名を取得します
+     *
+     * @param conn DBコネクション
+     * @param tableName テーブル名
+     * @return 主キーのカラム名 主キーが無い場合は空配列
+     * @throws SQLException
+     */
+    public static String[] getPrimaryKeys(Connection conn, String tableName) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        TreeMap<Short, String> keys = new TreeMap<Short, String>();
+        try (ResultSet rs = metaData.getPrimaryKeys(null, null, tableName)) {
+            while (rs.next()) {
+                keys.put(rs.getShort("KEY_SEQ"), rs.getString("COLUMN_NAME"));
+            }
+        }
+
+        return keys.values().toArray(new String[0]);
+    }
+
+    /**
+     * 行の値からハッシュ値(64bit FNV-1a)を求めます
+     *
+     * @param rs 現在行を指すResultSet
+     * @return 行ハッシュ
+     * @throws SQLException
+     */
+    public static long rowHash(ResultSet rs) throws SQLException {
+        int columnCount = rs.getMetaData().getColumnCount();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 1; i <= columnCount; i++) {
+            String value = rs.getString(i);
+            hash = hash(hash, value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+        }
+        return hash;
+    }
+
+    /**
+     * FNV-1aで値をハッシュに畳み込みます<br>
+     * nullと空文字を区別するため、値毎に区切りとnull印を混ぜます
+     *
+     * @param hash これまでのハッシュ値
+     * @param value 値 nullの場合はnull
+     * @return ハッシュ値
+     */
+    public static long hash(long hash, byte[] value) {
+        if (value == null) {
+            hash ^= 0xff;
+            hash *= 0x100000001b3L;
+        } else {
+            for (byte b : value) {
+                hash ^= (b & 0xff);
+                hash *= 0x100000001b3L;
+            }
+        }
+        hash ^= 0xfe;
+        hash *= 0x100000001b3L;
+        return hash;
+    }
+
+    private static int[] keyIndexes(ResultSetMetaData metaData, String[] keyColumns) throws SQLException {
+        int[] indexes = new int[keyColumns.length];
+        for (int k = 0; k < keyColumns.length; k++) {
+            for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                if (metaData.getColumnName(i).equalsIgnoreCase(keyColumns[k])) {
+                    indexes[k] = i;
+                }
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * 値をカラムのデータ型に変換し、比較用の文字列表現にします<br>
+     * 数値は末尾の0を除いた表記、バイナリはバイト列の表記とします。
+     *
+     * @param dataType データ型
+     * @param value 値
+     * @return 文字列表現 nullの場合はnull
+     * @throws TypeCastException
+     */
+    public static String canonical(DataType dataType, Object value) throws TypeCastException {
+        Object typed = dataType.typeCast(value);
+        if (typed == null) {
+            return null;
+        }
+        if (typed instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) typed;
+            return decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toPlainString();
+        }
+        if (typed instanceof byte[]) {
+            return Arrays.toString((byte[]) typed);
+        }
+        return typed.toString();
+    }
+
+    private static DataType[] keyTypes(ResultSetMetaData metaData, int[] keyIndexes) throws SQLException {
+        DataType[] keyTypes = new DataType[keyIndexes.length];
+        for (int k = 0; k < keyIndexes.length; k++) {
+            try {
+                keyTypes[k] = DataType.forSqlType(metaData.getColumnType(keyIndexes[k]));
+            } catch (DataTypeException e) {
+                keyTypes[k] = DataType.UNKNOWN;
+            }
+        }
+        return keyTypes;
+    }
+
+    private static List<String> keyOf(ResultSet rs, int[] keyIndexes, DataType[] keyTypes) throws SQLException {
+        List<String> key = new ArrayList<String>(keyIndexes.length);
+        for (int k = 0; k < keyIndexes.length; k++) {
+            try {
+                key.add(canonical(keyTypes[k], rs.getObject(keyIndexes[k])));
+            } catch (TypeCastException e) {
+                throw new SQLException("Cast key of " + rs.getMetaData().getTableName(keyIndexes[k]) + " fail.", e);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * 指紋取得時の状態に戻すための差分
+     */
+    public static class Diff {
+        /** 削除すべき行のキー値 **/
+        private final List<Object[]> deleteKeys = new ArrayList<Object[]>();
+
+        /** バックアップから挿入すべき行のキー(データ型に変換した文字列表現) **/
+        private final Set<List<String>> insertKeys = new HashSet<List<String>>();
+
+        /** 主キーが無く、差分が取れないためテーブル全体の復元が必要 **/
+        private boolean fullRestore = false;
+
+        /**
+         * @return 削除すべき行のキー値
+         */
+        public List<Object[]> getDeleteKeys() {
+            return deleteKeys;
+        }
+
+        /**
+         * @return バックアップから挿入すべき行のキー
+         */
+        public Set<List<String>> getInsertKeys() {
+            return insertKeys;
+        }
+
+        /**
+         * @return テーブル全体の復元が必要か
+         */
+        public boolean isFullRestore() {
+            return fullRestore;
+        }
+
+        /**
+         * @return 変更が無いか
+         */
+        public boolean isEmpty() {
+            return !fullRestore && deleteKeys.isEmpty() && insertKeys.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/**
+ *
+ */
+package util.selenium;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import util.EvidenceStore;
+import util.TestMetrics;
+
+/**
+ * スクリーンキャプチャをテストのスレッドの外で書き出すクラス<br>
+ * <br>
+ * キャプチャ(PNGのバイト列)を上限付きのキューに積み、フォーク(JVM)全体で1本の書き出しスレッドが
+ * 積まれた順に変換・書き出しを行います。キューが一杯の場合は、空くまで積む側を待たせます。<br>
+ * 重複排除を指定した場合は、同じキー(テストメソッド等)の直前のキャプチャと内容のハッシュが一致すれば書き出しを省略します。<br>
+ * 積んだキャプチャは submit() が返すFutureで書き出し完了を待てます。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class CaptureWriter {
+    protected static final Logger log = LoggerFactory.getLogger(CaptureWriter.class);
+
+    /** 既定のキューの上限 **/
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+
+    /** JPEGの画質 **/
+    private static final float JPEG_QUALITY = 0.85f;
+
+    /** フォーク全体で共有するインスタンス **/
+    private static CaptureWriter instance;
+
+    /**
+     * 書き出す形式
+     */
+    public enum Format {
+        /** 取得したPNGをそのまま書き出す **/
+        PNG("png"),
+        /** JPEGに変換して書き出す(サイズ優先) **/
+        JPG("jpg");
+
+        private final String extension;
+
+        private Format(String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * 設定値から形式を取得します 未設定時はPNG
+         *
+         * @param value 設定値
+         * @return 形式
+         */
+        public static Format of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return PNG;
+            }
+            String format = value.trim().toUpperCase();
+            return "JPEG".equals(format) ? JPG : valueOf(format);
+        }
+
+        /**
+         * @return 拡張子
+         */
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * 書き出し先
+     */
+    private interface Sink {
+        File write(byte[] data, String extension) throws IOException;
+    }
+
+    /** 書き出しスレッド **/
+    private final ThreadPoolExecutor executor;
+
+    /** キー毎の直前のキャプチャ(ハッシュ・書き出したファイル) 書き出しスレッドからのみ参照 **/
+    private final Map<String, Object[]> lastFrames = new HashMap<String, Object[]>();
+
+    private CaptureWriter(int queueSize) {
+        executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "capture-writer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // キューが空くまで待たせる
+                        try {
+                            executor.getQueue().put(r);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * フォーク全体で共有するインスタンスを取得します 無ければ生成します
+     *
+     * @param queueSize キューの上限(生成時のみ有効)
+     * @return インスタンス
+     */
+    public static synchronized CaptureWriter getInstance(int queueSize) {
+        if (instance == null) {
+            instance = new CaptureWriter(queueSize);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    instance.shutdown();
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * キャプチャを書き出しキューに積みます
+     *
+     * @param png 取得したキャプチャ(PNG)
+     * @param out 書き出し先(拡張子は形式に合わせて付け替えます)
+     * @param format 書き出す形式
+     * @param dedupKey 重複排除のキー 直前の同じキーのキャプチャと同じ内容なら書き出さない nullの場合は重複排除しない
+     * @param metrics 書き出し時間の加算先 nullの場合は計測しない
+     * @return 書き出したファイル(重複排除した場合は直前のキャプチャのファイル)
+     */
+    public Future<File> submit(byte[] png, final File out, Format format, String dedupKey, TestMetrics metrics) {
+        return submit(png, format, dedupKey, metrics, out.getName(), new Sink() {
+            @Override
+            public File write(byte[] data, String extension) throws IOException {
+                File file = withExtension(out, extension);
+                if (!file.getParentFile().exists()) {
+                    file.getParentFile().mkdirs();
+                }
+                Files.write(file.toPath(), data);
+                return file;
+            }
+        });
+    }
+
+    /**
+     * キャプチャをエビデンスのストアへの書き出しキューに積みます
+     *
+     * @param png 取得したキャプチャ(PNG)
+     * @param store エビデンスのストア
+     * @param testName テスト名
+     * @param methodName テストメソッド名
+     * @param step キャプチャの名前
+     * @param format 書き出す形式
+     * @param dedupKey 重複排除のキー 直前の同じキーのキャプチャと同じ内容なら書き出さない nullの場合は重複排除しない
+     * @param metrics 書き出し時間の加算先 nullの場合は計測しない
+     * @return 書き出したファイル(重複排除した場合は直前のキャプチャのファイル)
+     */
+    public Future<File> submit(byte[] png, final EvidenceStore store, final String testName, final String methodName,
+            final String step, Format format, String dedupKey, TestMetrics metrics) {
+        return submit(png, format, dedupKey, metrics, methodName + "_" + step, new Sink() {
+            @Override
+            public File write(byte[] data, String extension) throws IOException {
+                return store.put(data, extension, testName, methodName, step);
+            }
+        });
+    }
+
+    private Future<File> submit(final byte[] png, final Format format, final String dedupKey,
+            final TestMetrics metrics, final String name, final Sink sink) {
+        return executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                long start = TestMetrics.start();
+                try {
+                    return write(png, format, dedupKey, metrics, name, sink);
+                } finally {
+                    if (metrics != null) {
+                        metrics.addTime("capture.write", name, System.nanoTime() - start);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * キャプチャを書き出します(書き出しスレッドで実行)
+     */
+    private File write(byte[] png, Format format, String dedupKey, TestMetrics metrics, String name, Sink sink)
+            throws IOException {
+        byte[] hash = null;
+        if (dedupKey != null) {
+            hash = sha256(png);
+            Object[] last = lastFrames.get(dedupKey);
+            if (last != null && Arrays.equals((byte[]) last[0], hash)) {
+                log.debug("Skip capture same as previous : " + name);
+                if (metrics != null) {
+                    metrics.addCount("capture.dedup", dedupKey, 1);
+                }
+                return (File) last[1];
+            }
+        }
+
+        byte[] data = format == Format.JPG ? toJpeg(png) : png;
+        File file = sink.write(data, format.getExtension());
+        log.debug("Captured : " + file.getPath() + " (" + name + ")");
+        if (metrics != null) {
+            metrics.addCount("capture.bytes", dedupKey, data.length);
+        }
+
+        if (dedupKey != null) {
+            lastFrames.put(dedupKey, new Object[] { hash, file });
+        }
+        return file;
+    }
+
+    /**
+     * 重複排除のキーに対応する直前のキャプチャを忘れます(テストメソッドの終了時等)
+     *
+     * @param dedupKey 重複排除のキー
+     */
+    public void forget(final String dedupKey) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                lastFrames.remove(dedupKey);
+            }
+        });
+    }
+
+    private void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Captures are not written until shutdown. (" + executor.getQueue().size() + " remain)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static File withExtension(File file, String extension) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + "." + extension);
+    }
+
+    private static byte[] toJpeg(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null) {
+            throw new IOException("Capture is not a readable image.");
+        }
+
+        // JPEGは透過を扱えないため、RGBに描き直す
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, Color.WHITE, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpg").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(bytes)) {
+            writer.setOutput(stream);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(rgb, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ *
+ */
+package util.selenium;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.openqa.selenium.Cookie;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.firefox.FirefoxDriver;
+import org.openqa.selenium.htmlunit.HtmlUnitDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * フォーク(JVM)全体で共有する、ログイン済みのWebDriverのプール<br>
+ * <br>
+ * ブラウザの起動とログイン(Factory)は初回のみ行い、生成直後の状態(クッキー・LocalStorage・URL)を控えておきます。<br>
+ * 返却されたWebDriverは、LocalStorageとクッキーを消去してから控えた状態を戻し(LocalStorageは1回のスクリプト実行)、次のテストに貸し出します。<br>
+ * プールの生成時に、最大数までのWebDriverをバックグラウンドで準備します。<br>
+ * 状態を戻せなかったWebDriverは終了させ、次の貸出時に作り直します。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class DriverPool {
+    protected static final Logger log = LoggerFactory.getLogger(DriverPool.class);
+
+    /** 既定の最大数 **/
+    public static final int DEFAULT_MAX_SIZE = 1;
+
+    /** 貸出待ちの上限時間(ミリ秒) ブラウザの起動・ログインを待つため長めに取る **/
+    private static final long BORROW_TIMEOUT = 120000L;
+
+    /** 種類毎のプール **/
+    private static final Map<String, DriverPool> POOLS = new HashMap<String, DriverPool>();
+
+    /**
+     * WebDriverを生成するインターフェース<br>
+     * ログインが必要な場合は、ログイン後のWebDriverを返してください
+     */
+    public interface Factory {
+        WebDriver create() throws Exception;
+    }
+
+    /**
+     * ブラウザの種類
+     */
+    public enum Browser {
+        CHROME, FIREFOX, HTMLUNIT;
+
+        /**
+         * 設定値からブラウザの種類を取得します 未設定時はCHROME
+         *
+         * @param value 設定値
+         * @return ブラウザの種類
+         */
+        public static Browser of(String value) {
+            if (value == null || value.trim().isEmpty()) {
+                return CHROME;
+            }
+            return valueOf(value.trim().toUpperCase());
+        }
+
+        /**
+         * @return ブラウザを起動したWebDriver
+         */
+        public WebDriver create() {
+            switch (this) {
+            case FIREFOX:
+                return new FirefoxDriver();
+            case HTMLUNIT:
+                return new HtmlUnitDriver(true);
+            default:
+                return new ChromeDriver();
+            }
+        }
+    }
+
+    private final String name;
+    private final Factory factory;
+    private final int maxSize;
+
+    /** 待機中のWebDriver **/
+    private final Deque<WebDriver> idle = new ArrayDeque<WebDriver>();
+
+    /** 生成済みのWebDriverと、生成直後の状態 **/
+    private final Map<WebDriver, Session> sessions = new IdentityHashMap<WebDriver, Session>();
+
+    /** 生成済み・生成中のWebDriver数 **/
+    private int size;
+
+    /** 生成に使ったWebDriver数(作り直しを含む) **/
+    private int created;
+
+    private DriverPool(String name, Factory factory, int maxSize) {
+        this.name = name;
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * 名前に対応するプールを取得します 無ければ生成し、最大数までのWebDriverをバックグラウンドで準備します
+     *
+     * @param name プール名(ブラウザ・接続先・ログインユーザー等、共有してよい範囲を表す名前)
+     * @param factory WebDriverの生成
+     * @param maxSize 最大数
+     * @return プール
+     */
+    public static DriverPool of(String name, Factory factory, int maxSize) {
+        synchronized (POOLS) {
+            DriverPool pool = POOLS.get(name);
+            if (pool == null) {
+                pool = new DriverPool(name, factory, maxSize);
+                POOLS.put(name, pool);
+                if (POOLS.size() == 1) {
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        @Override
+                        public void run() {
+                            shutdownAll();
+                        }
+                    });
+                }
+                pool.warmUp();
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * WebDriverを借ります 返却はgiveBack()で行ってください
+     *
+     * @return ログイン済みのWebDriver
+     * @throws Exception
+     */
+    public WebDriver borrow() throws Exception {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT;
+        synchronized (this) {
+            while (idle.isEmpty()) {
+                if (size < maxSize) {
+                    size++;
+                    break;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new IllegalStateException(
+                            "Timeout to borrow WebDriver. All " + maxSize + " drivers of " + name + " are in use.");
+                }
+                wait(wait);
+            }
+            if (!idle.isEmpty()) {
+                return idle.pollFirst();
+            }
+        }
+
+        // ブラウザの起動は時間が掛かるため、ロックの外で行う
+        return create();
+    }
+
+    /**
+     * WebDriverを返却します 生成直後の状態に戻してから、次の貸出に備えます
+     *
+     * @param driver borrow()で借りたWebDriver
+     */
+    public void giveBack(WebDriver driver) {
+        Session session;
+        synchronized (this) {
+            session = sessions.get(driver);
+        }
+        if (session == null) {
+            log.warn("WebDriver is not borrowed from " + name + ". Ignore it.");
+            return;
+        }
+
+        try {
+            session.reset();
+        } catch (RuntimeException e) {
+            log.warn("Cannot reset WebDriver. Quit and recreate it later. (" + e + ")");
+            discard(driver);
+            return;
+        }
+        synchronized (this) {
+            idle.addFirst(driver);
+            notifyAll();
+        }
+    }
+
+    /**
+     * 返却されたWebDriverを、状態を戻さずに終了させます(テスト中にブラウザが落ちた場合等)
+     *
+     * @param driver borrow()で借りたWebDriver
+     */
+    public void discard(WebDriver driver) {
+        synchronized (this) {
+            if (sessions.remove(driver) == null) {
+                return;
+            }
+            size--;
+            notifyAll();
+        }
+        quit(driver);
+    }
+
+    /**
+     * @return 待機中のWebDriver数
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return 生成したWebDriver数(作り直しを含む)
+     */
+    public synchronized int getCreatedCount() {
+        return created;
+    }
+
+    /**
+     * 最大数までのWebDriverを、デーモンスレッドで順に生成して待機させます
+     */
+    private void warmUp() {
+        Thread warmer = new Thread("driver-warmer-" + name) {
+            @Override
+            public void run() {
+                while (true) {
+                    synchronized (DriverPool.this) {
+                        if (size >= maxSize) {
+                            return;
+                        }
+                        size++;
+                    }
+                    try {
+                        WebDriver driver = create();
+                        synchronized (DriverPool.this) {
+                            idle.addLast(driver);
+                            DriverPool.this.notifyAll();
+                        }
+                    } catch (Exception e) {
+                        log.warn("Warm up WebDriver of " + name + " fail. (" + e + ")");
+                        return;
+                    }
+                }
+            }
+        };
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * WebDriverを生成し、生成直後の状態を控えます 呼び出し前にsizeを増やしておくこと
+     */
+    private WebDriver create() throws Exception {
+        long start = System.currentTimeMillis();
+        WebDriver driver = null;
+        try {
+            driver = factory.create();
+            Session session = new Session(driver);
+            synchronized (this) {
+                sessions.put(driver, session);
+                created++;
+            }
+            log.debug("Create WebDriver of " + name + " in " + (System.currentTimeMillis() - start) + "ms. ("
+                    + session.cookies.size() + " cookies, " + session.storage.size() + " storage items)");
+            return driver;
+        } catch (Exception e) {
+            if (driver != null) {
+                quit(driver);
+            }
+            synchronized (this) {
+                size--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void shutdown() {
+        for (WebDriver driver : sessions.keySet()) {
+            quit(driver);
+        }
+        sessions.clear();
+        idle.clear();
+    }
+
+    private static void shutdownAll() {
+        synchronized (POOLS) {
+            for (DriverPool pool : POOLS.values()) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private static void quit(WebDriver driver) {
+        try {
+            driver.quit();
+        } catch (RuntimeException e) {
+            log.debug("Quit WebDriver fail.", e);
+        }
+    }
+
+    /**
+     * 生成直後(ログイン直後)のWebDriverの状態
+     */
+    private static class Session {
+        private final WebDriver driver;
+        private final String url;
+        private final Set<Cookie> cookies;
+        private final Map<String, String> storage;
+
+        private Session(WebDriver driver) {
+            this.driver = driver;
+            this.url = driver.getCurrentUrl();
+            this.cookies = driver.manage().getCookies();
+            this.storage = new LocalStorageJS(driver).snapshot();
+        }
+
+        /**
+         * テストで変更されたLocalStorage・クッキーを消去し、生成直後の状態に戻します
+         */
+        private void reset() {
+            // LocalStorage・クッキーは表示中のオリジンが対象になるため、生成直後のURLに戻ってから消去する
+            driver.get(url);
+            new LocalStorageJS(driver).restore(storage);
+            driver.manage().deleteAllCookies();
+
+            for (Cookie cookie : cookies) {
+                driver.manage().addCookie(cookie);
+            }
+        }
+    }
+}
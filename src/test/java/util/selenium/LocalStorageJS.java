@@ -1,15 +1,39 @@
 package util.selenium;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
 import org.openqa.selenium.JavascriptExecutor;
 import org.openqa.selenium.WebDriver;
 
 /**
- * WebDriverでのテスト時にLocalStorageを操作するクラス
+ * WebDriverでのテスト時にLocalStorageを操作するクラス<br>
+ * <br>
+ * 値はスクリプトの引数で渡すため、引用符等を含む値もそのまま扱えます。<br>
+ * getAllItems・setItems・snapshot・restore は、件数に関わらず1回のスクリプト実行で処理します。
  *
  * @author r.kinoshita
  *
  */
 public class LocalStorageJS {
+
+    /** 全項目を取得するスクリプト **/
+    private static final String GET_ALL_SCRIPT = "var s = window.localStorage, r = {};"
+            + " for (var i = 0; i < s.length; i++) { var k = s.key(i); r[k] = s.getItem(k); } return r;";
+
+    /** 項目をまとめて設定するスクリプト arguments[0]:消去してから設定するか arguments[1]:キー arguments[2]:値 **/
+    private static final String SET_ALL_SCRIPT = "var s = window.localStorage;"
+            + " if (arguments[0]) { s.clear(); }"
+            + " for (var i = 0; i < arguments[1].length; i++) { s.setItem(arguments[1][i], arguments[2][i]); }";
+
     private JavascriptExecutor js;
 
     public LocalStorageJS(WebDriver webDriver) {
@@ -17,23 +41,19 @@ public class LocalStorageJS {
     }
 
     public void removeItemFromLocalStorage(String item) {
-        js.executeScript(String.format(
-                "window.localStorage.removeItem('%s');", item));
+        js.executeScript("window.localStorage.removeItem(arguments[0]);", item);
     }
 
     public boolean isItemPresentInLocalStorage(String item) {
-        return !(js.executeScript(String.format(
-                "return window.localStorage.getItem('%s');", item)) == null);
+        return !(js.executeScript("return window.localStorage.getItem(arguments[0]);", item) == null);
     }
 
     public String getItemFromLocalStorage(String key) {
-        return (String) js.executeScript(String.format(
-                "return window.localStorage.getItem('%s');", key));
+        return (String) js.executeScript("return window.localStorage.getItem(arguments[0]);", key);
     }
 
     public String getKeyFromLocalStorage(int key) {
-        return (String) js.executeScript(String.format(
-                "return window.localStorage.key('%s');", key));
+        return (String) js.executeScript("return window.localStorage.key(arguments[0]);", key);
     }
 
     public Long getLocalStorageLength() {
@@ -41,11 +61,79 @@ public class LocalStorageJS {
     }
 
     public void setItemInLocalStorage(String item, String value) {
-        js.executeScript(String.format(
-                "window.localStorage.setItem('%s','%s');", item, value));
+        js.executeScript("window.localStorage.setItem(arguments[0], arguments[1]);", item, value);
     }
 
     public void clearLocalStorage() {
-        js.executeScript(String.format("window.localStorage.clear();"));
+        js.executeScript("window.localStorage.clear();");
+    }
+
+    /**
+     * 全項目を取得します
+     *
+     * @return キー → 値
+     */
+    public Map<String, String> getAllItems() {
+        Map<String, String> items = new LinkedHashMap<String, String>();
+        Object result = js.executeScript(GET_ALL_SCRIPT);
+        if (result instanceof Map) {
+            for (Map.Entry<?, ?> item : ((Map<?, ?>) result).entrySet()) {
+                items.put(String.valueOf(item.getKey()), item.getValue() == null ? null : String.valueOf(item.getValue()));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * 項目をまとめて設定します 指定していない項目はそのまま残ります
+     *
+     * @param items キー → 値
+     */
+    public void setItems(Map<String, String> items) {
+        setAll(false, items);
+    }
+
+    /**
+     * 全項目の状態を控えます restore()で元に戻せます
+     *
+     * @return キー → 値
+     */
+    public Map<String, String> snapshot() {
+        return getAllItems();
+    }
+
+    /**
+     * 全項目を消去し、控えた状態に戻します
+     *
+     * @param snapshot snapshot()で控えた状態
+     */
+    public void restore(Map<String, String> snapshot) {
+        setAll(true, snapshot);
+    }
+
+    /**
+     * ファイル(UTF-8のproperties形式 キー=値)の内容を設定します 指定していない項目はそのまま残ります
+     *
+     * @param file ファイル
+     * @return 設定した項目
+     * @throws IOException
+     */
+    public Map<String, String> loadItems(File file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+
+        Map<String, String> items = new LinkedHashMap<String, String>();
+        for (String key : properties.stringPropertyNames()) {
+            items.put(key, properties.getProperty(key));
+        }
+        setItems(items);
+        return items;
+    }
+
+    private void setAll(boolean clear, Map<String, String> items) {
+        js.executeScript(SET_ALL_SCRIPT, clear,
+                new ArrayList<String>(items.keySet()), new ArrayList<String>(items.values()));
     }
 }
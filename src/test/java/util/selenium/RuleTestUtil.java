@@ -3,13 +3,13 @@
  */
 package util.selenium;
 
-import static org.junit.Assert.*;
-
 import java.io.File;
 import java.io.IOException;
-import java.util.Properties;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import org.apache.commons.io.FileUtils;
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
 import org.openqa.selenium.By;
@@ -19,13 +19,37 @@ import org.openqa.selenium.OutputType;
 import org.openqa.selenium.TakesScreenshot;
 import org.openqa.selenium.WebDriver;
 import org.openqa.selenium.WebElement;
+import org.openqa.selenium.internal.WrapsDriver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import util.EvidenceStore;
 import util.RuleResource;
+import util.TestConfiguration;
+import util.TestMetrics;
 
 /**
- * seleniumテスト共通ユーティリティ
+ * seleniumテスト共通ユーティリティ<br>
+ * <br>
+ * application.properties like this..
+ *
+ * <pre>
+ * firstAccess.url=http://localhost:9000/
+ * firstAccess.userid=hoge_user
+ * firstAccess.userpw=hoge_pw
+ * firstAccess.cookies=name1=value1, name2=value2
+ * # getDriver()で貸し出すWebDriverのブラウザ(chrome・firefox・htmlunit)とプールの最大数
+ * webDriver.browser=chrome
+ * webDriver.pool.size=1
+ * # waitFor*の待機上限時間(ミリ秒)
+ * webDriver.wait.timeout=60000
+ * # キャプチャの形式(png・jpg)、書き出しキューの上限、直前と同じ内容のキャプチャを省略するか
+ * # capture.async=falseの場合は、書き出し完了までcapture()で待つ
+ * capture.format=png
+ * capture.queue.size=16
+ * capture.dedup=false
+ * capture.async=true
+ * </pre>
  *
  * @author r.kinoshita
  *
@@ -36,6 +60,15 @@ public class RuleTestUtil extends TestWatcher {
     /** 実行中テストメソッド名 */
     protected String testName;
 
+    /** 書き出し待ちのキャプチャ(書き出し先 → 書き出し結果) **/
+    private final Map<File, Future<File>> pendingCaptures = new LinkedHashMap<File, Future<File>>();
+
+    /** getDriver()で借りたWebDriverのプール **/
+    private DriverPool driverPool;
+
+    /** getDriver()で借りたWebDriver **/
+    private WebDriver pooledDriver;
+
     /**
      * テストメソッド開始時の処理
      */
@@ -50,6 +83,16 @@ public class RuleTestUtil extends TestWatcher {
      */
     @Override
     protected void finished(Description d) {
+        flushCaptures();
+        if (RuleResource.isCapture()) {
+            getCaptureWriter().forget(captureKey());
+        }
+        if (pooledDriver != null) {
+            long start = TestMetrics.start();
+            driverPool.giveBack(pooledDriver);
+            TestMetrics.time("driver.giveBack", testName, start);
+            pooledDriver = null;
+        }
         log.debug("[FINISH] " + testName + " ===================");
     }
 
@@ -60,87 +103,218 @@ public class RuleTestUtil extends TestWatcher {
         return testName;
     }
 
+    /**
+     * プールからログイン済みのWebDriverを借ります<br>
+     * テストメソッドの終了時に、LocalStorage・クッキーをログイン直後の状態に戻してプールへ返却されます。<br>
+     * 同じテストメソッド内では同じWebDriverを返します。
+     *
+     * @return ログイン済みのWebDriver
+     * @throws Exception
+     */
+    public WebDriver getDriver() throws Exception {
+        if (pooledDriver == null) {
+            long start = TestMetrics.start();
+            driverPool = getDriverPool();
+            pooledDriver = driverPool.borrow();
+            TestMetrics.time("driver.borrow", testName, start);
+        }
+        return pooledDriver;
+    }
+
+    /**
+     * 設定に対応するWebDriverのプールを取得します<br>
+     * ブラウザ・接続先・ログインユーザーが同じテストクラス間で共有されます。
+     *
+     * @return プール
+     */
+    protected DriverPool getDriverPool() {
+        final TestConfiguration configuration = RuleResource.getTestConfiguration();
+
+        return DriverPool.of(
+                configuration.getWebDriverBrowser() + "|" + configuration.getFirstAccessUrl() + "|"
+                        + configuration.getFirstAccessUserId(),
+                new DriverPool.Factory() {
+                    @Override
+                    public WebDriver create() throws Exception {
+                        WebDriver driver = configuration.getWebDriverBrowser().create();
+                        driver.get(configuration.getFirstAccessUrl());
+                        login(driver, configuration);
+                        return driver;
+                    }
+                },
+                configuration.getWebDriverPoolSize());
+    }
+
     /**
      * 最初のアクセス<br>
-     * 設定ファイルの"firstAccess.*"に準じてアクセスを行います
+     * 設定ファイルの"firstAccess.*"に準じてアクセスを行います<br>
+     * getDriver()で借りたWebDriverはログイン済みのため、ログイン処理を省略します。<br>
+     * データリソース local_storage.properties があれば、その内容をLocalStorageに投入します。
      *
      * @param driver WebDriverオブジェクト
      * @throws InterruptedException
      */
     public void firstAccess(WebDriver driver) throws InterruptedException {
-        Properties configuration = RuleResource.getConfiguration();
+        TestConfiguration configuration = RuleResource.getTestConfiguration();
+        long start = TestMetrics.start();
 
         // アクセス
-        driver.get(configuration.getProperty("firstAccess.url"));
+        driver.get(configuration.getFirstAccessUrl());
 
         // ログイン処理
-        // 設定ファイルにfirstAccess.useridがあれば、上記URLがログイン画面だとし、ログイン処理を行う
-        if (configuration.getProperty("firstAccess.userid") != null
-                && !configuration.getProperty("firstAccess.userid").isEmpty()) {
+        if (driver != pooledDriver) {
+            login(driver, configuration);
+        }
+
+        // クッキーの追加
+        // 設定ファイルにfirstAccess.cookies("項目=値"で複数の場合","区切り)があれば、cookieを食わす
+        for (Map.Entry<String, String> cookie : configuration.getFirstAccessCookies().entrySet()) {
+            driver.manage().addCookie(new Cookie(cookie.getKey(), cookie.getValue()));
+        }
+
+        // LocalStorageの投入
+        // Ex. ./src/test/resources/data/[テストクラス名]/local_storage.properties
+        seedLocalStorage(driver, "local_storage");
+
+        TestMetrics.time("firstAccess", testName, start);
+    }
+
+    /**
+     * LocalStorageへのデータ投入<br>
+     * データリソース(UTF-8のproperties形式 キー=値)の内容を、表示中の画面のLocalStorageに1回のスクリプト実行で設定します。<br>
+     * データリソースに記載されていない項目はそのまま残ります。データリソースが無い場合は何もしません。
+     *
+     * @param driver WebDriverオブジェクト
+     * @param resourceName データリソース名
+     */
+    public void seedLocalStorage(WebDriver driver, String resourceName) {
+        File file = new File(RuleResource.getDataResourcePath(), resourceName + ".properties");
+        if (!file.exists()) {
+            log.debug(file.getPath() + " is not found.");
+            return;
+        }
+
+        long start = TestMetrics.start();
+        try {
+            Map<String, String> items = new LocalStorageJS(driver).loadItems(file);
+            TestMetrics.count("localStorage", resourceName, items.size());
+            log.debug("Seed " + items.size() + " local storage items from " + file.getPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read " + file.getPath(), e);
+        } finally {
+            TestMetrics.time("localStorage", resourceName, start);
+        }
+    }
+
+    /**
+     * ログイン処理<br>
+     * 設定ファイルにfirstAccess.useridがあれば、表示中の画面がログイン画面だとし、ログイン処理を行う
+     *
+     * @param driver WebDriverオブジェクト
+     * @param configuration 設定
+     * @throws InterruptedException
+     */
+    private static void login(WebDriver driver, TestConfiguration configuration) throws InterruptedException {
+        if (configuration.getFirstAccessUserId() != null && !configuration.getFirstAccessUserId().isEmpty()) {
 
             Thread.sleep(3000);
 
             // TODO システムにより要書換
             driver.findElement(By.id("user_id")).clear();
-            driver.findElement(By.id("user_id")).sendKeys(configuration.getProperty("firstAccess.userid"));
+            driver.findElement(By.id("user_id")).sendKeys(configuration.getFirstAccessUserId());
             driver.findElement(By.id("user_pw")).clear();
-            driver.findElement(By.id("user_pw")).sendKeys(configuration.getProperty("firstAccess.userpw"));
+            driver.findElement(By.id("user_pw")).sendKeys(configuration.getFirstAccessUserPw());
             driver.findElement(By.linkText("LOGIN")).click();
         }
-
-        // クッキーの追加
-        // 設定ファイルにfirstAccess.cookies("項目=値"で複数の場合","区切り)があれば、cookieを食わす
-        String strCookies = configuration.getProperty("firstAccess.cookies");
-        if (strCookies != null && !strCookies.isEmpty()) {
-            for (String strCookie : strCookies.split(", *")) {
-                String name = strCookie.substring(0, strCookie.indexOf("="));
-                String value = strCookie.substring(strCookie.indexOf("=") + 1);
-
-                driver.manage().addCookie(new Cookie(name, value));
-            }
-        }
     }
 
     /**
      * キャプチャの取得<br>
-     * 各テストデータディレクトリに、「テストメソッド名_fileName.png」でスクリーンキャプチャが保存される
+     * 各テストデータディレクトリに、「テストメソッド名_fileName.png」でスクリーンキャプチャが保存される<br>
+     * evidence.store=shardedの場合は、エビデンスのストアに内容のハッシュで保存され、実行毎の索引に記録される<br>
+     * 書き出しは書き出しスレッドで行われ、テストメソッドの終了時(flushCaptures())に完了を待ちます
      *
      * @param driver WebDriverオブジェクト
      * @param fileName キャプチャファイルの名前
      */
     public void capture(WebDriver driver, String fileName) {
         if (RuleResource.isCapture()) {
-            File file = ((TakesScreenshot) driver).getScreenshotAs(OutputType.FILE);
-            File out = new File(RuleResource.getCapturePath(), testName + "_" + fileName + ".png");
-            if (!out.getParentFile().exists()) {
-                out.getParentFile().mkdirs();
+            long start = TestMetrics.start();
+            TestConfiguration configuration = RuleResource.getTestConfiguration();
+            CaptureWriter.Format format = configuration.getCaptureFormat();
+            File out = new File(RuleResource.getCapturePath(),
+                    testName + "_" + fileName + "." + format.getExtension());
+
+            // 取得のみテストのスレッドで行い、変換・書き出しは書き出しスレッドに任せる
+            byte[] png = ((TakesScreenshot) driver).getScreenshotAs(OutputType.BYTES);
+            String dedupKey = configuration.isCaptureDedup() ? captureKey() : null;
+            EvidenceStore store = RuleResource.getEvidenceStore();
+            Future<File> future = store == null
+                    ? getCaptureWriter().submit(png, out, format, dedupKey, RuleResource.getMetrics())
+                    : getCaptureWriter().submit(png, store, RuleResource.getTestName(), testName, fileName, format,
+                            dedupKey, RuleResource.getMetrics());
+            pendingCaptures.put(out, future);
+
+            if (!configuration.isCaptureAsync()) {
+                flushCaptures();
             }
+            TestMetrics.time("capture", testName, start);
+        }
+    }
+
+    /**
+     * 書き出し待ちのキャプチャが全て書き出されるまで待機します<br>
+     * テストメソッドの終了時に呼ばれます。
+     */
+    public void flushCaptures() {
+        if (pendingCaptures.isEmpty()) {
+            return;
+        }
+
+        long start = TestMetrics.start();
+        for (Map.Entry<File, Future<File>> pending : pendingCaptures.entrySet()) {
             try {
-                FileUtils.copyFile(file, out);
-                log.debug("Captured : " + out.getPath());
-            } catch (IOException e) {
-                log.warn("Cannot captured : " + out.getPath());
+                pending.getValue().get();
+            } catch (ExecutionException e) {
+                log.warn("Cannot captured : " + pending.getKey().getPath() + " (" + e.getCause() + ")");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while waiting for captures.");
+                break;
             }
         }
+        pendingCaptures.clear();
+        TestMetrics.time("capture.flush", testName, start);
     }
 
     /**
-     * 画面上に指定文字列が現れるまで待機します
+     * @return フォーク全体で共有するキャプチャの書き出し
+     */
+    protected CaptureWriter getCaptureWriter() {
+        return CaptureWriter.getInstance(RuleResource.getTestConfiguration().getCaptureQueueSize());
+    }
+
+    /**
+     * @return 重複排除のキー(テストメソッド毎)
+     */
+    private String captureKey() {
+        return RuleResource.getCapturePath() + testName;
+    }
+
+    /**
+     * 画面上に指定文字列が現れるまで待機します<br>
+     * 画面の変化をイベントで待ち、現れた時点で戻ります(上限は設定ファイルの"webDriver.wait.timeout"ミリ秒)
      *
      * @param driver
      * @param text
      * @throws InterruptedException
      */
     public void waitForTextPresent(WebDriver driver, String text) throws InterruptedException {
-        for (int second = 0;; second++) {
-            if (second >= 60) fail("timeout");
-            try {
-                if (driver.findElement(By.cssSelector("BODY")).getText().matches("^[\\s\\S]*" + text + "[\\s\\S]*$")) {
-                    Thread.sleep(1000);
-                    break;
-                }
-            } catch (Exception e) {}
-            Thread.sleep(1000);
+        long start = TestMetrics.start();
+        try {
+            createWaitEngine(driver).untilTextPresent(text);
+        } finally {
+            TestMetrics.time("wait", testName, start);
         }
     }
 
@@ -152,7 +326,12 @@ public class RuleTestUtil extends TestWatcher {
      * @throws InterruptedException
      */
     public void waitForElementPresent(WebDriver driver, By by) throws InterruptedException {
-        waitForElementPresent(driver.findElement(By.cssSelector("BODY")), by);
+        long start = TestMetrics.start();
+        try {
+            createWaitEngine(driver).untilElementPresent(driver.findElement(By.cssSelector("BODY")), by);
+        } finally {
+            TestMetrics.time("wait", testName, start);
+        }
     }
 
     /**
@@ -163,13 +342,25 @@ public class RuleTestUtil extends TestWatcher {
      * @throws InterruptedException
      */
     public void waitForElementPresent(WebElement element, By by) throws InterruptedException {
-        for (int second = 0;; second++) {
-            if (second >= 60) fail("timeout");
-            try { if (isElementPresent(element, by)) break; } catch (Exception e) {}
-            Thread.sleep(1000);
+        long start = TestMetrics.start();
+        try {
+            WebDriver driver = element instanceof WrapsDriver ? ((WrapsDriver) element).getWrappedDriver() : null;
+            createWaitEngine(driver).untilElementPresent(element, by);
+        } finally {
+            TestMetrics.time("wait", testName, start);
         }
     }
 
+    /**
+     * 設定ファイルの"webDriver.wait.timeout"(ミリ秒 既定60000)を上限とする待機処理を生成します
+     *
+     * @param driver WebDriverオブジェクト
+     * @return 待機処理
+     */
+    protected WaitEngine createWaitEngine(WebDriver driver) {
+        return new WaitEngine(driver, RuleResource.getTestConfiguration().getWebDriverWaitTimeout());
+    }
+
     /**
      * 要素の存在確認
      *
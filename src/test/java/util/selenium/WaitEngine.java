@@ -0,0 +1,334 @@
+/**
+ *
+ */
+package util.selenium;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.NoSuchElementException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+import org.openqa.selenium.WebElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 画面の変化をイベントで待つ待機処理<br>
+ * <br>
+ * 条件を満たしていなければ、画面内にMutationObserverを仕掛ける非同期スクリプトを実行し、
+ * DOMが変化した時点で(文字列の待機は画面内で条件を満たした時点で)戻ります。<br>
+ * 通知を取りこぼすブラウザ(HtmlUnit等)に備えて、スクリプト内でも間隔を広げながらDOMを確認します。<br>
+ * スクリプトを実行できない場合(JavaScript無効・画面遷移中等)は、
+ * MIN_BACKOFF から MAX_BACKOFF まで間隔を倍々に広げながら条件を確認します。<br>
+ * WebDriverはプールで使い回すため、変更したスクリプトの上限時間は待機の終了時に戻します。
+ *
+ * @author r.kinoshita
+ *
+ */
+public class WaitEngine {
+    protected static final Logger log = LoggerFactory.getLogger(WaitEngine.class);
+
+    /** 既定の待機上限時間(ミリ秒) **/
+    public static final long DEFAULT_TIMEOUT = 60000L;
+
+    /** 待機後に戻すスクリプトの上限時間の既定値(ミリ秒) WebDriverの仕様の既定値 **/
+    public static final long DEFAULT_SCRIPT_TIMEOUT = 30000L;
+
+    /** 1回の非同期スクリプトで待つ上限時間(ミリ秒) 画面遷移でスクリプトが破棄された場合に備えて区切る **/
+    private static final long SLICE = 1000L;
+
+    /** 確認間隔の初期値(ミリ秒) **/
+    private static final long MIN_BACKOFF = 10L;
+
+    /** 確認間隔の上限(ミリ秒) **/
+    private static final long MAX_BACKOFF = 500L;
+
+    /** スクリプトの連続失敗がこの回数に達したら、以降は確認間隔を広げながらの確認に切り替える **/
+    private static final int MAX_SCRIPT_FAILURES = 3;
+
+    /** 正規表現の先頭のフラグ指定 **/
+    private static final Pattern LEADING_FLAGS = Pattern.compile("\\(\\?([a-zA-Z]+)\\)");
+
+    /** 画面内のRegExpでも同じ意味になる、英数字のエスケープ **/
+    private static final String SCRIPT_ESCAPES = "dDwWsSbBtnrfcux123456789";
+
+    /**
+     * DOMの変化または条件の成立を待つスクリプト<br>
+     * MutationObserverの通知に加え、通知を取りこぼすブラウザに備えて画面内でも10ミリ秒から200ミリ秒まで間隔を広げながら確認する<br>
+     * arguments[0]:本文に対する正規表現(空文字の場合は変化のみを待つ) arguments[1]:上限時間(ミリ秒)
+     * arguments[2]:前回返したDOMの指紋(前回の戻り値以降の変化を取りこぼさないため) arguments[3]:正規表現のフラグ<br>
+     * 戻り値 met:条件成立 changed:DOMが変化 timeout:上限時間経過 (changed・timeoutは「:DOMの指紋」が続く)
+     */
+    private static final String AWAIT_SCRIPT = "var callback = arguments[arguments.length - 1], limit = arguments[1];"
+            + " var pattern = arguments[0] === '' ? null : new RegExp(arguments[0], arguments[3]);"
+            + " var met = function() { return pattern !== null && document.body !== null"
+            + "  && pattern.test(document.body.innerText || document.body.textContent); };"
+            + " var signature = function() { return document.getElementsByTagName('*').length + ':'"
+            + "  + (document.body === null ? 0 : document.body.textContent.length); };"
+            + " if (met()) { callback('met'); return; }"
+            + " var done = false, observer = null, timer = null, interval = 10;"
+            + " var start = new Date().getTime(), last = arguments[2];"
+            + " var finish = function(result) { if (!done) { done = true;"
+            + "  if (observer !== null) { observer.disconnect(); } clearTimeout(timer);"
+            + "  callback(result === 'met' ? result : result + ':' + signature()); } };"
+            + " if (pattern === null && signature() !== last) { finish('changed'); return; }"
+            + " if (typeof MutationObserver !== 'undefined') {"
+            + "  observer = new MutationObserver(function() {"
+            + "   if (pattern === null) { finish('changed'); } else if (met()) { finish('met'); } });"
+            + "  observer.observe(document.documentElement,"
+            + "   { childList: true, subtree: true, characterData: true, attributes: true }); }"
+            + " var poll = function() {"
+            + "  if (pattern === null ? signature() !== last : met()) { finish(pattern === null ? 'changed' : 'met'); return; }"
+            + "  var elapsed = new Date().getTime() - start;"
+            + "  if (elapsed >= limit) { finish('timeout'); return; }"
+            + "  interval = Math.min(interval * 2, 200); timer = setTimeout(poll, Math.min(interval, limit - elapsed)); };"
+            + " timer = setTimeout(poll, interval);";
+
+    /**
+     * 待機する条件
+     */
+    public interface Condition {
+        boolean test(WebDriver driver);
+    }
+
+    private final WebDriver driver;
+
+    /** 待機上限時間(ミリ秒) **/
+    private final long timeout;
+
+    /** 待機後に戻すスクリプトの上限時間(ミリ秒) **/
+    private final long scriptTimeout;
+
+    /** 非同期スクリプトで待機できるか **/
+    private boolean scriptable;
+
+    /**
+     * コンストラクタ<br>
+     * 待機後のスクリプトの上限時間は DEFAULT_SCRIPT_TIMEOUT に戻します
+     *
+     * @param driver WebDriverオブジェクト
+     * @param timeout 待機上限時間(ミリ秒)
+     */
+    public WaitEngine(WebDriver driver, long timeout) {
+        this(driver, timeout, DEFAULT_SCRIPT_TIMEOUT);
+    }
+
+    /**
+     * コンストラクタ
+     *
+     * @param driver WebDriverオブジェクト
+     * @param timeout 待機上限時間(ミリ秒)
+     * @param scriptTimeout 待機後に戻すスクリプトの上限時間(ミリ秒) WebDriverに設定している値
+     */
+    public WaitEngine(WebDriver driver, long timeout, long scriptTimeout) {
+        this.driver = driver;
+        this.timeout = timeout;
+        this.scriptTimeout = scriptTimeout;
+        this.scriptable = driver instanceof JavascriptExecutor;
+    }
+
+    /**
+     * 画面上に指定文字列(正規表現)が現れるまで待機します<br>
+     * 画面内で本文を確認するため、本文全体をWebDriverで取得するのはスクリプトを実行できない場合のみです。<br>
+     * 画面内のRegExpで同じ意味にならない正規表現の場合は、DOMの変化毎に本文を取得して確認します。
+     *
+     * @param text 文字列(正規表現)
+     * @throws InterruptedException
+     */
+    public void untilTextPresent(String text) throws InterruptedException {
+        final Pattern pattern = Pattern.compile(text);
+        String[] scriptPattern = toScriptPattern(text);
+        if (scriptPattern == null) {
+            log.debug("Pattern " + text + " can not be tested in page. Test it on each DOM change.");
+        }
+        await(scriptPattern, new Condition() {
+            @Override
+            public boolean test(WebDriver driver) {
+                try {
+                    return pattern.matcher(driver.findElement(By.cssSelector("BODY")).getText()).find();
+                } catch (WebDriverException e) {
+                    return false;
+                }
+            }
+        }, "text " + text);
+    }
+
+    /**
+     * 要素が現れるまで待機します
+     *
+     * @param element 探索の起点となる要素
+     * @param by 要素の条件
+     * @throws InterruptedException
+     */
+    public void untilElementPresent(final WebElement element, final By by) throws InterruptedException {
+        until(new Condition() {
+            @Override
+            public boolean test(WebDriver driver) {
+                try {
+                    element.findElement(by);
+                    return true;
+                } catch (NoSuchElementException e) {
+                    return false;
+                }
+            }
+        }, "element " + by);
+    }
+
+    /**
+     * 条件を満たすまで待機します DOMが変化する度に条件を確認します
+     *
+     * @param condition 条件
+     * @param description タイムアウト時のメッセージ
+     * @throws InterruptedException
+     */
+    public void until(Condition condition, String description) throws InterruptedException {
+        await(null, condition, description);
+    }
+
+    /**
+     * Javaの正規表現を、画面内のRegExpで同じ意味になる[本体, フラグ]に変換します<br>
+     * 先頭のフラグ指定のうち(?i)(?m)はRegExpのフラグに、(?s)は「.」の置き換えに変換します。<br>
+     * RegExpに無い・意味の異なる構文(途中のフラグ指定、先読み以外の(?構文、\A等のエスケープ、強欲な量指定子、文字クラスの入れ子・積集合)を含む場合はnullを返します。
+     *
+     * @param regex Javaの正規表現
+     * @return [本体, フラグ] 変換できない場合はnull
+     */
+    public static String[] toScriptPattern(String regex) {
+        String flags = "";
+        boolean dotAll = false;
+        int i = 0;
+        Matcher head = LEADING_FLAGS.matcher(regex);
+        if (head.lookingAt()) {
+            for (char flag : head.group(1).toCharArray()) {
+                if (flag == 'i' || flag == 'm') {
+                    flags += flags.indexOf(flag) < 0 ? String.valueOf(flag) : "";
+                } else if (flag == 's') {
+                    dotAll = true;
+                } else if (flag != 'u') {
+                    return null;
+                }
+            }
+            i = head.end();
+        }
+
+        StringBuilder source = new StringBuilder();
+        boolean inClass = false;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            char next = i + 1 < regex.length() ? regex.charAt(i + 1) : 0;
+            if (c == '\\') {
+                if (Character.isLetterOrDigit(next) && SCRIPT_ESCAPES.indexOf(next) < 0
+                        || next == 'x' && regex.startsWith("{", i + 2)) {
+                    return null;
+                }
+                source.append(c).append(next);
+                i += 2;
+                continue;
+            }
+            if (inClass) {
+                if (c == '[' || c == '&' && next == '&') {
+                    return null;
+                }
+                inClass = c != ']';
+            } else if (c == '[') {
+                // 先頭の]はJavaでは文字、RegExpでは空のクラスの終わり
+                int first = next == '^' ? i + 2 : i + 1;
+                if (regex.startsWith("]", first)) {
+                    return null;
+                }
+                source.append(regex, i, first);
+                i = first;
+                inClass = true;
+                continue;
+            } else if (c == '(' && next == '?') {
+                if (!regex.startsWith(":", i + 2) && !regex.startsWith("=", i + 2) && !regex.startsWith("!", i + 2)) {
+                    return null;
+                }
+            } else if ("*+?}".indexOf(c) >= 0 && next == '+') {
+                return null;
+            } else if (c == '.' && dotAll) {
+                source.append("[\\s\\S]");
+                i++;
+                continue;
+            }
+            source.append(c);
+            i++;
+        }
+        return new String[] { source.toString(), flags };
+    }
+
+    /**
+     * 待機処理の本体
+     *
+     * @param pattern 画面内で確認する本文の正規表現[本体, フラグ] nullの場合はDOMの変化毎にconditionを確認
+     * @param condition 条件 patternを指定した場合は、スクリプトを実行できない場合のみ確認
+     * @param description タイムアウト時のメッセージ
+     */
+    private void await(String[] pattern, Condition condition, String description) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long backoff = MIN_BACKOFF;
+        boolean scriptTimeoutSet = false;
+        int failures = 0;
+        String signature = "";
+
+        try {
+            while (true) {
+                if ((pattern == null || !scriptable) && condition.test(driver)) {
+                    return;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    fail("timeout : " + description + " (" + timeout + "ms)");
+                }
+
+                if (scriptable) {
+                    try {
+                        if (!scriptTimeoutSet) {
+                            driver.manage().timeouts().setScriptTimeout(SLICE * 2, TimeUnit.MILLISECONDS);
+                            scriptTimeoutSet = true;
+                        }
+                        Object result = ((JavascriptExecutor) driver).executeAsyncScript(AWAIT_SCRIPT,
+                                pattern == null ? "" : pattern[0], Math.min(SLICE, remaining), signature,
+                                pattern == null ? "" : pattern[1]);
+                        if ("met".equals(result)) {
+                            return;
+                        }
+                        signature = String.valueOf(result).substring(String.valueOf(result).indexOf(':') + 1);
+                        backoff = MIN_BACKOFF;
+                        failures = 0;
+                        continue;
+                    } catch (UnsupportedOperationException e) {
+                        log.debug("Script is not supported. Fall back to polling. (" + e.getMessage() + ")");
+                        scriptable = false;
+                    } catch (WebDriverException e) {
+                        // 画面遷移でスクリプトが破棄された等 少し待って再試行する
+                        if (++failures >= MAX_SCRIPT_FAILURES) {
+                            log.debug("Await script fail " + failures + " times. Fall back to polling.", e);
+                            scriptable = false;
+                        } else {
+                            log.debug("Await script fail. Retry after " + backoff + "ms. (" + e.getMessage() + ")");
+                        }
+                    }
+                }
+
+                Thread.sleep(Math.min(backoff, Math.max(1L, deadline - System.currentTimeMillis())));
+                backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            }
+        } finally {
+            // プールで使い回すWebDriverに、変更した上限時間を残さない
+            if (scriptTimeoutSet) {
+                try {
+                    driver.manage().timeouts().setScriptTimeout(scriptTimeout, TimeUnit.MILLISECONDS);
+                } catch (WebDriverException e) {
+                    log.debug("Restore script timeout fail. (" + e.getMessage() + ")");
+                }
+            }
+        }
+    }
+}